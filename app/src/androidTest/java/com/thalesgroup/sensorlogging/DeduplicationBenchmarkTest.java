@@ -0,0 +1,144 @@
+package com.thalesgroup.sensorlogging;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
+import io.realm.RealmList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented benchmark of the write transaction of a new entry, comparing a database with few wifi
+ * devices, wifi networks and bluetooth devices with one with many of them.
+ * The time of the transaction should not grow with the size of those tables.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DeduplicationBenchmarkTest {
+
+    private static final String LOG_TAG = "DeduplicationBenchmark";
+    private static final int SMALL_TABLE_SIZE = 1000; //rows per table in the small database
+    private static final int LARGE_TABLE_SIZE = 50000; //rows per table in the large database
+    private static final int WINDOWS = 50; //number of entries inserted in each measurement
+    private static final int OBJECTS_PER_WINDOW = 30; //wifi networks, wifi devices and bluetooth devices seen in each entry
+
+    @Test
+    public void writeTimeStaysFlatAsTablesGrow() {
+        Context appContext = InstrumentationRegistry.getTargetContext();
+        Realm.init(appContext);
+        RealmConfiguration config = new RealmConfiguration.Builder()
+                .name("deduplication-benchmark.realm")
+                .inMemory()
+                .schemaVersion(DatabaseMigration.SCHEMA_VERSION)
+                .migration(new DatabaseMigration())
+                .build();
+        Realm realm = Realm.getInstance(config);
+        try {
+            IdSequenceAllocator idAllocator = new IdSequenceAllocator();
+
+            fill(realm, idAllocator, 0, SMALL_TABLE_SIZE);
+            double smallMs = measure(realm, idAllocator, SMALL_TABLE_SIZE);
+
+            fill(realm, idAllocator, SMALL_TABLE_SIZE, LARGE_TABLE_SIZE);
+            double largeMs = measure(realm, idAllocator, LARGE_TABLE_SIZE);
+
+            Log.i(LOG_TAG, "Average write transaction: " + smallMs + " ms with " + SMALL_TABLE_SIZE + " rows per table, "
+                    + largeMs + " ms with " + LARGE_TABLE_SIZE + " rows per table");
+            //50x more rows must not make each write noticeably slower
+            assertTrue("write time grew from " + smallMs + " ms to " + largeMs + " ms", largeMs < 2 * smallMs + 1);
+        } finally {
+            realm.close();
+        }
+    }
+
+    /**
+     * inserts wifi devices, wifi networks and bluetooth devices with indexes in [from, to) in the database
+     */
+    private void fill(Realm realm, final IdSequenceAllocator idAllocator, final int from, final int to) {
+        final NaturalKeyCache naturalKeyCache = new NaturalKeyCache();
+        realm.executeTransaction(new Realm.Transaction() {
+            @Override
+            public void execute(Realm realm) {
+                RealmList<WifiDeviceCustom> wifiDevices = new RealmList<>();
+                RealmList<WifiNetworkCustom> wifiNetworks = new RealmList<>();
+                RealmList<BluetoothDeviceCustom> bluetoothDevices = new RealmList<>();
+                for (int i = from; i < to; i++) {
+                    wifiDevices.add(wifiDevice(i));
+                    wifiNetworks.add(wifiNetwork(i));
+                    bluetoothDevices.add(bluetoothDevice(i));
+                }
+                naturalKeyCache.assignIds(realm, WifiDeviceCustom.class, wifiDevices, idAllocator);
+                naturalKeyCache.assignIds(realm, WifiNetworkCustom.class, wifiNetworks, idAllocator);
+                naturalKeyCache.assignIds(realm, BluetoothDeviceCustom.class, bluetoothDevices, idAllocator);
+                realm.insertOrUpdate(wifiDevices);
+                realm.insertOrUpdate(wifiNetworks);
+                realm.insertOrUpdate(bluetoothDevices);
+            }
+        });
+    }
+
+    /**
+     * inserts WINDOWS entries the same way DataAcquisitionService does, each one seeing both objects already
+     * in the database and new ones
+     * @return average duration of a write transaction (ms)
+     */
+    private double measure(Realm realm, final IdSequenceAllocator idAllocator, final int tableSize) {
+        final NaturalKeyCache naturalKeyCache = new NaturalKeyCache();
+        long totalNanos = 0;
+        for (int window = -1; window < WINDOWS; window++) {
+            final int firstIndex = tableSize - OBJECTS_PER_WINDOW / 2 + window * OBJECTS_PER_WINDOW;
+            long start = System.nanoTime();
+            realm.executeTransaction(new Realm.Transaction() {
+                @Override
+                public void execute(Realm realm) {
+                    RealmList<WifiDeviceCustom> wifiDevices = new RealmList<>();
+                    RealmList<WifiNetworkCustom> wifiNetworks = new RealmList<>();
+                    RealmList<BluetoothDeviceCustom> bluetoothDevices = new RealmList<>();
+                    for (int i = firstIndex; i < firstIndex + OBJECTS_PER_WINDOW; i++) {
+                        wifiDevices.add(wifiDevice(i));
+                        wifiNetworks.add(wifiNetwork(i));
+                        bluetoothDevices.add(bluetoothDevice(i));
+                    }
+                    naturalKeyCache.assignIds(realm, WifiDeviceCustom.class, wifiDevices, idAllocator);
+                    naturalKeyCache.assignIds(realm, WifiNetworkCustom.class, wifiNetworks, idAllocator);
+                    naturalKeyCache.assignIds(realm, BluetoothDeviceCustom.class, bluetoothDevices, idAllocator);
+
+                    MotionValues motionValues = new MotionValues();
+                    motionValues.setId(idAllocator.nextId(MotionValues.class, realm));
+                    SensorsEntry entry = new SensorsEntry(0, 0, 50, -90, motionValues, false, false, false, 0, 0, null, 0, 0, null, wifiDevices, wifiNetworks, bluetoothDevices);
+                    entry.setId(idAllocator.nextId(SensorsEntry.class, realm));
+                    realm.insertOrUpdate(entry);
+                }
+            });
+            naturalKeyCache.commit();
+            if (window >= 0) //the first transaction only warms the cache
+                totalNanos += System.nanoTime() - start;
+        }
+        return totalNanos / 1e6 / WINDOWS;
+    }
+
+    private static WifiDeviceCustom wifiDevice(int i) {
+        return new WifiDeviceCustom("192.168." + (i / 256 % 256) + "." + (i % 256), String.format("02:00:%08x", i), "network-" + (i / 1000));
+    }
+
+    private static WifiNetworkCustom wifiNetwork(int i) {
+        WifiNetworkCustom network = new WifiNetworkCustom();
+        network.setSSID("network-" + i);
+        network.setBSSID(String.format("04:00:%08x", i));
+        return network;
+    }
+
+    private static BluetoothDeviceCustom bluetoothDevice(int i) {
+        BluetoothDeviceCustom device = new BluetoothDeviceCustom();
+        device.setAddress(String.format("06:00:%08x", i));
+        device.setName("device-" + i);
+        device.setType(i % 4);
+        return device;
+    }
+}
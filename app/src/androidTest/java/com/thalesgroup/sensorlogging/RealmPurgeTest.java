@@ -0,0 +1,104 @@
+package com.thalesgroup.sensorlogging;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
+import io.realm.RealmList;
+import io.realm.RealmResults;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test of the purge of RealmSensorsEntryStorage: deleting entries in chunks must delete exactly the
+ * motion values and locations they contain, and nothing else
+ */
+@RunWith(AndroidJUnit4.class)
+public class RealmPurgeTest {
+
+    private static final int ENTRIES = 300;
+    private static final int CHUNK_SIZE = 40;
+
+    @Test
+    public void chunkedPurgeDeletesLinkedRowsOnly() throws IOException {
+        Realm.init(InstrumentationRegistry.getTargetContext());
+        RealmConfiguration config = new RealmConfiguration.Builder()
+                .name("purge-test.realm")
+                .inMemory()
+                .schemaVersion(DatabaseMigration.SCHEMA_VERSION)
+                .migration(new DatabaseMigration())
+                .build();
+        Realm realm = Realm.getInstance(config); //keeps the in-memory database alive
+        RealmSensorsEntryStorage storage = new RealmSensorsEntryStorage(config);
+        storage.open();
+        try {
+            List<SensorsEntry> entries = new ArrayList<>();
+            for (int i = 0; i < ENTRIES; i += 10) {
+                List<SensorsEntry> commit = new ArrayList<>();
+                for (int j = i; j < i + 10; j++)
+                    commit.add(entry(j));
+                storage.append(commit);
+                entries.addAll(commit);
+            }
+            storage.setUploadWatermark(new UploadWatermark(1, entries.get(ENTRIES / 2 - 1).getId()));
+
+            PurgeResult total = new PurgeResult();
+            PurgeResult chunk;
+            do {
+                chunk = storage.purgeUploaded(CHUNK_SIZE);
+                assertTrue(chunk.getEntries() <= CHUNK_SIZE);
+                total.add(chunk);
+            } while (chunk.getEntries() > 0);
+
+            int locationsKept = 0;
+            for (SensorsEntry entry : entries.subList(ENTRIES / 2, ENTRIES))
+                locationsKept += entry.getLocationList().size();
+            assertEquals(ENTRIES / 2, total.getEntries());
+            assertEquals(ENTRIES / 2, total.getMotionValues());
+            assertTrue(total.getBytes() > 0);
+
+            realm.refresh();
+            RealmResults<SensorsEntry> kept = realm.where(SensorsEntry.class).findAll();
+            assertEquals(ENTRIES / 2, kept.size());
+            assertEquals(ENTRIES / 2, realm.where(MotionValues.class).count());
+            assertEquals(locationsKept, realm.where(LocationCustom.class).count());
+            for (SensorsEntry entry : kept) {
+                assertTrue(entry.getId() > entries.get(ENTRIES / 2 - 1).getId());
+                assertNotNull(entry.getMotionValues());
+            }
+            //shared with other entries, so never deleted
+            assertEquals(3, realm.where(WifiNetworkCustom.class).count());
+        } finally {
+            storage.close();
+            realm.close();
+        }
+    }
+
+    private static SensorsEntry entry(int i) {
+        long beginning = 1538352000000L + i * (long) DataAcquisitionService.DELAY_DB;
+        RealmList<LocationCustom> locations = new RealmList<>();
+        for (int j = 0; j < i % 4; j++) {
+            LocationCustom location = new LocationCustom();
+            location.setLatitude(38.7369);
+            location.setLongitude(-9.1427);
+            location.setProvider("gps");
+            location.setTimestamp(beginning + j * 1000);
+            locations.add(location);
+        }
+        RealmList<WifiNetworkCustom> networks = new RealmList<>();
+        WifiNetworkCustom network = new WifiNetworkCustom();
+        network.setSSID("network-" + i % 3);
+        network.setBSSID("00:1a:2b:3c:4d:0" + i % 3);
+        networks.add(network);
+        return new SensorsEntry(beginning, beginning + DataAcquisitionService.DELAY_DB, -80, -90, new MotionValues(), false, false, false,
+                0, 0, null, 40, 8, locations, null, networks, null);
+    }
+}
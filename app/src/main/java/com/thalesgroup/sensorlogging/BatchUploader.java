@@ -0,0 +1,870 @@
+package com.thalesgroup.sensorlogging;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads the entries not yet uploaded of a storage in batches of up to a number of entries (or of bytes), each
+ * compressed with gzip, as a JSON array (FORMAT_JSON) or in the binary encoding of BinaryBatchCodec (FORMAT_BINARY,
+ * smaller, for slow or metered networks).
+ * With COMPRESSION_DICTIONARY, requests are compressed with deflate (zlib format) and a preset dictionary
+ * (PresetDictionary) instead of gzip: the dictionary is built from the last bytes of a recent payload, again every
+ * DICTIONARY_REBUILD_REQUESTS requests, and posted to the server (HEADER_DICTIONARY giving its id) before the first
+ * request compressed with it. The server answers 412 to a request compressed with a dictionary it does not know,
+ * which is then posted again.
+ * Every batch goes through three steps, so that the storage is never held while the network is used: it is read and
+ * serialized in memory on the thread of the storage, sent on the thread uploading, and then marked as uploaded (in a
+ * short write) on the thread of the storage again. Entries appended meanwhile never wait for the server.
+ * Batches are numbered in order and their progress is kept by the upload watermark of the storage (UploadWatermark):
+ * a batch is recorded as pending before it is sent, and acknowledged once the server accepted it. A batch whose
+ * acknowledgement was lost (timeout, connection reset...) is sent again with the same sequence number and entries,
+ * so that the server can discard it by its device id and sequence number (headers HEADER_DEVICE and HEADER_SEQUENCE).
+ * A backlog can also be streamed (stream()) in a single request of unbounded size, sent with chunked transfer encoding:
+ * the entries are read from a cursor over the storage one chunk at a time, each chunk being compressed as a gzip member
+ * of its own which ends on an entry, so that the memory used does not depend on the size of the backlog. The members
+ * together hold one JSON array (or one binary batch). Each chunk is recorded as pending before it is sent (a checkpoint),
+ * and the server keeps the entries of the chunks it received even if the stream is interrupted: a stream left pending
+ * is resumed by asking the server for the id of the last entry it received (a GET with HEADER_DEVICE, answered with
+ * HEADER_LAST_ID), and sending the entries after it.
+ * Requests go through HttpURLConnection, which keeps the connection to the server open between them (the response of
+ * each request is read to the end and the connection is never disconnected, so that it is reused).
+ * One upload at a time
+ */
+public class BatchUploader {
+
+    private static final String LOG_TAG = "BatchUploader";
+    public static final int DEFAULT_MAX_ENTRIES = 500; //entries per request
+    public static final int DEFAULT_MAX_BYTES = 512*1024; //serialized entries per request, before compression (bytes)
+    private static final int CONNECT_TIMEOUT = 15*1000; //(ms)
+    private static final int READ_TIMEOUT = 30*1000; //(ms)
+    private static final long CANCEL_CHECK_PERIOD = 1000; //how often a cancellation is checked while waiting for the thread of the storage (ms)
+    public static final int FORMAT_JSON = 0;
+    public static final int FORMAT_BINARY = 1;
+    public static final String HEADER_DEVICE = "X-Device-Id"; //header of the id of the device sending the batch
+    public static final String HEADER_SEQUENCE = "X-Batch-Sequence"; //header of the sequence number of the batch
+    public static final String HEADER_LAST_ID = "X-Last-Id"; //header of the answer of the server giving the id of the last entry it received from the device
+    public static final int COMPRESSION_GZIP = 0;
+    public static final int COMPRESSION_DICTIONARY = 1; //deflate with a preset dictionary
+    public static final String HEADER_DICTIONARY = "X-Compression-Dictionary"; //header of the id of the dictionary a request was compressed with, or of the dictionary posted
+    private static final int DICTIONARY_REBUILD_REQUESTS = 100; //requests compressed with a dictionary before another one is built from the latest entries
+    private static final int STREAM_CHUNK_SIZE = 16*1024; //size of the chunks of the transfer encoding of a stream (bytes)
+
+    private final URL url;
+    private final String deviceId; //identifies the device to the server
+    private final int format; //FORMAT_JSON or FORMAT_BINARY
+    private final int compression; //COMPRESSION_GZIP or COMPRESSION_DICTIONARY
+    private final int maxEntries;
+    private final int maxBytes;
+    private volatile long requests = 0; //requests sent
+    private volatile long bytesSent = 0; //compressed bytes sent
+    private volatile boolean cancelled = false;
+    private volatile boolean failed = false; //true if the last upload stopped at a batch that failed
+    private volatile boolean capped = false; //true if the last upload stopped after sending its maximum of bytes
+    //only used on the thread of the storage
+    private final SensorsEntryJsonWriter jsonWriter = new SensorsEntryJsonWriter(null); //reused by every batch
+    private final BinaryBatchCodec.Encoder binaryEncoder = new BinaryBatchCodec.Encoder(null); //reused by every batch
+    private Deflater deflater; //reused by every request compressed with a dictionary
+    private PresetDictionary dictionary; //dictionary of the next requests, null until one was built
+    private int dictionaryUses = 0; //requests compressed with it
+    private PresetDictionary.Sampler sampler; //payload from which the next dictionary is built, null if none is due
+    //only used on the thread uploading
+    private PresetDictionary postedDictionary; //last dictionary the server accepted
+
+    /**
+     * Constructor
+     * @param url - url to which the entries are posted
+     * @param deviceId - id of the device, which the server uses with the sequence numbers to recognize the batches sent again
+     * @param format - FORMAT_JSON or FORMAT_BINARY
+     * @param compression - COMPRESSION_GZIP or COMPRESSION_DICTIONARY
+     * @param maxEntries - maximum number of entries per request
+     * @param maxBytes - size of a request (before compression) after which no more entries are added to it (bytes)
+     */
+    public BatchUploader(URL url, String deviceId, int format, int compression, int maxEntries, int maxBytes) {
+        this.url = url;
+        this.deviceId = deviceId;
+        this.format = format;
+        this.compression = compression;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Constructor of an uploader compressing with gzip
+     * @param url - url to which the entries are posted
+     * @param deviceId - id of the device, which the server uses with the sequence numbers to recognize the batches sent again
+     * @param format - FORMAT_JSON or FORMAT_BINARY
+     * @param maxEntries - maximum number of entries per request
+     * @param maxBytes - size of a request (before compression) after which no more entries are added to it (bytes)
+     */
+    public BatchUploader(URL url, String deviceId, int format, int maxEntries, int maxBytes) {
+        this(url, deviceId, format, COMPRESSION_GZIP, maxEntries, maxBytes);
+    }
+
+    /**
+     * Constructor of an uploader sending JSON
+     * @param url - url to which the entries are posted
+     * @param deviceId - id of the device
+     * @param maxEntries - maximum number of entries per request
+     * @param maxBytes - size of the JSON of a request (before compression) after which no more entries are added to it (bytes)
+     */
+    public BatchUploader(URL url, String deviceId, int maxEntries, int maxBytes) {
+        this(url, deviceId, FORMAT_JSON, maxEntries, maxBytes);
+    }
+
+    /**
+     * Constructor with the default size of batches
+     * @param url - url to which the entries are posted
+     * @param deviceId - id of the device
+     * @param format - FORMAT_JSON or FORMAT_BINARY
+     */
+    public BatchUploader(URL url, String deviceId, int format) {
+        this(url, deviceId, format, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * uploads every entry of a storage not yet uploaded, using the storage on the calling thread (its thread)
+     * @param storage - open storage
+     * @return number of entries uploaded
+     * @throws IOException if the storage could not be read or updated
+     */
+    public long upload(SensorsEntryStorage storage) throws IOException
+    {
+        return upload(storage, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    /**
+     * uploads, in order and in batches, every entry of a storage not yet uploaded, marking each batch as uploaded
+     * once the server accepted it, beginning with the batch sent before without being acknowledged if there is one.
+     * Stops at the first batch that fails, so that the entries uploaded are always the oldest ones.
+     * The requests are sent on the calling thread, which waits for the storage to be read and updated on its own thread
+     * @param storage - open storage
+     * @param storageExecutor - runs tasks on the thread of the storage
+     * @return number of entries uploaded
+     * @throws IOException if the storage could not be read or updated
+     */
+    public long upload(SensorsEntryStorage storage, Executor storageExecutor) throws IOException
+    {
+        return upload(storage, storageExecutor, Long.MAX_VALUE);
+    }
+
+    /**
+     * uploads entries as upload(storage, storageExecutor) does, but stops once a number of bytes was sent
+     * (the batch during which that number is reached is still sent whole)
+     * @param storage - open storage
+     * @param storageExecutor - runs tasks on the thread of the storage
+     * @param maxBytes - compressed bytes after which no more batches are sent
+     * @return number of entries uploaded
+     * @throws IOException if the storage could not be read or updated
+     */
+    public long upload(final SensorsEntryStorage storage, Executor storageExecutor, long maxBytes) throws IOException
+    {
+        long uploaded = 0;
+        long sent = 0;
+        failed = false;
+        capped = false;
+        while(!cancelled)
+        {
+            if(sent >= maxBytes)
+            {
+                capped = true;
+                break;
+            }
+            final Batch batch = runOn(storageExecutor, new Callable<Batch>() {
+                @Override
+                public Batch call() throws IOException {
+                    return cancelled ? null : prepare(storage);
+                }
+            });
+            if(batch == null || cancelled)
+                break;
+            try {
+                send(batch);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to upload " + batch.count + " entries", e);
+                failed = true;
+                break;
+            }
+            sent += batch.body.size();
+            //not acknowledged if the storage closed meanwhile: the batch is sent again by the next upload
+            Boolean marked = runOn(storageExecutor, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    storage.setUploadWatermark(new UploadWatermark(batch.sequence, batch.lastId));
+                    return true;
+                }
+            });
+            if(marked == null)
+                break;
+            uploaded += batch.count;
+        }
+        return uploaded;
+    }
+
+    /**
+     * uploads, in order and in a single streamed request, the entries of a storage not yet uploaded when it begins
+     * (or until a number of bytes was sent), marking them as uploaded once the server accepted the request. If a stream
+     * (or a batch) was interrupted before, the server is first asked for the last entry it received, and the stream
+     * begins after it. Chunks are read and compressed on the thread of the storage and sent on the calling thread
+     * @param storage - open storage
+     * @param storageExecutor - runs tasks on the thread of the storage
+     * @param maxBytes - compressed bytes after which no more chunks are sent
+     * @return number of entries uploaded
+     * @throws IOException if the storage could not be read or updated
+     */
+    public long stream(final SensorsEntryStorage storage, Executor storageExecutor, long maxBytes) throws IOException
+    {
+        failed = false;
+        capped = false;
+        final UploadWatermark watermark = runOn(storageExecutor, new Callable<UploadWatermark>() {
+            @Override
+            public UploadWatermark call() {
+                return cancelled ? null : storage.getUploadWatermark();
+            }
+        });
+        if(watermark == null)
+            return 0;
+        if(watermark.getPendingSequence() != 0)
+        {
+            final long received;
+            try {
+                received = requestLastId();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to resume the upload of batch " + watermark.getPendingSequence(), e);
+                failed = true;
+                return 0;
+            }
+            //what the server received of the pending entries is acknowledged, the rest is sent by the new stream. The
+            //acknowledged id never goes back, whatever the server answers (a server that lost entries, or none received)
+            Boolean resumed = runOn(storageExecutor, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    long acknowledged = Math.max(watermark.getAcknowledgedId(), Math.min(received, watermark.getPendingLastId()));
+                    storage.setUploadWatermark(new UploadWatermark(watermark.getPendingSequence(), acknowledged));
+                    return true;
+                }
+            });
+            if(resumed == null)
+                return 0;
+        }
+
+        final Stream stream = runOn(storageExecutor, new Callable<Stream>() {
+            @Override
+            public Stream call() throws IOException {
+                if(cancelled)
+                    return null;
+                Stream stream = new Stream(storage.getUploadWatermark(), storage.countNotUploaded());
+                return stream.next(storage) ? stream : null;
+            }
+        });
+        if(stream == null)
+            return 0;
+        try {
+            postDictionary(stream.dictionary);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to post the dictionary of " + stream.count + " entries", e);
+            failed = true;
+            return 0;
+        }
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        boolean answered = false;
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(STREAM_CHUNK_SIZE);
+            setHeaders(connection, stream.sequence, stream.dictionary);
+            OutputStream out = connection.getOutputStream();
+            requests++;
+            long sent = 0;
+            while(true)
+            {
+                stream.chunk.writeTo(out);
+                sent += stream.chunk.size();
+                bytesSent += stream.chunk.size();
+                if(sent >= maxBytes)
+                {
+                    capped = true;
+                    break;
+                }
+                if(cancelled)
+                    break;
+                Boolean more = runOn(storageExecutor, new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException {
+                        return stream.next(storage);
+                    }
+                });
+                if(more == null)
+                    return 0; //interrupted, the chunk being prepared may still be written on the thread of the storage
+                if(!more)
+                    break;
+            }
+            Boolean ended = runOn(storageExecutor, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    stream.end();
+                    return true;
+                }
+            });
+            if(ended == null)
+                return 0;
+            stream.chunk.writeTo(out);
+            bytesSent += stream.chunk.size();
+            out.close();
+            int code = readResponse(connection);
+            answered = true;
+            checkAnswer(code, stream.dictionary);
+        } catch (IOException e) {
+            //the chunks received by the server are acknowledged when the stream is resumed
+            Log.w(LOG_TAG, "Failed to stream " + stream.count + " entries", e);
+            failed = true;
+            return 0;
+        } finally {
+            if(!answered)
+                connection.disconnect(); //the exchange was interrupted, the connection cannot be reused
+        }
+
+        Boolean marked = runOn(storageExecutor, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                storage.setUploadWatermark(new UploadWatermark(stream.sequence, stream.lastId));
+                return true;
+            }
+        });
+        return marked != null ? stream.count : 0;
+    }
+
+    /**
+     * stops the upload in progress once the request being sent is answered, and the uploads started afterwards.
+     * May be called from any thread
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return true if the last upload stopped at a batch that failed
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @return true if the last upload stopped after sending its maximum number of bytes, possibly with entries left
+     */
+    public boolean isCapped() {
+        return capped;
+    }
+
+    /**
+     * @return number of requests sent
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return number of bytes sent, compressed
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * runs a task on the thread of the storage and waits for its result
+     * @return result of the task, or null if the upload was cancelled before the task ran
+     * @throws IOException if the task failed
+     */
+    private <T> T runOn(Executor storageExecutor, Callable<T> task) throws IOException
+    {
+        FutureTask<T> future = new FutureTask<>(task);
+        storageExecutor.execute(future);
+        while(true)
+        {
+            try {
+                return future.get(CANCEL_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                //the thread of the storage drops its tasks when it stops, which only happens once the upload is cancelled
+                if(cancelled)
+                    return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                if(e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException("Failed to read or update the storage", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * reads and serializes the next entries not yet uploaded, recording the batch as pending unless it already was
+     * (thread of the storage)
+     * @return batch of entries, or null if every entry was uploaded
+     */
+    private Batch prepare(SensorsEntryStorage storage) throws IOException
+    {
+        UploadWatermark watermark = storage.getUploadWatermark();
+        if(watermark.getPendingSequence() != 0)
+        {
+            //sent before without being acknowledged: sent again with the same entries, whatever the limits of the batches
+            Batch batch = new Batch(watermark.getPendingSequence(), watermark.getPendingLastId());
+            storage.scanNotUploaded(batch);
+            if(batch.failure != null)
+                throw batch.failure;
+            if(batch.count > 0)
+            {
+                batch.lastId = watermark.getPendingLastId();
+                batch.end();
+                return batch;
+            }
+            //its entries were deleted meanwhile (retention policy): there is nothing left to send again
+            storage.setUploadWatermark(new UploadWatermark(watermark.getPendingSequence(), watermark.getPendingLastId()));
+            watermark = storage.getUploadWatermark();
+        }
+
+        Batch batch = new Batch(watermark.getAcknowledgedSequence() + 1, Long.MAX_VALUE);
+        storage.scanNotUploaded(batch);
+        if(batch.failure != null)
+            throw batch.failure;
+        if(batch.count == 0)
+            return null;
+        batch.end();
+        storage.setUploadWatermark(new UploadWatermark(watermark.getAcknowledgedSequence(), watermark.getAcknowledgedId(), batch.sequence, batch.lastId));
+        return batch;
+    }
+
+    /**
+     * sends a batch of entries (thread uploading)
+     * @throws IOException if the request failed or the server did not accept it
+     */
+    private void send(Batch batch) throws IOException
+    {
+        postDictionary(batch.dictionary);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        boolean answered = false;
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(batch.body.size());
+            setHeaders(connection, batch.sequence, batch.dictionary);
+            OutputStream out = connection.getOutputStream();
+            batch.body.writeTo(out);
+            out.close();
+            requests++;
+            bytesSent += batch.body.size();
+            int code = readResponse(connection);
+            answered = true;
+            checkAnswer(code, batch.dictionary);
+        } finally {
+            if(!answered)
+                connection.disconnect(); //the exchange was interrupted, the connection cannot be reused
+        }
+    }
+
+    /**
+     * asks the server for the id of the last entry it received from the device (thread uploading)
+     * @return id of that entry, 0 if none
+     * @throws IOException if the request failed or the server did not answer it
+     */
+    private long requestLastId() throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        boolean answered = false;
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setRequestProperty(HEADER_DEVICE, deviceId);
+            requests++;
+            int code = readResponse(connection);
+            answered = true;
+            String lastId = connection.getHeaderField(HEADER_LAST_ID);
+            if(code < 200 || code >= 300 || lastId == null)
+                throw new IOException("Server answered " + code + " without the last entry received");
+            return Long.parseLong(lastId.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid last entry received", e);
+        } finally {
+            if(!answered)
+                connection.disconnect();
+        }
+    }
+
+    /**
+     * posts a dictionary to the server unless it already accepted it (thread uploading)
+     * @param dictionary - dictionary a request is compressed with, null if it is compressed with gzip
+     * @throws IOException if the request failed or the server did not accept the dictionary
+     */
+    private void postDictionary(PresetDictionary dictionary) throws IOException
+    {
+        if(dictionary == null || dictionary == postedDictionary)
+            return;
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        boolean answered = false;
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(dictionary.getBytes().length);
+            connection.setRequestProperty("Content-Type", PresetDictionary.CONTENT_TYPE);
+            connection.setRequestProperty(HEADER_DEVICE, deviceId);
+            connection.setRequestProperty(HEADER_DICTIONARY, Long.toString(dictionary.getId()));
+            OutputStream out = connection.getOutputStream();
+            out.write(dictionary.getBytes());
+            out.close();
+            requests++;
+            bytesSent += dictionary.getBytes().length;
+            int code = readResponse(connection);
+            answered = true;
+            if(code < 200 || code >= 300)
+                throw new IOException("Server answered " + code + " to dictionary " + dictionary.getId());
+            postedDictionary = dictionary;
+        } finally {
+            if(!answered)
+                connection.disconnect();
+        }
+    }
+
+    /**
+     * @param code - status code of the answer to a request
+     * @param dictionary - dictionary the request was compressed with, null if none
+     * @throws IOException if the server did not accept the request
+     */
+    private void checkAnswer(int code, PresetDictionary dictionary) throws IOException
+    {
+        if(code >= 200 && code < 300)
+            return;
+        if(code == HttpURLConnection.HTTP_PRECON_FAILED && dictionary != null)
+            postedDictionary = null; //the server lost the dictionary: posted again with the next request
+        throw new IOException("Server answered " + code);
+    }
+
+    private void setHeaders(HttpURLConnection connection, long sequence, PresetDictionary dictionary)
+    {
+        if(format == FORMAT_BINARY)
+            connection.setRequestProperty("Content-Type", BinaryBatchCodec.CONTENT_TYPE + "; version=" + BinaryBatchCodec.VERSION);
+        else
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+        if(dictionary != null)
+        {
+            connection.setRequestProperty("Content-Encoding", "deflate");
+            connection.setRequestProperty(HEADER_DICTIONARY, Long.toString(dictionary.getId()));
+        }
+        else
+            connection.setRequestProperty("Content-Encoding", "gzip");
+        connection.setRequestProperty("Accept", "application/json");
+        connection.setRequestProperty(HEADER_DEVICE, deviceId);
+        connection.setRequestProperty(HEADER_SEQUENCE, Long.toString(sequence));
+    }
+
+    /**
+     * waits for the response of the server and reads it to the end, so that the connection can be reused
+     * @return status code of the response
+     */
+    private static int readResponse(HttpURLConnection connection) throws IOException
+    {
+        int code = connection.getResponseCode();
+        InputStream in = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if(in != null)
+        {
+            byte[] buffer = new byte[1024];
+            while(in.read(buffer) >= 0);
+            in.close();
+        }
+        return code;
+    }
+
+    /**
+     * @return dictionary to compress the next request with, null to compress it with gzip (thread of the storage)
+     */
+    private PresetDictionary useDictionary()
+    {
+        if(compression != COMPRESSION_DICTIONARY || dictionary == null)
+            return null;
+        dictionaryUses++;
+        return dictionary;
+    }
+
+    /**
+     * @param out - output of the compressed data
+     * @param dictionary - dictionary to compress with, null to compress with gzip
+     * @return stream compressing what is written to it (thread of the storage)
+     */
+    private OutputStream compress(OutputStream out, PresetDictionary dictionary) throws IOException
+    {
+        if(dictionary == null)
+            return new GZIPOutputStream(out, 8*1024);
+        if(deflater == null)
+            deflater = new Deflater();
+        return dictionary.compress(out, deflater);
+    }
+
+    /**
+     * @param out - output of the payload of a request, before compression
+     * @return output writing to out, which samples the payload if a new dictionary is due (thread of the storage)
+     */
+    private OutputStream sample(OutputStream out)
+    {
+        if(compression != COMPRESSION_DICTIONARY || (dictionary != null && dictionaryUses < DICTIONARY_REBUILD_REQUESTS))
+            return out;
+        sampler = new PresetDictionary.Sampler(out);
+        return sampler;
+    }
+
+    /**
+     * builds the next dictionary from the end of the payload sampled, if one was (thread of the storage)
+     */
+    private void sampled()
+    {
+        if(sampler == null)
+            return;
+        PresetDictionary built = sampler.build();
+        sampler = null;
+        if(built != null)
+        {
+            dictionary = built;
+            dictionaryUses = 0;
+        }
+    }
+
+    /**
+     * entries of a request, serialized and compressed in memory while they are read from the storage
+     */
+    private class Batch implements SensorsEntryStorage.Visitor {
+        final long sequence; //sequence number of the batch
+        final long maxId; //id of the last entry the batch may contain
+        final boolean replay; //true if the batch is sent again, with the same entries
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(); //compressed
+        OutputStream compressing;
+        PresetDictionary dictionary; //dictionary the batch is compressed with, null if it is compressed with gzip
+        int count = 0;
+        long lastId = 0;
+        IOException failure; //error while entries were serialized
+
+        /**
+         * Constructor
+         * @param sequence - sequence number of the batch
+         * @param maxId - id of the last entry the batch contains if it is sent again, Long.MAX_VALUE for a new batch
+         */
+        Batch(long sequence, long maxId) {
+            this.sequence = sequence;
+            this.maxId = maxId;
+            this.replay = maxId != Long.MAX_VALUE;
+        }
+
+        @Override
+        public boolean visit(SensorsEntry entry) {
+            if(entry.getId() > maxId)
+                return false;
+            try {
+                if(compressing == null)
+                    begin();
+                if(format == FORMAT_BINARY)
+                    binaryEncoder.write(entry);
+                else
+                    jsonWriter.write(entry);
+            } catch (IOException e) {
+                failure = e;
+                return false;
+            }
+            count++;
+            lastId = entry.getId();
+            if(replay)
+                return true; //until maxId, so that the entries are the same as the first time
+            long bytes = format == FORMAT_BINARY ? binaryEncoder.getCount() : jsonWriter.getCount();
+            return count < maxEntries && bytes < maxBytes && !cancelled;
+        }
+
+        private void begin() throws IOException
+        {
+            dictionary = useDictionary();
+            compressing = sample(compress(body, dictionary));
+            if(format == FORMAT_BINARY)
+            {
+                binaryEncoder.reset(compressing);
+                binaryEncoder.begin();
+            }
+            else
+            {
+                jsonWriter.reset(compressing);
+                jsonWriter.beginArray();
+            }
+        }
+
+        void end() throws IOException
+        {
+            if(format == FORMAT_BINARY)
+            {
+                binaryEncoder.end();
+                binaryEncoder.flush();
+            }
+            else
+            {
+                jsonWriter.endArray();
+                jsonWriter.flush();
+            }
+            compressing.close(); //ends the compressed stream
+            sampled();
+        }
+    }
+
+    /**
+     * entries of a streamed request, read from a cursor over the storage and compressed one chunk at a time, each chunk
+     * being a gzip member of its own. The writer (or encoder) writes to the stream, which forwards to the member of the
+     * chunk being written, so that the array (or batch) continues from one chunk to the next
+     */
+    private class Stream extends OutputStream {
+        final long sequence; //sequence number of the request
+        final long acknowledgedSequence; //of the upload watermark when the stream began
+        final long acknowledgedId;
+        final long maxCount; //entries not yet uploaded when the stream began: the ones appended afterwards wait for the next stream
+        final ByteArrayOutputStream chunk = new ByteArrayOutputStream(); //compressed, reused by every chunk
+        PresetDictionary dictionary; //dictionary every chunk is compressed with, null if they are compressed with gzip
+        OutputStream member; //gzip member (or zlib stream) of the chunk being written
+        long count = 0; //entries in the chunks written
+        long lastId; //id of the last entry of the chunks written
+
+        /**
+         * Constructor (thread of the storage)
+         * @param watermark - upload watermark of the storage, without any pending batch
+         * @param maxCount - maximum number of entries of the stream
+         */
+        Stream(UploadWatermark watermark, long maxCount) {
+            this.sequence = watermark.getAcknowledgedSequence() + 1;
+            this.acknowledgedSequence = watermark.getAcknowledgedSequence();
+            this.acknowledgedId = watermark.getAcknowledgedId();
+            this.lastId = watermark.getAcknowledgedId();
+            this.maxCount = maxCount;
+        }
+
+        /**
+         * reads, serializes and compresses the next chunk of entries, recording the stream as pending up to its last
+         * entry (thread of the storage)
+         * @return false if there were no more entries
+         */
+        boolean next(SensorsEntryStorage storage) throws IOException
+        {
+            chunk.reset();
+            if(count >= maxCount)
+                return false;
+            int chunkCount = 0;
+            long chunkStart = 0;
+            SensorsEntryCursor cursor = storage.query(Long.MIN_VALUE, Long.MAX_VALUE, lastId, (int) Math.min(maxEntries, maxCount - count), EntryFields.ALL);
+            try {
+                while(cursor.moveToNext())
+                {
+                    if(chunkCount == 0)
+                    {
+                        if(count == 0)
+                            dictionary = useDictionary();
+                        member = compress(chunk, dictionary);
+                        if(count == 0)
+                            begin();
+                        chunkStart = getWritten();
+                    }
+                    SensorsEntry entry = cursor.getEntry();
+                    if(format == FORMAT_BINARY)
+                        binaryEncoder.write(entry);
+                    else
+                        jsonWriter.write(entry);
+                    chunkCount++;
+                    lastId = entry.getId();
+                    if(getWritten() - chunkStart >= maxBytes)
+                        break;
+                }
+            } finally {
+                cursor.close();
+            }
+            if(chunkCount == 0)
+                return false;
+            endMember();
+            count += chunkCount;
+            //checkpoint: the server may have received the chunk even if the stream is interrupted
+            storage.setUploadWatermark(new UploadWatermark(acknowledgedSequence, acknowledgedId, sequence, lastId));
+            return true;
+        }
+
+        /**
+         * writes the last chunk, ending the array (or batch) (thread of the storage)
+         */
+        void end() throws IOException
+        {
+            chunk.reset();
+            member = compress(chunk, dictionary);
+            if(format == FORMAT_BINARY)
+                binaryEncoder.end();
+            else
+                jsonWriter.endArray();
+            endMember();
+            sampled();
+        }
+
+        private void begin() throws IOException
+        {
+            OutputStream out = sample(this);
+            if(format == FORMAT_BINARY)
+            {
+                binaryEncoder.reset(out);
+                binaryEncoder.begin();
+            }
+            else
+            {
+                jsonWriter.reset(out);
+                jsonWriter.beginArray();
+            }
+        }
+
+        private long getWritten() {
+            return format == FORMAT_BINARY ? binaryEncoder.getCount() : jsonWriter.getCount();
+        }
+
+        private void endMember() throws IOException
+        {
+            if(format == FORMAT_BINARY)
+                binaryEncoder.flush();
+            else
+                jsonWriter.flush();
+            member.close(); //ends the gzip member (or zlib stream)
+            member = null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            member.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            member.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            member.flush();
+        }
+    }
+}
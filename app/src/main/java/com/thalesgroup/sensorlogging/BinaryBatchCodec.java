@@ -0,0 +1,569 @@
+package com.thalesgroup.sensorlogging;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.realm.RealmList;
+
+/**
+ * Compact binary encoding of a batch of entries (SensorsEntry) sent to the server, an alternative to JSON for slow
+ * or metered networks.
+ *
+ * A batch starts with MAGIC and the version of the encoding (VERSION), followed by each entry preceded by a 1 and
+ * ended by a 0. Integers are varints, signed ones zigzag-encoded, and most are written as the difference to the
+ * previous value of the batch (ids, timestamps, coordinates). Decimal numbers are quantized to DECIMAL_SCALE
+ * (COORDINATE_SCALE for latitudes and longitudes) and written as integers plus 1, 0 meaning not finite.
+ * Strings (SSIDs, BSSIDs, MACs, names, providers...) are written once per batch: a string is written as 0 if null,
+ * as its index in the table of the batch plus 1 if it was already written, and otherwise as the size of the table
+ * plus 1 followed by its length and its UTF-8 bytes, becoming the next string of the table
+ */
+public abstract class BinaryBatchCodec {
+
+    public static final byte[] MAGIC = {'S', 'L', 'B'};
+    public static final int VERSION = 1; //version of the encoding written by Encoder
+    public static final String CONTENT_TYPE = "application/vnd.sensorlogging.batch";
+    public static final long DECIMAL_SCALE = 10000; //decimal numbers are kept with 4 decimal places
+    public static final long COORDINATE_SCALE = 10000000; //latitudes and longitudes are kept with 7 decimal places (about 1cm)
+
+    private static final int ENTRY = 1;
+    private static final int END = 0;
+    //bits of the flags of an entry
+    private static final int IN_MOTION = 1;
+    private static final int MOVING = 1 << 1;
+    private static final int DISPLAY = 1 << 2;
+    private static final int HAS_MOTION_VALUES = 1 << 3;
+    private static final int HAS_LOCATIONS = 1 << 4;
+    private static final int HAS_WIFI_DEVICES = 1 << 5;
+    private static final int HAS_WIFI_NETWORKS = 1 << 6;
+    private static final int HAS_BLUETOOTH_DEVICES = 1 << 7;
+    //previous values of a batch, the values being written as differences to them
+    private static final int ENTRY_ID = 0;
+    private static final int MOTION_VALUES_ID = 1;
+    private static final int LOCATION_ID = 2;
+    private static final int WIFI_DEVICE_ID = 3;
+    private static final int WIFI_NETWORK_ID = 4;
+    private static final int BLUETOOTH_DEVICE_ID = 5;
+    private static final int BEGINNING_TIMESTAMP = 6;
+    private static final int LATITUDE = 7;
+    private static final int LONGITUDE = 8;
+    private static final int PREVIOUS_VALUES = 9;
+
+    /**
+     * writes batches of entries to an output stream, through a buffer reused for every batch. Not thread-safe
+     */
+    public static class Encoder {
+        private static final int BUFFER_SIZE = 8*1024; //(bytes)
+
+        private OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position = 0; //bytes in the buffer
+        private long count = 0; //bytes written before the ones in the buffer
+        private final Map<String, Integer> strings = new HashMap<>(); //strings written in the batch and their index
+        private final long[] previous = new long[PREVIOUS_VALUES];
+
+        /**
+         * Constructor
+         * @param out - output, which may be replaced later (see reset())
+         */
+        public Encoder(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * starts writing to another output, keeping the buffer. Whatever was not flushed to the previous output is discarded
+         * @param out - output
+         */
+        public void reset(OutputStream out)
+        {
+            this.out = out;
+            position = 0;
+            count = 0;
+        }
+
+        /**
+         * @return number of bytes written since the encoder was created or reset, including the ones not yet flushed
+         */
+        public long getCount() {
+            return count + position;
+        }
+
+        /**
+         * starts a batch
+         */
+        public void begin() throws IOException
+        {
+            strings.clear();
+            for(int i = 0; i < previous.length; i++)
+                previous[i] = 0;
+            ensure(MAGIC.length + 1);
+            System.arraycopy(MAGIC, 0, buffer, position, MAGIC.length);
+            position += MAGIC.length;
+            buffer[position++] = VERSION;
+        }
+
+        /**
+         * ends the batch started by begin()
+         */
+        public void end() throws IOException
+        {
+            writeVarint(END);
+        }
+
+        /**
+         * writes the buffer to the output and flushes it
+         */
+        public void flush() throws IOException
+        {
+            if(position > 0)
+            {
+                out.write(buffer, 0, position);
+                count += position;
+                position = 0;
+            }
+            out.flush();
+        }
+
+        /**
+         * writes an entry of the batch
+         * @param entry - entry to write
+         * @throws IOException if the output fails
+         */
+        public void write(SensorsEntry entry) throws IOException
+        {
+            MotionValues motionValues = entry.getMotionValues();
+            RealmList<LocationCustom> locationList = entry.getLocationList();
+            RealmList<WifiDeviceCustom> wifiDevices = entry.getWifiDevices();
+            RealmList<WifiNetworkCustom> wifiNetworks = entry.getWifiNetworks();
+            RealmList<BluetoothDeviceCustom> bluetoothDevices = entry.getBluetoothDevices();
+            int flags = (entry.isInMotion() ? IN_MOTION : 0) | (entry.isMoving() ? MOVING : 0) | (entry.isDisplay() ? DISPLAY : 0)
+                    | (motionValues != null ? HAS_MOTION_VALUES : 0) | (locationList != null ? HAS_LOCATIONS : 0)
+                    | (wifiDevices != null ? HAS_WIFI_DEVICES : 0) | (wifiNetworks != null ? HAS_WIFI_NETWORKS : 0)
+                    | (bluetoothDevices != null ? HAS_BLUETOOTH_DEVICES : 0);
+
+            writeVarint(ENTRY);
+            writeDelta(ENTRY_ID, entry.getId());
+            writeDelta(BEGINNING_TIMESTAMP, entry.getBeginningTimestamp());
+            writeSigned(entry.getFinalTimestamp() - entry.getBeginningTimestamp());
+            writeSigned(entry.getBatteryLevel());
+            writeSigned(entry.getSignalStrength());
+            writeVarint(flags);
+            writeDecimal(entry.getMagneticField());
+            writeDecimal(entry.getProximity());
+            writeDecimal(entry.getMaxSpeed());
+            writeDecimal(entry.getTotalDistance());
+            writeString(entry.getCurrentNetworkSSID());
+            writeSigned(entry.getNumberWifiDevices());
+            writeSigned(entry.getNumberWifiNetworks());
+            writeSigned(entry.getNumberBluetoothDevices());
+
+            if(motionValues != null)
+            {
+                writeDelta(MOTION_VALUES_ID, motionValues.getId());
+                writeDecimal(motionValues.getAverageAcceleration());
+                writeDecimal(motionValues.getStandardDeviationAcceleration());
+                writeDecimal(motionValues.getAverageVelocity());
+                writeDecimal(motionValues.getStandardDeviationVelocity());
+                writeDecimal(motionValues.getAverageInclinationX());
+                writeDecimal(motionValues.getStandardDeviationInclinationX());
+                writeDecimal(motionValues.getAverageInclinationY());
+                writeDecimal(motionValues.getStandardDeviationInclinationY());
+                writeVarint(motionValues.isInMotion() ? 1 : 0);
+            }
+            if(locationList != null)
+            {
+                writeVarint(locationList.size());
+                for(int i = 0; i < locationList.size(); i++)
+                {
+                    LocationCustom location = locationList.get(i);
+                    writeDelta(LOCATION_ID, location.getId());
+                    writeCoordinate(LATITUDE, location.getLatitude());
+                    writeCoordinate(LONGITUDE, location.getLongitude());
+                    writeDecimal(location.getAltitude());
+                    writeDecimal(location.getBearing());
+                    writeDecimal(location.getSpeed());
+                    writeDecimal(location.getAccuracy());
+                    writeSigned(location.getNumberOfSatellites());
+                    writeString(location.getProvider());
+                    writeSigned(location.getTimestamp() - entry.getBeginningTimestamp());
+                }
+            }
+            if(wifiDevices != null)
+            {
+                writeVarint(wifiDevices.size());
+                for(int i = 0; i < wifiDevices.size(); i++)
+                {
+                    WifiDeviceCustom device = wifiDevices.get(i);
+                    writeDelta(WIFI_DEVICE_ID, device.getId());
+                    writeString(device.getIp());
+                    writeString(device.getMac());
+                    writeString(device.getNetworkSSID());
+                }
+            }
+            if(wifiNetworks != null)
+            {
+                writeVarint(wifiNetworks.size());
+                for(int i = 0; i < wifiNetworks.size(); i++)
+                {
+                    WifiNetworkCustom network = wifiNetworks.get(i);
+                    writeDelta(WIFI_NETWORK_ID, network.getId());
+                    writeString(network.getSSID());
+                    writeString(network.getBSSID());
+                }
+            }
+            if(bluetoothDevices != null)
+            {
+                writeVarint(bluetoothDevices.size());
+                for(int i = 0; i < bluetoothDevices.size(); i++)
+                {
+                    BluetoothDeviceCustom device = bluetoothDevices.get(i);
+                    writeDelta(BLUETOOTH_DEVICE_ID, device.getId());
+                    writeString(device.getAddress());
+                    writeString(device.getName());
+                    writeSigned(device.getType());
+                }
+            }
+        }
+
+        private void writeDelta(int previousValue, long value) throws IOException
+        {
+            writeSigned(value - previous[previousValue]);
+            previous[previousValue] = value;
+        }
+
+        private void writeCoordinate(int previousValue, double value) throws IOException
+        {
+            if(Double.isNaN(value) || Double.isInfinite(value))
+            {
+                writeVarint(0);
+                return;
+            }
+            long quantized = Math.round(value * COORDINATE_SCALE);
+            writeVarint(zigzag(quantized - previous[previousValue]) + 1);
+            previous[previousValue] = quantized;
+        }
+
+        private void writeDecimal(double value) throws IOException
+        {
+            if(Double.isNaN(value) || Double.isInfinite(value))
+                writeVarint(0);
+            else
+                writeVarint(zigzag(Math.round(value * DECIMAL_SCALE)) + 1);
+        }
+
+        private void writeString(String string) throws IOException
+        {
+            if(string == null)
+            {
+                writeVarint(0);
+                return;
+            }
+            Integer index = strings.get(string);
+            if(index != null)
+            {
+                writeVarint(index + 1);
+                return;
+            }
+            writeVarint(strings.size() + 1);
+            strings.put(string, strings.size());
+            writeVarint(utf8Length(string));
+            for(int i = 0; i < string.length(); i++)
+            {
+                char c = string.charAt(i);
+                ensure(4);
+                if(c < 0x80)
+                    buffer[position++] = (byte) c;
+                else if(c < 0x800)
+                {
+                    buffer[position++] = (byte) (0xc0 | c >> 6);
+                    buffer[position++] = (byte) (0x80 | c & 0x3f);
+                }
+                else if(Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1)))
+                {
+                    int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                    buffer[position++] = (byte) (0xf0 | codePoint >> 18);
+                    buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                    buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                    buffer[position++] = (byte) (0x80 | codePoint & 0x3f);
+                }
+                else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+                    buffer[position++] = '?'; //unpaired surrogate, which UTF-8 cannot encode
+                else
+                {
+                    buffer[position++] = (byte) (0xe0 | c >> 12);
+                    buffer[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+                    buffer[position++] = (byte) (0x80 | c & 0x3f);
+                }
+            }
+        }
+
+        private void writeSigned(long value) throws IOException
+        {
+            writeVarint(zigzag(value));
+        }
+
+        private void writeVarint(long value) throws IOException
+        {
+            ensure(10);
+            while((value & ~0x7fL) != 0)
+            {
+                buffer[position++] = (byte) (value & 0x7f | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        //makes room in the buffer for a number of bytes
+        private void ensure(int bytes) throws IOException
+        {
+            if(position + bytes > buffer.length)
+            {
+                out.write(buffer, 0, position);
+                count += position;
+                position = 0;
+            }
+        }
+    }
+
+    /**
+     * reads a batch of entries written by Encoder. Not thread-safe
+     */
+    public static class Decoder {
+        private final InputStream in;
+        private final List<String> strings = new ArrayList<>(); //strings read in the batch, by index
+        private final long[] previous = new long[PREVIOUS_VALUES];
+        private boolean ended = false;
+
+        /**
+         * Constructor, reading the beginning of the batch
+         * @param in - input (preferably buffered)
+         * @throws IOException if the input fails or is not a batch written by a known version
+         */
+        public Decoder(InputStream in) throws IOException {
+            this.in = in;
+            for(byte b:MAGIC)
+                if(readByte() != b)
+                    throw new IOException("Not a batch of entries");
+            int version = readByte();
+            if(version != VERSION)
+                throw new IOException("Unknown version of batch of entries: " + version);
+        }
+
+        /**
+         * @return next entry of the batch (unmanaged), or null at the end of the batch
+         * @throws IOException if the input fails or ends before the end of the batch
+         */
+        public SensorsEntry read() throws IOException
+        {
+            if(ended)
+                return null;
+            long tag = readVarint();
+            if(tag == END)
+            {
+                ended = true;
+                return null;
+            }
+            if(tag != ENTRY)
+                throw new IOException("Invalid record in batch of entries: " + tag);
+
+            long id = readDelta(ENTRY_ID);
+            long beginningTimestamp = readDelta(BEGINNING_TIMESTAMP);
+            long finalTimestamp = beginningTimestamp + readSigned();
+            int batteryLevel = (int) readSigned();
+            int signalStrength = (int) readSigned();
+            int flags = (int) readVarint();
+            float magneticField = (float) readDecimal();
+            float proximity = (float) readDecimal();
+            float maxSpeed = (float) readDecimal();
+            float totalDistance = (float) readDecimal();
+            String currentNetworkSSID = readString();
+            int numberWifiDevices = (int) readSigned();
+            int numberWifiNetworks = (int) readSigned();
+            int numberBluetoothDevices = (int) readSigned();
+
+            MotionValues motionValues = null;
+            if((flags & HAS_MOTION_VALUES) != 0)
+            {
+                long motionValuesId = readDelta(MOTION_VALUES_ID);
+                motionValues = new MotionValues((float) readDecimal(), (float) readDecimal(), (float) readDecimal(), (float) readDecimal(),
+                        (float) readDecimal(), (float) readDecimal(), (float) readDecimal(), (float) readDecimal(), readVarint() != 0);
+                motionValues.setId(motionValuesId);
+            }
+            RealmList<LocationCustom> locationList = null;
+            if((flags & HAS_LOCATIONS) != 0)
+            {
+                locationList = new RealmList<>();
+                for(long i = readVarint(); i > 0; i--)
+                {
+                    LocationCustom location = new LocationCustom();
+                    location.setId(readDelta(LOCATION_ID));
+                    location.setLatitude(readCoordinate(LATITUDE));
+                    location.setLongitude(readCoordinate(LONGITUDE));
+                    location.setAltitude(readDecimal());
+                    location.setBearing((float) readDecimal());
+                    location.setSpeed((float) readDecimal());
+                    location.setAccuracy((float) readDecimal());
+                    location.setNumberOfSatellites((int) readSigned());
+                    location.setProvider(readString());
+                    location.setTimestamp(beginningTimestamp + readSigned());
+                    locationList.add(location);
+                }
+            }
+            RealmList<WifiDeviceCustom> wifiDevices = null;
+            if((flags & HAS_WIFI_DEVICES) != 0)
+            {
+                wifiDevices = new RealmList<>();
+                for(long i = readVarint(); i > 0; i--)
+                {
+                    long deviceId = readDelta(WIFI_DEVICE_ID);
+                    WifiDeviceCustom device = new WifiDeviceCustom(readString(), readString(), readString());
+                    device.setId(deviceId);
+                    wifiDevices.add(device);
+                }
+            }
+            RealmList<WifiNetworkCustom> wifiNetworks = null;
+            if((flags & HAS_WIFI_NETWORKS) != 0)
+            {
+                wifiNetworks = new RealmList<>();
+                for(long i = readVarint(); i > 0; i--)
+                {
+                    WifiNetworkCustom network = new WifiNetworkCustom();
+                    network.setId(readDelta(WIFI_NETWORK_ID));
+                    network.setSSID(readString());
+                    network.setBSSID(readString());
+                    wifiNetworks.add(network);
+                }
+            }
+            RealmList<BluetoothDeviceCustom> bluetoothDevices = null;
+            if((flags & HAS_BLUETOOTH_DEVICES) != 0)
+            {
+                bluetoothDevices = new RealmList<>();
+                for(long i = readVarint(); i > 0; i--)
+                {
+                    BluetoothDeviceCustom device = new BluetoothDeviceCustom();
+                    device.setId(readDelta(BLUETOOTH_DEVICE_ID));
+                    device.setAddress(readString());
+                    device.setName(readString());
+                    device.setType((int) readSigned());
+                    bluetoothDevices.add(device);
+                }
+            }
+
+            SensorsEntry entry = new SensorsEntry(beginningTimestamp, finalTimestamp, batteryLevel, signalStrength, motionValues,
+                    (flags & IN_MOTION) != 0, (flags & MOVING) != 0, (flags & DISPLAY) != 0, maxSpeed, totalDistance,
+                    currentNetworkSSID, magneticField, proximity, locationList, wifiDevices, wifiNetworks, bluetoothDevices);
+            entry.setId(id);
+            entry.setNumberWifiDevices(numberWifiDevices);
+            entry.setNumberWifiNetworks(numberWifiNetworks);
+            entry.setNumberBluetoothDevices(numberBluetoothDevices);
+            return entry;
+        }
+
+        private long readDelta(int previousValue) throws IOException
+        {
+            previous[previousValue] += readSigned();
+            return previous[previousValue];
+        }
+
+        private double readCoordinate(int previousValue) throws IOException
+        {
+            long value = readVarint();
+            if(value == 0)
+                return Double.NaN;
+            previous[previousValue] += unzigzag(value - 1);
+            return (double) previous[previousValue] / COORDINATE_SCALE;
+        }
+
+        private double readDecimal() throws IOException
+        {
+            long value = readVarint();
+            return value == 0 ? Double.NaN : (double) unzigzag(value - 1) / DECIMAL_SCALE;
+        }
+
+        private String readString() throws IOException
+        {
+            long index = readVarint();
+            if(index == 0)
+                return null;
+            if(index <= strings.size())
+                return strings.get((int) index - 1);
+            if(index != strings.size() + 1)
+                throw new IOException("Invalid string in batch of entries: " + index);
+            byte[] bytes = new byte[(int) readVarint()];
+            for(int read = 0; read < bytes.length; )
+            {
+                int n = in.read(bytes, read, bytes.length - read);
+                if(n < 0)
+                    throw new EOFException();
+                read += n;
+            }
+            String string = new String(bytes, "UTF-8");
+            strings.add(string);
+            return string;
+        }
+
+        private long readSigned() throws IOException
+        {
+            return unzigzag(readVarint());
+        }
+
+        private long readVarint() throws IOException
+        {
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7)
+            {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Invalid varint in batch of entries");
+        }
+
+        private int readByte() throws IOException
+        {
+            int b = in.read();
+            if(b < 0)
+                throw new EOFException();
+            return b;
+        }
+    }
+
+    private static long zigzag(long value)
+    {
+        return value << 1 ^ value >> 63;
+    }
+
+    private static long unzigzag(long value)
+    {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    private static int utf8Length(String string)
+    {
+        int length = 0;
+        for(int i = 0; i < string.length(); i++)
+        {
+            char c = string.charAt(i);
+            if(c < 0x80)
+                length++;
+            else if(c < 0x800)
+                length += 2;
+            else if(Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1)))
+            {
+                length += 4;
+                i++;
+            }
+            else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+                length++;
+            else
+                length += 3;
+        }
+        return length;
+    }
+}
@@ -6,9 +6,13 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
+import android.os.Handler;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -22,9 +26,15 @@ import io.realm.RealmList;
  * Manages and performs scans on bluetooth devices.
  * Does this automatically when relevant. This data can be extracted through the method
  * extractBluetoothDevicesList(). Requires the method setModeAndUpdate(int mode)
- * to be called every 10 secs or so to make the necessary updates.
+ * to be called after UPDATE_EVENTS and by getNextUpdateTime() to make the necessary updates.
+ * Its state is confined to the thread of the handler given to the constructor: the discovery broadcasts are delivered
+ * there, and the methods must be called there too.
+ * Posts EVENT_SCAN_FINISHED to its ControlLoop when a scan finishes.
+ * The time of its last scan is saved in a StateCheckpoint.
  */
-public class BluetoothCustomManager {
+public class BluetoothCustomManager implements StateCheckpoint.Section {
+
+    public static final int UPDATE_EVENTS = ControlLoop.EVENT_MODE | ControlLoop.EVENT_SCAN_FINISHED; //events after which setModeAndUpdate must be called
 
     private static final long TWO_MINUTES = 2*60*1000;
     private static final long TWENTY_MINUTES = 20*60*1000;
@@ -37,13 +47,13 @@ public class BluetoothCustomManager {
 
 
     private long timeOfLastBluetoothDevicesScan = 0; //instant (in ms) in which the last scan on bluetooth devices occurred
+    private long radioStarts = 0; //scans started since creation
 
-    private final static String SHARED_PREF_TIME_BT_SCAN = "com.thalesgroup.sensorlogging.BluetoothCustomManager.timeOfLastBluetoothDevicesScan";
-    private final SharedPreferences sharedPref; //database for storing internal variable(s)
 
     private int mode = -1; //EnergyMode
     private final Context mContext;
     private final BluetoothAdapter bluetoothAdapter;
+    private final ControlLoop controlLoop; //notified when a scan finishes, or null
 
     //Broadcast receiver for bluetooth related intents (discovery started, device found, discovery finished)
     private final BroadcastReceiver mBluetoothReceiver = new BroadcastReceiver() {
@@ -71,6 +81,8 @@ public class BluetoothCustomManager {
                 currentBluetoothDevicesVisibleTemp = null; //reset temporary list
                 if(currentBluetoothDevicesVisible != null)
                     Log.i(LOG_TAG, "...bluetooth devices scan finished. " + currentBluetoothDevicesVisible.size() + " devices found.");
+                if(controlLoop != null)
+                    controlLoop.post(ControlLoop.EVENT_SCAN_FINISHED);
             }
 
         }
@@ -79,17 +91,21 @@ public class BluetoothCustomManager {
     /**
      * Constructor
      * @param mContext - Application context
+     * @param handler - handler of the thread on which the manager is used
+     * @param controlLoop - loop notified when a scan finishes (running on the same thread), or null
+     * @param checkpoint - checkpoint the state is restored from and saved in
      */
-    public BluetoothCustomManager(Context mContext) {
+    public BluetoothCustomManager(Context mContext, Handler handler, @Nullable ControlLoop controlLoop, StateCheckpoint checkpoint) {
 
         this.mContext = mContext;
+        this.controlLoop = controlLoop;
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        sharedPref = mContext.getSharedPreferences(DataAcquisitionService.SHARED_PREF_TAG, Context.MODE_PRIVATE);
-        timeOfLastBluetoothDevicesScan = sharedPref.getLong(SHARED_PREF_TIME_BT_SCAN, 0); //get last time from shared preferences
+        checkpoint.add(StateCheckpoint.SECTION_BLUETOOTH, this); //get last time from the checkpoint
         //regist receiver for start of scan, device found and end of scan
-        mContext.registerReceiver(mBluetoothReceiver, new IntentFilter(BluetoothDevice.ACTION_FOUND));
-        mContext.registerReceiver(mBluetoothReceiver, new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_FINISHED));
-        mContext.registerReceiver(mBluetoothReceiver, new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_STARTED));
+        mContext.registerReceiver(mBluetoothReceiver, new IntentFilter(BluetoothDevice.ACTION_FOUND), null, handler);
+        mContext.registerReceiver(mBluetoothReceiver, new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_FINISHED), null, handler);
+        mContext.registerReceiver(mBluetoothReceiver, new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_STARTED), null, handler);
+        ListenerCounts.registered(ListenerCounts.RECEIVER);
 
 
     }
@@ -110,14 +126,16 @@ public class BluetoothCustomManager {
         return realmList;
     }
 
-    /**
-     * updates in the shared preferences file the values of the variables stored
-     */
-    public void updateSharedPreferences() {
+    @Override
+    public void saveState(DataOutputStream out) throws IOException {
+
+        out.writeLong(timeOfLastBluetoothDevicesScan);
+    }
+
+    @Override
+    public void restoreState(DataInputStream in) throws IOException {
 
-        SharedPreferences.Editor editor = sharedPref.edit();
-        editor.putLong(SHARED_PREF_TIME_BT_SCAN, timeOfLastBluetoothDevicesScan);
-        editor.apply();
+        timeOfLastBluetoothDevicesScan = in.readLong();
     }
 
 
@@ -134,16 +152,46 @@ public class BluetoothCustomManager {
         if(currentBluetoothDevicesVisible != null)
             return false;
         //if enough time has passed that it becomes relevant to scan again, scan
-        if(mode == EnergyModes.MODE_HIGH_BATTERY_INMOTION && System.currentTimeMillis() - timeOfLastBluetoothDevicesScan > TWO_MINUTES) //2min for High battery & In motion
-            return true;
-        if(mode == EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION && System.currentTimeMillis() - timeOfLastBluetoothDevicesScan > TWENTY_MINUTES) //20min for High battery & not In motion
-            return true;
-        if(mode == EnergyModes.MODE_LOW_BATTERY_INMOTION && System.currentTimeMillis() - timeOfLastBluetoothDevicesScan > FIVE_MINUTES) //5min for Low battery & In motion
-            return true;
-        if(mode == EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION && System.currentTimeMillis() - timeOfLastBluetoothDevicesScan > ONE_HOUR) //1h for High battery & not In motion
-            return true;
-        return false;
+        long interval = getScanInterval();
+        return interval >= 0 && System.currentTimeMillis() - timeOfLastBluetoothDevicesScan > interval;
+
+    }
+
+    /**
+     * @return interval of time between scans for bluetooth devices in the current energy mode, -1 if there is none (ms)
+     */
+    private long getScanInterval()
+    {
+        switch (mode)
+        {
+            case EnergyModes.MODE_HIGH_BATTERY_INMOTION:
+                return TWO_MINUTES; //2min for High battery & In motion
+            case EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION:
+                return TWENTY_MINUTES; //20min for High battery & not In motion
+            case EnergyModes.MODE_LOW_BATTERY_INMOTION:
+                return FIVE_MINUTES; //5min for Low battery & In motion
+            case EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION:
+                return ONE_HOUR; //1h for Low battery & not In motion
+            default:
+                return -1;
+        }
+    }
 
+    /**
+     * @return instant by which setModeAndUpdate must be called again if none of UPDATE_EVENTS occurs: when the next
+     * scan is due (ms), or ControlLoop.NO_DEADLINE
+     */
+    public long getNextUpdateTime()
+    {
+        long interval = getScanInterval();
+        return interval >= 0 ? timeOfLastBluetoothDevicesScan + interval + 1 : ControlLoop.NO_DEADLINE;
+    }
+
+    /**
+     * @return bluetooth devices scans started since creation, each of which powers a radio up
+     */
+    public long getRadioStarts() {
+        return radioStarts;
     }
 
 
@@ -186,12 +234,14 @@ public class BluetoothCustomManager {
      */
     private void scanBluetoothDevices() {
 
+        radioStarts++;
         bluetoothAdapter.startDiscovery();
     }
 
     public void onDestroy()
     {
         mContext.unregisterReceiver(mBluetoothReceiver);
+        ListenerCounts.unregistered(ListenerCounts.RECEIVER);
     }
 
 
@@ -4,6 +4,7 @@ import android.bluetooth.BluetoothDevice;
 import android.os.Build;
 
 import io.realm.RealmObject;
+import io.realm.annotations.Index;
 import io.realm.annotations.PrimaryKey;
 
 /*
@@ -13,13 +14,15 @@ import io.realm.annotations.PrimaryKey;
 /**
  * represents a device that is equipped with bluetooth technology
  */
-public class BluetoothDeviceCustom extends RealmObject {
+public class BluetoothDeviceCustom extends RealmObject implements NaturalKeyObject {
 
     @PrimaryKey
     private long id; //identifier (primary key in database)
     private String address; //mac address of bluetooth device
     private String name; //name of bluetooth device
     private int type; //type of bluetooth device ( 1 = Classic - BR/EDR devices , 2 = Dual Mode - BR/EDR/LE , 3 = Low Energy - LE-only , 0 = Unknown )
+    @Index
+    private String naturalKey; //built from address, name and type (see NaturalKeyCache)
 
     /**
      * Constructor
@@ -35,6 +38,7 @@ public class BluetoothDeviceCustom extends RealmObject {
         {
             this.type = 0;
         }
+        updateNaturalKey();
     }
 
     /**
@@ -43,6 +47,22 @@ public class BluetoothDeviceCustom extends RealmObject {
     public BluetoothDeviceCustom() {
     }
 
+    /**
+     * @param address - mac address of the device
+     * @param name - name of the device
+     * @param type - type of the device
+     * @return natural key of a bluetooth device
+     */
+    public static String naturalKey(String address, String name, int type)
+    {
+        return NaturalKeyCache.buildKey(address, name, String.valueOf(type));
+    }
+
+    private void updateNaturalKey()
+    {
+        this.naturalKey = naturalKey(address, name, type);
+    }
+
     //------Setters and getters-----------
     public String getAddress() {
         return address;
@@ -50,6 +70,7 @@ public class BluetoothDeviceCustom extends RealmObject {
 
     public void setAddress(String address) {
         this.address = address;
+        updateNaturalKey();
     }
 
     public String getName() {
@@ -58,6 +79,7 @@ public class BluetoothDeviceCustom extends RealmObject {
 
     public void setName(String name) {
         this.name = name;
+        updateNaturalKey();
     }
 
     public int getType() {
@@ -66,13 +88,21 @@ public class BluetoothDeviceCustom extends RealmObject {
 
     public void setType(int type) {
         this.type = type;
+        updateNaturalKey();
     }
 
 
+    @Override
+    public String getNaturalKey() {
+        return naturalKey;
+    }
+
+    @Override
     public long getId() {
         return id;
     }
 
+    @Override
     public void setId(long id) {
         this.id = id;
     }
@@ -0,0 +1,22 @@
+package com.thalesgroup.sensorlogging;
+
+/**
+ * Source of the current time, so that decisions depending on it can be tested under a virtual clock
+ */
+public interface Clock {
+
+    /**
+     * time of the system
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long now() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * @return current time (ms)
+     */
+    long now();
+}
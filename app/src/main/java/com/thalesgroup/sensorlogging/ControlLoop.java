@@ -0,0 +1,188 @@
+package com.thalesgroup.sensorlogging;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Event-driven re-evaluation of the managers, instead of updating all of them at a fixed interval.
+ * Each participant declares the events after which it is re-evaluated (battery, motion, connectivity, location, end
+ * of a scan, change of energy mode) and, after each evaluation, the deadline by which it must be re-evaluated anyway.
+ * The loop only wakes up when an event is posted or when the nearest deadline is reached, and then only re-evaluates
+ * the participants concerned. Deadlines are never nearer than a minimum interval, so that a participant waiting for
+ * something else than time (such as results not yet extracted) does not wake the loop up again and again.
+ * Not thread-safe: events are posted, and the loop is run, on the thread of the managers
+ */
+public class ControlLoop {
+
+    public static final int EVENT_BATTERY = 1; //battery level or charging state changed
+    public static final int EVENT_MOTION = 1 << 1; //motion started
+    public static final int EVENT_CONNECTIVITY = 1 << 2; //network connectivity or wifi state changed
+    public static final int EVENT_LOCATION = 1 << 3; //location found
+    public static final int EVENT_SCAN_FINISHED = 1 << 4; //wifi networks or bluetooth devices scan finished
+    public static final int EVENT_MODE = 1 << 5; //energy mode changed
+    public static final long NO_DEADLINE = Long.MAX_VALUE; //participant only re-evaluated after its events
+    private static final long HOUR = 60*60*1000; //(ms)
+    private static final int MAX_PASSES = 4; //evaluations per wakeup of the participants concerned by the events posted while evaluating
+
+    /**
+     * part of the state of the service re-evaluated by the loop
+     */
+    public interface Participant {
+
+        /**
+         * @return events (EVENT_ flags) after which the participant is re-evaluated
+         */
+        int getEvents();
+
+        /**
+         * re-evaluates the participant
+         * @param events - events that occurred since its last evaluation, 0 if it reached its deadline
+         * @return instant by which it must be re-evaluated if none of its events occurs, or NO_DEADLINE (ms)
+         */
+        long update(int events);
+    }
+
+    /**
+     * wakes the loop up
+     */
+    public interface Waker {
+
+        /**
+         * schedules a call to run(), replacing the call scheduled before if any
+         * @param time - instant of the call, possibly now or in the past (ms, time of the clock of the loop)
+         */
+        void wakeAt(long time);
+    }
+
+    private static class Entry {
+        final Participant participant;
+        long deadline = 0; //evaluated at the first run
+
+        Entry(Participant participant) {
+            this.participant = participant;
+        }
+    }
+
+    private final Clock clock;
+    private final Waker waker;
+    private final long minInterval; //(ms)
+    private final List<Entry> entries = new ArrayList<>();
+    private int pending = 0; //events posted and not yet handled
+    private long scheduled = NO_DEADLINE; //instant of the next wakeup (ms)
+    private boolean running = false;
+    private long wakeups = 0; //since the last reset
+    private long eventWakeups = 0; //wakeups caused by events, since the last reset
+    private long since; //instant of the last reset (ms)
+
+    /**
+     * Constructor
+     * @param clock - source of the current time
+     * @param waker - wakes the loop up
+     * @param minInterval - interval of time under which a deadline is moved away (ms)
+     */
+    public ControlLoop(Clock clock, Waker waker, long minInterval) {
+        this.clock = clock;
+        this.waker = waker;
+        this.minInterval = minInterval;
+        this.since = clock.now();
+    }
+
+    /**
+     * adds a participant, evaluated at the next wakeup (which is scheduled now)
+     * @param participant - participant
+     */
+    public void add(Participant participant)
+    {
+        entries.add(new Entry(participant));
+        wake(clock.now());
+    }
+
+    /**
+     * posts events, which wake the loop up as soon as possible (several events posted meanwhile share the wakeup)
+     * @param events - EVENT_ flags
+     */
+    public void post(int events)
+    {
+        pending |= events;
+        if(!running)
+            wake(clock.now());
+    }
+
+    /**
+     * re-evaluates the participants concerned by the events posted or whose deadline is reached, and schedules the
+     * next wakeup
+     */
+    public void run()
+    {
+        long now = clock.now();
+        scheduled = NO_DEADLINE;
+        wakeups++;
+        if(pending != 0)
+            eventWakeups++;
+        running = true;
+        try {
+            for (int pass = 0; pass < MAX_PASSES && (pass == 0 || pending != 0); pass++) {
+                int events = pending;
+                pending = 0;
+                for (Entry entry : entries) {
+                    int matched = events & entry.participant.getEvents();
+                    if (matched != 0 || (pass == 0 && entry.deadline <= now)) {
+                        long deadline = entry.participant.update(matched);
+                        entry.deadline = deadline == NO_DEADLINE ? NO_DEADLINE : Math.max(deadline, now + minInterval);
+                    }
+                }
+            }
+        } finally {
+            running = false;
+        }
+
+        long next = pending != 0 ? now + minInterval : NO_DEADLINE;
+        for (Entry entry : entries)
+            next = Math.min(next, entry.deadline);
+        if(next != NO_DEADLINE)
+            wake(next);
+    }
+
+    private void wake(long time)
+    {
+        if(time < scheduled)
+        {
+            scheduled = time;
+            waker.wakeAt(time);
+        }
+    }
+
+    /**
+     * @return instant of the next wakeup scheduled, or NO_DEADLINE (ms)
+     */
+    public long getScheduled() {
+        return scheduled;
+    }
+
+    public long getWakeups() {
+        return wakeups;
+    }
+
+    public long getEventWakeups() {
+        return eventWakeups;
+    }
+
+    /**
+     * @return wakeups per hour since the last reset
+     */
+    public double getWakeupsPerHour()
+    {
+        long elapsed = clock.now() - since;
+        return elapsed > 0 ? (double) wakeups * HOUR / elapsed : 0;
+    }
+
+    /**
+     * forgets the wakeups counted so far, to count the next ones
+     */
+    public void resetWakeups()
+    {
+        wakeups = 0;
+        eventWakeups = 0;
+        since = clock.now();
+    }
+}
@@ -2,34 +2,43 @@ package com.thalesgroup.sensorlogging;
 
 import android.app.Activity;
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
+import android.net.Network;
 import android.net.NetworkInfo;
+import android.net.wifi.WifiManager;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-
-import java.io.InputStream;
-import java.sql.Timestamp;
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import io.realm.Realm;
-import io.realm.RealmAsyncTask;
 import io.realm.RealmConfiguration;
 import io.realm.RealmList;
-import io.realm.RealmResults;
 
 
 /**
- * Service that runs in the background and handles everything: updates sensor managers, extracts data from managers, fills the database and sends information to server
+ * Service that runs in the background and handles everything: updates sensor managers, extracts data from managers, fills the database and sends information to server.
+ * The managers and the periodic work run on a thread of their own (the sensor callbacks and broadcasts of the managers
+ * are delivered there too), the storage and the upload on theirs, so that none of it stalls the main thread.
+ * It is only set up at the first start command: the following ones (from the restarter or the app) keep it as it is
  */
 public class DataAcquisitionService extends Service {
 
@@ -37,22 +46,52 @@ public class DataAcquisitionService extends Service {
     private static final String LOG_TAG = "DataAcquisitionService";
     public static final String SHARED_PREF_TAG = "com.thalesgroup.sensorlogging.DataAcquisitionService"; //Tag for shared preferences
     private static final String SERVER_URL = null; //Server url
-    private static final int DELAY_UPDATER = 10*1000; //interval of time between updates for managers (10s) (milliseconds)
-    private static final int DELAY_SERVER = 60*60*1000; //interval of time between updates for server (1h) (milliseconds)
-
-    //handlers and runnables
-    private Handler databaseHandler;
-    private Runnable databaseRunnable;
-    private Handler serverHandler;
-    private Handler updateHandler;
-    private Runnable updateRunnable;
-    private Runnable serverRunnable;
-
-    //Realm (database)
-    private Realm realm;
-    private RealmAsyncTask transaction;
-
-    //sensor managers
+    private static final int UPLOAD_FORMAT = BatchUploader.FORMAT_JSON; //format of the entries sent to the server (see BatchUploader)
+    private static final int UPLOAD_COMPRESSION = BatchUploader.COMPRESSION_GZIP; //compression of the entries sent to the server, COMPRESSION_DICTIONARY if it keeps the dictionaries of the device (see BatchUploader)
+    private static final int DELAY_UPDATER = 10*1000; //minimum interval of time between updates of a manager that are not caused by an event (10s) (milliseconds)
+    private static final long HOUR = 60*60*1000; //(ms)
+    private static final int DELAY_SERVER = 60*1000; //interval of time between decisions of the upload scheduler (1 minute) (milliseconds)
+    private static final long SLACK_DB = 5*1000; //how early or late an entry may be added, to share a wakeup with other work (ms)
+    private static final long SLACK_SERVER = 30*1000; //how early or late the upload scheduler may be asked, to share a wakeup with other work (ms)
+    private static final long SLACK_UPDATER = DELAY_UPDATER; //how late the managers may be updated after their deadline, to share a wakeup with other work (ms)
+    private static final long RETENTION_INTERVAL = 60*60*1000; //interval of time between applications of the retention policy (1h) (milliseconds)
+    private static final String JOURNAL_FILE = "pending-windows.journal"; //file keeping the entries not yet committed to the database
+    private static final String CHECKPOINT_FILE = "managers.checkpoint"; //file keeping the state of the managers
+    public static final String EXTRA_STORAGE_ENGINE = "com.thalesgroup.sensorlogging.STORAGE_ENGINE"; //extra of the start intent choosing the storage engine (kept for the next starts)
+    public static final String STORAGE_ENGINE_REALM = "realm"; //entries kept in the Realm database
+    public static final String STORAGE_ENGINE_LOG = "log"; //entries kept in a segmented log (SegmentedLogStorage)
+    private static final String SHARED_PREF_STORAGE_ENGINE = "storageEngine"; //storage engine chosen
+    private static final String SHARED_PREF_DEVICE_ID = "deviceId"; //random id of the device, sent to the server with every batch of entries
+    private static final String LOG_DIRECTORY = "sensors-log"; //directory of the segmented log
+
+    //managers and periodic work: the state of the managers is only used on the manager thread
+    private HandlerThread managerThread;
+    private Handler managerHandler;
+    private ControlLoop controlLoop; //updates the energy mode and the managers after their events and at their deadlines
+    private LoopRunner loopRunner; //wakes the control loop up
+    private WakeupCoordinator wakeupCoordinator; //runs the periodic work and the deadlines of the control loop in shared windows
+    private WindowRunner windowRunner; //wakes the coordinator up
+    private WakeupCoordinator.Task loopTask; //runs the control loop at its deadlines
+    private static volatile long nextWakeup = 0; //instant of the next window of the running service, 0 if none (ms)
+    private volatile boolean destroyed = false;
+
+    //storage (database): only used on the storage thread
+    private HandlerThread storageThread;
+    private Handler storageHandler;
+    private Executor storageExecutor; //runs tasks on the storage thread
+    private SensorsEntryStorage storage; //null until opened
+    private PurgeEngine purgeEngine; //deletes entries in chunks, between the other tasks of the storage thread
+    private WriteBehindBuffer writeBehindBuffer; //entries waiting to be committed to the storage
+
+    //upload: requests are sent on their own thread, so that the storage thread never waits for the server
+    private HandlerThread uploadThread;
+    private Handler uploadHandler;
+    private BatchUploader batchUploader; //null if there is no server
+    private final UploadScheduler uploadScheduler = new UploadScheduler(Clock.SYSTEM); //decides when to upload (upload thread only)
+    private long lastRetentionTime = 0; //instant the retention policy was last applied (ms)
+    private final RetentionPolicy retentionPolicy = new RetentionPolicy(); //how long entries and rollups are kept
+
+    //sensor managers (manager thread only)
     private MotionCustomManager mMotionCustomManager;
     private LocationCustomManager mLocationCustomManager;
     private VariousSensorsCustomManager mVariousSensorsCustomManager;
@@ -60,7 +99,38 @@ public class DataAcquisitionService extends Service {
     private BluetoothCustomManager mBluetoothCustomManager;
 
 
-    private long beginningTime = 0; //instant of beginning of new entry (ms)
+    private long beginningTime = 0; //instant of beginning of new entry (ms) (manager thread only)
+    private boolean started = false; //true once the first start command was handled (main thread only)
+    private boolean managersStarted = false; //true once every manager is created and the periodic work started (manager thread only)
+    private long startTime = 0; //instant of the first start command (ms since boot, SystemClock.elapsedRealtime)
+    private boolean firstSampleLogged = false; //(manager thread only)
+    private Heartbeat heartbeat; //liveness of the service, read by ServiceRestarterBroadcastReceiver, and end of the last entry
+    private StateCheckpoint checkpoint; //state of the managers, saved after each entry in which it changed
+    private int energyMode = EnergyModePolicy.NO_MODE; //current EnergyMode (manager thread only)
+    private final EnergyModePolicy energyModePolicy = new EnergyModePolicy(Clock.SYSTEM); //decides the energy mode (manager thread only)
+
+    //runs the windows due when the alarm of ServiceRestarterBroadcastReceiver wakes the device up (manager thread)
+    private final BroadcastReceiver wakeupReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            wakeupCoordinator.run();
+        }
+    };
+
+    //posts the connectivity events to the control loop (manager thread)
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            controlLoop.post(ControlLoop.EVENT_CONNECTIVITY);
+        }
+    };
+    private final Runnable connectivityChanged = new Runnable() {
+        @Override
+        public void run() {
+            controlLoop.post(ControlLoop.EVENT_CONNECTIVITY);
+        }
+    };
+    private ConnectivityManager.NetworkCallback networkCallback = null; //posts the changes of default network to the manager thread (Android 7 and later), null if the broadcast is used
 
     /**
      * empty constructor
@@ -72,66 +142,66 @@ public class DataAcquisitionService extends Service {
     public int onStartCommand(Intent intent, int flags, int startId) {
 
         super.onStartCommand(intent, flags, startId);
-        //initialize managers
-        mMotionCustomManager = new MotionCustomManager(getApplicationContext());
-        mVariousSensorsCustomManager = new VariousSensorsCustomManager(getApplicationContext());
-        mWifiCustomManager = new WifiCustomManager(getApplicationContext());
-        mBluetoothCustomManager = new BluetoothCustomManager(getApplicationContext());
-        mLocationCustomManager = new LocationCustomManager(getApplicationContext(), mWifiCustomManager);
-
-        updateManagers();
-
-        // Initialize Realm
-        Realm.init(getApplicationContext());
-
-        RealmConfiguration config = Realm.getDefaultConfiguration();
-
-        // Get a Realm instance for this thread
-        if (config != null) {
-            RealmAsyncTask task = Realm.getInstanceAsync(config, new Realm.Callback() {
-                @Override
-                public void onSuccess(Realm r) {
-                    // Realm is opened and ready on the caller thread.
-                    realm = r;
-                }
-            });
+        //the restarter and the app start the service again and again: it is only set up once
+        if(started)
+        {
+            chooseStorageEngine(intent); //kept for the next starts
+            Log.i(LOG_TAG, "...service already started");
+            return START_STICKY;
         }
-
-        //set up update handler to be called every 10s
-        updateHandler = new Handler();
-        updateRunnable = new Runnable(){
-            public void run(){
-                updateManagers();
-                updateHandler.postDelayed(this, DELAY_UPDATER);
-            }
-        };
-        updateHandler.postDelayed(updateRunnable, DELAY_UPDATER);
-
-        //set up database handler to be called every 1min
-        databaseHandler = new Handler();
-        databaseRunnable = new Runnable(){
-            public void run(){
-                updateDatabase();
+        started = true;
+        startTime = SystemClock.elapsedRealtime();
+        heartbeat = new Heartbeat(new File(getFilesDir(), Heartbeat.FILE_NAME), Clock.SYSTEM);
+        long gap = heartbeat.start(Process.myPid());
+        if(gap > 0)
+            Log.i(LOG_TAG, String.format(Locale.US, "Uptime gap of %d s since the last heartbeat (%d gaps, %d s in total)",
+                    gap / 1000, heartbeat.getGaps(), heartbeat.getTotalGap() / 1000));
+        writeBehindBuffer = new WriteBehindBuffer(new WindowJournal(new File(getFilesDir(), JOURNAL_FILE)));
+
+        //the storage is opened and used on its own thread, so that reading and writing it never blocks the main thread
+        storageThread = new HandlerThread("storage");
+        storageThread.start();
+        storageHandler = new Handler(storageThread.getLooper());
+        storageExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                storageHandler.post(command);
             }
         };
-        databaseHandler.postDelayed(databaseRunnable, DELAY_DB);
-
-        //set up server handler to be called every 1hr
-        serverHandler = new Handler();
-        serverRunnable = new Runnable() {
+        purgeEngine = new PurgeEngine(storageExecutor, PurgeEngine.DEFAULT_CHUNK_SIZE);
+        uploadThread = new HandlerThread("upload");
+        uploadThread.start();
+        uploadHandler = new Handler(uploadThread.getLooper());
+        batchUploader = createUploader();
+        final SensorsEntryStorage newStorage = createStorage(intent);
+        storageHandler.post(new Runnable() {
             @Override
             public void run() {
-                if(mWifiCustomManager.isWifiConnected() && isConnected()) //send only if user is connected through wifi
-                {
-                    sendToServer();
+                //entries left uncommitted by a previous instance of the service are committed as soon as the storage is open
+                writeBehindBuffer.recover();
+                try {
+                    newStorage.open();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to open storage", e);
+                    return;
                 }
-
-                serverHandler.postDelayed(this, DELAY_SERVER);
+                storage = newStorage;
+                //entries that were committed before the journal could be cleared are not committed again
+                writeBehindBuffer.dropUntil(storage.getLastFinalTimestamp());
+                flushBufferNow();
             }
-        };
-        serverHandler.postDelayed(serverRunnable, DELAY_SERVER);
+        });
 
-        beginningTime = System.currentTimeMillis();//set beginning time
+        //the managers are created, updated and read on their own thread, on which their callbacks are delivered
+        managerThread = new HandlerThread("sensors");
+        managerThread.start();
+        managerHandler = new Handler(managerThread.getLooper());
+        managerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                startManagers();
+            }
+        });
 
         Log.i(LOG_TAG, "...service started");
 
@@ -139,349 +209,690 @@ public class DataAcquisitionService extends Service {
     }
 
     /**
-     * asynchronously send to server every entry in the database and delete the entries sent
+     * creates the managers that sample the sensors, then the others and the periodic work in another message, so that
+     * sampling starts as soon as possible (manager thread only)
      */
-    private void sendToServer() {
+    private void startManagers()
+    {
+        Context context = getApplicationContext();
+        checkpoint = new StateCheckpoint(new File(getFilesDir(), CHECKPOINT_FILE));
+        if(checkpoint.load())
+            Log.i(LOG_TAG, String.format(Locale.US, "Checkpoint of %d bytes loaded in %.2f ms", checkpoint.getLoadedBytes(), checkpoint.getLoadTime()));
+        windowRunner = new WindowRunner();
+        wakeupCoordinator = new WakeupCoordinator(Clock.SYSTEM, windowRunner);
+        loopTask = wakeupCoordinator.addOneShot("control loop", SLACK_UPDATER, false, new Runnable() {
+            @Override
+            public void run() {
+                long radioStarts = getRadioStarts();
+                controlLoop.run();
+                if(getRadioStarts() != radioStarts) //a scan or a location burst was started
+                    wakeupCoordinator.radioPowered(wakeupCoordinator.getWindow());
+            }
+        });
+        loopRunner = new LoopRunner();
+        controlLoop = new ControlLoop(Clock.SYSTEM, loopRunner, DELAY_UPDATER);
+        mMotionCustomManager = new MotionCustomManager(context, managerHandler, controlLoop);
+        mVariousSensorsCustomManager = new VariousSensorsCustomManager(context, managerHandler, controlLoop, checkpoint);
+        managerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                startOtherManagers();
+            }
+        });
+    }
 
-        if(realm != null)
+    /**
+     * creates the wifi, bluetooth and location managers and starts the periodic work (manager thread only)
+     */
+    private void startOtherManagers()
+    {
+        Context context = getApplicationContext();
+        mWifiCustomManager = new WifiCustomManager(context, managerHandler, controlLoop, checkpoint);
+        mBluetoothCustomManager = new BluetoothCustomManager(context, managerHandler, controlLoop, checkpoint);
+        mLocationCustomManager = new LocationCustomManager(context, mWifiCustomManager, managerHandler, controlLoop, checkpoint);
+        addParticipants();
+        //changes of default network by callback from Android 7, by the deprecated broadcast before
+        IntentFilter connectivityFilter = new IntentFilter(WifiManager.WIFI_STATE_CHANGED_ACTION);
+        ConnectivityManager connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && connectivityManager != null)
         {
-            transaction = realm.executeTransactionAsync(new Realm.Transaction() {
+            networkCallback = new ConnectivityManager.NetworkCallback() {
                 @Override
-                public void execute(Realm realmAsync) {
-                    RealmResults<SensorsEntry> results = realmAsync.where(SensorsEntry.class).equalTo("onServer", false).findAll(); //all entries in database that are not in server
-                    for(SensorsEntry entry:results)
-                    {
-                        boolean result = POST(SERVER_URL, entry); //send to server
-                        if(result)
-                            entry.setOnServer(true); //if sent was successful, set onServer true
-                    }
-                    //delete all entries in which onServer == true
-                    RealmResults<SensorsEntry> entriesToDelete = realmAsync.where(SensorsEntry.class).equalTo("onServer", true).findAll();
-                    deleteFromDatabase(entriesToDelete, realmAsync);
+                public void onAvailable(Network network) {
+                    managerHandler.post(connectivityChanged);
                 }
-            });
+
+                @Override
+                public void onLost(Network network) {
+                    managerHandler.post(connectivityChanged);
+                }
+            };
+            connectivityManager.registerDefaultNetworkCallback(networkCallback);
+            ListenerCounts.registered(ListenerCounts.NETWORK);
+        }
+        else
+        {
+            @SuppressWarnings("deprecation")
+            String connectivityAction = ConnectivityManager.CONNECTIVITY_ACTION;
+            connectivityFilter.addAction(connectivityAction);
         }
+        registerReceiver(connectivityReceiver, connectivityFilter, null, managerHandler);
+        registerReceiver(wakeupReceiver, new IntentFilter(ServiceRestarterBroadcastReceiver.ACTION), null, managerHandler);
+        ListenerCounts.registered(ListenerCounts.RECEIVER);
+        ListenerCounts.registered(ListenerCounts.RECEIVER);
+
+        //add an entry every 1min
+        wakeupCoordinator.addPeriodic("database", DELAY_DB, SLACK_DB, false, new Runnable() {
+            @Override
+            public void run() {
+                updateDatabase();
+            }
+        });
+        //ask the upload scheduler every 1min whether to send
+        wakeupCoordinator.addPeriodic("server", DELAY_SERVER, SLACK_SERVER, false, new Runnable() {
+            @Override
+            public void run() {
+                int network = UploadScheduler.NETWORK_NONE;
+                if(isConnected())
+                    network = mWifiCustomManager.isWifiConnected() ? UploadScheduler.NETWORK_UNMETERED : UploadScheduler.NETWORK_METERED;
+                boolean charging = mVariousSensorsCustomManager.getBatteryLevel() > 0;
+                boolean retention = System.currentTimeMillis() - lastRetentionTime >= RETENTION_INTERVAL;
+                if(retention)
+                {
+                    lastRetentionTime = System.currentTimeMillis();
+                    logTickStats();
+                }
+                sendToServer(network, charging, retention, wakeupCoordinator.getWindow());
+            }
+        });
 
+        //the entries of a previous instance stopped less than an entry ago go on where they stopped
+        long now = System.currentTimeMillis();
+        long windowEnd = heartbeat.getPreviousBeat();
+        beginningTime = windowEnd <= now && now - windowEnd < DELAY_DB ? windowEnd : now;//set beginning time
+        managersStarted = true;
     }
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        //intent to restart the service
-        Intent broadcastIntent = new Intent("com.thalesgroup.sensorlogging.ServiceRestarterBroadcastReceiver");
-        sendBroadcast(broadcastIntent);
-        //remove callbacks from handlers
-        databaseHandler.removeCallbacks(databaseRunnable);
-        updateHandler.removeCallbacks(updateRunnable);
-        serverHandler.removeCallbacks(serverRunnable);
-        //cancel current transaction
-        if (transaction != null && !transaction.isCancelled()) {
-            transaction.cancel();
-        }
+    /**
+     * adds to the control loop the energy mode and the managers, which are updated in this order (manager thread only)
+     */
+    private void addParticipants()
+    {
+        //energy mode: after the battery changes or motion starts, while in motion at the minimum interval to notice it
+        //stopping, and when a change delayed by the policy is due
+        controlLoop.add(new ControlLoop.Participant() {
+            @Override
+            public int getEvents() {
+                return ControlLoop.EVENT_BATTERY | ControlLoop.EVENT_MOTION;
+            }
 
-        //destroy managers
-        mMotionCustomManager.onDestroy();
-        mLocationCustomManager.onDestroy();
-        mVariousSensorsCustomManager.onDestroy();
-        mWifiCustomManager.onDestroy();
-        mBluetoothCustomManager.onDestroy();
-        Log.i(LOG_TAG, "Service Destroyed!");
-    }
+            @Override
+            public long update(int events) {
+                if(updateEnergyMode())
+                    controlLoop.post(ControlLoop.EVENT_MODE);
+                long deadline = energyModePolicy.getNextEvaluationTime();
+                if(EnergyModePolicy.isInMotion(energyMode))
+                    deadline = Math.min(deadline, System.currentTimeMillis() + DELAY_UPDATER);
+                return deadline;
+            }
+        });
+        controlLoop.add(new ControlLoop.Participant() {
+            @Override
+            public int getEvents() {
+                return LocationCustomManager.UPDATE_EVENTS;
+            }
 
+            @Override
+            public long update(int events) {
+                mLocationCustomManager.setModeAndUpdate(energyMode);
+                return mLocationCustomManager.getNextUpdateTime();
+            }
+        });
+        controlLoop.add(new ControlLoop.Participant() {
+            @Override
+            public int getEvents() {
+                return MotionCustomManager.UPDATE_EVENTS;
+            }
 
+            @Override
+            public long update(int events) {
+                mMotionCustomManager.setModeAndUpdate(energyMode);
+                return ControlLoop.NO_DEADLINE;
+            }
+        });
+        controlLoop.add(new ControlLoop.Participant() {
+            @Override
+            public int getEvents() {
+                return WifiCustomManager.UPDATE_EVENTS;
+            }
 
-    @Nullable
-    @Override
-    public IBinder onBind(Intent intent) {
-        return null;
+            @Override
+            public long update(int events) {
+                mWifiCustomManager.setModeAndUpdate(energyMode);
+                return mWifiCustomManager.getNextUpdateTime();
+            }
+        });
+        controlLoop.add(new ControlLoop.Participant() {
+            @Override
+            public int getEvents() {
+                return BluetoothCustomManager.UPDATE_EVENTS;
+            }
+
+            @Override
+            public long update(int events) {
+                mBluetoothCustomManager.setModeAndUpdate(energyMode);
+                return mBluetoothCustomManager.getNextUpdateTime();
+            }
+        });
     }
 
     /**
-     * asynchronously creates a new Sensor entry object, retrieving data from the sensor managers and uploads it to the database
+     * logs the latency and jitter of the periodic work, the wakeups of the control loop, the changes of energy mode, the
+     * calls to system services of the device state and the windows of the coordinator since the last time, and measures them again (manager thread only)
      */
-    private void updateDatabase() {
+    private void logTickStats()
+    {
+        for(WakeupCoordinator.Task task : wakeupCoordinator.getTasks())
+            Log.i(LOG_TAG, task.getStats().toString());
+        Log.i(LOG_TAG, loopRunner.stats.toString());
+        loopRunner.stats.reset();
+        Log.i(LOG_TAG, String.format(Locale.US, "Control loop: %.0f wakeups/hour (%d after events), instead of %d updating the managers every %d s",
+                controlLoop.getWakeupsPerHour(), controlLoop.getEventWakeups(), HOUR / DELAY_UPDATER, DELAY_UPDATER / 1000));
+        controlLoop.resetWakeups();
+        Log.i(LOG_TAG, String.format(Locale.US, "Energy mode: %.1f changes/hour (%d evaluations held by the minimum dwell time)",
+                energyModePolicy.getTransitionsPerHour(), energyModePolicy.getDelayedTransitions()));
+        energyModePolicy.resetTransitions();
+        DeviceStateCache deviceStateCache = mVariousSensorsCustomManager.getDeviceStateCache();
+        Log.i(LOG_TAG, String.format(Locale.US, "Device state: %d calls to system services, %d avoided by the cache",
+                deviceStateCache.getIpcs(), deviceStateCache.getAvoidedIpcs()));
+        deviceStateCache.resetIpcs();
+        Log.i(LOG_TAG, "Listeners: " + ListenerCounts.describe());
+        SamplingRateController rateController = mMotionCustomManager.getSamplingRateController();
+        Log.i(LOG_TAG, String.format(Locale.US, "Motion sampling: %d accelerometer events instead of %.0f at the minimum delay of the modes, %.1f rate changes/hour (%d held back by the limit of %d/min)",
+                rateController.getSamples(), rateController.getMinDelaySamples(), rateController.getChangesPerHour(),
+                rateController.getHeldChanges(), rateController.getMaxChangesPerMinute()));
+        rateController.resetStats();
+        Log.i(LOG_TAG, String.format(Locale.US, "Wakeups: %.0f windows/hour (%.0f with the radio up)",
+                wakeupCoordinator.getWindowsPerHour(), wakeupCoordinator.getRadioWindowsPerHour()));
+        wakeupCoordinator.resetStats();
+        Log.i(LOG_TAG, String.format(Locale.US, "Checkpoint: %d writes, %d bytes in %.1f ms (%d unchanged states not written)",
+                checkpoint.getWrites(), checkpoint.getBytesWritten(), checkpoint.getWriteTime(), checkpoint.getUnchanged()));
+        checkpoint.resetStats();
+    }
 
+    /**
+     * @return scans and location bursts started by the managers so far, 0 before they are created (manager thread only)
+     */
+    private long getRadioStarts()
+    {
+        if(mWifiCustomManager == null)
+            return 0;
+        return mWifiCustomManager.getRadioStarts() + mBluetoothCustomManager.getRadioStarts() + mLocationCustomManager.getRadioStarts();
+    }
 
-        if(realm != null)
-        {
-            transaction = realm.executeTransactionAsync(new Realm.Transaction() {
-                @Override
-                public void execute(Realm realmAsync) {
-
-
-                    int battery = mVariousSensorsCustomManager.getBatteryLevel();
-
-                    MotionValues motionValues = mMotionCustomManager.extractMotionValues();
-                    boolean inMotion = motionValues.isInMotion();
-                    float magneticField = mVariousSensorsCustomManager.extractMagneticField();
-                    boolean display = mVariousSensorsCustomManager.isDisplayOn();
-                    float proximity = mVariousSensorsCustomManager.getProximity();
-                    float totalDistance = mLocationCustomManager.extractTotalDistance();
-                    RealmList<LocationCustom> locationList = mLocationCustomManager.extractLocationList();
-                    boolean moving = mLocationCustomManager.isMoving(totalDistance, locationList, null);
-                    RealmList<WifiDeviceCustom> wifiDevices = mWifiCustomManager.extractWifiDevicesList();
-                    RealmList<WifiNetworkCustom> wifiNetworks = mWifiCustomManager.extractWifiNetworksList();
-                    RealmList<BluetoothDeviceCustom> bluetoothDevices = mBluetoothCustomManager.extractBluetoothDevicesList();
-                    String currentNetworkSSID = mWifiCustomManager.getCurrentWifiNetworkSSID();
-
-                    int signalStrength = mVariousSensorsCustomManager.getSignalStrength();
-                    long finalTimestamp = System.currentTimeMillis();
-                    //calculate maximum speed
-                    float max_speed = 0.0f;
-                    if(locationList != null)
-                        for(int i = 0; i < locationList.size(); i++)
-                        {
-                            LocationCustom location = locationList.get(i);
-                            if (location != null && location.getSpeed() > max_speed) {
-                                    max_speed = location.getSpeed();
-                            }
-
-                        }
-
-
-                    //delete duplicate objects to avoid inserting redundant data in the database
-                    deleteDuplicates(realmAsync,wifiDevices,wifiNetworks,bluetoothDevices);
-
-                    //set ids
-                    long id = nextIdRealm(WifiDeviceCustom.class,realmAsync);
-                    if (wifiDevices != null) {
-                        for(WifiDeviceCustom wifiDevice:wifiDevices)
-                        {
-                            if(wifiDevice.getId() == 0)
-                            {
-                                wifiDevice.setId(id);
-                                id++;
-                            }
-
-                        }
+    /**
+     * @return instant of the next window of the service running in this process, 0 if none (ms)
+     */
+    public static long getNextWakeup() {
+        return nextWakeup;
+    }
 
-                    }
-                    id = nextIdRealm(WifiNetworkCustom.class,realmAsync);
-                    if (wifiNetworks != null) {
-                        for(WifiNetworkCustom network:wifiNetworks)
-                        {
-                            if(network.getId() == 0)
-                            {
-                                network.setId(id);
-                                id++;
-                            }
-
-                        }
+    /**
+     * runs the control loop on the manager thread: right away after events, in the windows of the coordinator at its
+     * deadlines. How late it runs after events is measured (the coordinator measures the rest)
+     */
+    private class LoopRunner implements ControlLoop.Waker, Runnable {
+        private final TickStats stats = new TickStats("control loop events");
+        private long scheduled = 0; //instant of the next run after events (ms since boot, not counting deep sleep, as the Handler)
+
+        @Override
+        public void wakeAt(long time) {
+            managerHandler.removeCallbacks(this);
+            if(time > System.currentTimeMillis())
+            {
+                wakeupCoordinator.schedule(loopTask, time);
+                return;
+            }
+            wakeupCoordinator.schedule(loopTask, WakeupCoordinator.NEVER);
+            scheduled = SystemClock.uptimeMillis();
+            managerHandler.postAtTime(this, scheduled);
+        }
 
-                    }
-                    id = nextIdRealm(BluetoothDeviceCustom.class,realmAsync);
-                    if (bluetoothDevices != null) {
-                        for(BluetoothDeviceCustom btDevice:bluetoothDevices) {
-                            if(btDevice.getId() == 0)
-                            {
-                                btDevice.setId(id);
-                                id++;
-                            }
-
-                        }
-                    }
+        void stop()
+        {
+            managerHandler.removeCallbacks(this);
+        }
 
-                    motionValues.setId(nextIdRealm(MotionValues.class, realmAsync));
-                    id = nextIdRealm(LocationCustom.class,realmAsync);
-                    if (locationList != null) {
+        @Override
+        public void run() {
+            long started = SystemClock.uptimeMillis();
+            controlLoop.run();
+            stats.record(scheduled, started, SystemClock.uptimeMillis());
+        }
+    }
 
-                        for(LocationCustom location:locationList)
-                        {
-                            if(location.getId() == 0)
-                            {
-                                location.setId(id);
-                                id++;
-                            }
+    /**
+     * runs the windows of the coordinator on the manager thread, and sets the alarm that wakes the device up for them
+     * if it is asleep by then (the Handler does not count deep sleep)
+     */
+    private class WindowRunner implements ControlLoop.Waker, Runnable {
+
+        @Override
+        public void wakeAt(long time) {
+            managerHandler.removeCallbacks(this);
+            managerHandler.postAtTime(this, SystemClock.uptimeMillis() + Math.max(0, time - System.currentTimeMillis()));
+            if(destroyed)
+                return;
+            nextWakeup = time;
+            ServiceRestarterBroadcastReceiver.scheduleWakeup(getApplicationContext(), time);
+        }
 
-                        }
+        void stop()
+        {
+            managerHandler.removeCallbacks(this);
+        }
 
-                    }
+        @Override
+        public void run() {
+            wakeupCoordinator.run();
+        }
+    }
 
+    /**
+     * @param intent - intent that started the service
+     * @return storage engine chosen by the intent, or by a previous one (the Realm database by default)
+     */
+    private SensorsEntryStorage createStorage(Intent intent)
+    {
+        String engine = chooseStorageEngine(intent);
+        if(STORAGE_ENGINE_LOG.equals(engine))
+        {
+            Log.i(LOG_TAG, "Storage: segmented log");
+            return new SegmentedLogStorage(new File(getFilesDir(), LOG_DIRECTORY));
+        }
 
-                    SensorsEntry entry = new SensorsEntry(beginningTime, finalTimestamp, battery, signalStrength, motionValues, inMotion, moving, display, max_speed, totalDistance, currentNetworkSSID, magneticField, proximity, locationList, wifiDevices, wifiNetworks, bluetoothDevices);
-                    entry.setId(nextIdRealm(SensorsEntry.class, realmAsync));
+        Log.i(LOG_TAG, "Storage: Realm");
+        // Initialize Realm
+        Realm.init(getApplicationContext());
 
-                    realmAsync.insertOrUpdate(entry);
-                    Log.i(LOG_TAG, "NEW ENTRY" + " " + entry.toString());
+        RealmConfiguration config = new RealmConfiguration.Builder()
+                .schemaVersion(DatabaseMigration.SCHEMA_VERSION)
+                .migration(new DatabaseMigration())
+                .build();
+        Realm.setDefaultConfiguration(config);
+        return new RealmSensorsEntryStorage(config);
+    }
 
-                    //update managers shared preferences
-                    mLocationCustomManager.updateSharedPreferences();
-                    mBluetoothCustomManager.updateSharedPreferences();
-                    mWifiCustomManager.updateSharedPreferences();
-                    mVariousSensorsCustomManager.updateSharedPreferences();
+    /**
+     * @param intent - intent that started the service, or null
+     * @return storage engine chosen by the intent (kept for the next starts), or by a previous one (the Realm database by default)
+     */
+    private String chooseStorageEngine(@Nullable Intent intent)
+    {
+        SharedPreferences sharedPref = getSharedPreferences(SHARED_PREF_TAG, Context.MODE_PRIVATE);
+        String engine = intent != null ? intent.getStringExtra(EXTRA_STORAGE_ENGINE) : null;
+        if(engine != null)
+            sharedPref.edit().putString(SHARED_PREF_STORAGE_ENGINE, engine).apply();
+        else
+            engine = sharedPref.getString(SHARED_PREF_STORAGE_ENGINE, STORAGE_ENGINE_REALM);
+        return engine;
+    }
 
-                    databaseHandler.postDelayed(databaseRunnable, DELAY_DB); //call this method again in 1min
-                    beginningTime = System.currentTimeMillis(); //set beginning time for next entry
-                }
-            });
+    /**
+     * @return uploader of the entries to the server, or null if there is no server
+     */
+    private BatchUploader createUploader()
+    {
+        if(SERVER_URL == null)
+            return null;
+        try {
+            return new BatchUploader(new URL(SERVER_URL), getDeviceId(), UPLOAD_FORMAT, UPLOAD_COMPRESSION,
+                    BatchUploader.DEFAULT_MAX_ENTRIES, BatchUploader.DEFAULT_MAX_BYTES);
+        } catch (MalformedURLException e) {
+            Log.e(LOG_TAG, "Invalid server url " + SERVER_URL, e);
+            return null;
         }
-        else
+    }
+
+    /**
+     * @return id identifying the device to the server, created the first time
+     */
+    private String getDeviceId()
+    {
+        SharedPreferences sharedPref = getSharedPreferences(SHARED_PREF_TAG, Context.MODE_PRIVATE);
+        String deviceId = sharedPref.getString(SHARED_PREF_DEVICE_ID, null);
+        if(deviceId == null)
         {
-            databaseHandler.postDelayed(databaseRunnable, DELAY_DB); //call this method again in 1min
+            deviceId = UUID.randomUUID().toString();
+            sharedPref.edit().putString(SHARED_PREF_DEVICE_ID, deviceId).apply();
         }
-
+        return deviceId;
     }
 
     /**
-     * checks if there are duplicate objects in the lists and in the database and if there is, replace the data in the list for the data in the database
-     * @param realmAsync - Realm object
-     * @param wifiDevices - list of wifiDevices
-     * @param wifiNetworks - list of wifiNetworks
-     * @param bluetoothDevices - list of bluetoothDevices
+     * asynchronously asks the upload scheduler whether to send the entries not yet sent and, if so, sends them to server
+     * in order and in batches, up to the bytes it allows, and then starts deleting the entries sent. Sending stops at
+     * the first batch that fails, so that the entries sent are always the oldest ones.
+     * Each batch is read from the storage and marked as sent on the storage thread, but sent on the upload thread,
+     * so that entries are committed meanwhile
+     * @param network - network the device is connected to (see UploadScheduler)
+     * @param charging - true if the device is charging
+     * @param retention - true to apply the retention policy afterwards (after sending, so that entries are only
+     *                  deleted unsent if they could not be sent for too long)
+     * @param window - window of the coordinator in which it is requested (see WakeupCoordinator.getWindow)
      */
-    private void deleteDuplicates(Realm realmAsync, RealmList<WifiDeviceCustom> wifiDevices, RealmList<WifiNetworkCustom> wifiNetworks, RealmList<BluetoothDeviceCustom> bluetoothDevices) {
-        if(wifiDevices != null)
-            for(int i = 0; i < wifiDevices.size(); i++)
-            {
+    private void sendToServer(final int network, final boolean charging, final boolean retention, final long window) {
 
-                WifiDeviceCustom device = wifiDevices.get(i);
-                WifiDeviceCustom result = null;
-                if (device != null) {
-                    result = realmAsync.where(WifiDeviceCustom.class)
-                            .equalTo("ip", device.getIp())
-                            .equalTo("mac", device.getMac())
-                            .equalTo("networkSSID", device.getNetworkSSID())
-                            .findFirst(); //check if duplicate
-                }
-
-                if(result != null)
-                    wifiDevices.set(i, result); //replace
+        if(batchUploader == null)
+        {
+            if(retention)
+                applyRetentionPolicy();
+            return;
+        }
+        storageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(storage == null)
+                    return;
+                final SensorsEntryStorage openStorage = storage;
+                final long backlog = storage.countNotUploaded() + writeBehindBuffer.size();
+                uploadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        upload(openStorage, backlog, network, charging, window);
+                        if(retention)
+                            applyRetentionPolicy();
+                    }
+                });
+            }
+        });
+    }
 
+    /**
+     * sends the entries not yet sent if the upload scheduler decides so (upload thread only)
+     * @param openStorage - storage open when the upload was requested
+     * @param backlog - number of entries not yet sent, committed or not
+     * @param network - network the device is connected to (see UploadScheduler)
+     * @param charging - true if the device is charging
+     * @param window - window of the coordinator in which it was requested, counted as powering the radio up if it sends
+     */
+    private void upload(final SensorsEntryStorage openStorage, long backlog, int network, boolean charging, final long window)
+    {
+        long maxBytes = uploadScheduler.decide(backlog, network, charging);
+        if(maxBytes == 0)
+            return;
+        managerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(!destroyed)
+                    wakeupCoordinator.radioPowered(window);
+            }
+        });
+        flushBuffer(); //the device is awake anyway: commit buffered entries so that they are sent as well (runs before the first batch is read)
+        long bytesBefore = batchUploader.getBytesSent();
+        try {
+            long sent = batchUploader.stream(openStorage, storageExecutor, maxBytes); //in a single request, however large the backlog
+            Log.i(LOG_TAG, sent + " entries sent to server (" + batchUploader.getRequests() + " requests, " + batchUploader.getBytesSent() + " bytes so far)");
+            if(batchUploader.isFailed())
+                uploadScheduler.uploadFailed();
+            else
+                uploadScheduler.uploadSucceeded(sent, batchUploader.getBytesSent() - bytesBefore, batchUploader.isCapped());
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to send entries to server", e);
+            uploadScheduler.uploadFailed();
+        }
+        storageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(storage == openStorage)
+                    purgeEngine.purgeUploaded(storage);
             }
+        });
+    }
 
+    /**
+     * asynchronously deletes the entries and rollups older than their retention time
+     */
+    private void applyRetentionPolicy() {
 
-        if(wifiNetworks != null)
-            for(int i = 0; i < wifiNetworks.size(); i++)
-            {
-                WifiNetworkCustom network = wifiNetworks.get(i);
-                WifiNetworkCustom result = null;
-                if (network != null) {
-                    result = realmAsync.where(WifiNetworkCustom.class)
-                            .equalTo("SSID", network.getSSID())
-                            .equalTo("BSSID", network.getBSSID())
-                            .findFirst(); //check if duplicate
+        storageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(storage == null)
+                    return;
+                try {
+                    retentionPolicy.apply(storage, purgeEngine, System.currentTimeMillis());
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to apply retention policy", e);
                 }
-
-                if(result != null)
-                    wifiNetworks.set(i, result); //replace
             }
+        });
+    }
 
-        if(bluetoothDevices != null)
-            for(int i = 0; i < bluetoothDevices.size(); i++)
-            {
-                BluetoothDeviceCustom device = bluetoothDevices.get(i);
-                BluetoothDeviceCustom result = null;
-                if (device != null) {
-                    result = realmAsync.where(BluetoothDeviceCustom.class)
-                            .equalTo("address", device.getAddress())
-                            .equalTo("name", device.getName())
-                            .equalTo("type", device.getType())
-                            .findFirst(); //check if duplicate
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        //the alarm no longer wakes this instance up: the receiver restarts the service
+        destroyed = true;
+        nextWakeup = 0;
+        if(heartbeat != null)
+            heartbeat.stop();
+        //intent to restart the service
+        Intent broadcastIntent = new Intent(ServiceRestarterBroadcastReceiver.ACTION);
+        sendBroadcast(broadcastIntent);
+        //stop the upload in progress
+        if(batchUploader != null)
+            batchUploader.cancel();
+        managerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                //stop the periodic work and destroy the managers
+                if(controlLoop != null)
+                {
+                    loopRunner.stop();
+                    windowRunner.stop();
+                    mMotionCustomManager.onDestroy();
+                    mVariousSensorsCustomManager.onDestroy();
                 }
-
-                if(result != null)
-                    bluetoothDevices.set(i, result); //replace
+                if(managersStarted)
+                {
+                    unregisterReceiver(connectivityReceiver);
+                    unregisterReceiver(wakeupReceiver);
+                    ListenerCounts.unregistered(ListenerCounts.RECEIVER);
+                    ListenerCounts.unregistered(ListenerCounts.RECEIVER);
+                    if(networkCallback != null)
+                    {
+                        ConnectivityManager connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+                        connectivityManager.unregisterNetworkCallback(networkCallback);
+                        ListenerCounts.unregistered(ListenerCounts.NETWORK);
+                        networkCallback = null;
+                    }
+                    managerHandler.removeCallbacks(connectivityChanged);
+                    mLocationCustomManager.onDestroy();
+                    mWifiCustomManager.onDestroy();
+                    mBluetoothCustomManager.onDestroy();
+                }
+                managerThread.quit();
+                uploadThread.quit();
+                //commit the finished entries still in the buffer and close the storage before the service goes away. The
+                //window in progress is dropped: a service started again within an entry begins its first one at the last beat
+                storageHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushBufferNow();
+                        purgeEngine.cancel();
+                        if(storage != null)
+                            storage.close();
+                        storage = null;
+                        storageThread.quit();
+                    }
+                });
             }
+        });
+        Log.i(LOG_TAG, "Service Destroyed!");
+    }
+
 
 
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     /**
-     * sets energy mode and updates the managers
+     * creates a new Sensor entry object, retrieving data from the sensor managers, and adds it to the write-behind buffer.
+     * The buffer is committed to the database once it holds enough entries for the current energy mode, or right away
+     * if the device is awake anyway (display on or charging) (manager thread only)
      */
-    private void updateManagers()
-    {
-        int battery = mVariousSensorsCustomManager.getBatteryLevel();
-        boolean InMotion = mMotionCustomManager.extractInMotionRecent();
+    private void updateDatabase() {
 
+        SensorsEntry entry = extractEntry();
+        beginningTime = System.currentTimeMillis(); //set beginning time for next entry
+        heartbeat.beat(beginningTime); //alive as long as it adds entries
+        if(Log.isLoggable(LOG_TAG, Log.DEBUG)) //the whole entry is only built as a string when it is logged
+            Log.d(LOG_TAG, "NEW ENTRY" + " " + entry.toString());
+        writeBehindBuffer.add(entry);
+
+        //save the state of the managers if it changed, written on the storage thread between two transactions
+        final byte[] state = checkpoint.snapshot();
+        if(state != null)
+            storageHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    checkpoint.write(state);
+                }
+            });
 
-        int energyMode;
-        if(Math.abs(battery) > 50 || battery > 0)
+        long firstSample = mMotionCustomManager.getFirstSampleTime();
+        if(!firstSampleLogged && firstSample != 0)
         {
-            if(InMotion)
-            {
-                energyMode = EnergyModes.MODE_HIGH_BATTERY_INMOTION;
-                Log.i(LOG_TAG, "Mode: High Battery & In Motion");
-            }
-            else
-            {
-                energyMode = EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION;
-                Log.i(LOG_TAG, "Mode: High Battery & Not In Motion");
-            }
-
+            firstSampleLogged = true;
+            Log.i(LOG_TAG, "First sample " + (firstSample - startTime) + " ms after start, " + ListenerCounts.describe());
         }
-        else{
-            if(InMotion)
-            {
-                energyMode = EnergyModes.MODE_LOW_BATTERY_INMOTION;
-                Log.i(LOG_TAG, "Mode: Low Battery & In Motion");
-            }
-            else
+
+        boolean awake = entry.isDisplay() || entry.getBatteryLevel() > 0;
+        if(writeBehindBuffer.shouldFlush(windowsPerCommit(energyMode), awake))
+            flushBuffer();
+    }
+
+    /**
+     * @return new unmanaged Sensor entry with the data retrieved from the sensor managers since the last one (manager thread only)
+     */
+    private SensorsEntry extractEntry()
+    {
+        int battery = mVariousSensorsCustomManager.getBatteryLevel();
+
+        MotionValues motionValues = mMotionCustomManager.extractMotionValues();
+        boolean inMotion = motionValues.isInMotion();
+        float magneticField = mVariousSensorsCustomManager.extractMagneticField();
+        boolean display = mVariousSensorsCustomManager.isDisplayOn();
+        float proximity = mVariousSensorsCustomManager.getProximity();
+        float totalDistance = mLocationCustomManager.extractTotalDistance();
+        RealmList<LocationCustom> locationList = mLocationCustomManager.extractLocationList();
+        boolean moving = mLocationCustomManager.isMoving(totalDistance, locationList, null);
+        RealmList<WifiDeviceCustom> wifiDevices = mWifiCustomManager.extractWifiDevicesList();
+        RealmList<WifiNetworkCustom> wifiNetworks = mWifiCustomManager.extractWifiNetworksList();
+        RealmList<BluetoothDeviceCustom> bluetoothDevices = mBluetoothCustomManager.extractBluetoothDevicesList();
+        String currentNetworkSSID = mWifiCustomManager.getCurrentWifiNetworkSSID();
+
+        int signalStrength = mVariousSensorsCustomManager.getSignalStrength();
+        long finalTimestamp = System.currentTimeMillis();
+        //calculate maximum speed
+        float max_speed = 0.0f;
+        if(locationList != null)
+            for(int i = 0; i < locationList.size(); i++)
             {
-                energyMode = EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION;
-                Log.i(LOG_TAG, "Mode: Low Battery & Not In Motion");
+                LocationCustom location = locationList.get(i);
+                if (location != null && location.getSpeed() > max_speed) {
+                        max_speed = location.getSpeed();
+                }
+
             }
 
-        }
-        mLocationCustomManager.setModeAndUpdate(energyMode);
-        mMotionCustomManager.setModeAndUpdate(energyMode);
-        mWifiCustomManager.setModeAndUpdate(energyMode);
-        mBluetoothCustomManager.setModeAndUpdate(energyMode);
+        return new SensorsEntry(beginningTime, finalTimestamp, battery, signalStrength, motionValues, inMotion, moving, display, max_speed, totalDistance, currentNetworkSSID, magneticField, proximity, locationList, wifiDevices, wifiNetworks, bluetoothDevices);
     }
 
     /**
-     * deletes entries, as well as the locations and motionValues associated
-     * @param entriesToDelete - RealmResults containing all the entries to delete
-     * @param realm - Realm object
+     * @param energyMode - current EnergyMode
+     * @return number of entries to accumulate in the write-behind buffer before committing them to the database
      */
-    private void deleteFromDatabase(RealmResults<SensorsEntry> entriesToDelete, Realm realm)
+    private static int windowsPerCommit(int energyMode)
     {
-        ArrayList<Long> motionValuesIdsToDelete = new ArrayList<>();
-        ArrayList<Long> locationCustomIdsToDelete = new ArrayList<>();
-        for(SensorsEntry entry:entriesToDelete)
+        switch (energyMode)
         {
-            RealmList<LocationCustom> locations = entry.getLocationList();
-            for(LocationCustom location:locations)
-            {
-                locationCustomIdsToDelete.add(location.getId());
-            }
-            motionValuesIdsToDelete.add(entry.getId());
+            case EnergyModes.MODE_LOW_BATTERY_INMOTION:
+                return 5;
+            case EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION:
+                return 15;
+            default:
+                return 1;
         }
-        RealmResults<MotionValues> motionValuesToDelete = realm.where(MotionValues.class).in("id", longListToArray(motionValuesIdsToDelete)).findAll();
-        RealmResults<LocationCustom> locationsToDelete = realm.where(LocationCustom.class).in("id", longListToArray(locationCustomIdsToDelete)).findAll();
-
-        entriesToDelete.deleteAllFromRealm();
-        motionValuesToDelete.deleteAllFromRealm();
-        locationsToDelete.deleteAllFromRealm();
+    }
 
+    /**
+     * asynchronously commits to the storage, at once, every entry in the write-behind buffer.
+     * If that fails the entries are put back in the buffer
+     */
+    private void flushBuffer() {
+        storageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                flushBufferNow();
+            }
+        });
     }
 
     /**
-     * @param clazz - class
-     * @param realm - Realm object
-     * @return first non-taken id from a certain class
+     * commits to the storage every entry in the write-behind buffer (storage thread only)
      */
-    private long nextIdRealm(Class clazz, Realm realm)
-    {
-        Number currentIdNum = realm.where(clazz).max("id");
-        long nextId;
-        if(currentIdNum == null) {
-            nextId = 1;
-        } else {
-            nextId = currentIdNum.longValue() + 1;
+    private void flushBufferNow() {
+
+        if(storage == null)
+            return;
+
+        List<SensorsEntry> entries = writeBehindBuffer.drain();
+        if(entries.isEmpty())
+            return;
+
+        try {
+            storage.append(entries);
+            writeBehindBuffer.confirm(entries);
+        } catch (IOException e) {
+            writeBehindBuffer.restore(entries); //still in the journal for the next start
+            Log.e(LOG_TAG, "Failed to insert " + entries.size() + " entries", e);
         }
-        return nextId;
     }
 
-    //converts a list of Long to an array
-    private static Long[] longListToArray(List<Long> longs)
+    /**
+     * sets energy mode, as decided by the energy mode policy (manager thread only)
+     * @return true if it changed
+     */
+    private boolean updateEnergyMode()
     {
-        Long[] ret = new Long[longs.size()];
-        for (int i=0; i < ret.length; i++)
+        int battery = mVariousSensorsCustomManager.getBatteryLevel();
+        boolean InMotion = mMotionCustomManager.extractInMotionRecent();
+        int previousMode = energyMode;
+        energyMode = energyModePolicy.evaluate(battery, InMotion);
+        if(energyMode == previousMode)
+            return false;
+
+        switch (energyMode)
         {
-            ret[i] = longs.get(i);
+            case EnergyModes.MODE_HIGH_BATTERY_INMOTION:
+                Log.i(LOG_TAG, "Mode: High Battery & In Motion");
+                break;
+            case EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION:
+                Log.i(LOG_TAG, "Mode: High Battery & Not In Motion");
+                break;
+            case EnergyModes.MODE_LOW_BATTERY_INMOTION:
+                Log.i(LOG_TAG, "Mode: Low Battery & In Motion");
+                break;
+            default:
+                Log.i(LOG_TAG, "Mode: Low Battery & Not In Motion");
+                break;
         }
-        return ret;
+        return true;
     }
 
     /**
@@ -500,70 +911,6 @@ public class DataAcquisitionService extends Service {
     }
 
 
-    /**
-     * sends an entry to the server as a string
-     * @param url server url
-     * @param entry entry to send
-     * @return true if successful false if not
-     */
-    private static boolean POST(String url, SensorsEntry entry){
-
-        InputStream inputStream = null;
-        boolean result = false;
-        if(url != null)
-            try {
-
-                // 1. create HttpClient
-                HttpClient httpclient = new DefaultHttpClient();
-
-                // 2. make POST request to the given URL
-                HttpPost httpPost = new HttpPost(url);
-
-                /*String json = "";
-
-                // 3. build jsonObject
-                JSONObject jsonObject = new JSONObject();
-                jsonObject.accumulate("name", person.getName());
-                jsonObject.accumulate("country", person.getCountry());
-                jsonObject.accumulate("twitter", person.getTwitter());
-
-                // 4. convert JSONObject to JSON to String
-                json = jsonObject.toString();
-
-                // ** Alternative way to convert Person object to JSON string using Jackson Lib
-                // ObjectMapper mapper = new ObjectMapper();
-                // json = mapper.writeValueAsString(person);
-
-                // 5. set json to StringEntity
-                StringEntity se = new StringEntity(json);*/
-
-                // 6. set httpPost Entity
-                httpPost.setEntity(new StringEntity(entry.toString()));
-
-                // 7. Set some headers to inform server about the type of the content
-                httpPost.setHeader("Accept", "application/json");
-                httpPost.setHeader("Content-type", "application/json");
-
-                // 8. Execute POST request to the given URL
-                HttpResponse httpResponse = httpclient.execute(httpPost);
-
-                // 9. receive response as inputStream
-                inputStream = httpResponse.getEntity().getContent();
-
-                // 10. convert inputstream to string
-                if(inputStream != null)
-                    result = true;//convertInputStreamToString(inputStream);
-                else
-                    result = false;//"Did not work!";
-
-            } catch (Exception e) {
-                Log.d("InputStream", e.getLocalizedMessage());
-            }
-
-        // 11. return result
-        return result;
-    }
-
 
 
 
@@ -0,0 +1,125 @@
+package com.thalesgroup.sensorlogging;
+
+import io.realm.DynamicRealm;
+import io.realm.DynamicRealmObject;
+import io.realm.FieldAttribute;
+import io.realm.RealmMigration;
+import io.realm.RealmObjectSchema;
+import io.realm.RealmSchema;
+
+/**
+ * Migrates the database from older versions of the schema to SCHEMA_VERSION.
+ * Every change to the classes stored in the database must bump SCHEMA_VERSION and add a step here
+ */
+public class DatabaseMigration implements RealmMigration {
+
+    public static final long SCHEMA_VERSION = 5; //current version of the database schema
+
+    @Override
+    public void migrate(DynamicRealm realm, long oldVersion, long newVersion) {
+
+        RealmSchema schema = realm.getSchema();
+
+        //version 1: IdSequence (high-water marks of the ids reserved per class)
+        if(oldVersion == 0)
+        {
+            schema.create("IdSequence")
+                    .addField("className", String.class, FieldAttribute.PRIMARY_KEY)
+                    .addField("highWaterMark", long.class);
+            oldVersion++;
+        }
+
+        //version 2: indexed natural keys of the objects stored only once
+        if(oldVersion == 1)
+        {
+            schema.get("WifiDeviceCustom")
+                    .addField("naturalKey", String.class, FieldAttribute.INDEXED)
+                    .transform(new RealmObjectSchema.Function() {
+                        @Override
+                        public void apply(DynamicRealmObject obj) {
+                            obj.setString("naturalKey", WifiDeviceCustom.naturalKey(obj.getString("ip"), obj.getString("mac"), obj.getString("networkSSID")));
+                        }
+                    });
+            schema.get("WifiNetworkCustom")
+                    .addField("naturalKey", String.class, FieldAttribute.INDEXED)
+                    .transform(new RealmObjectSchema.Function() {
+                        @Override
+                        public void apply(DynamicRealmObject obj) {
+                            obj.setString("naturalKey", WifiNetworkCustom.naturalKey(obj.getString("SSID"), obj.getString("BSSID")));
+                        }
+                    });
+            schema.get("BluetoothDeviceCustom")
+                    .addField("naturalKey", String.class, FieldAttribute.INDEXED)
+                    .transform(new RealmObjectSchema.Function() {
+                        @Override
+                        public void apply(DynamicRealmObject obj) {
+                            obj.setString("naturalKey", BluetoothDeviceCustom.naturalKey(obj.getString("address"), obj.getString("name"), obj.getInt("type")));
+                        }
+                    });
+            oldVersion++;
+        }
+
+        //version 3: SensorsRollup (hourly and daily summaries of the entries)
+        if(oldVersion == 2)
+        {
+            schema.create("SensorsRollup")
+                    .addField("key", String.class, FieldAttribute.PRIMARY_KEY)
+                    .addField("resolution", int.class)
+                    .addField("bucketStart", long.class, FieldAttribute.INDEXED)
+                    .addField("entryCount", int.class)
+                    .addField("lastEntryId", long.class)
+                    .addField("coveredMillis", long.class)
+                    .addField("inMotionMillis", long.class)
+                    .addField("movingMillis", long.class)
+                    .addField("displayOnMillis", long.class)
+                    .addField("distance", double.class)
+                    .addField("maxSpeed", float.class)
+                    .addField("dischargingMillis", long.class)
+                    .addField("batteryDrained", int.class)
+                    .addField("lastBatteryLevel", int.class)
+                    .addField("lastFinalTimestamp", long.class)
+                    .addRealmListField("wifiNetworks", Long.class)
+                    .addRealmListField("wifiDevices", Long.class)
+                    .addRealmListField("bluetoothDevices", Long.class)
+                    .addRealmListField("signalHistogram", Integer.class);
+            oldVersion++;
+        }
+
+        //version 4: indexes of the timestamps of SensorsEntry, searched by the queries by interval of time and the purge
+        if(oldVersion == 3)
+        {
+            schema.get("SensorsEntry")
+                    .addIndex("beginningTimestamp")
+                    .addIndex("finalTimestamp");
+            oldVersion++;
+        }
+
+        //version 5: UploadWatermark (how far the upload got) replaces the onServer flag of every SensorsEntry
+        if(oldVersion == 4)
+        {
+            //entries were uploaded in order of id: the last one uploaded is the watermark
+            Number uploadedId = realm.where("SensorsEntry").equalTo("onServer", true).max("id");
+            schema.create("UploadWatermark")
+                    .addField("key", int.class, FieldAttribute.PRIMARY_KEY)
+                    .addField("acknowledgedSequence", long.class)
+                    .addField("acknowledgedId", long.class)
+                    .addField("pendingSequence", long.class)
+                    .addField("pendingLastId", long.class);
+            DynamicRealmObject watermark = realm.createObject("UploadWatermark", UploadWatermark.KEY);
+            watermark.setLong("acknowledgedId", uploadedId != null ? uploadedId.longValue() : 0);
+            schema.get("SensorsEntry").removeField("onServer");
+            oldVersion++;
+        }
+    }
+
+    //Realm compares the configurations of the instances open on the same file, including their migration
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DatabaseMigration;
+    }
+
+    @Override
+    public int hashCode() {
+        return DatabaseMigration.class.hashCode();
+    }
+}
@@ -0,0 +1,273 @@
+package com.thalesgroup.sensorlogging;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.support.annotation.Nullable;
+import android.support.v4.content.ContextCompat;
+import android.telephony.CellInfo;
+import android.telephony.CellInfoCdma;
+import android.telephony.CellInfoGsm;
+import android.telephony.CellInfoLte;
+import android.telephony.CellInfoWcdma;
+import android.telephony.PhoneStateListener;
+import android.telephony.SignalStrength;
+import android.telephony.TelephonyManager;
+
+import java.util.List;
+
+/**
+ * Battery, display and signal strength of the device, kept up to date by the broadcasts and callbacks of the system
+ * (battery changed, screen on and off, signal strength and cell info changed) instead of being asked for at each read:
+ * reads are answered from memory, and the reads that used to be calls to a system service (IPCs) are counted.
+ * The cells are only asked for (getAllCellInfo) at a read after the signal strength changed, when they were not
+ * delivered by the cell info callback.
+ * Its state is confined to the thread of the handler given to start(), on which the broadcasts and callbacks are
+ * delivered and the methods must be called
+ */
+public class DeviceStateCache {
+
+    @Nullable
+    private final ControlLoop controlLoop; //notified when the battery changes (running on the same thread), or null
+    private int batteryLevel = 0; //see VariousSensorsCustomManager.getBatteryLevel
+    private boolean displayOn = false;
+    private int signalStrength; //(dBm)
+    private boolean signalStale = false; //true if the signal strength changed since the cells were last asked for
+    private TelephonyManager telephonyManager; //null until started
+    private boolean cellInfoReadable = false; //true if the cells can be asked for (API 17+ with the location permission)
+    private Context context; //null until started
+    private long ipcs = 0; //calls to system services, since the last reset
+    private long avoidedIpcs = 0; //reads answered from memory that used to be calls to system services, since the last reset
+
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onBatteryChanged(VariousSensorsCustomManager.getBatteryLevel(intent));
+        }
+    };
+
+    private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onDisplayChanged(Intent.ACTION_SCREEN_ON.equals(intent.getAction()));
+        }
+    };
+
+    private PhoneStateListener phoneStateListener; //created on the thread of the handler, to deliver its callbacks there
+
+    /**
+     * Constructor
+     * @param controlLoop - loop notified when the battery level or charging state changes, or null
+     * @param signalStrength - signal strength until the first one is known (dBm)
+     */
+    public DeviceStateCache(@Nullable ControlLoop controlLoop, int signalStrength) {
+        this.controlLoop = controlLoop;
+        this.signalStrength = signalStrength;
+    }
+
+    /**
+     * registers the broadcasts and callbacks and reads the current state (on the thread of the handler)
+     * @param context - Application Context
+     * @param handler - handler of the thread on which the cache is used
+     */
+    public void start(Context context, Handler handler)
+    {
+        this.context = context;
+        //the battery broadcast is sticky: its last value is returned right away
+        Intent battery = context.registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED), null, handler);
+        if(battery != null)
+            onBatteryChanged(VariousSensorsCustomManager.getBatteryLevel(battery));
+        IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        context.registerReceiver(screenReceiver, screenFilter, null, handler);
+        ListenerCounts.registered(ListenerCounts.RECEIVER);
+        ListenerCounts.registered(ListenerCounts.RECEIVER);
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if(pm != null)
+        {
+            ipcs++;
+            displayOn = pm.isScreenOn();
+        }
+
+        telephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        cellInfoReadable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 && ContextCompat.checkSelfPermission(context, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+        if(telephonyManager != null)
+        {
+            phoneStateListener = new CachePhoneStateListener();
+            int events = PhoneStateListener.LISTEN_SIGNAL_STRENGTHS;
+            if(cellInfoReadable)
+                events |= PhoneStateListener.LISTEN_CELL_INFO;
+            telephonyManager.listen(phoneStateListener, events);
+            ListenerCounts.registered(ListenerCounts.PHONE);
+            signalStale = cellInfoReadable;
+        }
+    }
+
+    /**
+     * unregisters the broadcasts and callbacks
+     */
+    public void stop()
+    {
+        if(context == null)
+            return;
+        context.unregisterReceiver(batteryReceiver);
+        context.unregisterReceiver(screenReceiver);
+        ListenerCounts.unregistered(ListenerCounts.RECEIVER);
+        ListenerCounts.unregistered(ListenerCounts.RECEIVER);
+        if(telephonyManager != null)
+        {
+            telephonyManager.listen(phoneStateListener, PhoneStateListener.LISTEN_NONE);
+            ListenerCounts.unregistered(ListenerCounts.PHONE);
+        }
+        context = null;
+    }
+
+    /**
+     * @param level - battery level, positive if charging, negative if not
+     */
+    void onBatteryChanged(int level)
+    {
+        if(level == batteryLevel)
+            return;
+        batteryLevel = level;
+        if(controlLoop != null)
+            controlLoop.post(ControlLoop.EVENT_BATTERY);
+    }
+
+    void onDisplayChanged(boolean on)
+    {
+        displayOn = on;
+    }
+
+    /**
+     * @param dbm - signal strength (dBm)
+     */
+    void onSignalChanged(int dbm)
+    {
+        signalStrength = dbm;
+        signalStale = false;
+    }
+
+    /**
+     * updates the signal strength from the registered cell, if any
+     * @param cells - cells known to the device, or null
+     */
+    void onCellInfoChanged(@Nullable List<CellInfo> cells)
+    {
+        Integer dbm = getRegisteredSignalStrength(cells);
+        if(dbm != null)
+            onSignalChanged(dbm);
+    }
+
+    /**
+     * @return positive integer (0:100) if charging, negative integer (-100:-0) if not charging
+     */
+    public int getBatteryLevel()
+    {
+        avoidedIpcs++;
+        return batteryLevel;
+    }
+
+    public boolean isDisplayOn()
+    {
+        avoidedIpcs++;
+        return displayOn;
+    }
+
+    /**
+     * @return current signal strength of mobile network (dBm)
+     */
+    public int getSignalStrength()
+    {
+        if(signalStale && telephonyManager != null)
+        {
+            ipcs++;
+            signalStale = false;
+            onCellInfoChanged(telephonyManager.getAllCellInfo());
+        }
+        else if(cellInfoReadable)
+            avoidedIpcs++;
+        return signalStrength;
+    }
+
+    /**
+     * for internal readers (checkpoint, logs), so that the calls counted are only the ones of the entries
+     * @return last known signal strength (dBm), without asking for the cells nor counting the read
+     */
+    public int peekSignalStrength() {
+        return signalStrength;
+    }
+
+    /**
+     * @param cells - cells known to the device, or null
+     * @return signal strength of the first registered cell (dBm), or null if none
+     */
+    @Nullable
+    private static Integer getRegisteredSignalStrength(@Nullable List<CellInfo> cells)
+    {
+        if(cells == null)
+            return null;
+        for(CellInfo c:cells)
+        {
+            if(!c.isRegistered())
+                continue;
+            if(c.getClass().equals(CellInfoLte.class))
+                return ((CellInfoLte) c).getCellSignalStrength().getDbm();
+            else if(c.getClass().equals(CellInfoGsm.class))
+                return ((CellInfoGsm) c).getCellSignalStrength().getDbm();
+            else if(c.getClass().equals(CellInfoCdma.class))
+                return ((CellInfoCdma) c).getCellSignalStrength().getDbm();
+            else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 && c.getClass().equals(CellInfoWcdma.class))
+                return ((CellInfoWcdma) c).getCellSignalStrength().getDbm();
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * @return calls to system services made since the last reset
+     */
+    public long getIpcs() {
+        return ipcs;
+    }
+
+    /**
+     * @return reads answered from memory that used to be calls to system services, since the last reset
+     */
+    public long getAvoidedIpcs() {
+        return avoidedIpcs;
+    }
+
+    /**
+     * forgets the calls counted so far, to count the next ones
+     */
+    public void resetIpcs()
+    {
+        ipcs = 0;
+        avoidedIpcs = 0;
+    }
+
+    private class CachePhoneStateListener extends PhoneStateListener {
+
+        @Override
+        public void onSignalStrengthsChanged(SignalStrength signalStrength) {
+            super.onSignalStrengthsChanged(signalStrength);
+            if(cellInfoReadable)
+                signalStale = true; //asked for at the next read, unless the cells are delivered before
+            else
+                onSignalChanged((2 * signalStrength.getGsmSignalStrength()) - 113); // -> dBm
+        }
+
+        @Override
+        public void onCellInfoChanged(List<CellInfo> cellInfo) {
+            super.onCellInfoChanged(cellInfo);
+            DeviceStateCache.this.onCellInfoChanged(cellInfo);
+        }
+    }
+}
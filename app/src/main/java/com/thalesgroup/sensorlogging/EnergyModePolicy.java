@@ -0,0 +1,176 @@
+package com.thalesgroup.sensorlogging;
+
+/**
+ * Decides the energy mode (see EnergyModes) from the battery and the motion of the device, without flipping between
+ * modes on borderline readings:
+ * the battery is high while charging or above HIGH_BATTERY_LEVEL, and only becomes low again at HIGH_BATTERY_LEVEL
+ * minus the hysteresis (and high again above it plus the hysteresis); the device is in motion from the first motion
+ * detected until none was detected for the motion exit delay; and a mode is kept at least for its minimum dwell time.
+ * Each change of mode re-registers the motion sensors and resets the timing of the location, so the changes of mode are
+ * counted, along with the ones delayed by the minimum dwell time.
+ * Not thread-safe
+ */
+public class EnergyModePolicy {
+
+    public static final int NO_MODE = -1; //mode before the first evaluation
+    public static final int DEFAULT_HIGH_BATTERY_LEVEL = 50; //battery level above which the battery is high (%)
+    public static final int DEFAULT_BATTERY_HYSTERESIS = 5; //(%)
+    public static final long DEFAULT_MOTION_EXIT_DELAY = 60*1000; //time without motion after which the device is no longer in motion (ms)
+    public static final long DEFAULT_MIN_DWELL_INMOTION = 2*60*1000; //minimum time spent in an in motion mode (ms)
+    public static final long DEFAULT_MIN_DWELL_NOT_INMOTION = 30*1000; //minimum time spent in a not in motion mode (ms)
+    private static final long HOUR = 60*60*1000; //(ms)
+
+    private final Clock clock;
+    private final int highBatteryLevel; //(%)
+    private final int batteryHysteresis; //(%)
+    private final long motionExitDelay; //(ms)
+    private final long[] minDwell = new long[5]; //minimum dwell time of each mode, indexed by mode (ms)
+    private int mode = NO_MODE;
+    private int target = NO_MODE; //mode of the last evaluation, before the minimum dwell time
+    private long modeStart = 0; //instant the current mode started (ms)
+    private long lastMotion = Long.MIN_VALUE / 2; //instant motion was last detected (ms)
+    private long transitions = 0; //changes of mode, since the last reset
+    private long delayedTransitions = 0; //evaluations that did not change the mode because of its minimum dwell time, since the last reset
+    private long since; //instant of the last reset (ms)
+
+    /**
+     * Constructor with the default thresholds
+     * @param clock - source of the current time
+     */
+    public EnergyModePolicy(Clock clock) {
+        this(clock, DEFAULT_HIGH_BATTERY_LEVEL, DEFAULT_BATTERY_HYSTERESIS, DEFAULT_MOTION_EXIT_DELAY);
+    }
+
+    /**
+     * Constructor, with the default minimum dwell times (see setMinDwell)
+     * @param clock - source of the current time
+     * @param highBatteryLevel - battery level above which the battery is high (%)
+     * @param batteryHysteresis - margin around highBatteryLevel the battery level must cross to change (%)
+     * @param motionExitDelay - time without motion after which the device is no longer in motion (ms)
+     */
+    public EnergyModePolicy(Clock clock, int highBatteryLevel, int batteryHysteresis, long motionExitDelay) {
+        this.clock = clock;
+        this.highBatteryLevel = highBatteryLevel;
+        this.batteryHysteresis = batteryHysteresis;
+        this.motionExitDelay = motionExitDelay;
+        this.since = clock.now();
+        minDwell[EnergyModes.MODE_HIGH_BATTERY_INMOTION] = DEFAULT_MIN_DWELL_INMOTION;
+        minDwell[EnergyModes.MODE_LOW_BATTERY_INMOTION] = DEFAULT_MIN_DWELL_INMOTION;
+        minDwell[EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION] = DEFAULT_MIN_DWELL_NOT_INMOTION;
+        minDwell[EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION] = DEFAULT_MIN_DWELL_NOT_INMOTION;
+    }
+
+    /**
+     * @param mode - EnergyModes
+     * @param dwell - minimum time spent in the mode before changing to another (ms)
+     */
+    public void setMinDwell(int mode, long dwell)
+    {
+        minDwell[mode] = dwell;
+    }
+
+    /**
+     * decides the energy mode
+     * @param battery - battery level, positive if charging, negative if not (see VariousSensorsCustomManager.getBatteryLevel)
+     * @param inMotion - true if motion was detected since the last evaluation
+     * @return the energy mode (EnergyModes)
+     */
+    public int evaluate(int battery, boolean inMotion)
+    {
+        long now = clock.now();
+        if(inMotion)
+            lastMotion = now;
+
+        boolean charging = battery > 0;
+        int level = Math.abs(battery);
+        int threshold = highBatteryLevel;
+        if(mode != NO_MODE)
+            threshold += isHighBattery(mode) ? -batteryHysteresis : batteryHysteresis;
+        boolean high = charging || level > threshold;
+        boolean moving = now - lastMotion < motionExitDelay;
+
+        if(moving)
+            target = high ? EnergyModes.MODE_HIGH_BATTERY_INMOTION : EnergyModes.MODE_LOW_BATTERY_INMOTION;
+        else
+            target = high ? EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION : EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION;
+        if(target == mode)
+            return mode;
+        if(mode != NO_MODE && now - modeStart < minDwell[mode])
+        {
+            delayedTransitions++;
+            return mode;
+        }
+        if(mode != NO_MODE)
+            transitions++;
+        mode = target;
+        modeStart = now;
+        return mode;
+    }
+
+    /**
+     * @return instant of the next evaluation that may change the mode without another motion detected or change of the
+     * battery: the end of the minimum dwell time of a change delayed, or of the motion exit delay, or ControlLoop.NO_DEADLINE (ms)
+     */
+    public long getNextEvaluationTime()
+    {
+        if(mode == NO_MODE)
+            return ControlLoop.NO_DEADLINE;
+        if(target != mode)
+            return modeStart + minDwell[mode];
+        if(isInMotion(mode))
+            return lastMotion + motionExitDelay;
+        return ControlLoop.NO_DEADLINE;
+    }
+
+    /**
+     * @param mode - EnergyModes
+     * @return true if the mode is one of the high battery modes
+     */
+    public static boolean isHighBattery(int mode)
+    {
+        return mode == EnergyModes.MODE_HIGH_BATTERY_INMOTION || mode == EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION;
+    }
+
+    /**
+     * @param mode - EnergyModes
+     * @return true if the mode is one of the in motion modes
+     */
+    public static boolean isInMotion(int mode)
+    {
+        return mode == EnergyModes.MODE_HIGH_BATTERY_INMOTION || mode == EnergyModes.MODE_LOW_BATTERY_INMOTION;
+    }
+
+    /**
+     * @return current energy mode, or NO_MODE before the first evaluation
+     */
+    public int getMode() {
+        return mode;
+    }
+
+    public long getTransitions() {
+        return transitions;
+    }
+
+    public long getDelayedTransitions() {
+        return delayedTransitions;
+    }
+
+    /**
+     * @return changes of mode per hour since the last reset
+     */
+    public double getTransitionsPerHour()
+    {
+        long elapsed = clock.now() - since;
+        return elapsed > 0 ? (double) transitions * HOUR / elapsed : 0;
+    }
+
+    /**
+     * forgets the changes of mode counted so far, to count the next ones
+     */
+    public void resetTransitions()
+    {
+        transitions = 0;
+        delayedTransitions = 0;
+        since = clock.now();
+    }
+}
@@ -0,0 +1,16 @@
+package com.thalesgroup.sensorlogging;
+
+/**
+ * abstract class containing flags that select the objects contained in an entry (SensorsEntry) read by a query
+ * (see SensorsEntryStorage.query()). The values of the entry itself, including the number of devices and networks,
+ * are always read
+ */
+public abstract class EntryFields {
+    public static final int NONE = 0;
+    public static final int MOTION_VALUES = 1;
+    public static final int LOCATIONS = 2;
+    public static final int WIFI_DEVICES = 4;
+    public static final int WIFI_NETWORKS = 8;
+    public static final int BLUETOOTH_DEVICES = 16;
+    public static final int ALL = MOTION_VALUES | LOCATIONS | WIFI_DEVICES | WIFI_NETWORKS | BLUETOOTH_DEVICES;
+}
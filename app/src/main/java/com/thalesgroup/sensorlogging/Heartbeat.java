@@ -0,0 +1,208 @@
+package com.thalesgroup.sensorlogging;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Liveness of the service, kept in a small memory-mapped file: the service writes the instant of its last heartbeat
+ * (a store into memory, no system call), and anyone can tell from it in O(1) whether the service is alive, without
+ * asking the system for its running services. A service whose heartbeat is older than a freshness threshold is only
+ * stale if it runs in the process reading it (which is alive, maybe after the device slept), and dead otherwise. The gaps between the last heartbeat of a
+ * service and the start of the next one (its downtime) are added up in the file too. The last heartbeat is kept when the
+ * service stops, so that the next one can tell where the previous one stopped.
+ * Thread-safe
+ */
+public class Heartbeat {
+
+    private static final String LOG_TAG = "Heartbeat";
+    public static final String FILE_NAME = "heartbeat"; //file in the files directory of the app
+
+    public static final int STATUS_NEVER_STARTED = 0; //no heartbeat file
+    public static final int STATUS_ALIVE = 1; //fresh heartbeat
+    public static final int STATUS_STALE = 2; //stale heartbeat of a service that runs in the process checking it (asleep or busy)
+    public static final int STATUS_DEAD = 3; //stale heartbeat of a service that ran in another process
+    public static final int STATUS_STOPPED = 4; //service destroyed
+
+    private static final int MAGIC = 0x48420001; //"HB", version 1
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_STOPPED = 2;
+    //layout of the file
+    private static final int OFFSET_MAGIC = 0; //int
+    private static final int OFFSET_PID = 4; //int, process of the service
+    private static final int OFFSET_STATE = 8; //int
+    private static final int OFFSET_GAPS = 12; //int, number of gaps
+    private static final int OFFSET_STARTED = 16; //long, instant the service started (ms)
+    private static final int OFFSET_BEAT = 24; //long, instant of the last heartbeat (ms)
+    private static final int OFFSET_TOTAL_GAP = 32; //long, sum of the gaps (ms)
+    private static final int SIZE = 40;
+
+    private final File file;
+    private final Clock clock;
+    private MappedByteBuffer buffer; //null until mapped
+    private long previousBeat = 0; //last heartbeat of the previous service, read when this one started (ms)
+
+    /**
+     * Constructor
+     * @param file - heartbeat file (created when the service starts)
+     * @param clock - source of the current time
+     */
+    public Heartbeat(File file, Clock clock) {
+        this.file = file;
+        this.clock = clock;
+    }
+
+    /**
+     * records the start of the service in a process, and the gap since the heartbeat of the previous one if any
+     * @param pid - process of the service
+     * @return gap since the last heartbeat of the previous service (ms), 0 if none
+     */
+    public synchronized long start(int pid)
+    {
+        if(!map(true))
+            return 0;
+        long now = clock.now();
+        long gap = 0;
+        if(buffer.getInt(OFFSET_MAGIC) == MAGIC)
+        {
+            previousBeat = buffer.getLong(OFFSET_BEAT);
+            gap = Math.max(0, now - previousBeat);
+            buffer.putInt(OFFSET_GAPS, buffer.getInt(OFFSET_GAPS) + 1);
+            buffer.putLong(OFFSET_TOTAL_GAP, buffer.getLong(OFFSET_TOTAL_GAP) + gap);
+        }
+        else
+        {
+            buffer.putInt(OFFSET_GAPS, 0);
+            buffer.putLong(OFFSET_TOTAL_GAP, 0);
+        }
+        buffer.putInt(OFFSET_PID, pid);
+        buffer.putLong(OFFSET_STARTED, now);
+        buffer.putLong(OFFSET_BEAT, now);
+        buffer.putInt(OFFSET_STATE, STATE_RUNNING);
+        buffer.putInt(OFFSET_MAGIC, MAGIC);
+        return gap;
+    }
+
+    /**
+     * records that the service is alive now
+     */
+    public synchronized void beat()
+    {
+        beat(clock.now());
+    }
+
+    /**
+     * records that the service was alive at an instant
+     * @param time - instant (ms), such as the end of the entry just added
+     */
+    public synchronized void beat(long time)
+    {
+        if(buffer != null)
+            buffer.putLong(OFFSET_BEAT, time);
+    }
+
+    /**
+     * records that the service was destroyed
+     */
+    public synchronized void stop()
+    {
+        if(buffer != null)
+            buffer.putInt(OFFSET_STATE, STATE_STOPPED);
+    }
+
+    /**
+     * @return last heartbeat of the previous service, read when this one started (ms), or 0 if none
+     */
+    public synchronized long getPreviousBeat() {
+        return previousBeat;
+    }
+
+    /**
+     * @param pid - process checking the service
+     * @param freshness - age of the last heartbeat above which the service is not alive (ms)
+     * @return STATUS_ of the service
+     */
+    public synchronized int check(int pid, long freshness)
+    {
+        if(!map(false) || buffer.getInt(OFFSET_MAGIC) != MAGIC)
+            return STATUS_NEVER_STARTED;
+        if(buffer.getInt(OFFSET_STATE) == STATE_STOPPED)
+            return STATUS_STOPPED;
+        if(getAge() <= freshness)
+            return STATUS_ALIVE;
+        return buffer.getInt(OFFSET_PID) == pid ? STATUS_STALE : STATUS_DEAD;
+    }
+
+    /**
+     * @return time since the last heartbeat (ms), or Long.MAX_VALUE if there is none
+     */
+    public synchronized long getAge()
+    {
+        if(!map(false) || buffer.getInt(OFFSET_MAGIC) != MAGIC)
+            return Long.MAX_VALUE;
+        return clock.now() - buffer.getLong(OFFSET_BEAT);
+    }
+
+    /**
+     * @return time since the service started (ms), or 0 if it did not
+     */
+    public synchronized long getUptime()
+    {
+        if(!map(false) || buffer.getInt(OFFSET_MAGIC) != MAGIC)
+            return 0;
+        return clock.now() - buffer.getLong(OFFSET_STARTED);
+    }
+
+    /**
+     * @return number of gaps between a service and the next one
+     */
+    public synchronized int getGaps()
+    {
+        return map(false) && buffer.getInt(OFFSET_MAGIC) == MAGIC ? buffer.getInt(OFFSET_GAPS) : 0;
+    }
+
+    /**
+     * @return sum of the gaps between a service and the next one (ms)
+     */
+    public synchronized long getTotalGap()
+    {
+        return map(false) && buffer.getInt(OFFSET_MAGIC) == MAGIC ? buffer.getLong(OFFSET_TOTAL_GAP) : 0;
+    }
+
+    /**
+     * maps the file in memory, if not mapped yet
+     * @param create - true to create the file if it does not exist
+     * @return true if it is mapped
+     */
+    private boolean map(boolean create)
+    {
+        if(buffer != null)
+            return true;
+        if(!create && !file.exists())
+            return false;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            if(raf.length() < SIZE)
+                raf.setLength(SIZE);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE); //stays valid once the file is closed
+            return true;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to map heartbeat file", e);
+            return false;
+        } finally {
+            if(raf != null)
+            {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to close heartbeat file", e);
+                }
+            }
+        }
+    }
+}
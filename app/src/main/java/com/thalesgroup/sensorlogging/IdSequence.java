@@ -0,0 +1,47 @@
+package com.thalesgroup.sensorlogging;
+
+import io.realm.RealmObject;
+import io.realm.annotations.PrimaryKey;
+
+/**
+ * High-water mark of the ids reserved for one class of objects stored in the database.
+ * Used by IdSequenceAllocator so that ids are never handed out twice, even after rows are deleted
+ */
+public class IdSequence extends RealmObject {
+
+    @PrimaryKey
+    private String className; //simple name of the class the ids belong to (primary key)
+    private long highWaterMark; //highest id reserved so far for this class
+
+    public IdSequence() {
+    }
+
+    public IdSequence(String className, long highWaterMark) {
+        this.className = className;
+        this.highWaterMark = highWaterMark;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public void setClassName(String className) {
+        this.className = className;
+    }
+
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public void setHighWaterMark(long highWaterMark) {
+        this.highWaterMark = highWaterMark;
+    }
+
+    @Override
+    public String toString() {
+        return "IdSequence{" +
+                "className='" + className + '\'' +
+                ", highWaterMark=" + highWaterMark +
+                '}';
+    }
+}
@@ -0,0 +1,118 @@
+package com.thalesgroup.sensorlogging;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.realm.Realm;
+import io.realm.RealmModel;
+
+/**
+ * Hands out primary keys for the objects stored in the database without querying it.
+ * Ids are reserved in blocks of BLOCK_SIZE per class: the end of the block (high-water mark) is
+ * persisted as an IdSequence object inside the same transaction that uses the ids, and the ids of the
+ * block are then handed out from memory. Each class is seeded only once, the first time an id is
+ * requested for it, from its IdSequence object and from the largest id in its table.
+ * The blocks are handed out through a Store, the database in the app, so that they can be tested without it.
+ */
+public class IdSequenceAllocator {
+
+    static final long BLOCK_SIZE = 1000; //number of ids reserved at a time for each class
+
+    /**
+     * where the ids of each class are seeded from and the ends of their blocks persisted
+     */
+    interface Store {
+
+        /**
+         * @param className - simple name of the class
+         * @return first id after both the persisted high-water mark and the largest id taken by the class
+         */
+        long seed(String className);
+
+        /**
+         * persists the end of the block reserved for a class, with the objects that use its ids
+         * @param className - simple name of the class
+         * @param highWaterMark - last id of the block
+         */
+        void reserve(String className, long highWaterMark);
+    }
+
+    private final Map<String, long[]> blocks = new HashMap<>(); //class name -> {next id to hand out, last id reserved}
+
+    /**
+     * Must be called inside a write transaction, since reserving a new block updates the IdSequence of the class
+     * @param clazz - class of the object that needs an id
+     * @param realm - Realm object (in a write transaction)
+     * @return first non-taken id from a certain class
+     */
+    public synchronized long nextId(final Class<? extends RealmModel> clazz, final Realm realm)
+    {
+        if(!realm.isInTransaction())
+            throw new IllegalStateException("ids can only be reserved inside a write transaction");
+
+        return nextId(clazz.getSimpleName(), new Store() {
+            @Override
+            public long seed(String className) {
+                return IdSequenceAllocator.seed(clazz, realm);
+            }
+
+            @Override
+            public void reserve(String className, long highWaterMark) {
+                realm.insertOrUpdate(new IdSequence(className, highWaterMark));
+            }
+        });
+    }
+
+    /**
+     * @param className - simple name of the class of the object that needs an id
+     * @param store - seeds the class and persists its blocks
+     * @return first non-taken id of the class
+     */
+    synchronized long nextId(String className, Store store)
+    {
+        long[] block = blocks.get(className);
+        if(block == null)
+        {
+            long next = store.seed(className);
+            block = new long[]{next, next - 1};
+            blocks.put(className, block);
+        }
+
+        if(block[0] > block[1])
+        {
+            //block used up: reserve a new one and persist its end in this transaction
+            block[1] = block[0] + BLOCK_SIZE - 1;
+            store.reserve(className, block[1]);
+        }
+
+        return block[0]++;
+    }
+
+    /**
+     * forgets every block reserved, so that each class is seeded again from the database on its next id.
+     * Must be called when a transaction that may have reserved a block fails, as the IdSequence written was rolled back
+     */
+    public synchronized void invalidate()
+    {
+        blocks.clear();
+    }
+
+    /**
+     * @param clazz - class
+     * @param realm - Realm object
+     * @return first id after both the persisted high-water mark and the largest id in the table of the class
+     */
+    private static long seed(Class<? extends RealmModel> clazz, Realm realm)
+    {
+        long next = 1;
+        IdSequence sequence = realm.where(IdSequence.class).equalTo("className", clazz.getSimpleName()).findFirst();
+        if(sequence != null)
+            next = sequence.getHighWaterMark() + 1;
+
+        Number currentIdNum = realm.where(clazz).max("id");
+        if(currentIdNum != null && currentIdNum.longValue() + 1 > next)
+            next = currentIdNum.longValue() + 1;
+
+        return next;
+    }
+}
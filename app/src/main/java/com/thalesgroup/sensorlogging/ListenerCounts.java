@@ -0,0 +1,64 @@
+package com.thalesgroup.sensorlogging;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Number of listeners registered with the system by this process and not unregistered yet (broadcast receivers,
+ * sensor listeners, location listeners, phone state listeners and network callbacks), counted by the managers as they
+ * register and unregister them. Managers built again without the previous ones being destroyed show up as counts that
+ * grow.
+ * Thread-safe
+ */
+public final class ListenerCounts {
+
+    public static final int RECEIVER = 0;
+    public static final int SENSOR = 1;
+    public static final int LOCATION = 2;
+    public static final int PHONE = 3;
+    public static final int NETWORK = 4;
+
+    private static final AtomicIntegerArray counts = new AtomicIntegerArray(5);
+
+    private ListenerCounts() {
+    }
+
+    /**
+     * @param kind - RECEIVER, SENSOR, LOCATION, PHONE or NETWORK
+     */
+    public static void registered(int kind)
+    {
+        counts.incrementAndGet(kind);
+    }
+
+    /**
+     * @param kind - RECEIVER, SENSOR, LOCATION, PHONE or NETWORK
+     */
+    public static void unregistered(int kind)
+    {
+        counts.decrementAndGet(kind);
+    }
+
+    /**
+     * @param kind - RECEIVER, SENSOR, LOCATION, PHONE or NETWORK
+     * @return listeners of the kind registered and not unregistered yet
+     */
+    public static int get(int kind)
+    {
+        return counts.get(kind);
+    }
+
+    public static int getTotal()
+    {
+        int total = 0;
+        for (int kind = 0; kind < counts.length(); kind++)
+            total += counts.get(kind);
+        return total;
+    }
+
+    public static String describe()
+    {
+        return String.format(Locale.US, "%d receivers, %d sensor listeners, %d location listeners, %d phone state listeners, %d network callbacks",
+                get(RECEIVER), get(SENSOR), get(LOCATION), get(PHONE), get(NETWORK));
+    }
+}
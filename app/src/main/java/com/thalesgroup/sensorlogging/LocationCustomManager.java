@@ -2,15 +2,18 @@ package com.thalesgroup.sensorlogging;
 
 import android.Manifest;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.ListIterator;
@@ -27,9 +30,15 @@ import io.realm.RealmList;
  * Manages and performs scans on location from the various providers.
  * Does this automatically when relevant. This data can be extracted through the method
  * extractLocationList() and extractTotalDistance(). Requires the method setModeAndUpdate(int mode)
- * to be called every 10 secs or so to make the necessary updates.
+ * to be called after UPDATE_EVENTS and by getNextUpdateTime() to make the necessary updates.
+ * Its state is confined to the thread of the handler given to the constructor: the location updates are delivered
+ * there, and the methods must be called there too.
+ * Posts EVENT_LOCATION to its ControlLoop when a location is found.
+ * Its providers, idle state and last location are saved in a StateCheckpoint.
  */
-public class LocationCustomManager implements LocationListener {
+public class LocationCustomManager implements LocationListener, StateCheckpoint.Section {
+
+    public static final int UPDATE_EVENTS = ControlLoop.EVENT_MODE | ControlLoop.EVENT_LOCATION; //events after which setModeAndUpdate must be called
 
     private static final int CYCLE_DURATION = DataAcquisitionService.DELAY_DB; //duration of a cycle (1min) (milliseconds)
     private static final int NUMBER_CYCLES_SAVED = 3; //number of cycles saved in currentLocationList
@@ -55,81 +64,48 @@ public class LocationCustomManager implements LocationListener {
 
 
     private long timeGpsAuxiliaryProviderOn = 0;
-    private final static String SHARED_PREF_TIME_GPS_ON = "com.thalesgroup.sensorlogging.LocationCustomManager.timeGpsAuxiliaryProviderOn";
     private long timeGpsAuxiliaryProviderOff = 0;
-    private final static String SHARED_PREF_TIME_GPS_OFF = "com.thalesgroup.sensorlogging.LocationCustomManager.timeGpsAuxiliaryProviderOff";
     private boolean gpsAuxiliaryProviderEnabled = false;
-    private final static String SHARED_PREF_GPS_AP = "com.thalesgroup.sensorlogging.LocationCustomManager.gpsAuxiliaryProviderEnabled";
     private long timeNetworkAuxiliaryProviderOn = 0;
-    private final static String SHARED_PREF_TIME_NETWORK_ON = "com.thalesgroup.sensorlogging.LocationCustomManager.timeNetworkAuxiliaryProviderOn";
     private long timeNetworkAuxiliaryProviderOff = 0;
-    private final static String SHARED_PREF_TIME_NETWORK_OFF = "com.thalesgroup.sensorlogging.LocationCustomManager.timeNetworkAuxiliaryProviderOff";
     private boolean networkAuxiliaryProviderEnabled = false;
-    private final static String SHARED_PREF_NETWORK_AP = "com.thalesgroup.sensorlogging.LocationCustomManager.networkAuxiliaryProviderEnabled";
+    private long radioStarts = 0; //bursts of the auxiliary providers started since creation
     private long timeIdleStart = 0;
-    private final static String SHARED_PREF_TIME_IDLE_ON = "com.thalesgroup.sensorlogging.LocationCustomManager.timeIdleStart";
     private long timeIdleStop = 0;
-    private final static String SHARED_PREF_TIME_IDLE_OFF = "com.thalesgroup.sensorlogging.LocationCustomManager.timeIdleStop";
     private long timeNotInMotionStarted = 0;
-    private final static String SHARED_PREF_TIME_NOT_MOTION_START = "com.thalesgroup.sensorlogging.LocationCustomManager.timeNotInMotionStarted";
     private boolean idle = false;
-    private final static String SHARED_PREF_IDLE = "com.thalesgroup.sensorlogging.LocationCustomManager.idle";
     private long timeOfLastLocationUpdate = 0;
-    private final static String SHARED_PREF_TIME_LAST_LOCATION_UPDATE = "com.thalesgroup.sensorlogging.LocationCustomManager.timeOfLastLocationUpdate";
     private LocationCustom lastLocation = null;
-    private final static String SHARED_PREF_LAST_LOCATION_LATITUDE = "com.thalesgroup.sensorlogging.LocationCustomManager.lastLocation.latitude";
-    private final static String SHARED_PREF_LAST_LOCATION_LONGITUDE = "com.thalesgroup.sensorlogging.LocationCustomManager.lastLocation.longitude";
-    private final static String SHARED_PREF_LAST_LOCATION_SPEED = "com.thalesgroup.sensorlogging.LocationCustomManager.lastLocation.lastLocation.speed";
-    private final static String SHARED_PREF_LAST_LOCATION_ACCURACY = "com.thalesgroup.sensorlogging.LocationCustomManager.lastLocation.lastLocation.accuracy";
 
     private boolean moving = false; //indicates whether device is "travelling"
 
-    private final SharedPreferences sharedPref;
-
     private List<LocationCustom> currentLocationList = null; //list of locations since NUMBER_CYCLES_SAVED cycles ago
     private List<LocationCustom> currentLocationListToReturn = null; //list of locations since last extract
 
     private final LocationManager mLocationManager;
     private final WifiCustomManager mWifiCustomManager;
+    private final Handler handler; //handler of the thread on which the location updates are delivered
+    private boolean updatesRequested = false; //true if this is registered for location updates (see ListenerCounts)
+    private final ControlLoop controlLoop; //notified when a location is found, or null
 
 
 
     /**
      * Constructor
      * @param mContext - Application Context
-     * @param mWifiCustomManager - WifiCustomManager object
+     * @param mWifiCustomManager - WifiCustomManager object, used on the same thread
+     * @param handler - handler of the thread on which the manager is used
+     * @param controlLoop - loop notified when a location is found (running on the same thread), or null
+     * @param checkpoint - checkpoint the state is restored from and saved in
      */
-    public LocationCustomManager(Context mContext, WifiCustomManager mWifiCustomManager) {
+    public LocationCustomManager(Context mContext, WifiCustomManager mWifiCustomManager, Handler handler, @Nullable ControlLoop controlLoop, StateCheckpoint checkpoint) {
         this.mContext = mContext;
         this.mLocationManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
         this.mWifiCustomManager = mWifiCustomManager;
-        sharedPref = mContext.getSharedPreferences(DataAcquisitionService.SHARED_PREF_TAG, Context.MODE_PRIVATE);
-        //extract saved data from shared preferences
-        timeGpsAuxiliaryProviderOn = sharedPref.getLong(SHARED_PREF_TIME_GPS_ON, 0);
-        timeGpsAuxiliaryProviderOff = sharedPref.getLong(SHARED_PREF_TIME_GPS_OFF, 0);
-        gpsAuxiliaryProviderEnabled = sharedPref.getBoolean(SHARED_PREF_GPS_AP, false);
-        timeNetworkAuxiliaryProviderOn = sharedPref.getLong(SHARED_PREF_TIME_NETWORK_ON, 0);
-        timeNetworkAuxiliaryProviderOff = sharedPref.getLong(SHARED_PREF_TIME_NETWORK_OFF, 0);
-        networkAuxiliaryProviderEnabled = sharedPref.getBoolean(SHARED_PREF_NETWORK_AP, false);
-        timeIdleStart = sharedPref.getLong(SHARED_PREF_TIME_IDLE_ON, 0);
-        timeIdleStop = sharedPref.getLong(SHARED_PREF_TIME_IDLE_OFF, System.currentTimeMillis());
-        idle = sharedPref.getBoolean(SHARED_PREF_IDLE, false);
-        timeOfLastLocationUpdate = sharedPref.getLong(SHARED_PREF_TIME_LAST_LOCATION_UPDATE, 0);
-        timeNotInMotionStarted = sharedPref.getLong(SHARED_PREF_TIME_NOT_MOTION_START, 0);
-
-        float lastLocationLatitude = sharedPref.getFloat(SHARED_PREF_LAST_LOCATION_LATITUDE, Float.NaN);
-        float lastLocationLongitude = sharedPref.getFloat(SHARED_PREF_LAST_LOCATION_LONGITUDE, Float.NaN);
-        float lastLocationSpeed = sharedPref.getFloat(SHARED_PREF_LAST_LOCATION_SPEED, Float.NaN);
-        float lastLocationAccuracy = sharedPref.getFloat(SHARED_PREF_LAST_LOCATION_ACCURACY, Float.NaN);
-        if(!Float.isNaN(lastLocationLatitude) && !Float.isNaN(lastLocationLongitude) && !Float.isNaN(lastLocationSpeed) && !Float.isNaN(lastLocationAccuracy))
-        {
-            lastLocation = new LocationCustom();
-            lastLocation.setAccuracy(lastLocationAccuracy);
-            lastLocation.setSpeed(lastLocationSpeed);
-            lastLocation.setLatitude(lastLocationLatitude);
-            lastLocation.setLongitude(lastLocationLongitude);
-            lastLocation.setTimestamp(timeOfLastLocationUpdate);
-        }
+        this.handler = handler;
+        this.controlLoop = controlLoop;
+        timeIdleStop = System.currentTimeMillis();
+        checkpoint.add(StateCheckpoint.SECTION_LOCATION, this); //restore the state saved by a previous instance
     }
 
     /**
@@ -180,29 +156,93 @@ public class LocationCustomManager implements LocationListener {
     }
 
     /**
-     * updates in the shared preferences file the values of the variables stored
+     * @return instant by which setModeAndUpdate must be called again if none of UPDATE_EVENTS occurs: when the auxiliary
+     * providers, the idle state or the moving state are due to change (ms), or ControlLoop.NO_DEADLINE
      */
-    public void updateSharedPreferences() {
-
-        SharedPreferences.Editor editor = sharedPref.edit();
-        editor.putLong(SHARED_PREF_TIME_GPS_ON, timeGpsAuxiliaryProviderOn);
-        editor.putLong(SHARED_PREF_TIME_GPS_OFF, timeGpsAuxiliaryProviderOff);
-        editor.putLong(SHARED_PREF_TIME_NETWORK_ON, timeNetworkAuxiliaryProviderOn);
-        editor.putLong(SHARED_PREF_TIME_NETWORK_OFF, timeNetworkAuxiliaryProviderOff);
-        editor.putLong(SHARED_PREF_TIME_IDLE_ON, timeIdleStart);
-        editor.putLong(SHARED_PREF_TIME_IDLE_OFF, timeIdleStop);
-        editor.putLong(SHARED_PREF_TIME_LAST_LOCATION_UPDATE, timeOfLastLocationUpdate);
-        editor.putLong(SHARED_PREF_TIME_NOT_MOTION_START, timeNotInMotionStarted);
-        editor.putBoolean(SHARED_PREF_GPS_AP, gpsAuxiliaryProviderEnabled);
-        editor.putBoolean(SHARED_PREF_NETWORK_AP, networkAuxiliaryProviderEnabled);
-        editor.putBoolean(SHARED_PREF_IDLE, idle);
+    public long getNextUpdateTime()
+    {
+        long now = System.currentTimeMillis();
+        boolean high = mode == EnergyModes.MODE_HIGH_BATTERY_INMOTION || mode == EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION;
+        boolean notInMotion = mode == EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION || mode == EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION;
+        if(mode == -1)
+            return ControlLoop.NO_DEADLINE;
+        //while moving the auxiliary providers follow the locations received, and while the network auxiliary provider
+        //is on every update scans wifi networks: updated as often as possible
+        if(moving || (networkAuxiliaryProviderEnabled && !idle))
+            return now;
+        if(idle)
+            return notInMotion ? timeIdleStart + 55*CYCLE_DURATION + 1 : now;
+
+        long next = ControlLoop.NO_DEADLINE;
+        //auxiliary providers turned on after some time without location, and the gps one off after a while
+        long lastNetworkOrLocation = Math.max(timeNetworkAuxiliaryProviderOff, timeOfLastLocationUpdate);
+        next = Math.min(next, lastNetworkOrLocation + (high ? CYCLE_DURATION/2 : 3*CYCLE_DURATION/2) + 1);
+        if(gpsAuxiliaryProviderEnabled)
+            next = Math.min(next, timeGpsAuxiliaryProviderOn + CYCLE_DURATION/4 + 1);
+        else
+            next = Math.min(next, Math.max(timeGpsAuxiliaryProviderOff, timeOfLastLocationUpdate) + (high ? 3*CYCLE_DURATION/4 : 7*CYCLE_DURATION/4) + 1);
+        //idle state entered after some time not in motion
+        if(notInMotion)
+            next = Math.min(next, Math.max(timeIdleStop, timeNotInMotionStarted) + 5*CYCLE_DURATION + 1);
+        //moving state changed when the oldest locations are deleted
+        if(currentLocationList != null && !currentLocationList.isEmpty())
+            next = Math.min(next, currentLocationList.get(0).getTimestamp() + CYCLE_DURATION * NUMBER_CYCLES_SAVED + 1);
+        return next;
+    }
+
+    /**
+     * @return bursts of the network and gps auxiliary providers started since creation, each of which powers a radio up
+     */
+    public long getRadioStarts() {
+        return radioStarts;
+    }
+
+    @Override
+    public void saveState(DataOutputStream out) throws IOException {
+
+        out.writeLong(timeGpsAuxiliaryProviderOn);
+        out.writeLong(timeGpsAuxiliaryProviderOff);
+        out.writeLong(timeNetworkAuxiliaryProviderOn);
+        out.writeLong(timeNetworkAuxiliaryProviderOff);
+        out.writeLong(timeIdleStart);
+        out.writeLong(timeIdleStop);
+        out.writeLong(timeOfLastLocationUpdate);
+        out.writeLong(timeNotInMotionStarted);
+        out.writeBoolean(gpsAuxiliaryProviderEnabled);
+        out.writeBoolean(networkAuxiliaryProviderEnabled);
+        out.writeBoolean(idle);
+        out.writeBoolean(lastLocation != null);
         if(lastLocation != null) {
-            editor.putFloat(SHARED_PREF_LAST_LOCATION_SPEED, lastLocation.getSpeed());
-            editor.putFloat(SHARED_PREF_LAST_LOCATION_ACCURACY, lastLocation.getAccuracy());
-            editor.putFloat(SHARED_PREF_LAST_LOCATION_LONGITUDE, (float)lastLocation.getLongitude());
-            editor.putFloat(SHARED_PREF_LAST_LOCATION_LATITUDE, (float)lastLocation.getLatitude());
+            out.writeDouble(lastLocation.getLatitude());
+            out.writeDouble(lastLocation.getLongitude());
+            out.writeFloat(lastLocation.getSpeed());
+            out.writeFloat(lastLocation.getAccuracy());
+        }
+    }
+
+    @Override
+    public void restoreState(DataInputStream in) throws IOException {
+
+        timeGpsAuxiliaryProviderOn = in.readLong();
+        timeGpsAuxiliaryProviderOff = in.readLong();
+        timeNetworkAuxiliaryProviderOn = in.readLong();
+        timeNetworkAuxiliaryProviderOff = in.readLong();
+        timeIdleStart = in.readLong();
+        timeIdleStop = in.readLong();
+        timeOfLastLocationUpdate = in.readLong();
+        timeNotInMotionStarted = in.readLong();
+        gpsAuxiliaryProviderEnabled = in.readBoolean();
+        networkAuxiliaryProviderEnabled = in.readBoolean();
+        idle = in.readBoolean();
+        if(in.readBoolean())
+        {
+            lastLocation = new LocationCustom();
+            lastLocation.setLatitude(in.readDouble());
+            lastLocation.setLongitude(in.readDouble());
+            lastLocation.setSpeed(in.readFloat());
+            lastLocation.setAccuracy(in.readFloat());
+            lastLocation.setTimestamp(timeOfLastLocationUpdate);
         }
-        editor.apply();
     }
 
 
@@ -215,43 +255,40 @@ public class LocationCustomManager implements LocationListener {
         //when idle, all updates on location are dismissed
         if(idle)
         {
-            mLocationManager.removeUpdates(this);
+            disableLocationUpdates();
             return;
         }
 
         if(ContextCompat.checkSelfPermission(mContext, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED)
         {
-            mLocationManager.removeUpdates(this);
+            disableLocationUpdates();
             if(mLocationManager.isProviderEnabled(LocationManager.PASSIVE_PROVIDER))
             {
-                mLocationManager.requestLocationUpdates(
-                        LocationManager.PASSIVE_PROVIDER, min_time_location, MIN_DISTANCE_LOCATION, this);
+                requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, min_time_location);
                 primaryLocationProvider = LocationManager.PASSIVE_PROVIDER;
             }
             else if(mLocationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER))
             {
-                mLocationManager.requestLocationUpdates(
-                        LocationManager.NETWORK_PROVIDER, min_time_location, MIN_DISTANCE_LOCATION, this);
+                requestLocationUpdates(LocationManager.NETWORK_PROVIDER, min_time_location);
                 primaryLocationProvider = LocationManager.NETWORK_PROVIDER;
             }
             else if(mLocationManager.isProviderEnabled(LocationManager.GPS_PROVIDER))
             {
-                mLocationManager.requestLocationUpdates(
-                        LocationManager.GPS_PROVIDER, min_time_location, MIN_DISTANCE_LOCATION, this);
+                requestLocationUpdates(LocationManager.GPS_PROVIDER, min_time_location);
                 primaryLocationProvider = LocationManager.GPS_PROVIDER;
             }
 
             //auxiliary providers
             if(networkAuxiliaryProviderEnabled && mLocationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER))
             {
-                mLocationManager.requestLocationUpdates(
-                        LocationManager.NETWORK_PROVIDER, 0, MIN_DISTANCE_LOCATION, this);
+                requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0);
+                radioStarts++;
             }
 
             if(gpsAuxiliaryProviderEnabled && mLocationManager.isProviderEnabled(LocationManager.GPS_PROVIDER))
             {
-                mLocationManager.requestLocationUpdates(
-                        LocationManager.GPS_PROVIDER, 0, MIN_DISTANCE_LOCATION, this);
+                requestLocationUpdates(LocationManager.GPS_PROVIDER, 0);
+                radioStarts++;
             }
 
 
@@ -590,6 +627,25 @@ public class LocationCustomManager implements LocationListener {
 
     private void disableLocationUpdates() {
         mLocationManager.removeUpdates(this);
+        if(updatesRequested)
+        {
+            updatesRequested = false;
+            ListenerCounts.unregistered(ListenerCounts.LOCATION);
+        }
+    }
+
+    /**
+     * requests location updates from a provider, delivered on the thread of the handler
+     * @param provider - LocationManager provider
+     * @param minTime - minimum interval of time between updates (ms)
+     */
+    private void requestLocationUpdates(String provider, long minTime) {
+        mLocationManager.requestLocationUpdates(provider, minTime, MIN_DISTANCE_LOCATION, this, handler.getLooper());
+        if(!updatesRequested)
+        {
+            updatesRequested = true;
+            ListenerCounts.registered(ListenerCounts.LOCATION);
+        }
     }
 
 
@@ -719,6 +775,8 @@ public class LocationCustomManager implements LocationListener {
             if(!currentLocationListToReturn.contains(locationCustom))
                 currentLocationListToReturn.add(locationCustom);
 
+            if(controlLoop != null)
+                controlLoop.post(ControlLoop.EVENT_LOCATION);
         }
 
     }
@@ -6,6 +6,8 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 
 import java.util.ArrayList;
@@ -20,22 +22,43 @@ import java.util.List;
  * device inclination, acceleration, velocity.
  * Does this automatically. This data can be extracted through the method extractMotionValues().
  * Requires the method setModeAndUpdate(int mode)
- * to be called every 10 secs or so to make the necessary updates.
+ * to be called when the energy mode changes (UPDATE_EVENTS) to make the necessary updates.
+ * Its state is confined to the thread of the handler given to the constructor: the sensor events are delivered there,
+ * and the methods must be called there too.
+ * Posts EVENT_MOTION to its ControlLoop as soon as motion starts, so that the energy mode is re-evaluated right away
+ * instead of at the next update.
+ * The delay between sensor events follows the variations of the acceleration and inclination, within the bounds of
+ * the energy mode (see SamplingRateController).
  */
 public class MotionCustomManager implements SensorEventListener {
 
+    public static final int UPDATE_EVENTS = ControlLoop.EVENT_MODE; //events after which setModeAndUpdate must be called
+
     private static final int LIN_ACC = 1;
     private static final int GRAV_and_ACC = 2;
     private static final int ACC = 3;
     private static final int NONE = 8;
     private static final int MIN_INCLINATION_FOR_MOTION = 3; //degrees
+    private static final int MAX_RATE_CHANGES_PER_MINUTE = SamplingRateController.DEFAULT_MAX_CHANGES_PER_MINUTE; //re-registrations of the sensors decided from the samples
 
 
 
     private final int AccelerationAndGravityAcquisitionMode;
+    private final boolean motionFromInclination; //true if motion is detected from the inclination (no significant motion nor motion detect sensor)
     private final SensorManager mSensorManager;
+    private final Handler handler; //handler of the thread on which the sensor events are delivered
+    private final ControlLoop controlLoop; //notified when motion starts, or null
     private int mode; //EnergyMode
-    private int sensors_delay; //delay between sensor updates (us)
+    private final SamplingRateController rateController = new SamplingRateController(Clock.SYSTEM, MAX_RATE_CHANGES_PER_MINUTE); //decides the delay between sensor updates
+    private boolean reRegisterPosted = false; //true if the sensors are to be registered again with a new delay
+    private final Runnable reRegister = new Runnable() {
+        @Override
+        public void run() {
+            reRegisterPosted = false;
+            if(listenerRegistered)
+                enableMotionSensors();
+        }
+    };
     private float[] currentAcceleration = new float[3]; //acceleration on x, y and z axis
     private float[] currentGravity = new float[3]; //gravity on x, y and z axis
     private float[] currentVelocity = new float[3]; //velocity on x, y and z axis
@@ -44,20 +67,29 @@ public class MotionCustomManager implements SensorEventListener {
     private boolean motionDetectRecent = false;
 
     private List<float[]> inclinationList = new ArrayList<>();
-    private List<float[]> inclinationListRecent = new ArrayList<>();
+    private final float[] recentInclinationMin = {Float.MAX_VALUE, Float.MAX_VALUE}; //since the last extractInMotionRecent (degrees)
+    private final float[] recentInclinationMax = {-Float.MAX_VALUE, -Float.MAX_VALUE}; //since the last extractInMotionRecent (degrees)
+    private boolean motionPosted = false; //true if motion was posted to the control loop since the last extractInMotionRecent
     private List<float[]> accelerationList = new ArrayList<>();
     private List<float[]> velocityList = new ArrayList<>();
 
     private boolean hasBeenInMotion = false;
+    private boolean listenerRegistered = false; //true if this is registered for sensor events (see ListenerCounts)
+    private long firstSampleTime = 0; //instant of the first sensor event (ms since boot, SystemClock.elapsedRealtime), 0 until then
 
 
     /**
      * Constructor
      * @param mContext Application Context
+     * @param handler - handler of the thread on which the manager is used
+     * @param controlLoop - loop notified when motion starts (running on the same thread), or null
      */
-    public MotionCustomManager(Context mContext) {
+    public MotionCustomManager(Context mContext, Handler handler, @Nullable ControlLoop controlLoop) {
         this.mSensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
+        this.handler = handler;
+        this.controlLoop = controlLoop;
         this.AccelerationAndGravityAcquisitionMode = determineAccelerationAndGravityAcquisitionMode();
+        this.motionFromInclination = getSensor(Sensor.TYPE_SIGNIFICANT_MOTION) == null && getSensor(Sensor.TYPE_MOTION_DETECT) == null;
     }
 
     /**
@@ -230,6 +262,13 @@ public class MotionCustomManager implements SensorEventListener {
     }
 
 
+    /**
+     * @return instant of the first sensor event (ms since boot, SystemClock.elapsedRealtime), 0 until then
+     */
+    public long getFirstSampleTime() {
+        return firstSampleTime;
+    }
+
     /**
      * Determines whether the device is in motion (which here means not sitting on a table)
      * False-positives (device being still and method says it is in motion) is more common than
@@ -248,17 +287,21 @@ public class MotionCustomManager implements SensorEventListener {
         {
             ret = motionDetectRecent;
         }
-        else if(inclinationListRecent != null)
+        else
         {
-            //if device doesn't have those sensors, return is determined by whether in the inclination array the maximum and minimum values differ by more
+            //if device doesn't have those sensors, return is determined by whether the maximum and minimum inclinations differ by more
             //than a certain threshold
-            ret = Math.abs(MathExtra.listMax(inclinationListRecent, 0) - MathExtra.listMin(inclinationListRecent, 0)) > MIN_INCLINATION_FOR_MOTION
-                    || Math.abs(MathExtra.listMax(inclinationListRecent, 1) - MathExtra.listMin(inclinationListRecent, 1)) > MIN_INCLINATION_FOR_MOTION;
+            ret = isInclinationChangingRecent();
         }
 
         motionDetectRecent = false;
         significantMotionRecent = false;
-        inclinationListRecent = new ArrayList<>();
+        for(int i = 0; i < 2; i++)
+        {
+            recentInclinationMin[i] = Float.MAX_VALUE;
+            recentInclinationMax[i] = -Float.MAX_VALUE;
+        }
+        motionPosted = false;
 
         if(ret)
             hasBeenInMotion = true;
@@ -269,34 +312,60 @@ public class MotionCustomManager implements SensorEventListener {
 
 
 
+    /**
+     * @return true if the maximum and minimum inclinations since the last extractInMotionRecent differ by more than
+     * MIN_INCLINATION_FOR_MOTION on an axis
+     */
+    private boolean isInclinationChangingRecent()
+    {
+        return Math.abs(recentInclinationMax[0] - recentInclinationMin[0]) > MIN_INCLINATION_FOR_MOTION
+                || Math.abs(recentInclinationMax[1] - recentInclinationMin[1]) > MIN_INCLINATION_FOR_MOTION;
+    }
+
+    /**
+     * posts EVENT_MOTION to the control loop, once until the next extractInMotionRecent
+     */
+    private void motionStarted()
+    {
+        if(motionPosted || controlLoop == null)
+            return;
+        motionPosted = true;
+        controlLoop.post(ControlLoop.EVENT_MOTION);
+    }
+
     /**
      * enables the motion sensors necessary based on the AccelerationAndGravityAcquisitionMode
      */
     private void enableMotionSensors()
     {
         mSensorManager.unregisterListener(this);
+        if(!listenerRegistered)
+        {
+            listenerRegistered = true;
+            ListenerCounts.registered(ListenerCounts.SENSOR);
+        }
 
         if(getSensor(Sensor.TYPE_ACCELEROMETER) != null)
-            mSensorManager.registerListener(this, getSensor(Sensor.TYPE_ACCELEROMETER), sensors_delay);
+            mSensorManager.registerListener(this, getSensor(Sensor.TYPE_ACCELEROMETER), rateController.getDelay(), handler);
 
         switch (AccelerationAndGravityAcquisitionMode)
         {
             case LIN_ACC:
-                mSensorManager.registerListener(this, getSensor(Sensor.TYPE_LINEAR_ACCELERATION), sensors_delay);
+                mSensorManager.registerListener(this, getSensor(Sensor.TYPE_LINEAR_ACCELERATION), rateController.getDelay(), handler);
                 break;
             case GRAV_and_ACC:
-                mSensorManager.registerListener(this, getSensor(Sensor.TYPE_GRAVITY), sensors_delay);
+                mSensorManager.registerListener(this, getSensor(Sensor.TYPE_GRAVITY), rateController.getDelay(), handler);
                 break;
         }
 
         if(getSensor(Sensor.TYPE_SIGNIFICANT_MOTION) != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
         {
-            mSensorManager.registerListener(this, getSensor(Sensor.TYPE_SIGNIFICANT_MOTION), sensors_delay);
+            mSensorManager.registerListener(this, getSensor(Sensor.TYPE_SIGNIFICANT_MOTION), rateController.getDelay(), handler);
 
         }
         else if(getSensor(Sensor.TYPE_MOTION_DETECT) != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
         {
-            mSensorManager.registerListener(this, getSensor(Sensor.TYPE_MOTION_DETECT), sensors_delay);
+            mSensorManager.registerListener(this, getSensor(Sensor.TYPE_MOTION_DETECT), rateController.getDelay(), handler);
         }
 
     }
@@ -355,43 +424,54 @@ public class MotionCustomManager implements SensorEventListener {
     }
 
     /**
-     * Update energy mode and the sensor delays accordingly
+     * Update energy mode and the sensor delays accordingly: the sensors are only registered again if the current delay
+     * is not within the bounds of the new mode
      * @param mode - EnergyMode
      */
     public void setModeAndUpdate(int mode) {
 
         boolean update = false;
         if (this.mode != mode && (mode == EnergyModes.MODE_HIGH_BATTERY_INMOTION || mode == EnergyModes.MODE_LOW_BATTERY_INMOTION || mode == EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION || mode == EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION)) {
-            switch (mode)
-            {
-                case EnergyModes.MODE_HIGH_BATTERY_INMOTION:
-                    sensors_delay = 200000; //.2s
-                    break;
-                case EnergyModes.MODE_LOW_BATTERY_INMOTION:
-                    sensors_delay = 500000; //.5s
-                    break;
-                case EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION:
-                    sensors_delay = 1000000;//1s
-                    break;
-                case EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION:
-                    sensors_delay = 2000000;//2s
-                    break;
-            }
+            update = rateController.setMode(mode) || !listenerRegistered;
             this.mode = mode;
-            update = true;
         }
 
         if(update)
             enableMotionSensors();
     }
 
+    /**
+     * @return controller of the delay between sensor events
+     */
+    public SamplingRateController getSamplingRateController() {
+        return rateController;
+    }
+
+    /**
+     * registers the sensors again with the delay of the rate controller, once the current event is handled
+     */
+    private void postReRegister()
+    {
+        if(reRegisterPosted)
+            return;
+        reRegisterPosted = true;
+        handler.post(reRegister);
+    }
+
     public void onDestroy()
     {
         disableSensors();
     }
 
     private void disableSensors() {
+        handler.removeCallbacks(reRegister);
+        reRegisterPosted = false;
         mSensorManager.unregisterListener(this);
+        if(listenerRegistered)
+        {
+            listenerRegistered = false;
+            ListenerCounts.unregistered(ListenerCounts.SENSOR);
+        }
     }
 
 
@@ -403,6 +483,8 @@ public class MotionCustomManager implements SensorEventListener {
      */
     @Override
     public void onSensorChanged(SensorEvent sensorEvent) {
+        if(firstSampleTime == 0)
+            firstSampleTime = SystemClock.elapsedRealtime();
 
         if(sensorEvent.sensor.getType() == Sensor.TYPE_ACCELEROMETER)
         {
@@ -411,8 +493,15 @@ public class MotionCustomManager implements SensorEventListener {
             float[] currentInclination = calculateNewInclination(currentAccelerometerRaw);
             if(inclinationList != null)
                 inclinationList.add(currentInclination);
-            if(inclinationListRecent != null)
-                inclinationListRecent.add(currentInclination);
+            for(int i = 0; i < 2; i++)
+            {
+                recentInclinationMin[i] = Math.min(recentInclinationMin[i], currentInclination[i]);
+                recentInclinationMax[i] = Math.max(recentInclinationMax[i], currentInclination[i]);
+            }
+            if(motionFromInclination && isInclinationChangingRecent())
+                motionStarted();
+            if(rateController.addInclination(currentInclination))
+                postReRegister();
 
         }
 
@@ -437,6 +526,8 @@ public class MotionCustomManager implements SensorEventListener {
                 currentAcceleration = newAcceleration;
                 if(accelerationList != null)
                     accelerationList.add(currentAcceleration);
+                if(rateController.addAcceleration(MathExtra.vectorModule(currentAcceleration)))
+                    postReRegister();
                 float[] newVelocity = calculateNewVelocity(instantOfLastAccelerationUpdateNanoseconds, currentAcceleration, currentVelocity);
                 if(newVelocity != null)
                 {
@@ -452,11 +543,13 @@ public class MotionCustomManager implements SensorEventListener {
         if(sensorEvent.sensor.getType() == Sensor.TYPE_SIGNIFICANT_MOTION)
         {
             significantMotionRecent = true;
+            motionStarted();
         }
 
         if(sensorEvent.sensor.getType() == Sensor.TYPE_MOTION_DETECT)
         {
             motionDetectRecent = true;
+            motionStarted();
         }
 
 
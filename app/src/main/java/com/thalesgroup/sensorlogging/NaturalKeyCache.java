@@ -0,0 +1,166 @@
+package com.thalesgroup.sensorlogging;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.realm.Realm;
+import io.realm.RealmModel;
+import io.realm.RealmResults;
+
+/**
+ * Keeps in memory the id of every object stored once in the database (wifi devices, wifi networks and
+ * bluetooth devices), indexed by its natural key, so that new entries can reuse those objects without
+ * querying the database for each one of them.
+ * The cache is warmed from the database on the first transaction. Ids given to new objects are only made
+ * permanent by commit(), after the transaction that inserts them succeeds, and are dropped by invalidate() otherwise
+ */
+public class NaturalKeyCache {
+
+    private final Map<String, Map<String, Long>> committedIds = new HashMap<>(); //class name -> (natural key -> id) of the objects in the database
+    private final Map<String, Map<String, Long>> pendingIds = new HashMap<>(); //class name -> (natural key -> id) of the objects inserted by the current transaction
+    private boolean warm = false;
+
+    /**
+     * builds a natural key from the values of the fields that identify an object. Each value is prefixed
+     * by its length, so that two different lists of values never result in the same key
+     * @param values - values of the fields (may be null)
+     * @return natural key
+     */
+    public static String buildKey(String... values)
+    {
+        StringBuilder key = new StringBuilder();
+        for(String value:values)
+        {
+            if(value == null)
+                key.append('-');
+            else
+                key.append(value.length()).append(':').append(value);
+            key.append('|');
+        }
+        return key.toString();
+    }
+
+    /**
+     * sets the id of every object in the list: objects already in the database (or earlier in the list) get
+     * the id they have there, the other ones get a new id. Must be called inside a write transaction
+     * @param realm - Realm object (in a write transaction)
+     * @param clazz - class of the objects
+     * @param objects - list of objects to be inserted (may be null)
+     * @param idAllocator - allocator for the ids of new objects
+     */
+    public synchronized <E extends RealmModel & NaturalKeyObject> void assignIds(Realm realm, Class<E> clazz, List<E> objects, IdSequenceAllocator idAllocator)
+    {
+        if(objects == null || objects.isEmpty())
+            return;
+
+        if(!warm)
+            warm(realm);
+
+        Map<String, Long> committed = idsOf(committedIds, clazz);
+        Map<String, Long> pending = idsOf(pendingIds, clazz);
+
+        //objects missing from the cache are looked for in the database all at once
+        List<String> missingKeys = new ArrayList<>(); //in the order of the objects
+        Set<String> missing = new HashSet<>(); //the same keys, to tell the ones already found
+        for(E object:objects)
+        {
+            String key = object.getNaturalKey();
+            if(!committed.containsKey(key) && !pending.containsKey(key) && missing.add(key))
+                missingKeys.add(key);
+        }
+        if(!missingKeys.isEmpty())
+        {
+            RealmResults<E> results = realm.where(clazz).in("naturalKey", missingKeys.toArray(new String[missingKeys.size()])).findAll();
+            for(E result:results)
+                committed.put(result.getNaturalKey(), result.getId());
+        }
+
+        for(E object:objects)
+        {
+            String key = object.getNaturalKey();
+            Long id = committed.get(key);
+            if(id == null)
+                id = pending.get(key);
+            if(id == null)
+            {
+                id = idAllocator.nextId(clazz, realm);
+                pending.put(key, id);
+            }
+            object.setId(id);
+        }
+    }
+
+    /**
+     * makes permanent the ids given to new objects, to be called once the transaction that inserted them succeeds
+     */
+    public synchronized void commit()
+    {
+        for(Map.Entry<String, Map<String, Long>> pending:pendingIds.entrySet())
+            idsOf(committedIds, pending.getKey()).putAll(pending.getValue());
+        pendingIds.clear();
+    }
+
+    /**
+     * forgets every id, so that the cache is warmed again from the database on the next transaction.
+     * To be called when a transaction that used the cache fails
+     */
+    public synchronized void invalidate()
+    {
+        committedIds.clear();
+        pendingIds.clear();
+        warm = false;
+    }
+
+    /**
+     * @return number of ids kept in memory
+     */
+    public synchronized int size()
+    {
+        int size = 0;
+        for(Map<String, Long> ids:committedIds.values())
+            size += ids.size();
+        return size;
+    }
+
+    /**
+     * loads the natural keys and ids of every object stored once in the database
+     * @param realm - Realm object
+     */
+    private void warm(Realm realm)
+    {
+        warmClass(realm, WifiDeviceCustom.class);
+        warmClass(realm, WifiNetworkCustom.class);
+        warmClass(realm, BluetoothDeviceCustom.class);
+        warm = true;
+    }
+
+    private <E extends RealmModel & NaturalKeyObject> void warmClass(Realm realm, Class<E> clazz)
+    {
+        Map<String, Long> committed = idsOf(committedIds, clazz);
+        for(E object:realm.where(clazz).findAll())
+        {
+            if(!committed.containsKey(object.getNaturalKey()))
+                committed.put(object.getNaturalKey(), object.getId());
+        }
+    }
+
+    private static Map<String, Long> idsOf(Map<String, Map<String, Long>> idsPerClass, Class<?> clazz)
+    {
+        return idsOf(idsPerClass, clazz.getSimpleName());
+    }
+
+    private static Map<String, Long> idsOf(Map<String, Map<String, Long>> idsPerClass, String className)
+    {
+        Map<String, Long> ids = idsPerClass.get(className);
+        if(ids == null)
+        {
+            ids = new HashMap<>();
+            idsPerClass.put(className, ids);
+        }
+        return ids;
+    }
+}
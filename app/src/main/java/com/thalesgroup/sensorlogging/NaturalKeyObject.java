@@ -0,0 +1,17 @@
+package com.thalesgroup.sensorlogging;
+
+/**
+ * object stored in the database only once, identified by a natural key built from its fields
+ * (e.g. ip, mac address and network SSID of a wifi device) besides its id
+ */
+public interface NaturalKeyObject {
+
+    /**
+     * @return key that is equal for two objects if and only if they represent the same thing
+     */
+    String getNaturalKey();
+
+    long getId();
+
+    void setId(long id);
+}
@@ -0,0 +1,130 @@
+package com.thalesgroup.sensorlogging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Preset dictionary of the compression (deflate) of the entries sent to the server: the last bytes of a recent payload,
+ * which hold the field names, SSIDs, BSSIDs, Bluetooth names and providers the next payloads repeat, so that a
+ * compressed stream finds them from its first bytes instead of learning them again.
+ * A dictionary is identified by its Adler-32 checksum, which zlib writes in the header of the data compressed with it
+ * (DICTID), so that the receiver knows which dictionary to inflate the data with
+ */
+public class PresetDictionary {
+
+    public static final int MAX_SIZE = 32*1024; //window of deflate: older bytes would never be referenced (bytes)
+    public static final String CONTENT_TYPE = "application/vnd.sensorlogging.dictionary"; //of a dictionary posted to the server
+
+    private final byte[] bytes;
+    private final long id;
+
+    /**
+     * Constructor
+     * @param bytes - content of the dictionary, the most frequent strings preferably last (up to MAX_SIZE bytes)
+     */
+    public PresetDictionary(byte[] bytes) {
+        this.bytes = bytes;
+        Adler32 adler = new Adler32();
+        adler.update(bytes, 0, bytes.length);
+        this.id = adler.getValue();
+    }
+
+    /**
+     * @return id of the dictionary (its Adler-32 checksum)
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return content of the dictionary (not to be modified)
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * starts compressing with the dictionary, in the zlib format
+     * @param out - output of the compressed data, which is closed with the stream returned
+     * @param deflater - deflater, reset and reused (its resources are not released when the stream is closed)
+     * @return stream compressing what is written to it
+     */
+    public OutputStream compress(OutputStream out, Deflater deflater)
+    {
+        deflater.reset();
+        deflater.setDictionary(bytes);
+        return new DeflaterOutputStream(out, deflater, 8*1024);
+    }
+
+    /**
+     * writes to an output while keeping the last MAX_SIZE bytes written, from which a dictionary is built
+     */
+    public static class Sampler extends OutputStream {
+        private final OutputStream out;
+        private final byte[] ring = new byte[MAX_SIZE];
+        private long written = 0;
+
+        /**
+         * Constructor
+         * @param out - output to which the bytes are written
+         */
+        public Sampler(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ring[(int) (written++ % MAX_SIZE)] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if(len > MAX_SIZE)
+            {
+                off += len - MAX_SIZE;
+                written += len - MAX_SIZE;
+                len = MAX_SIZE;
+            }
+            while(len > 0)
+            {
+                int position = (int) (written % MAX_SIZE);
+                int part = Math.min(len, MAX_SIZE - position);
+                System.arraycopy(b, off, ring, position, part);
+                off += part;
+                len -= part;
+                written += part;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        /**
+         * @return dictionary of the last bytes written, in the order they were written, or null if none was
+         */
+        public PresetDictionary build()
+        {
+            if(written == 0)
+                return null;
+            int size = (int) Math.min(written, MAX_SIZE);
+            byte[] bytes = new byte[size];
+            int start = (int) ((written - size) % MAX_SIZE);
+            int first = Math.min(size, MAX_SIZE - start);
+            System.arraycopy(ring, start, bytes, 0, first);
+            System.arraycopy(ring, 0, bytes, first, size - first);
+            return new PresetDictionary(bytes);
+        }
+    }
+}
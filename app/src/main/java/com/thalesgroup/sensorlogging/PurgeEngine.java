@@ -0,0 +1,135 @@
+package com.thalesgroup.sensorlogging;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * Deletes entries from a SensorsEntryStorage in chunks of bounded size, each one deleted on its own (in a short
+ * transaction) and run as a separate task on the thread of the storage, so that entries committed meanwhile never
+ * wait for the purge of a long backlog to finish.
+ * Must only be used from the thread of the storage
+ */
+public class PurgeEngine {
+
+    private static final String LOG_TAG = "PurgeEngine";
+    public static final int DEFAULT_CHUNK_SIZE = 200; //entries deleted per chunk
+
+    private final Executor executor; //runs tasks on the thread of the storage
+    private final int chunkSize;
+    private SensorsEntryStorage storage;
+    private boolean uploadedRequested = false; //true if the entries already uploaded are to be deleted
+    private long olderThan = Long.MIN_VALUE; //entries which ended before this instant are to be deleted (ms)
+    private boolean scheduled = false; //true if the next chunk is waiting to run
+    private boolean cancelled = false;
+    private PurgeResult current = new PurgeResult(); //reclaimed by the purge in progress
+    private final PurgeResult total = new PurgeResult(); //reclaimed by every purge
+
+    private final Runnable chunkRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scheduled = false;
+            if(!cancelled)
+                purgeChunk();
+        }
+    };
+
+    /**
+     * Constructor
+     * @param executor - runs tasks on the thread of the storage
+     * @param chunkSize - maximum number of entries deleted per chunk
+     */
+    public PurgeEngine(Executor executor, int chunkSize) {
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * starts deleting the entries already uploaded
+     * @param storage - open storage
+     */
+    public void purgeUploaded(SensorsEntryStorage storage)
+    {
+        this.storage = storage;
+        uploadedRequested = true;
+        schedule();
+    }
+
+    /**
+     * starts deleting the entries which ended before an instant
+     * @param storage - open storage
+     * @param timestamp - instant (ms)
+     */
+    public void purgeOlderThan(SensorsEntryStorage storage, long timestamp)
+    {
+        this.storage = storage;
+        olderThan = Math.max(olderThan, timestamp);
+        schedule();
+    }
+
+    /**
+     * stops the purge in progress for good (to be called before the storage is closed)
+     */
+    public void cancel()
+    {
+        cancelled = true;
+        storage = null;
+    }
+
+    /**
+     * @return rows and space reclaimed by every purge so far
+     */
+    public PurgeResult getTotal() {
+        return total;
+    }
+
+    /**
+     * @return true if there are chunks still to be deleted
+     */
+    public boolean isRunning() {
+        return scheduled;
+    }
+
+    private void schedule()
+    {
+        if(scheduled || cancelled)
+            return;
+        scheduled = true;
+        executor.execute(chunkRunnable);
+    }
+
+    private void purgeChunk()
+    {
+        try {
+            if(olderThan != Long.MIN_VALUE)
+            {
+                PurgeResult result = storage.purgeOlderThan(olderThan, chunkSize);
+                current.add(result);
+                if(result.getEntries() == 0)
+                    olderThan = Long.MIN_VALUE;
+            }
+            else if(uploadedRequested)
+            {
+                PurgeResult result = storage.purgeUploaded(chunkSize);
+                current.add(result);
+                if(result.getEntries() == 0)
+                    uploadedRequested = false;
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to delete entries", e);
+            olderThan = Long.MIN_VALUE;
+            uploadedRequested = false;
+        }
+
+        if(olderThan != Long.MIN_VALUE || uploadedRequested)
+        {
+            schedule(); //next chunk, after whatever was posted meanwhile
+            return;
+        }
+        if(current.getEntries() > 0)
+            Log.i(LOG_TAG, "Purge finished: " + current);
+        total.add(current);
+        current = new PurgeResult();
+    }
+}
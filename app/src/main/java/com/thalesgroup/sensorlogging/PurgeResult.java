@@ -0,0 +1,67 @@
+package com.thalesgroup.sensorlogging;
+
+/**
+ * Rows and space reclaimed by deleting entries from a SensorsEntryStorage
+ */
+public class PurgeResult {
+
+    private int entries = 0; //entries deleted
+    private int motionValues = 0; //motion values deleted with them
+    private int locations = 0; //locations deleted with them
+    private long bytes = 0; //space reclaimed (estimated, for storages that cannot measure it) (bytes)
+
+    public PurgeResult() {
+    }
+
+    public PurgeResult(int entries, int motionValues, int locations, long bytes) {
+        this.entries = entries;
+        this.motionValues = motionValues;
+        this.locations = locations;
+        this.bytes = bytes;
+    }
+
+    /**
+     * adds the rows and space reclaimed by another purge to this one
+     * @param other - result of the other purge
+     */
+    public void add(PurgeResult other)
+    {
+        entries += other.entries;
+        motionValues += other.motionValues;
+        locations += other.locations;
+        bytes += other.bytes;
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    public int getMotionValues() {
+        return motionValues;
+    }
+
+    public int getLocations() {
+        return locations;
+    }
+
+    /**
+     * @return total rows deleted
+     */
+    public int getRows() {
+        return entries + motionValues + locations;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "PurgeResult{" +
+                "entries=" + entries +
+                ", motionValues=" + motionValues +
+                ", locations=" + locations +
+                ", bytes=" + bytes +
+                '}';
+    }
+}
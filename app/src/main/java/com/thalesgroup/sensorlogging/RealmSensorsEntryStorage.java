@@ -0,0 +1,364 @@
+package com.thalesgroup.sensorlogging;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
+import io.realm.RealmList;
+import io.realm.RealmObject;
+import io.realm.RealmResults;
+
+/**
+ * SensorsEntryStorage backed by the Realm database.
+ * Objects stored only once (wifi devices, wifi networks and bluetooth devices) are shared by the entries that contain them
+ */
+public class RealmSensorsEntryStorage implements SensorsEntryStorage {
+
+    //estimated space taken in the database by each object, Realm does not report the space freed by deleting rows (bytes)
+    private static final int ENTRY_BYTES = 112; //without its strings and links
+    private static final int MOTION_VALUES_BYTES = 48;
+    private static final int LOCATION_BYTES = 64; //without its provider
+    private static final int LINK_BYTES = 8; //per object in a list
+
+    private final RealmConfiguration config;
+    private final IdSequenceAllocator idAllocator = new IdSequenceAllocator(); //hands out the ids of new objects in the database
+    private final NaturalKeyCache naturalKeyCache = new NaturalKeyCache(); //ids of the wifi devices, wifi networks and bluetooth devices in the database
+    private final RollupAggregator rollupAggregator = new RollupAggregator(); //rollups of the buckets being filled
+    private Realm realm;
+
+    /**
+     * Constructor
+     * @param config - configuration of the database
+     */
+    public RealmSensorsEntryStorage(RealmConfiguration config) {
+        this.config = config;
+    }
+
+    @Override
+    public void open() throws IOException {
+        try {
+            realm = Realm.getInstance(config);
+            //entries stored before rollups existed are folded once
+            if(realm.where(SensorsRollup.class).count() == 0 && realm.where(SensorsEntry.class).count() > 0)
+                realm.executeTransaction(new Realm.Transaction() {
+                    @Override
+                    public void execute(Realm realm) {
+                        realm.insertOrUpdate(rollupAggregator.fold(realm.where(SensorsEntry.class).sort("id").findAll(), new RollupAggregator.Loader() {
+                            @Override
+                            public SensorsRollup load(String key) {
+                                return null;
+                            }
+                        }));
+                    }
+                });
+        } catch (RuntimeException e) {
+            rollupAggregator.invalidate();
+            throw new IOException("Failed to open database", e);
+        }
+    }
+
+    @Override
+    public void append(final List<SensorsEntry> entries) throws IOException {
+        try {
+            realm.executeTransaction(new Realm.Transaction() {
+                @Override
+                public void execute(final Realm realm) {
+                    for(SensorsEntry entry:entries)
+                        insertEntry(entry, realm);
+                    realm.insertOrUpdate(rollupAggregator.fold(entries, new RollupAggregator.Loader() {
+                        @Override
+                        public SensorsRollup load(String key) {
+                            SensorsRollup rollup = realm.where(SensorsRollup.class).equalTo("key", key).findFirst();
+                            return rollup != null ? realm.copyFromRealm(rollup) : null;
+                        }
+                    }));
+                }
+            });
+            naturalKeyCache.commit();
+        } catch (RuntimeException e) {
+            //the ids reserved and the rollups changed in this transaction were rolled back with it
+            idAllocator.invalidate();
+            naturalKeyCache.invalidate();
+            rollupAggregator.invalidate();
+            throw new IOException("Failed to insert " + entries.size() + " entries", e);
+        }
+    }
+
+    @Override
+    public long getLastFinalTimestamp() {
+        Number lastFinalTimestamp = realm.where(SensorsEntry.class).max("finalTimestamp");
+        return lastFinalTimestamp != null ? lastFinalTimestamp.longValue() : 0;
+    }
+
+    @Override
+    public void scan(long fromTimestamp, long toTimestamp, Visitor visitor) {
+        RealmResults<SensorsEntry> results = realm.where(SensorsEntry.class)
+                .greaterThanOrEqualTo("beginningTimestamp", fromTimestamp)
+                .lessThan("beginningTimestamp", toTimestamp)
+                .sort("id")
+                .findAll();
+        visit(results, visitor);
+    }
+
+    @Override
+    public SensorsEntryCursor query(long fromTimestamp, long toTimestamp, long afterId, int limit, int fields) {
+        //results are lazy: only the rows the cursor gets to are read
+        RealmResults<SensorsEntry> results = realm.where(SensorsEntry.class)
+                .greaterThanOrEqualTo("beginningTimestamp", fromTimestamp)
+                .lessThan("beginningTimestamp", toTimestamp)
+                .greaterThan("id", afterId)
+                .sort("id")
+                .findAll();
+        return new RealmCursor(results, limit, fields);
+    }
+
+    @Override
+    public void scanNotUploaded(Visitor visitor) {
+        RealmResults<SensorsEntry> results = realm.where(SensorsEntry.class).greaterThan("id", getUploadWatermark().getAcknowledgedId()).sort("id").findAll(); //all entries in database that are not in server
+        visit(results, visitor);
+    }
+
+    @Override
+    public long countNotUploaded() {
+        return realm.where(SensorsEntry.class).greaterThan("id", getUploadWatermark().getAcknowledgedId()).count();
+    }
+
+    @Override
+    public UploadWatermark getUploadWatermark() {
+        UploadWatermark watermark = realm.where(UploadWatermark.class).findFirst();
+        return watermark != null ? realm.copyFromRealm(watermark) : new UploadWatermark();
+    }
+
+    @Override
+    public void setUploadWatermark(final UploadWatermark watermark) throws IOException {
+        final UploadWatermark written = new UploadWatermark(watermark.getAcknowledgedSequence(),
+                Math.max(watermark.getAcknowledgedId(), getUploadWatermark().getAcknowledgedId()),
+                watermark.getPendingSequence(), watermark.getPendingLastId());
+        try {
+            realm.executeTransaction(new Realm.Transaction() {
+                @Override
+                public void execute(Realm realm) {
+                    realm.insertOrUpdate(written);
+                }
+            });
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to update the upload watermark", e);
+        }
+    }
+
+    @Override
+    public PurgeResult purgeUploaded(int maxEntries) throws IOException {
+        return purge(true, 0, maxEntries);
+    }
+
+    @Override
+    public PurgeResult purgeOlderThan(long timestamp, int maxEntries) throws IOException {
+        return purge(false, timestamp, maxEntries);
+    }
+
+    @Override
+    public void scanRollups(int resolution, long fromTimestamp, long toTimestamp, RollupVisitor visitor) {
+        RealmResults<SensorsRollup> results = realm.where(SensorsRollup.class)
+                .equalTo("resolution", resolution)
+                .greaterThanOrEqualTo("bucketStart", fromTimestamp)
+                .lessThan("bucketStart", toTimestamp)
+                .sort("bucketStart")
+                .findAll();
+        for(SensorsRollup rollup:results)
+        {
+            if(!visitor.visit(rollup))
+                break;
+        }
+    }
+
+    @Override
+    public int purgeRollupsOlderThan(final int resolution, final long timestamp) throws IOException {
+        final int[] deleted = new int[1];
+        try {
+            realm.executeTransaction(new Realm.Transaction() {
+                @Override
+                public void execute(Realm realm) {
+                    RealmResults<SensorsRollup> rollupsToDelete = realm.where(SensorsRollup.class).equalTo("resolution", resolution).lessThan("bucketStart", timestamp).findAll();
+                    deleted[0] = rollupsToDelete.size();
+                    rollupsToDelete.deleteAllFromRealm();
+                }
+            });
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to delete old rollups", e);
+        }
+        return deleted[0];
+    }
+
+    @Override
+    public void close() {
+        if(realm != null && !realm.isClosed())
+            realm.close();
+        realm = null;
+    }
+
+    private static void visit(RealmResults<SensorsEntry> results, Visitor visitor)
+    {
+        for(SensorsEntry entry:results)
+        {
+            if(!visitor.visit(entry))
+                break;
+        }
+    }
+
+    /**
+     * cursor copying, one row at a time, an entry and the objects selected out of the database
+     */
+    private class RealmCursor implements SensorsEntryCursor {
+        private RealmResults<SensorsEntry> results;
+        private final int count; //number of rows read, at most
+        private final int fields;
+        private int index = -1; //row being read
+        private SensorsEntry entry;
+        private long lastId = 0;
+
+        RealmCursor(RealmResults<SensorsEntry> results, int limit, int fields) {
+            this.results = results;
+            this.count = Math.min(results.size(), limit);
+            this.fields = fields;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            entry = null;
+            if(results == null || index + 1 >= count)
+                return false;
+            index++;
+            SensorsEntry managed = results.get(index);
+            entry = new SensorsEntry(managed.getBeginningTimestamp(), managed.getFinalTimestamp(), managed.getBatteryLevel(), managed.getSignalStrength(),
+                    (fields & EntryFields.MOTION_VALUES) != 0 && managed.getMotionValues() != null ? realm.copyFromRealm(managed.getMotionValues()) : null,
+                    managed.isInMotion(), managed.isMoving(), managed.isDisplay(), managed.getMaxSpeed(), (float) managed.getTotalDistance(),
+                    managed.getCurrentNetworkSSID(), managed.getMagneticField(), managed.getProximity(),
+                    (fields & EntryFields.LOCATIONS) != 0 ? copy(managed.getLocationList()) : null,
+                    (fields & EntryFields.WIFI_DEVICES) != 0 ? copy(managed.getWifiDevices()) : null,
+                    (fields & EntryFields.WIFI_NETWORKS) != 0 ? copy(managed.getWifiNetworks()) : null,
+                    (fields & EntryFields.BLUETOOTH_DEVICES) != 0 ? copy(managed.getBluetoothDevices()) : null);
+            entry.setId(managed.getId());
+            entry.setNumberWifiDevices(managed.getNumberWifiDevices());
+            entry.setNumberWifiNetworks(managed.getNumberWifiNetworks());
+            entry.setNumberBluetoothDevices(managed.getNumberBluetoothDevices());
+            lastId = entry.getId();
+            return true;
+        }
+
+        private <E extends RealmObject> RealmList<E> copy(RealmList<E> list)
+        {
+            if(list == null)
+                return null;
+            RealmList<E> copy = new RealmList<>();
+            copy.addAll(realm.copyFromRealm(list));
+            return copy;
+        }
+
+        @Override
+        public SensorsEntry getEntry() {
+            return entry;
+        }
+
+        @Override
+        public long getLastId() {
+            return lastId;
+        }
+
+        @Override
+        public void close() {
+            results = null;
+            entry = null;
+        }
+    }
+
+    /**
+     * sets the ids of an entry and of the objects it contains, and inserts it in the database
+     * @param entry - unmanaged entry
+     * @param realm - Realm object (in a write transaction)
+     */
+    private void insertEntry(SensorsEntry entry, Realm realm)
+    {
+        //set ids, reusing the ones of objects already in the database to avoid inserting redundant data
+        naturalKeyCache.assignIds(realm, WifiDeviceCustom.class, entry.getWifiDevices(), idAllocator);
+        naturalKeyCache.assignIds(realm, WifiNetworkCustom.class, entry.getWifiNetworks(), idAllocator);
+        naturalKeyCache.assignIds(realm, BluetoothDeviceCustom.class, entry.getBluetoothDevices(), idAllocator);
+
+        if(entry.getMotionValues() != null)
+            entry.getMotionValues().setId(idAllocator.nextId(MotionValues.class, realm));
+        if(entry.getLocationList() != null)
+            for(LocationCustom location:entry.getLocationList())
+                location.setId(idAllocator.nextId(LocationCustom.class, realm));
+
+        entry.setId(idAllocator.nextId(SensorsEntry.class, realm));
+        realm.insertOrUpdate(entry);
+    }
+
+    /**
+     * deletes, in a single transaction, entries as well as the motion values and locations they contain
+     * (wifi devices, wifi networks and bluetooth devices are shared with other entries, so they are kept)
+     * @param uploaded - true to delete entries already uploaded, false to delete entries which ended before timestamp
+     * @param timestamp - instant (ms)
+     * @param maxEntries - maximum number of entries to delete
+     * @return rows and estimated space reclaimed
+     */
+    private PurgeResult purge(final boolean uploaded, final long timestamp, final int maxEntries) throws IOException
+    {
+        final long uploadedId = getUploadWatermark().getAcknowledgedId();
+        final PurgeResult[] result = new PurgeResult[1];
+        try {
+            realm.executeTransaction(new Realm.Transaction() {
+                @Override
+                public void execute(Realm realm) {
+                    RealmResults<SensorsEntry> results = uploaded
+                            ? realm.where(SensorsEntry.class).lessThanOrEqualTo("id", uploadedId).findAll()
+                            : realm.where(SensorsEntry.class).lessThan("finalTimestamp", timestamp).findAll();
+                    //copy the chunk first, as deleting an entry removes it from the results
+                    List<SensorsEntry> chunk = new ArrayList<>(Math.min(maxEntries, results.size()));
+                    for(int i = 0; i < results.size() && i < maxEntries; i++)
+                        chunk.add(results.get(i));
+
+                    int motionValues = 0;
+                    int locations = 0;
+                    long bytes = 0;
+                    for(SensorsEntry entry:chunk)
+                    {
+                        MotionValues entryMotionValues = entry.getMotionValues();
+                        if(entryMotionValues != null)
+                        {
+                            entryMotionValues.deleteFromRealm();
+                            motionValues++;
+                            bytes += MOTION_VALUES_BYTES;
+                        }
+                        RealmList<LocationCustom> locationList = entry.getLocationList();
+                        if(locationList != null)
+                        {
+                            for(LocationCustom location:locationList)
+                                bytes += LOCATION_BYTES + length(location.getProvider());
+                            locations += locationList.size();
+                            locationList.deleteAllFromRealm();
+                        }
+                        bytes += ENTRY_BYTES + length(entry.getTimestamp()) + length(entry.getCurrentNetworkSSID())
+                                + LINK_BYTES * (size(entry.getWifiDevices()) + size(entry.getWifiNetworks()) + size(entry.getBluetoothDevices()) + size(locationList));
+                        entry.deleteFromRealm();
+                    }
+                    result[0] = new PurgeResult(chunk.size(), motionValues, locations, bytes);
+                }
+            });
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to delete entries", e);
+        }
+        return result[0];
+    }
+
+    private static int length(String string)
+    {
+        return string != null ? string.length() : 0;
+    }
+
+    private static int size(List<?> list)
+    {
+        return list != null ? list.size() : 0;
+    }
+}
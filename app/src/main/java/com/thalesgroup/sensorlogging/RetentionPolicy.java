@@ -0,0 +1,52 @@
+package com.thalesgroup.sensorlogging;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * How long the data in a SensorsEntryStorage is kept: entries are deleted after some time even if they were never
+ * uploaded, their hourly rollups are kept for longer and their daily rollups forever
+ */
+public class RetentionPolicy {
+
+    private static final String LOG_TAG = "RetentionPolicy";
+    private static final long DAY = 24*60*60*1000; //(ms)
+    public static final long DEFAULT_ENTRIES_RETENTION = 30*DAY; //(ms)
+    public static final long DEFAULT_HOURLY_ROLLUPS_RETENTION = 365*DAY; //(ms)
+
+    private final long entriesRetention; //time entries are kept (ms)
+    private final long hourlyRollupsRetention; //time hourly rollups are kept (ms)
+
+    /**
+     * Constructor with the default retention times
+     */
+    public RetentionPolicy() {
+        this(DEFAULT_ENTRIES_RETENTION, DEFAULT_HOURLY_ROLLUPS_RETENTION);
+    }
+
+    /**
+     * Constructor
+     * @param entriesRetention - time entries are kept after they end (ms)
+     * @param hourlyRollupsRetention - time hourly rollups are kept after their hour begins (ms)
+     */
+    public RetentionPolicy(long entriesRetention, long hourlyRollupsRetention) {
+        this.entriesRetention = entriesRetention;
+        this.hourlyRollupsRetention = hourlyRollupsRetention;
+    }
+
+    /**
+     * deletes the data of a storage that is older than its retention time
+     * @param storage - open storage
+     * @param purgeEngine - deletes the entries, in chunks
+     * @param now - current time (ms)
+     * @throws IOException if the storage could not be updated
+     */
+    public void apply(SensorsEntryStorage storage, PurgeEngine purgeEngine, long now) throws IOException
+    {
+        purgeEngine.purgeOlderThan(storage, now - entriesRetention);
+        int rollups = storage.purgeRollupsOlderThan(SensorsRollup.RESOLUTION_HOURLY, now - hourlyRollupsRetention);
+        if(rollups > 0)
+            Log.i(LOG_TAG, "Deleted " + rollups + " hourly rollups");
+    }
+}
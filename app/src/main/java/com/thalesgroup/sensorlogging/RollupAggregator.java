@@ -0,0 +1,72 @@
+package com.thalesgroup.sensorlogging;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Folds entries, as they are committed, into their hourly and daily rollups (SensorsRollup).
+ * The rollups of the buckets being filled are kept in memory, so that folding an entry does not read the storage.
+ * An entry is never folded twice into the same rollup (see SensorsRollup.getLastEntryId()), so the same entries can
+ * safely be folded again after a failure
+ */
+public class RollupAggregator {
+
+    /**
+     * reads a rollup from the storage
+     */
+    public interface Loader {
+
+        /**
+         * @param key - key of the rollup (see SensorsRollup.key())
+         * @return unmanaged copy of the rollup stored, or null if there is none
+         */
+        SensorsRollup load(String key);
+    }
+
+    private final Map<String, SensorsRollup> current = new HashMap<>(); //rollups changed by the last fold, as they were written
+
+    /**
+     * folds entries into their rollups
+     * @param entries - entries with their ids already set, in the order they were created
+     * @param loader - reads the rollups which are not in memory
+     * @return unmanaged rollups changed, to be written to the storage together with the entries
+     */
+    public synchronized List<SensorsRollup> fold(List<SensorsEntry> entries, Loader loader)
+    {
+        Map<String, SensorsRollup> changed = new LinkedHashMap<>();
+        for(SensorsEntry entry:entries)
+        {
+            for(int resolution:SensorsRollup.RESOLUTIONS)
+            {
+                long bucketStart = SensorsRollup.bucketStart(resolution, entry.getBeginningTimestamp());
+                String key = SensorsRollup.key(resolution, bucketStart);
+                SensorsRollup rollup = changed.get(key);
+                if(rollup == null)
+                    rollup = current.get(key);
+                if(rollup == null)
+                    rollup = loader.load(key);
+                if(rollup == null)
+                    rollup = new SensorsRollup(resolution, bucketStart);
+                changed.put(key, rollup);
+
+                if(entry.getId() > rollup.getLastEntryId())
+                    rollup.add(entry);
+            }
+        }
+        //keep only the buckets still being filled
+        current.clear();
+        current.putAll(changed);
+        return new ArrayList<>(changed.values());
+    }
+
+    /**
+     * forgets the rollups in memory (to be called when they could not be written)
+     */
+    public synchronized void invalidate()
+    {
+        current.clear();
+    }
+}
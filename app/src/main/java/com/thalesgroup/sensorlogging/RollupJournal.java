@@ -0,0 +1,172 @@
+package com.thalesgroup.sensorlogging;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file keeping the rollups (SensorsRollup) of SegmentedLogStorage. Every time a rollup changes its new
+ * version is appended, the last version of each rollup being the one read; the file is rewritten with only the
+ * last versions once it holds too many old ones.
+ * Each record is framed by its length and a checksum, and reading stops at the first record that was not completely written
+ */
+public class RollupJournal {
+
+    private static final String LOG_TAG = "RollupJournal";
+    private static final int MIN_RECORDS_TO_COMPACT = 256; //records below which the file is never rewritten
+
+    private final File file;
+    private int records = 0; //records in the file
+    private boolean torn = false; //true if the file ends with a record that was not completely written
+
+    /**
+     * Constructor
+     * @param file - journal file (created when the first rollup is appended)
+     */
+    public RollupJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return last version of every rollup in the journal, by key
+     */
+    public Map<String, SensorsRollup> readAll()
+    {
+        Map<String, SensorsRollup> rollups = new LinkedHashMap<>();
+        records = 0;
+        torn = false;
+        if(!file.exists())
+            return rollups;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            while(true)
+            {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int crc = in.readInt();
+                if(length <= 0 || length > 1024*1024)
+                {
+                    torn = true;
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 expected = new CRC32();
+                expected.update(payload, 0, length);
+                if((int) expected.getValue() != crc)
+                {
+                    torn = true;
+                    break;
+                }
+                SensorsRollup rollup = SensorsRollupCodec.read(new DataInputStream(new ByteArrayInputStream(payload)));
+                rollups.put(rollup.getKey(), rollup);
+                records++;
+            }
+        } catch (IOException e) {
+            torn = true;
+        } finally {
+            closeQuietly(in);
+        }
+        if(torn)
+            Log.w(LOG_TAG, "Ignoring incomplete record at the end of " + file.getName());
+        return rollups;
+    }
+
+    /**
+     * appends new versions of rollups to the journal
+     * @param rollups - rollups changed
+     * @throws IOException if the rollups could not be written
+     */
+    public void append(Collection<SensorsRollup> rollups) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(encode(rollups));
+        } finally {
+            out.close();
+        }
+        records += rollups.size();
+    }
+
+    /**
+     * replaces the content of the journal by the rollups given, if it holds many more records than that or ends
+     * with an incomplete record (which would hide the records appended after it)
+     * @param rollups - last version of every rollup
+     * @throws IOException if the journal could not be rewritten
+     */
+    public void compact(Collection<SensorsRollup> rollups) throws IOException
+    {
+        if(!torn && (records < MIN_RECORDS_TO_COMPACT || records < 2 * rollups.size()))
+            return;
+        rewrite(rollups);
+    }
+
+    /**
+     * replaces the content of the journal by the rollups given
+     * @param rollups - last version of every rollup
+     * @throws IOException if the journal could not be rewritten
+     */
+    public void rewrite(Collection<SensorsRollup> rollups) throws IOException
+    {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(encode(rollups));
+        } finally {
+            out.close();
+        }
+        if(!temp.renameTo(file))
+            throw new IOException("Failed to replace " + file);
+        records = rollups.size();
+        torn = false;
+    }
+
+    private static byte[] encode(Collection<SensorsRollup> rollups) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        DataOutputStream payloadOut = new DataOutputStream(payloadBytes);
+        for(SensorsRollup rollup:rollups)
+        {
+            payloadBytes.reset();
+            SensorsRollupCodec.write(payloadOut, rollup);
+            payloadOut.flush();
+            byte[] payload = payloadBytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void closeQuietly(DataInputStream in)
+    {
+        if(in != null)
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+    }
+}
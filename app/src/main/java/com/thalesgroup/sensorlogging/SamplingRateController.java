@@ -0,0 +1,292 @@
+package com.thalesgroup.sensorlogging;
+
+/**
+ * Decides the delay between the motion sensor events from how much the acceleration and the inclination vary, within
+ * bounds set for each energy mode (see EnergyModes): as soon as either varies more than its high threshold the delay
+ * drops to the minimum of the mode, and while both vary less than their low thresholds it doubles at each decision
+ * interval up to the maximum of the mode. Quiet periods are thus sampled slowly (their averages need few samples), and
+ * movement at the rate the mode had before.
+ * Each change of delay re-registers the sensors, so the changes decided from the samples are held back when there were
+ * already as many as allowed in the last minute; the changes that bring the delay within the bounds of a new mode always
+ * happen, and count in that minute. The samples are counted, along with the ones the minimum delay would have cost.
+ * Not thread-safe
+ */
+public class SamplingRateController {
+
+    public static final int DEFAULT_MAX_CHANGES_PER_MINUTE = 4;
+    public static final float HIGH_ACCELERATION_DEVIATION = 0.5f; //standard deviation of the acceleration above which the delay drops to the minimum (m/s^2)
+    public static final float LOW_ACCELERATION_DEVIATION = 0.1f; //standard deviation of the acceleration below which the delay may grow (m/s^2)
+    public static final float HIGH_INCLINATION_DEVIATION = 2f; //standard deviation of the inclination above which the delay drops to the minimum (degrees)
+    public static final float LOW_INCLINATION_DEVIATION = 0.5f; //standard deviation of the inclination below which the delay may grow (degrees)
+    public static final long DECISION_INTERVAL = 5*1000; //minimum time the variations are measured over before the delay grows (ms)
+    private static final int MIN_SAMPLES = 3; //minimum samples the variations are measured over before the delay grows
+    private static final long MINUTE = 60*1000; //(ms)
+    private static final long HOUR = 60*60*1000; //(ms)
+
+    private final Clock clock;
+    private final long[] changeTimes; //instants of the last changes of delay, oldest first once full (ms)
+    private int changeIndex = 0; //index of the oldest change in changeTimes
+    private final int[] minDelay = new int[5]; //minimum delay of each mode, indexed by mode (us)
+    private final int[] maxDelay = new int[5]; //maximum delay of each mode, indexed by mode (us)
+    private int mode = EnergyModePolicy.NO_MODE;
+    private int delay = 0; //current delay, 0 before the first mode (us)
+    private final Deviation acceleration = new Deviation(1); //module of the acceleration, since the last decision
+    private final Deviation inclination = new Deviation(2); //inclination on x and y, since the last decision
+    private long decisionStart; //instant of the last decision (ms)
+    private long samples = 0; //since the last reset
+    private double minDelaySamples = 0; //samples that would have been delivered at the minimum delay, since the last reset
+    private long lastAccount; //instant up to which minDelaySamples is counted (ms)
+    private long changes = 0; //changes of delay, since the last reset
+    private long heldChanges = 0; //changes decided but held back by the limit per minute, since the last reset
+    private int heldDelay = 0; //delay of the change held back, 0 if none (us)
+    private long since; //instant of the last reset (ms)
+
+    /**
+     * Constructor, with the default bounds (see setBounds)
+     * @param clock - source of the current time
+     * @param maxChangesPerMinute - maximum changes of delay decided from the samples in any minute
+     */
+    public SamplingRateController(Clock clock, int maxChangesPerMinute) {
+        this.clock = clock;
+        this.changeTimes = new long[maxChangesPerMinute];
+        for (int i = 0; i < changeTimes.length; i++)
+            changeTimes[i] = Long.MIN_VALUE / 2;
+        this.since = clock.now();
+        this.decisionStart = since;
+        this.lastAccount = since;
+        //the minimum of each mode is the delay it always had
+        setBounds(EnergyModes.MODE_HIGH_BATTERY_INMOTION, 200000, 1000000); //.2s to 1s
+        setBounds(EnergyModes.MODE_LOW_BATTERY_INMOTION, 500000, 2000000); //.5s to 2s
+        setBounds(EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION, 1000000, 5000000); //1s to 5s
+        setBounds(EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION, 2000000, 10000000); //2s to 10s
+    }
+
+    /**
+     * @param mode - EnergyModes
+     * @param min - minimum delay between sensor events in the mode (us)
+     * @param max - maximum delay between sensor events in the mode (us)
+     */
+    public void setBounds(int mode, int min, int max)
+    {
+        minDelay[mode] = min;
+        maxDelay[mode] = max;
+    }
+
+    /**
+     * changes the energy mode, starting at the minimum delay of the mode if there was none, keeping the delay if it is
+     * within the bounds of the mode, and bringing it within them otherwise
+     * @param mode - EnergyModes
+     * @return true if the delay changed: the sensors must be registered again with getDelay()
+     */
+    public boolean setMode(int mode)
+    {
+        long now = clock.now();
+        account(now);
+        this.mode = mode;
+        int bounded = delay == 0 ? minDelay[mode] : Math.min(Math.max(delay, minDelay[mode]), maxDelay[mode]);
+        resetDeviations(now);
+        if(bounded == delay)
+            return false;
+        change(bounded, now);
+        return true;
+    }
+
+    /**
+     * @param module - module of the linear acceleration of a sensor event (m/s^2)
+     * @return true if the delay changed: the sensors must be registered again with getDelay()
+     */
+    public boolean addAcceleration(float module)
+    {
+        acceleration.add(module);
+        return decide();
+    }
+
+    /**
+     * counts a sample (an accelerometer event)
+     * @param inclination - inclination on x and y of the sample (degrees)
+     * @return true if the delay changed: the sensors must be registered again with getDelay()
+     */
+    public boolean addInclination(float[] inclination)
+    {
+        samples++;
+        this.inclination.add(inclination);
+        return decide();
+    }
+
+    /**
+     * drops the delay to the minimum of the mode if the variations are high, and doubles it if they were low over
+     * the decision interval
+     * @return true if the delay changed
+     */
+    private boolean decide()
+    {
+        if(mode == EnergyModePolicy.NO_MODE)
+            return false;
+        long now = clock.now();
+        boolean decision = now - decisionStart >= DECISION_INTERVAL && inclination.getCount() >= MIN_SAMPLES;
+        int target = delay;
+        if(acceleration.get() > HIGH_ACCELERATION_DEVIATION || inclination.get() > HIGH_INCLINATION_DEVIATION)
+            target = minDelay[mode];
+        else if(decision && acceleration.get() < LOW_ACCELERATION_DEVIATION && inclination.get() < LOW_INCLINATION_DEVIATION)
+            target = (int) Math.min(2L * delay, maxDelay[mode]);
+        if(decision)
+            resetDeviations(now); //each interval is measured on its own, so that movement does not keep the delay down after it
+        if(target == delay)
+            return false;
+        if(changeTimes.length == 0 || now - changeTimes[changeIndex] < MINUTE)
+        {
+            if(target != heldDelay) //counted once, not at each sample until it happens
+                heldChanges++;
+            heldDelay = target;
+            return false;
+        }
+        resetDeviations(now);
+        change(target, now);
+        return true;
+    }
+
+    private void change(int newDelay, long now)
+    {
+        delay = newDelay;
+        heldDelay = 0;
+        changes++;
+        if(changeTimes.length == 0)
+            return;
+        changeTimes[changeIndex] = now;
+        changeIndex = (changeIndex + 1) % changeTimes.length;
+    }
+
+    private void resetDeviations(long now)
+    {
+        acceleration.reset();
+        inclination.reset();
+        decisionStart = now;
+    }
+
+    //counts the samples the minimum delay of the mode would have delivered up to now
+    private void account(long now)
+    {
+        if(mode != EnergyModePolicy.NO_MODE)
+            minDelaySamples += (now - lastAccount) * 1000.0 / minDelay[mode];
+        lastAccount = now;
+    }
+
+    /**
+     * @return delay between sensor events (us), 0 before the first mode
+     */
+    public int getDelay() {
+        return delay;
+    }
+
+    /**
+     * @return maximum changes of delay decided from the samples in any minute
+     */
+    public int getMaxChangesPerMinute() {
+        return changeTimes.length;
+    }
+
+    /**
+     * @return accelerometer events since the last reset
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return accelerometer events the minimum delay of each mode would have delivered since the last reset
+     */
+    public double getMinDelaySamples()
+    {
+        account(clock.now());
+        return minDelaySamples;
+    }
+
+    /**
+     * @return changes of delay since the last reset
+     */
+    public long getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return changes of delay held back by the limit per minute since the last reset
+     */
+    public long getHeldChanges() {
+        return heldChanges;
+    }
+
+    /**
+     * @return average changes of delay per hour since the last reset
+     */
+    public double getChangesPerHour()
+    {
+        long elapsed = clock.now() - since;
+        return elapsed > 0 ? changes * (double) HOUR / elapsed : 0;
+    }
+
+    /**
+     * forgets the samples and changes counted so far, to count the next ones
+     */
+    public void resetStats()
+    {
+        account(clock.now());
+        samples = 0;
+        minDelaySamples = 0;
+        changes = 0;
+        heldChanges = 0;
+        since = clock.now();
+    }
+
+    /**
+     * running standard deviation of values of one or more dimensions (Welford), the largest of the dimensions
+     */
+    private static class Deviation {
+
+        private final double[] mean;
+        private final double[] squares; //sum of the squared differences from the mean
+        private long count = 0;
+
+        Deviation(int dimensions) {
+            mean = new double[dimensions];
+            squares = new double[dimensions];
+        }
+
+        void add(float... values)
+        {
+            count++;
+            for (int i = 0; i < mean.length; i++)
+            {
+                double delta = values[i] - mean[i];
+                mean[i] += delta / count;
+                squares[i] += delta * (values[i] - mean[i]);
+            }
+        }
+
+        /**
+         * @return largest standard deviation of the dimensions, 0 under two values
+         */
+        double get()
+        {
+            if(count < 2)
+                return 0;
+            double max = 0;
+            for (double s : squares)
+                max = Math.max(max, s / (count - 1));
+            return Math.sqrt(max);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        void reset()
+        {
+            count = 0;
+            for (int i = 0; i < mean.length; i++)
+            {
+                mean[i] = 0;
+                squares[i] = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,781 @@
+package com.thalesgroup.sensorlogging;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * SensorsEntryStorage keeping the entries in an append-only log, split in memory-mapped segment files of fixed size.
+ * Entries are written sequentially and never updated: the entries uploaded are tracked by a single watermark (the id
+ * of the last entry uploaded) and are deleted a whole segment at a time, once every entry in it was uploaded.
+ * A sparse index of the timestamps of each segment, rebuilt when the storage is opened, lets range scans skip
+ * straight to the entries requested. Rollups (SensorsRollup) are kept in memory and in a RollupJournal; entries
+ * appended whose rollups could not be written are folded again the next time the storage is opened.
+ *
+ * Each record is: [int length of payload][int crc32][long id][long beginning timestamp][long final timestamp][payload],
+ * the payload being the entry written by SensorsEntryCodec. A length of 0 marks the end of a segment, and reading a
+ * segment stops at the first record that was not completely written.
+ */
+public class SegmentedLogStorage implements SensorsEntryStorage {
+
+    private static final String LOG_TAG = "SegmentedLogStorage";
+    public static final int DEFAULT_SEGMENT_SIZE = 1024*1024; //size of each segment file (bytes)
+    private static final int RECORD_HEADER_SIZE = 32; //length, crc, id and timestamps (bytes)
+    private static final int INDEX_INTERVAL = 32; //records between each entry of the sparse index
+    private static final int FOLD_CHUNK = 1000; //entries read at a time to fold their rollups when the storage is opened
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String STATE_FILE = "uploaded.state"; //upload watermark and final timestamp of the last entry deleted
+    private static final String ROLLUP_FILE = "rollups.journal"; //rollups of the entries
+
+    private final File directory;
+    private final int segmentSize;
+    private final List<Segment> segments = new ArrayList<>(); //segments in the order they were written, the last one being the active one
+    private MappedByteBuffer activeBuffer; //mapping of the last segment, where entries are appended
+    private long nextId = 1; //id of the next entry appended
+    private long uploadedId = 0; //id of the last entry uploaded (acknowledged id of the upload watermark)
+    private long uploadedSequence = 0; //sequence number of the last batch acknowledged
+    private long pendingSequence = 0; //sequence number of the batch sent but not acknowledged yet, 0 if none
+    private long pendingLastId = 0; //id of the last entry of that batch
+    private long purgedFinalTimestamp = 0; //final timestamp of the last entry deleted (ms)
+    private RollupJournal rollupJournal;
+    private final Map<String, SensorsRollup> rollups = new HashMap<>(); //last version written of every rollup, by key
+    private final RollupAggregator rollupAggregator = new RollupAggregator(); //rollups of the buckets being filled
+    private final List<SensorsEntry> unfoldedEntries = new ArrayList<>(); //entries appended whose rollups could not be written yet
+
+    /**
+     * a segment file and what is known about the records in it
+     */
+    private static class Segment {
+        final File file;
+        final long firstId; //id of the first entry appended to the segment
+        long lastId; //id of the last entry in the segment
+        int count = 0; //number of records
+        int end = 0; //position after the last record (bytes)
+        long minTimestamp = Long.MAX_VALUE; //lowest beginning timestamp (ms)
+        long maxTimestamp = Long.MIN_VALUE; //highest beginning timestamp (ms)
+        long lastFinalTimestamp = 0; //final timestamp of the last record (ms)
+        long maxFinalTimestamp = Long.MIN_VALUE; //highest final timestamp (ms)
+        boolean ordered = true; //true if the beginning timestamps never decrease, so that the sparse index can be searched
+        long[] indexTimestamps = new long[16]; //beginning timestamp of every INDEX_INTERVAL-th record
+        int[] indexPositions = new int[16]; //position of every INDEX_INTERVAL-th record
+        int indexSize = 0;
+
+        Segment(File file, long firstId) {
+            this.file = file;
+            this.firstId = firstId;
+            this.lastId = firstId - 1;
+        }
+
+        /**
+         * @return copy of what is known about the segment, to go back to it with restore
+         */
+        Segment copy()
+        {
+            Segment copy = new Segment(file, firstId);
+            copy.restore(this);
+            return copy;
+        }
+
+        /**
+         * forgets the records added since a copy was made (the index arrays only grow, keeping the entries before)
+         * @param copy - copy made with copy()
+         */
+        void restore(Segment copy)
+        {
+            lastId = copy.lastId;
+            count = copy.count;
+            end = copy.end;
+            minTimestamp = copy.minTimestamp;
+            maxTimestamp = copy.maxTimestamp;
+            lastFinalTimestamp = copy.lastFinalTimestamp;
+            maxFinalTimestamp = copy.maxFinalTimestamp;
+            ordered = copy.ordered;
+            indexTimestamps = copy.indexTimestamps;
+            indexPositions = copy.indexPositions;
+            indexSize = copy.indexSize;
+        }
+
+        /**
+         * updates what is known about the segment with a record just read or written
+         */
+        void add(int position, int recordSize, long id, long beginningTimestamp, long finalTimestamp)
+        {
+            if(count % INDEX_INTERVAL == 0)
+            {
+                if(indexSize == indexTimestamps.length)
+                {
+                    long[] timestamps = new long[indexSize * 2];
+                    int[] positions = new int[indexSize * 2];
+                    System.arraycopy(indexTimestamps, 0, timestamps, 0, indexSize);
+                    System.arraycopy(indexPositions, 0, positions, 0, indexSize);
+                    indexTimestamps = timestamps;
+                    indexPositions = positions;
+                }
+                indexTimestamps[indexSize] = beginningTimestamp;
+                indexPositions[indexSize] = position;
+                indexSize++;
+            }
+            if(count > 0 && beginningTimestamp < maxTimestamp)
+                ordered = false;
+            minTimestamp = Math.min(minTimestamp, beginningTimestamp);
+            maxTimestamp = Math.max(maxTimestamp, beginningTimestamp);
+            lastFinalTimestamp = finalTimestamp;
+            maxFinalTimestamp = Math.max(maxFinalTimestamp, finalTimestamp);
+            lastId = id;
+            count++;
+            end = position + recordSize;
+        }
+
+        /**
+         * @param timestamp - beginning timestamp searched (ms)
+         * @return position from which the records beginning at or after timestamp are found
+         */
+        int seek(long timestamp)
+        {
+            if(!ordered)
+                return 0;
+            //last index entry before timestamp
+            int low = 0, high = indexSize - 1, found = -1;
+            while(low <= high)
+            {
+                int middle = (low + high) >>> 1;
+                if(indexTimestamps[middle] < timestamp)
+                {
+                    found = middle;
+                    low = middle + 1;
+                }
+                else
+                    high = middle - 1;
+            }
+            return found < 0 ? 0 : indexPositions[found];
+        }
+    }
+
+    /**
+     * Constructor
+     * @param directory - directory of the segment files (created if needed)
+     */
+    public SegmentedLogStorage(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Constructor
+     * @param directory - directory of the segment files (created if needed)
+     * @param segmentSize - size of each segment file (bytes)
+     */
+    public SegmentedLogStorage(File directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    public void open() throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Failed to create " + directory);
+        readState();
+
+        File[] files = directory.listFiles();
+        List<Segment> found = new ArrayList<>();
+        if(files != null)
+            for(File file:files)
+            {
+                String name = file.getName();
+                if(!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))
+                    continue;
+                try {
+                    found.add(new Segment(file, Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))));
+                } catch (NumberFormatException e) {
+                    Log.w(LOG_TAG, "Ignoring " + name);
+                }
+            }
+        Collections.sort(found, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return a.firstId < b.firstId ? -1 : (a.firstId == b.firstId ? 0 : 1);
+            }
+        });
+
+        segments.clear();
+        nextId = uploadedId + 1;
+        for(int i = 0; i < found.size(); i++)
+        {
+            Segment segment = found.get(i);
+            boolean last = i == found.size() - 1;
+            MappedByteBuffer buffer = map(segment.file, last);
+            recover(segment, buffer, last);
+            segments.add(segment);
+            nextId = Math.max(nextId, segment.lastId + 1);
+            if(last)
+                activeBuffer = buffer;
+        }
+
+        //rollups, bringing them up to date with the entries appended after they were last written
+        rollupJournal = new RollupJournal(new File(directory, ROLLUP_FILE));
+        rollups.clear();
+        rollups.putAll(rollupJournal.readAll());
+        long foldedId = 0;
+        for(SensorsRollup rollup:rollups.values())
+            foldedId = Math.max(foldedId, rollup.getLastEntryId());
+        unfoldedEntries.clear();
+        //a chunk at a time, so that a long log whose rollups were never written is not held in memory at once
+        List<SensorsEntry> chunk = new ArrayList<>(FOLD_CHUNK);
+        LogCursor cursor = new LogCursor(Long.MIN_VALUE, Long.MAX_VALUE, foldedId, Integer.MAX_VALUE, EntryFields.ALL);
+        while(cursor.moveToNext())
+        {
+            chunk.add(cursor.getEntry());
+            if(chunk.size() == FOLD_CHUNK)
+            {
+                foldRollups(chunk);
+                chunk.clear();
+            }
+        }
+        foldRollups(chunk);
+        rollupJournal.compact(rollups.values());
+    }
+
+    @Override
+    public void append(List<SensorsEntry> entries) throws IOException {
+        //every entry is appended or none is: if writing fails, the segments started are deleted and the records written
+        //to the active segment erased, the entries keeping the ids they had and the next id staying as it was
+        //encode everything first, so that nothing is written if an entry cannot be
+        List<byte[]> payloads = new ArrayList<>(entries.size());
+        long[] previousIds = new long[entries.size()];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        long id = nextId;
+        boolean written = false;
+        int segmentCount = segments.size();
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        Segment activeBefore = active != null ? active.copy() : null;
+        MappedByteBuffer activeBufferBefore = activeBuffer;
+        try {
+            for(int i = 0; i < entries.size(); i++)
+            {
+                SensorsEntry entry = entries.get(i);
+                previousIds[i] = entry.getId();
+                entry.setId(id++);
+                bytes.reset();
+                SensorsEntryCodec.write(out, entry);
+                out.flush();
+                if(bytes.size() > segmentSize - RECORD_HEADER_SIZE)
+                    throw new IOException("Entry " + entry.getId() + " does not fit in a segment (" + bytes.size() + " bytes)");
+                payloads.add(bytes.toByteArray());
+            }
+
+            for(int i = 0; i < entries.size(); i++)
+            {
+                SensorsEntry entry = entries.get(i);
+                byte[] payload = payloads.get(i);
+                Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+                if(segment == null || segment.end + RECORD_HEADER_SIZE + payload.length > segmentSize)
+                    segment = roll(entry.getId());
+                writeRecord(segment, entry, payload);
+            }
+            written = true;
+        } finally {
+            if(!written)
+            {
+                for(int i = 0; i < entries.size(); i++)
+                    entries.get(i).setId(previousIds[i]);
+                rollBack(segmentCount, active, activeBefore, activeBufferBefore);
+            }
+        }
+        nextId = id;
+        foldRollups(entries);
+    }
+
+    /**
+     * undoes an append that failed
+     * @param segmentCount - number of segments before it: the segments started by it are deleted
+     * @param active - segment that was active before it, or null
+     * @param activeBefore - copy of that segment before it, or null
+     * @param activeBufferBefore - mapping of that segment
+     */
+    private void rollBack(int segmentCount, Segment active, Segment activeBefore, MappedByteBuffer activeBufferBefore)
+    {
+        while(segments.size() > segmentCount)
+        {
+            Segment segment = segments.remove(segments.size() - 1);
+            if(!segment.file.delete())
+                Log.w(LOG_TAG, "Failed to delete " + segment.file);
+        }
+        activeBuffer = activeBufferBefore;
+        if(active == null)
+            return;
+        erase(activeBuffer, activeBefore.end); //no record written since is read when the storage is opened again
+        active.restore(activeBefore);
+        Log.w(LOG_TAG, "Append rolled back to record " + active.count + " of " + active.file.getName());
+    }
+
+    /**
+     * folds entries into their rollups, as well as the entries whose rollups could not be written before.
+     * If the rollups cannot be written the entries are kept to be folded on the next attempt
+     * @param entries - entries just appended
+     */
+    private void foldRollups(List<SensorsEntry> entries)
+    {
+        unfoldedEntries.addAll(entries);
+        if(unfoldedEntries.isEmpty())
+            return;
+        List<SensorsRollup> changed = rollupAggregator.fold(unfoldedEntries, new RollupAggregator.Loader() {
+            @Override
+            public SensorsRollup load(String key) {
+                SensorsRollup rollup = rollups.get(key);
+                return rollup != null ? new SensorsRollup(rollup) : null;
+            }
+        });
+        //the rollups changed are in place before the journal is compacted, which rewrites it from them; the ones they
+        //replaced are put back if it cannot be written
+        Map<String, SensorsRollup> previous = new HashMap<>();
+        for(SensorsRollup rollup:changed)
+            previous.put(rollup.getKey(), rollups.put(rollup.getKey(), new SensorsRollup(rollup)));
+        try {
+            rollupJournal.append(changed);
+            rollupJournal.compact(rollups.values());
+        } catch (IOException e) {
+            for(Map.Entry<String, SensorsRollup> rollup:previous.entrySet())
+            {
+                if(rollup.getValue() != null)
+                    rollups.put(rollup.getKey(), rollup.getValue());
+                else
+                    rollups.remove(rollup.getKey());
+            }
+            rollupAggregator.invalidate();
+            Log.w(LOG_TAG, "Failed to write rollups of " + unfoldedEntries.size() + " entries", e);
+            return;
+        }
+        unfoldedEntries.clear();
+    }
+
+    @Override
+    public long getLastFinalTimestamp() {
+        long lastFinalTimestamp = purgedFinalTimestamp;
+        for(Segment segment:segments)
+            if(segment.count > 0)
+                lastFinalTimestamp = Math.max(lastFinalTimestamp, segment.maxFinalTimestamp);
+        return lastFinalTimestamp;
+    }
+
+    @Override
+    public void scan(long fromTimestamp, long toTimestamp, Visitor visitor) throws IOException {
+        visit(new LogCursor(fromTimestamp, toTimestamp, 0, Integer.MAX_VALUE, EntryFields.ALL), visitor);
+    }
+
+    @Override
+    public SensorsEntryCursor query(long fromTimestamp, long toTimestamp, long afterId, int limit, int fields) {
+        return new LogCursor(fromTimestamp, toTimestamp, afterId, limit, fields);
+    }
+
+    @Override
+    public void scanNotUploaded(Visitor visitor) throws IOException {
+        visit(new LogCursor(Long.MIN_VALUE, Long.MAX_VALUE, uploadedId, Integer.MAX_VALUE, EntryFields.ALL), visitor);
+    }
+
+    private static void visit(SensorsEntryCursor cursor, Visitor visitor) throws IOException
+    {
+        try {
+            while(cursor.moveToNext())
+                if(!visitor.visit(cursor.getEntry()))
+                    break;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public long countNotUploaded() {
+        //ids are consecutive within the log
+        long count = 0;
+        for(Segment segment:segments)
+            if(segment.count > 0 && segment.lastId > uploadedId)
+                count += segment.lastId - Math.max(segment.firstId - 1, uploadedId);
+        return count;
+    }
+
+    @Override
+    public UploadWatermark getUploadWatermark() {
+        return new UploadWatermark(uploadedSequence, uploadedId, pendingSequence, pendingLastId);
+    }
+
+    @Override
+    public void setUploadWatermark(UploadWatermark watermark) throws IOException {
+        uploadedId = Math.max(uploadedId, watermark.getAcknowledgedId());
+        uploadedSequence = watermark.getAcknowledgedSequence();
+        pendingSequence = watermark.getPendingSequence();
+        pendingLastId = watermark.getPendingLastId();
+        writeState();
+    }
+
+    @Override
+    public PurgeResult purgeUploaded(int maxEntries) throws IOException {
+        //whole segments are deleted, at least one even if it holds more than maxEntries
+        PurgeResult result = new PurgeResult();
+        //segments are in order of id: once one was not completely uploaded, the following ones were not either
+        while(!segments.isEmpty() && segments.get(0).count > 0 && segments.get(0).lastId <= uploadedId
+                && (result.getEntries() == 0 || result.getEntries() + segments.get(0).count <= maxEntries))
+        {
+            if(!deleteOldestSegment(result))
+                break;
+        }
+        return result;
+    }
+
+    @Override
+    public PurgeResult purgeOlderThan(long timestamp, int maxEntries) throws IOException {
+        PurgeResult result = new PurgeResult();
+        //the active segment is kept, as entries are still appended to it
+        while(segments.size() > 1 && segments.get(0).maxFinalTimestamp < timestamp
+                && (result.getEntries() == 0 || result.getEntries() + segments.get(0).count <= maxEntries))
+        {
+            if(!deleteOldestSegment(result))
+                break;
+        }
+        return result;
+    }
+
+    @Override
+    public void scanRollups(int resolution, long fromTimestamp, long toTimestamp, RollupVisitor visitor) {
+        List<SensorsRollup> found = new ArrayList<>();
+        for(SensorsRollup rollup:rollups.values())
+            if(rollup.getResolution() == resolution && rollup.getBucketStart() >= fromTimestamp && rollup.getBucketStart() < toTimestamp)
+                found.add(rollup);
+        Collections.sort(found, new Comparator<SensorsRollup>() {
+            @Override
+            public int compare(SensorsRollup a, SensorsRollup b) {
+                return a.getBucketStart() < b.getBucketStart() ? -1 : (a.getBucketStart() == b.getBucketStart() ? 0 : 1);
+            }
+        });
+        for(SensorsRollup rollup:found)
+        {
+            if(!visitor.visit(rollup))
+                break;
+        }
+    }
+
+    @Override
+    public int purgeRollupsOlderThan(int resolution, long timestamp) throws IOException {
+        List<String> keys = new ArrayList<>();
+        for(SensorsRollup rollup:rollups.values())
+            if(rollup.getResolution() == resolution && rollup.getBucketStart() < timestamp)
+                keys.add(rollup.getKey());
+        if(keys.isEmpty())
+            return 0;
+        for(String key:keys)
+            rollups.remove(key);
+        rollupJournal.rewrite(rollups.values());
+        return keys.size();
+    }
+
+    /**
+     * deletes the oldest segment file
+     * @param result - rows and space reclaimed, updated with the segment deleted
+     * @return false if the file could not be deleted
+     */
+    private boolean deleteOldestSegment(PurgeResult result) throws IOException
+    {
+        Segment segment = segments.get(0);
+        long bytes = segment.file.length();
+        if(segments.size() == 1)
+            activeBuffer = null; //a new segment is started by the next append
+        if(!segment.file.delete())
+        {
+            Log.w(LOG_TAG, "Failed to delete " + segment.file);
+            return false;
+        }
+        segments.remove(0);
+        if(segment.count > 0 && segment.maxFinalTimestamp > purgedFinalTimestamp)
+        {
+            purgedFinalTimestamp = segment.maxFinalTimestamp;
+            writeState();
+        }
+        //motion values and locations are stored inside the entries
+        result.add(new PurgeResult(segment.count, 0, 0, bytes));
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if(activeBuffer != null)
+            activeBuffer.force();
+        activeBuffer = null;
+        segments.clear();
+        rollups.clear();
+        rollupAggregator.invalidate();
+    }
+
+    /**
+     * @return number of segment files
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * starts a new segment, the active segment being left as it is
+     * @param firstId - id of the first entry of the new segment
+     * @return the new segment
+     */
+    private Segment roll(long firstId) throws IOException
+    {
+        if(activeBuffer != null)
+            activeBuffer.force();
+        Segment segment = new Segment(new File(directory, SEGMENT_PREFIX + firstId + SEGMENT_SUFFIX), firstId);
+        activeBuffer = map(segment.file, true);
+        segments.add(segment);
+        return segment;
+    }
+
+    private void writeRecord(Segment segment, SensorsEntry entry, byte[] payload)
+    {
+        int position = segment.end;
+        CRC32 crc = new CRC32();
+        updateCrc(crc, entry.getId());
+        updateCrc(crc, entry.getBeginningTimestamp());
+        updateCrc(crc, entry.getFinalTimestamp());
+        crc.update(payload, 0, payload.length);
+
+        //the length is written last, so that a record is not seen before it is complete
+        activeBuffer.position(position + 4);
+        activeBuffer.putInt((int) crc.getValue());
+        activeBuffer.putLong(entry.getId());
+        activeBuffer.putLong(entry.getBeginningTimestamp());
+        activeBuffer.putLong(entry.getFinalTimestamp());
+        activeBuffer.put(payload);
+        activeBuffer.putInt(position, payload.length);
+        segment.add(position, RECORD_HEADER_SIZE + payload.length, entry.getId(), entry.getBeginningTimestamp(), entry.getFinalTimestamp());
+    }
+
+    /**
+     * reads the records of a segment, checking them, to find where they end and to build its sparse index.
+     * Anything after the first invalid record is erased from the active segment, so that it is overwritten
+     */
+    private void recover(Segment segment, MappedByteBuffer buffer, boolean active)
+    {
+        int position = 0;
+        byte[] payload = new byte[0];
+        while(position + RECORD_HEADER_SIZE <= buffer.capacity())
+        {
+            int length = buffer.getInt(position);
+            if(length <= 0 || position + RECORD_HEADER_SIZE + length > buffer.capacity())
+                break;
+            int crc = buffer.getInt(position + 4);
+            long id = buffer.getLong(position + 8);
+            long beginningTimestamp = buffer.getLong(position + 16);
+            long finalTimestamp = buffer.getLong(position + 24);
+            if(payload.length < length)
+                payload = new byte[length];
+            buffer.position(position + RECORD_HEADER_SIZE);
+            buffer.get(payload, 0, length);
+            CRC32 expected = new CRC32();
+            updateCrc(expected, id);
+            updateCrc(expected, beginningTimestamp);
+            updateCrc(expected, finalTimestamp);
+            expected.update(payload, 0, length);
+            if((int) expected.getValue() != crc || id <= segment.lastId)
+                break;
+            segment.add(position, RECORD_HEADER_SIZE + length, id, beginningTimestamp, finalTimestamp);
+            position = segment.end;
+        }
+
+        if(position + 4 <= buffer.capacity() && buffer.getInt(position) != 0)
+        {
+            Log.w(LOG_TAG, "Ignoring incomplete record at " + position + " of " + segment.file.getName());
+            if(active)
+                erase(buffer, position);
+        }
+    }
+
+    //zeroes a mapped segment from a position, so that the records after it are overwritten
+    private static void erase(MappedByteBuffer buffer, int from)
+    {
+        for(int i = from; i < buffer.capacity(); i++)
+            buffer.put(i, (byte) 0);
+    }
+
+    /**
+     * cursor reading the records of the segments in order, decoding only the ones requested. The segments skipped
+     * are never mapped, and in each segment reading starts from the sparse index
+     */
+    private class LogCursor implements SensorsEntryCursor {
+        private final List<Segment> segments = new ArrayList<>(SegmentedLogStorage.this.segments); //segments when the query was made
+        private final long fromTimestamp; //lowest beginning timestamp of the entries requested (ms)
+        private final long toTimestamp; //beginning timestamp (exclusive) after which no entry is requested (ms)
+        private final long afterId; //entries with this id or lower are not requested
+        private final int limit;
+        private final int fields;
+        private int segmentIndex = -1; //segment being read
+        private MappedByteBuffer buffer; //mapping of the segment being read, null once it was read
+        private int position; //position of the next record in the segment
+        private byte[] payload = new byte[0];
+        private SensorsEntry entry;
+        private long lastId = 0;
+        private int read = 0; //number of entries read
+
+        LogCursor(long fromTimestamp, long toTimestamp, long afterId, int limit, int fields) {
+            this.fromTimestamp = fromTimestamp;
+            this.toTimestamp = toTimestamp;
+            this.afterId = afterId;
+            this.limit = limit;
+            this.fields = fields;
+        }
+
+        @Override
+        public boolean moveToNext() throws IOException {
+            entry = null;
+            while(read < limit)
+            {
+                if(buffer == null && !nextSegment())
+                    return false;
+                Segment segment = segments.get(segmentIndex);
+                if(position >= segment.end)
+                {
+                    buffer = null;
+                    continue;
+                }
+                int length = buffer.getInt(position);
+                long id = buffer.getLong(position + 8);
+                long beginningTimestamp = buffer.getLong(position + 16);
+                if(segment.ordered && beginningTimestamp >= toTimestamp)
+                {
+                    buffer = null;
+                    continue;
+                }
+                int record = position;
+                position += RECORD_HEADER_SIZE + length;
+                if(id <= afterId || beginningTimestamp < fromTimestamp || beginningTimestamp >= toTimestamp)
+                    continue;
+
+                if(payload.length < length)
+                    payload = new byte[length];
+                buffer.position(record + RECORD_HEADER_SIZE);
+                buffer.get(payload, 0, length);
+                entry = SensorsEntryCodec.read(new DataInputStream(new ByteArrayInputStream(payload, 0, length)), fields);
+                lastId = id;
+                read++;
+                return true;
+            }
+            return false;
+        }
+
+        //moves to the next segment which may hold entries requested
+        private boolean nextSegment() throws IOException
+        {
+            while(++segmentIndex < segments.size())
+            {
+                Segment segment = segments.get(segmentIndex);
+                if(segment.count == 0 || segment.lastId <= afterId || segment.maxTimestamp < fromTimestamp || segment.minTimestamp >= toTimestamp)
+                    continue;
+                Segment active = SegmentedLogStorage.this.segments.isEmpty() ? null : SegmentedLogStorage.this.segments.get(SegmentedLogStorage.this.segments.size() - 1);
+                buffer = segment == active && activeBuffer != null ? activeBuffer : map(segment.file, false);
+                position = segment.seek(fromTimestamp);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public SensorsEntry getEntry() {
+            return entry;
+        }
+
+        @Override
+        public long getLastId() {
+            return lastId;
+        }
+
+        @Override
+        public void close() {
+            buffer = null;
+            entry = null;
+            segmentIndex = segments.size();
+        }
+    }
+
+    private MappedByteBuffer map(File file, boolean writable) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        try {
+            if(writable && raf.length() < segmentSize)
+                raf.setLength(segmentSize); //the file is filled with zeros, which mark the end of the records
+            FileChannel channel = raf.getChannel();
+            return channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, writable ? segmentSize : raf.length());
+        } finally {
+            raf.close(); //the mapping stays valid after the file is closed
+        }
+    }
+
+    private static void updateCrc(CRC32 crc, long value)
+    {
+        for(int shift = 56; shift >= 0; shift -= 8)
+            crc.update((int) (value >>> shift));
+    }
+
+    private void readState()
+    {
+        File file = new File(directory, STATE_FILE);
+        uploadedId = 0;
+        purgedFinalTimestamp = 0;
+        uploadedSequence = 0;
+        pendingSequence = 0;
+        pendingLastId = 0;
+        if(!file.exists())
+            return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            uploadedId = in.readLong();
+            purgedFinalTimestamp = in.readLong();
+            if(in.available() > 0) //written before batches had sequence numbers otherwise
+            {
+                uploadedSequence = in.readLong();
+                pendingSequence = in.readLong();
+                pendingLastId = in.readLong();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to read " + file, e);
+        } finally {
+            if(in != null)
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+        }
+    }
+
+    private void writeState() throws IOException
+    {
+        File file = new File(directory, STATE_FILE);
+        File temp = new File(directory, STATE_FILE + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            out.writeLong(uploadedId);
+            out.writeLong(purgedFinalTimestamp);
+            out.writeLong(uploadedSequence);
+            out.writeLong(pendingSequence);
+            out.writeLong(pendingLastId);
+        } finally {
+            out.close();
+        }
+        if(!temp.renameTo(file))
+            throw new IOException("Failed to replace " + file);
+    }
+}
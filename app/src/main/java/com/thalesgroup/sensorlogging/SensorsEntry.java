@@ -5,6 +5,7 @@ import java.sql.Timestamp;
 
 import io.realm.RealmList;
 import io.realm.RealmObject;
+import io.realm.annotations.Index;
 import io.realm.annotations.PrimaryKey;
 
 /*
@@ -18,7 +19,9 @@ public class SensorsEntry extends RealmObject {
 
     @PrimaryKey
     private long id; //identifier (primary key)
-    private long beginningTimestamp;
+    @Index
+    private long beginningTimestamp; //(indexed for the queries by interval of time)
+    @Index
     private long finalTimestamp;
     private String timestamp; //TODO remove
     private int batteryLevel; //absolute value indicates percentage of battery, positive if charging, negative if not charging (measured only in the final timestamp instant)
@@ -29,7 +32,6 @@ public class SensorsEntry extends RealmObject {
     private MotionValues motionValues; //field containing information about motion measured with acceleration sensors of the device (measured during the whole interval)
 
 
-    private boolean onServer; //true if this entry has been uploaded to the server, false if not
     private boolean display; //indicates weather the screen of the device if on (true if on, false if off) (measured only in the final timestamp instant)
 
     private float magneticField; //average module of the magnetic field in uT (measured during the whole interval)
@@ -95,8 +97,6 @@ public class SensorsEntry extends RealmObject {
 
         this.magneticField = magneticField;
 
-        this.onServer = false;
-
     }
 
     public long getBeginningTimestamp() {
@@ -115,14 +115,6 @@ public class SensorsEntry extends RealmObject {
         this.finalTimestamp = finalTimestamp;
     }
 
-    public boolean isOnServer() {
-        return onServer;
-    }
-
-    public void setOnServer(boolean onServer) {
-        this.onServer = onServer;
-    }
-
     public String getTimestamp() {
         return timestamp;
     }
@@ -0,0 +1,305 @@
+package com.thalesgroup.sensorlogging;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import io.realm.RealmList;
+
+/**
+ * Binary encoding of a SensorsEntry and the objects it contains (motion values, locations, wifi devices,
+ * wifi networks and bluetooth devices), used to keep entries in files outside the database.
+ * Every record starts with the version of the encoding, so that records written by older versions can still be read
+ */
+public abstract class SensorsEntryCodec {
+
+    private static final int VERSION = 1; //version of the encoding written by this class
+    private static final int MOTION_VALUES_SIZE = 8 + 8*4 + 1; //motion values after their presence flag (bytes)
+    private static final int LOCATION_SIZE = 8 + 3*8 + 3*4 + 4; //location up to its provider (bytes)
+
+    /**
+     * writes an entry and the objects it contains
+     * @param out - output
+     * @param entry - entry to write
+     * @throws IOException if the output fails
+     */
+    public static void write(DataOutput out, SensorsEntry entry) throws IOException
+    {
+        out.writeByte(VERSION);
+        out.writeLong(entry.getId());
+        out.writeLong(entry.getBeginningTimestamp());
+        out.writeLong(entry.getFinalTimestamp());
+        out.writeInt(entry.getBatteryLevel());
+        out.writeInt(entry.getSignalStrength());
+        out.writeBoolean(entry.isInMotion());
+        out.writeBoolean(entry.isMoving());
+        out.writeBoolean(entry.isDisplay());
+        out.writeBoolean(false); //unused (whether the entry was uploaded, now kept by the upload watermark of the storage)
+        out.writeFloat(entry.getMagneticField());
+        out.writeFloat(entry.getProximity());
+        out.writeFloat(entry.getMaxSpeed());
+        out.writeFloat((float) entry.getTotalDistance());
+        writeString(out, entry.getCurrentNetworkSSID());
+
+        MotionValues motionValues = entry.getMotionValues();
+        out.writeBoolean(motionValues != null);
+        if(motionValues != null)
+        {
+            out.writeLong(motionValues.getId());
+            out.writeFloat(motionValues.getAverageAcceleration());
+            out.writeFloat(motionValues.getStandardDeviationAcceleration());
+            out.writeFloat(motionValues.getAverageVelocity());
+            out.writeFloat(motionValues.getStandardDeviationVelocity());
+            out.writeFloat(motionValues.getAverageInclinationX());
+            out.writeFloat(motionValues.getStandardDeviationInclinationX());
+            out.writeFloat(motionValues.getAverageInclinationY());
+            out.writeFloat(motionValues.getStandardDeviationInclinationY());
+            out.writeBoolean(motionValues.isInMotion());
+        }
+
+        RealmList<LocationCustom> locationList = entry.getLocationList();
+        writeSize(out, locationList);
+        if(locationList != null)
+            for(LocationCustom location:locationList)
+            {
+                out.writeLong(location.getId());
+                out.writeDouble(location.getLatitude());
+                out.writeDouble(location.getLongitude());
+                out.writeDouble(location.getAltitude());
+                out.writeFloat(location.getBearing());
+                out.writeFloat(location.getSpeed());
+                out.writeFloat(location.getAccuracy());
+                out.writeInt(location.getNumberOfSatellites());
+                writeString(out, location.getProvider());
+                out.writeLong(location.getTimestamp());
+            }
+
+        RealmList<WifiDeviceCustom> wifiDevices = entry.getWifiDevices();
+        writeSize(out, wifiDevices);
+        if(wifiDevices != null)
+            for(WifiDeviceCustom device:wifiDevices)
+            {
+                out.writeLong(device.getId());
+                writeString(out, device.getIp());
+                writeString(out, device.getMac());
+                writeString(out, device.getNetworkSSID());
+            }
+
+        RealmList<WifiNetworkCustom> wifiNetworks = entry.getWifiNetworks();
+        writeSize(out, wifiNetworks);
+        if(wifiNetworks != null)
+            for(WifiNetworkCustom network:wifiNetworks)
+            {
+                out.writeLong(network.getId());
+                writeString(out, network.getSSID());
+                writeString(out, network.getBSSID());
+            }
+
+        RealmList<BluetoothDeviceCustom> bluetoothDevices = entry.getBluetoothDevices();
+        writeSize(out, bluetoothDevices);
+        if(bluetoothDevices != null)
+            for(BluetoothDeviceCustom device:bluetoothDevices)
+            {
+                out.writeLong(device.getId());
+                writeString(out, device.getAddress());
+                writeString(out, device.getName());
+                out.writeInt(device.getType());
+            }
+    }
+
+    /**
+     * reads an entry written by write(DataOutput, SensorsEntry)
+     * @param in - input
+     * @return unmanaged entry
+     * @throws IOException if the input fails or the record was written by an unknown version
+     */
+    public static SensorsEntry read(DataInput in) throws IOException
+    {
+        return read(in, EntryFields.ALL);
+    }
+
+    /**
+     * reads some of the fields of an entry written by write(DataOutput, SensorsEntry). The objects not selected are
+     * skipped without being built
+     * @param in - input
+     * @param fields - objects read (see EntryFields)
+     * @return unmanaged entry (the objects not selected are null)
+     * @throws IOException if the input fails or the record was written by an unknown version
+     */
+    public static SensorsEntry read(DataInput in, int fields) throws IOException
+    {
+        int version = in.readUnsignedByte();
+        if(version != VERSION)
+            throw new IOException("Unknown version of SensorsEntry record: " + version);
+
+        long id = in.readLong();
+        long beginningTimestamp = in.readLong();
+        long finalTimestamp = in.readLong();
+        int batteryLevel = in.readInt();
+        int signalStrength = in.readInt();
+        boolean inMotion = in.readBoolean();
+        boolean moving = in.readBoolean();
+        boolean display = in.readBoolean();
+        in.readBoolean(); //unused
+        float magneticField = in.readFloat();
+        float proximity = in.readFloat();
+        float maxSpeed = in.readFloat();
+        float totalDistance = in.readFloat();
+        String currentNetworkSSID = readString(in);
+
+        MotionValues motionValues = null;
+        RealmList<LocationCustom> locationList = null;
+        RealmList<WifiDeviceCustom> wifiDevices = null;
+        RealmList<WifiNetworkCustom> wifiNetworks = null;
+        RealmList<BluetoothDeviceCustom> bluetoothDevices = null;
+        int size, numberWifiDevices, numberWifiNetworks, numberBluetoothDevices;
+
+        if((fields & EntryFields.MOTION_VALUES) == 0)
+        {
+            if(in.readBoolean())
+                in.skipBytes(MOTION_VALUES_SIZE);
+        }
+        else if(in.readBoolean())
+        {
+            long motionValuesId = in.readLong();
+            motionValues = new MotionValues(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat(),
+                    in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat(), in.readBoolean());
+            motionValues.setId(motionValuesId);
+        }
+
+        size = in.readInt();
+        if((fields & EntryFields.LOCATIONS) == 0)
+        {
+            for(int i = 0; i < size; i++)
+            {
+                in.skipBytes(LOCATION_SIZE);
+                skipString(in);
+                in.skipBytes(8);
+            }
+        }
+        else if(size >= 0)
+        {
+            locationList = new RealmList<>();
+            for(int i = 0; i < size; i++)
+            {
+                LocationCustom location = new LocationCustom();
+                location.setId(in.readLong());
+                location.setLatitude(in.readDouble());
+                location.setLongitude(in.readDouble());
+                location.setAltitude(in.readDouble());
+                location.setBearing(in.readFloat());
+                location.setSpeed(in.readFloat());
+                location.setAccuracy(in.readFloat());
+                location.setNumberOfSatellites(in.readInt());
+                location.setProvider(readString(in));
+                location.setTimestamp(in.readLong());
+                locationList.add(location);
+            }
+        }
+
+        size = numberWifiDevices = in.readInt();
+        if((fields & EntryFields.WIFI_DEVICES) == 0)
+        {
+            for(int i = 0; i < size; i++)
+            {
+                in.skipBytes(8);
+                skipString(in);
+                skipString(in);
+                skipString(in);
+            }
+        }
+        else if(size >= 0)
+        {
+            wifiDevices = new RealmList<>();
+            for(int i = 0; i < size; i++)
+            {
+                long deviceId = in.readLong();
+                WifiDeviceCustom device = new WifiDeviceCustom(readString(in), readString(in), readString(in));
+                device.setId(deviceId);
+                wifiDevices.add(device);
+            }
+        }
+
+        size = numberWifiNetworks = in.readInt();
+        if((fields & EntryFields.WIFI_NETWORKS) == 0)
+        {
+            for(int i = 0; i < size; i++)
+            {
+                in.skipBytes(8);
+                skipString(in);
+                skipString(in);
+            }
+        }
+        else if(size >= 0)
+        {
+            wifiNetworks = new RealmList<>();
+            for(int i = 0; i < size; i++)
+            {
+                WifiNetworkCustom network = new WifiNetworkCustom();
+                network.setId(in.readLong());
+                network.setSSID(readString(in));
+                network.setBSSID(readString(in));
+                wifiNetworks.add(network);
+            }
+        }
+
+        size = numberBluetoothDevices = in.readInt();
+        if((fields & EntryFields.BLUETOOTH_DEVICES) == 0)
+        {
+            for(int i = 0; i < size; i++)
+            {
+                in.skipBytes(8);
+                skipString(in);
+                skipString(in);
+                in.skipBytes(4);
+            }
+        }
+        else if(size >= 0)
+        {
+            bluetoothDevices = new RealmList<>();
+            for(int i = 0; i < size; i++)
+            {
+                BluetoothDeviceCustom device = new BluetoothDeviceCustom();
+                device.setId(in.readLong());
+                device.setAddress(readString(in));
+                device.setName(readString(in));
+                device.setType(in.readInt());
+                bluetoothDevices.add(device);
+            }
+        }
+
+        SensorsEntry entry = new SensorsEntry(beginningTimestamp, finalTimestamp, batteryLevel, signalStrength, motionValues, inMotion, moving, display, maxSpeed, totalDistance, currentNetworkSSID, magneticField, proximity, locationList, wifiDevices, wifiNetworks, bluetoothDevices);
+        entry.setId(id);
+        //the numbers of devices and networks are kept even if they were not read
+        entry.setNumberWifiDevices(numberWifiDevices);
+        entry.setNumberWifiNetworks(numberWifiNetworks);
+        entry.setNumberBluetoothDevices(numberBluetoothDevices);
+        return entry;
+    }
+
+    //writes the size of a list, or -1 if there is no list
+    private static void writeSize(DataOutput out, RealmList<?> list) throws IOException
+    {
+        out.writeInt(list != null ? list.size() : -1);
+    }
+
+    private static void writeString(DataOutput out, String string) throws IOException
+    {
+        out.writeBoolean(string != null);
+        if(string != null)
+            out.writeUTF(string);
+    }
+
+    private static String readString(DataInput in) throws IOException
+    {
+        if(in.readBoolean())
+            return in.readUTF();
+        return null;
+    }
+
+    private static void skipString(DataInput in) throws IOException
+    {
+        if(in.readBoolean())
+            in.skipBytes(in.readUnsignedShort());
+    }
+}
@@ -0,0 +1,32 @@
+package com.thalesgroup.sensorlogging;
+
+import java.io.IOException;
+
+/**
+ * Reads, one at a time, the entries found by a query (see SensorsEntryStorage.query()), so that reading a long
+ * history never holds more than one entry in memory. Must be used from the thread of the storage, and closed
+ */
+public interface SensorsEntryCursor {
+
+    /**
+     * moves to the next entry
+     * @return false if there are no more entries (or the limit of the query was reached)
+     * @throws IOException if the storage could not be read
+     */
+    boolean moveToNext() throws IOException;
+
+    /**
+     * @return current entry, unmanaged, with only the objects selected by the query (the ones not selected are null)
+     */
+    SensorsEntry getEntry();
+
+    /**
+     * @return id of the last entry read, to be given to the query of the next page (0 if none was read)
+     */
+    long getLastId();
+
+    /**
+     * releases the resources of the cursor
+     */
+    void close();
+}
@@ -0,0 +1,492 @@
+package com.thalesgroup.sensorlogging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Writes entries (SensorsEntry) and the objects they contain as JSON, straight into an output stream through a
+ * buffer reused for every entry: field names are encoded once, numbers and strings are encoded in place, and the lists
+ * of an entry are read where they are, so that writing an entry builds no object.
+ * Decimal numbers are written with a fixed number of decimal places, enough for what the sensors measure
+ * (FLOAT_DECIMALS, COORDINATE_DECIMALS for latitudes and longitudes); numbers that are not finite are written as null.
+ * Not thread-safe
+ */
+public class SensorsEntryJsonWriter {
+
+    private static final int BUFFER_SIZE = 8*1024; //(bytes)
+    public static final int FLOAT_DECIMALS = 4; //decimal places of the float values
+    public static final int COORDINATE_DECIMALS = 7; //decimal places of latitudes and longitudes (about 1cm)
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L};
+    private static final double MAX_FIXED = 1e11; //beyond this, decimal numbers are written by Double.toString()
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    //names of the fields, with the separators around them
+    private static final byte[] ENTRY_ID = ascii("{\"id\":");
+    private static final byte[] BEGINNING_TIMESTAMP = ascii(",\"beginningTimestamp\":");
+    private static final byte[] FINAL_TIMESTAMP = ascii(",\"finalTimestamp\":");
+    private static final byte[] BATTERY_LEVEL = ascii(",\"batteryLevel\":");
+    private static final byte[] SIGNAL_STRENGTH = ascii(",\"signalStrength\":");
+    private static final byte[] IN_MOTION = ascii(",\"inMotion\":");
+    private static final byte[] MOVING = ascii(",\"moving\":");
+    private static final byte[] DISPLAY = ascii(",\"display\":");
+    private static final byte[] MAGNETIC_FIELD = ascii(",\"magneticField\":");
+    private static final byte[] PROXIMITY = ascii(",\"proximity\":");
+    private static final byte[] MAX_SPEED = ascii(",\"maxSpeed\":");
+    private static final byte[] TOTAL_DISTANCE = ascii(",\"totalDistance\":");
+    private static final byte[] CURRENT_NETWORK_SSID = ascii(",\"currentNetworkSSID\":");
+    private static final byte[] NUMBER_WIFI_DEVICES = ascii(",\"numberWifiDevices\":");
+    private static final byte[] NUMBER_WIFI_NETWORKS = ascii(",\"numberWifiNetworks\":");
+    private static final byte[] NUMBER_BLUETOOTH_DEVICES = ascii(",\"numberBluetoothDevices\":");
+    private static final byte[] MOTION_VALUES = ascii(",\"motionValues\":");
+    private static final byte[] LOCATION_LIST = ascii(",\"locationList\":");
+    private static final byte[] WIFI_DEVICES = ascii(",\"wifiDevices\":");
+    private static final byte[] WIFI_NETWORKS = ascii(",\"wifiNetworks\":");
+    private static final byte[] BLUETOOTH_DEVICES = ascii(",\"bluetoothDevices\":");
+    private static final byte[] AVERAGE_ACCELERATION = ascii(",\"averageAcceleration\":");
+    private static final byte[] STANDARD_DEVIATION_ACCELERATION = ascii(",\"standardDeviationAcceleration\":");
+    private static final byte[] AVERAGE_VELOCITY = ascii(",\"averageVelocity\":");
+    private static final byte[] STANDARD_DEVIATION_VELOCITY = ascii(",\"standardDeviationVelocity\":");
+    private static final byte[] AVERAGE_INCLINATION_X = ascii(",\"averageInclinationX\":");
+    private static final byte[] STANDARD_DEVIATION_INCLINATION_X = ascii(",\"standardDeviationInclinationX\":");
+    private static final byte[] AVERAGE_INCLINATION_Y = ascii(",\"averageInclinationY\":");
+    private static final byte[] STANDARD_DEVIATION_INCLINATION_Y = ascii(",\"standardDeviationInclinationY\":");
+    private static final byte[] LATITUDE = ascii(",\"latitude\":");
+    private static final byte[] LONGITUDE = ascii(",\"longitude\":");
+    private static final byte[] ALTITUDE = ascii(",\"altitude\":");
+    private static final byte[] BEARING = ascii(",\"bearing\":");
+    private static final byte[] SPEED = ascii(",\"speed\":");
+    private static final byte[] ACCURACY = ascii(",\"accuracy\":");
+    private static final byte[] NUMBER_OF_SATELLITES = ascii(",\"numberOfSatellites\":");
+    private static final byte[] PROVIDER = ascii(",\"provider\":");
+    private static final byte[] TIMESTAMP = ascii(",\"timestamp\":");
+    private static final byte[] IP = ascii(",\"ip\":");
+    private static final byte[] MAC = ascii(",\"mac\":");
+    private static final byte[] NETWORK_SSID = ascii(",\"networkSSID\":");
+    private static final byte[] SSID = ascii(",\"SSID\":");
+    private static final byte[] BSSID = ascii(",\"BSSID\":");
+    private static final byte[] ADDRESS = ascii(",\"address\":");
+    private static final byte[] NAME = ascii(",\"name\":");
+    private static final byte[] TYPE = ascii(",\"type\":");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] TRUE = ascii("true");
+    private static final byte[] FALSE = ascii("false");
+
+    private OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0; //bytes in the buffer
+    private long count = 0; //bytes written before the ones in the buffer
+    private boolean firstInArray = true; //true if no entry was written since beginArray()
+
+    /**
+     * Constructor
+     * @param out - output, which may be replaced later (see reset())
+     */
+    public SensorsEntryJsonWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * starts writing to another output, keeping the buffer. Whatever was not flushed to the previous output is discarded
+     * @param out - output
+     */
+    public void reset(OutputStream out)
+    {
+        this.out = out;
+        position = 0;
+        count = 0;
+        firstInArray = true;
+    }
+
+    /**
+     * @return number of bytes written since the writer was created or reset, including the ones not yet flushed
+     */
+    public long getCount() {
+        return count + position;
+    }
+
+    /**
+     * starts a JSON array, the entries written afterwards being its elements
+     */
+    public void beginArray() throws IOException
+    {
+        writeByte('[');
+        firstInArray = true;
+    }
+
+    /**
+     * ends the JSON array started by beginArray()
+     */
+    public void endArray() throws IOException
+    {
+        writeByte(']');
+    }
+
+    /**
+     * writes the buffer to the output and flushes it
+     */
+    public void flush() throws IOException
+    {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * writes an entry as a JSON object (preceded by a comma if it is not the first element of an array)
+     * @param entry - entry to write
+     * @throws IOException if the output fails
+     */
+    public void write(SensorsEntry entry) throws IOException
+    {
+        if(!firstInArray)
+            writeByte(',');
+        firstInArray = false;
+
+        writeBytes(ENTRY_ID);
+        writeLong(entry.getId());
+        writeBytes(BEGINNING_TIMESTAMP);
+        writeLong(entry.getBeginningTimestamp());
+        writeBytes(FINAL_TIMESTAMP);
+        writeLong(entry.getFinalTimestamp());
+        writeBytes(BATTERY_LEVEL);
+        writeLong(entry.getBatteryLevel());
+        writeBytes(SIGNAL_STRENGTH);
+        writeLong(entry.getSignalStrength());
+        writeBytes(IN_MOTION);
+        writeBoolean(entry.isInMotion());
+        writeBytes(MOVING);
+        writeBoolean(entry.isMoving());
+        writeBytes(DISPLAY);
+        writeBoolean(entry.isDisplay());
+        writeBytes(MAGNETIC_FIELD);
+        writeDecimal(entry.getMagneticField(), FLOAT_DECIMALS);
+        writeBytes(PROXIMITY);
+        writeDecimal(entry.getProximity(), FLOAT_DECIMALS);
+        writeBytes(MAX_SPEED);
+        writeDecimal(entry.getMaxSpeed(), FLOAT_DECIMALS);
+        writeBytes(TOTAL_DISTANCE);
+        writeDecimal(entry.getTotalDistance(), FLOAT_DECIMALS);
+        writeBytes(CURRENT_NETWORK_SSID);
+        writeString(entry.getCurrentNetworkSSID());
+        writeBytes(NUMBER_WIFI_DEVICES);
+        writeLong(entry.getNumberWifiDevices());
+        writeBytes(NUMBER_WIFI_NETWORKS);
+        writeLong(entry.getNumberWifiNetworks());
+        writeBytes(NUMBER_BLUETOOTH_DEVICES);
+        writeLong(entry.getNumberBluetoothDevices());
+
+        writeBytes(MOTION_VALUES);
+        writeMotionValues(entry.getMotionValues());
+
+        writeBytes(LOCATION_LIST);
+        List<LocationCustom> locationList = entry.getLocationList();
+        if(locationList == null)
+            writeBytes(NULL);
+        else
+        {
+            writeByte('[');
+            for(int i = 0; i < locationList.size(); i++)
+            {
+                if(i > 0)
+                    writeByte(',');
+                writeLocation(locationList.get(i));
+            }
+            writeByte(']');
+        }
+
+        writeBytes(WIFI_DEVICES);
+        List<WifiDeviceCustom> wifiDevices = entry.getWifiDevices();
+        if(wifiDevices == null)
+            writeBytes(NULL);
+        else
+        {
+            writeByte('[');
+            for(int i = 0; i < wifiDevices.size(); i++)
+            {
+                if(i > 0)
+                    writeByte(',');
+                WifiDeviceCustom device = wifiDevices.get(i);
+                writeBytes(ENTRY_ID);
+                writeLong(device.getId());
+                writeBytes(IP);
+                writeString(device.getIp());
+                writeBytes(MAC);
+                writeString(device.getMac());
+                writeBytes(NETWORK_SSID);
+                writeString(device.getNetworkSSID());
+                writeByte('}');
+            }
+            writeByte(']');
+        }
+
+        writeBytes(WIFI_NETWORKS);
+        List<WifiNetworkCustom> wifiNetworks = entry.getWifiNetworks();
+        if(wifiNetworks == null)
+            writeBytes(NULL);
+        else
+        {
+            writeByte('[');
+            for(int i = 0; i < wifiNetworks.size(); i++)
+            {
+                if(i > 0)
+                    writeByte(',');
+                WifiNetworkCustom network = wifiNetworks.get(i);
+                writeBytes(ENTRY_ID);
+                writeLong(network.getId());
+                writeBytes(SSID);
+                writeString(network.getSSID());
+                writeBytes(BSSID);
+                writeString(network.getBSSID());
+                writeByte('}');
+            }
+            writeByte(']');
+        }
+
+        writeBytes(BLUETOOTH_DEVICES);
+        List<BluetoothDeviceCustom> bluetoothDevices = entry.getBluetoothDevices();
+        if(bluetoothDevices == null)
+            writeBytes(NULL);
+        else
+        {
+            writeByte('[');
+            for(int i = 0; i < bluetoothDevices.size(); i++)
+            {
+                if(i > 0)
+                    writeByte(',');
+                BluetoothDeviceCustom device = bluetoothDevices.get(i);
+                writeBytes(ENTRY_ID);
+                writeLong(device.getId());
+                writeBytes(ADDRESS);
+                writeString(device.getAddress());
+                writeBytes(NAME);
+                writeString(device.getName());
+                writeBytes(TYPE);
+                writeLong(device.getType());
+                writeByte('}');
+            }
+            writeByte(']');
+        }
+        writeByte('}');
+    }
+
+    private void writeMotionValues(MotionValues motionValues) throws IOException
+    {
+        if(motionValues == null)
+        {
+            writeBytes(NULL);
+            return;
+        }
+        writeBytes(ENTRY_ID);
+        writeLong(motionValues.getId());
+        writeBytes(AVERAGE_ACCELERATION);
+        writeDecimal(motionValues.getAverageAcceleration(), FLOAT_DECIMALS);
+        writeBytes(STANDARD_DEVIATION_ACCELERATION);
+        writeDecimal(motionValues.getStandardDeviationAcceleration(), FLOAT_DECIMALS);
+        writeBytes(AVERAGE_VELOCITY);
+        writeDecimal(motionValues.getAverageVelocity(), FLOAT_DECIMALS);
+        writeBytes(STANDARD_DEVIATION_VELOCITY);
+        writeDecimal(motionValues.getStandardDeviationVelocity(), FLOAT_DECIMALS);
+        writeBytes(AVERAGE_INCLINATION_X);
+        writeDecimal(motionValues.getAverageInclinationX(), FLOAT_DECIMALS);
+        writeBytes(STANDARD_DEVIATION_INCLINATION_X);
+        writeDecimal(motionValues.getStandardDeviationInclinationX(), FLOAT_DECIMALS);
+        writeBytes(AVERAGE_INCLINATION_Y);
+        writeDecimal(motionValues.getAverageInclinationY(), FLOAT_DECIMALS);
+        writeBytes(STANDARD_DEVIATION_INCLINATION_Y);
+        writeDecimal(motionValues.getStandardDeviationInclinationY(), FLOAT_DECIMALS);
+        writeBytes(IN_MOTION);
+        writeBoolean(motionValues.isInMotion());
+        writeByte('}');
+    }
+
+    private void writeLocation(LocationCustom location) throws IOException
+    {
+        writeBytes(ENTRY_ID);
+        writeLong(location.getId());
+        writeBytes(LATITUDE);
+        writeDecimal(location.getLatitude(), COORDINATE_DECIMALS);
+        writeBytes(LONGITUDE);
+        writeDecimal(location.getLongitude(), COORDINATE_DECIMALS);
+        writeBytes(ALTITUDE);
+        writeDecimal(location.getAltitude(), FLOAT_DECIMALS);
+        writeBytes(BEARING);
+        writeDecimal(location.getBearing(), FLOAT_DECIMALS);
+        writeBytes(SPEED);
+        writeDecimal(location.getSpeed(), FLOAT_DECIMALS);
+        writeBytes(ACCURACY);
+        writeDecimal(location.getAccuracy(), FLOAT_DECIMALS);
+        writeBytes(NUMBER_OF_SATELLITES);
+        writeLong(location.getNumberOfSatellites());
+        writeBytes(PROVIDER);
+        writeString(location.getProvider());
+        writeBytes(TIMESTAMP);
+        writeLong(location.getTimestamp());
+        writeByte('}');
+    }
+
+    private void writeBoolean(boolean value) throws IOException
+    {
+        writeBytes(value ? TRUE : FALSE);
+    }
+
+    private void writeLong(long value) throws IOException
+    {
+        ensure(20);
+        if(value == Long.MIN_VALUE)
+        {
+            writeBytes(ascii(Long.toString(value)));
+            return;
+        }
+        if(value < 0)
+        {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        //digits are written from the end
+        int digits = 1;
+        for(long rest = value / 10; rest > 0; rest /= 10)
+            digits++;
+        for(int i = position + digits - 1; i >= position; i--)
+        {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += digits;
+    }
+
+    /**
+     * writes a number rounded to a number of decimal places, without trailing zeros
+     */
+    void writeDecimal(double value, int decimals) throws IOException
+    {
+        if(Double.isNaN(value) || Double.isInfinite(value))
+        {
+            writeBytes(NULL);
+            return;
+        }
+        if(Math.abs(value) >= MAX_FIXED)
+        {
+            writeBytes(ascii(Double.toString(value))); //rare enough to build a string
+            return;
+        }
+        long scale = POWERS_OF_TEN[decimals];
+        long scaled = Math.round(Math.abs(value) * scale);
+        if(scaled == 0)
+        {
+            writeByte('0');
+            return;
+        }
+        if(value < 0)
+            writeByte('-');
+        writeLong(scaled / scale);
+        long fraction = scaled % scale;
+        if(fraction == 0)
+            return;
+        while(fraction % 10 == 0)
+        {
+            fraction /= 10;
+            decimals--;
+        }
+        ensure(decimals + 1);
+        buffer[position++] = '.';
+        for(int i = position + decimals - 1; i >= position; i--)
+        {
+            buffer[i] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        position += decimals;
+    }
+
+    /**
+     * writes a string as a JSON string, encoded in UTF-8
+     */
+    private void writeString(String string) throws IOException
+    {
+        if(string == null)
+        {
+            writeBytes(NULL);
+            return;
+        }
+        writeByte('"');
+        for(int i = 0; i < string.length(); i++)
+        {
+            char c = string.charAt(i);
+            ensure(6);
+            if(c == '"' || c == '\\')
+            {
+                buffer[position++] = '\\';
+                buffer[position++] = (byte) c;
+            }
+            else if(c < 0x20)
+            {
+                buffer[position++] = '\\';
+                buffer[position++] = 'u';
+                buffer[position++] = '0';
+                buffer[position++] = '0';
+                buffer[position++] = HEX[c >> 4];
+                buffer[position++] = HEX[c & 0xf];
+            }
+            else if(c < 0x80)
+                buffer[position++] = (byte) c;
+            else if(c < 0x800)
+            {
+                buffer[position++] = (byte) (0xc0 | c >> 6);
+                buffer[position++] = (byte) (0x80 | c & 0x3f);
+            }
+            else if(Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1)))
+            {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                buffer[position++] = (byte) (0xf0 | codePoint >> 18);
+                buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                buffer[position++] = (byte) (0x80 | codePoint & 0x3f);
+            }
+            else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+                buffer[position++] = '?'; //unpaired surrogate, which UTF-8 cannot encode
+            else
+            {
+                buffer[position++] = (byte) (0xe0 | c >> 12);
+                buffer[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buffer[position++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeByte(int b) throws IOException
+    {
+        ensure(1);
+        buffer[position++] = (byte) b;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException
+    {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    //makes room in the buffer for a number of bytes (at most BUFFER_SIZE)
+    private void ensure(int bytes) throws IOException
+    {
+        if(position + bytes > buffer.length)
+            flushBuffer();
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        if(position == 0)
+            return;
+        out.write(buffer, 0, position);
+        count += position;
+        position = 0;
+    }
+
+    private static byte[] ascii(String string)
+    {
+        byte[] bytes = new byte[string.length()];
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) string.charAt(i);
+        return bytes;
+    }
+}
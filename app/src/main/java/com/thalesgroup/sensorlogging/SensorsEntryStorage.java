@@ -0,0 +1,147 @@
+package com.thalesgroup.sensorlogging;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where the entries (SensorsEntry) are kept until they are uploaded to the server.
+ * Implementations are not thread-safe unless stated otherwise: every method must be called from the same thread,
+ * the one which called open()
+ */
+public interface SensorsEntryStorage {
+
+    /**
+     * receives the entries read from the storage, one at a time
+     */
+    interface Visitor {
+
+        /**
+         * @param entry - entry read (only valid until this method returns)
+         * @return true to continue reading, false to stop
+         */
+        boolean visit(SensorsEntry entry);
+    }
+
+    /**
+     * receives the rollups read from the storage, one at a time
+     */
+    interface RollupVisitor {
+
+        /**
+         * @param rollup - rollup read (only valid until this method returns)
+         * @return true to continue reading, false to stop
+         */
+        boolean visit(SensorsRollup rollup);
+    }
+
+    /**
+     * opens the storage on the current thread
+     * @throws IOException if the storage could not be opened
+     */
+    void open() throws IOException;
+
+    /**
+     * appends entries to the storage, setting their ids (and the ids of the objects they contain), and folds them
+     * into their hourly and daily rollups (SensorsRollup)
+     * @param entries - unmanaged entries, in the order they were created
+     * @throws IOException if the entries could not be stored (none of them is stored in that case)
+     */
+    void append(List<SensorsEntry> entries) throws IOException;
+
+    /**
+     * @return final timestamp of the most recent entry stored, or 0 if there is none
+     */
+    long getLastFinalTimestamp();
+
+    /**
+     * reads, in the order they were appended, the entries which began within an interval of time
+     * @param fromTimestamp - beginning of the interval (inclusive) (ms)
+     * @param toTimestamp - end of the interval (exclusive) (ms)
+     * @param visitor - receives the entries
+     * @throws IOException if the storage could not be read
+     */
+    void scan(long fromTimestamp, long toTimestamp, Visitor visitor) throws IOException;
+
+    /**
+     * finds, in the order they were appended, the entries which began within an interval of time, reading only some of
+     * their fields and only when the cursor gets to them. Long results are read in pages, each query starting after the
+     * last entry of the previous one
+     * @param fromTimestamp - beginning of the interval (inclusive) (ms)
+     * @param toTimestamp - end of the interval (exclusive) (ms)
+     * @param afterId - only entries with a higher id are found (0 for the first page)
+     * @param limit - maximum number of entries found
+     * @param fields - fields read (see EntryFields)
+     * @return cursor over the entries found
+     * @throws IOException if the storage could not be read
+     */
+    SensorsEntryCursor query(long fromTimestamp, long toTimestamp, long afterId, int limit, int fields) throws IOException;
+
+    /**
+     * reads, in the order they were appended, the entries not yet uploaded to the server (the ones after the
+     * acknowledged id of the upload watermark)
+     * @param visitor - receives the entries
+     * @throws IOException if the storage could not be read
+     */
+    void scanNotUploaded(Visitor visitor) throws IOException;
+
+    /**
+     * @return number of entries not yet uploaded to the server
+     */
+    long countNotUploaded();
+
+    /**
+     * @return how far the upload of the entries got (unmanaged)
+     */
+    UploadWatermark getUploadWatermark();
+
+    /**
+     * records, in a single write, how far the upload of the entries got: every entry up to the acknowledged id of
+     * the watermark is uploaded from then on
+     * @param watermark - upload watermark, whose acknowledged id never goes back
+     * @throws IOException if the storage could not be updated
+     */
+    void setUploadWatermark(UploadWatermark watermark) throws IOException;
+
+    /**
+     * deletes entries already uploaded, as well as the objects only they contain.
+     * Deleting many entries is done by calling this repeatedly (see PurgeEngine), so that it does not hold the storage for long
+     * @param maxEntries - maximum number of entries to delete (approximate for storages that delete them in blocks)
+     * @return rows and space reclaimed, no entries being deleted once there are no more to delete
+     * @throws IOException if the storage could not be updated
+     */
+    PurgeResult purgeUploaded(int maxEntries) throws IOException;
+
+    /**
+     * deletes the oldest entries which ended before an instant, whether they were uploaded or not, as well as the
+     * objects only they contain. Their rollups are kept
+     * @param timestamp - instant (ms)
+     * @param maxEntries - maximum number of entries to delete (approximate for storages that delete them in blocks)
+     * @return rows and space reclaimed, no entries being deleted once there are no more to delete
+     * @throws IOException if the storage could not be updated
+     */
+    PurgeResult purgeOlderThan(long timestamp, int maxEntries) throws IOException;
+
+    /**
+     * reads, in chronological order, the rollups of a resolution whose bucket began within an interval of time
+     * @param resolution - SensorsRollup.RESOLUTION_HOURLY or SensorsRollup.RESOLUTION_DAILY
+     * @param fromTimestamp - beginning of the interval (inclusive) (ms)
+     * @param toTimestamp - end of the interval (exclusive) (ms)
+     * @param visitor - receives the rollups
+     * @throws IOException if the storage could not be read
+     */
+    void scanRollups(int resolution, long fromTimestamp, long toTimestamp, RollupVisitor visitor) throws IOException;
+
+    /**
+     * deletes the rollups of a resolution whose bucket began before an instant
+     * @param resolution - SensorsRollup.RESOLUTION_HOURLY or SensorsRollup.RESOLUTION_DAILY
+     * @param timestamp - instant (ms)
+     * @return number of rollups deleted
+     * @throws IOException if the storage could not be updated
+     */
+    int purgeRollupsOlderThan(int resolution, long timestamp) throws IOException;
+
+    /**
+     * closes the storage, releasing its resources
+     */
+    void close();
+}
@@ -0,0 +1,338 @@
+package com.thalesgroup.sensorlogging;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import io.realm.RealmList;
+import io.realm.RealmObject;
+import io.realm.annotations.Ignore;
+import io.realm.annotations.Index;
+import io.realm.annotations.PrimaryKey;
+
+/**
+ * Class representing the summary of every entry (SensorsEntry) that began within an hour or a day (UTC), updated
+ * incrementally as entries are committed (see RollupAggregator). Rollups are kept after the entries are deleted
+ */
+public class SensorsRollup extends RealmObject {
+
+    public static final int RESOLUTION_HOURLY = 1;
+    public static final int RESOLUTION_DAILY = 2;
+    public static final int[] RESOLUTIONS = {RESOLUTION_HOURLY, RESOLUTION_DAILY};
+    //upper bounds (exclusive) of the bins of the signal strength histogram (dBm), followed by a bin for unknown signal strength (0)
+    public static final int[] SIGNAL_BINS = {-110, -100, -90, -80, -70, 0};
+
+    private static final long HOUR = 60*60*1000; //(ms)
+    private static final long DAY = 24*HOUR; //(ms)
+
+    @PrimaryKey
+    private String key; //resolution and bucketStart (see key())
+    private int resolution; //RESOLUTION_HOURLY or RESOLUTION_DAILY
+    @Index
+    private long bucketStart; //beginning of the hour or day (ms)
+    private int entryCount; //number of entries folded
+    private long lastEntryId; //id of the last entry folded
+    private long coveredMillis; //sum of the durations of the entries (ms)
+    private long inMotionMillis; //time in which the device was in motion (ms)
+    private long movingMillis; //time in which the device was moving (ms)
+    private long displayOnMillis; //time of the entries that ended with the display on (ms)
+    private double distance; //distance travelled (m)
+    private float maxSpeed; //maximum speed (m/s)
+    private long dischargingMillis; //time between consecutive entries in which the device was not charging (ms)
+    private int batteryDrained; //battery percentage lost in that time
+    private int lastBatteryLevel; //battery level of the last entry folded (see SensorsEntry)
+    private long lastFinalTimestamp; //final timestamp of the last entry folded (ms)
+    private RealmList<Long> wifiNetworks = new RealmList<>(); //hashes of the natural keys of the distinct wifi networks seen
+    private RealmList<Long> wifiDevices = new RealmList<>(); //hashes of the natural keys of the distinct wifi devices seen
+    private RealmList<Long> bluetoothDevices = new RealmList<>(); //hashes of the natural keys of the distinct bluetooth devices seen
+    private RealmList<Integer> signalHistogram = new RealmList<>(); //number of entries per bin of SIGNAL_BINS (and with unknown signal strength)
+    //the same hashes, built at the first entry folded into this instance, so that the lists are not walked for each device
+    @Ignore
+    private Set<Long> wifiNetworksSeen;
+    @Ignore
+    private Set<Long> wifiDevicesSeen;
+    @Ignore
+    private Set<Long> bluetoothDevicesSeen;
+
+    public SensorsRollup() {
+    }
+
+    /**
+     * Constructor of an empty rollup
+     * @param resolution - RESOLUTION_HOURLY or RESOLUTION_DAILY
+     * @param bucketStart - beginning of the hour or day (ms)
+     */
+    public SensorsRollup(int resolution, long bucketStart) {
+        this.key = key(resolution, bucketStart);
+        this.resolution = resolution;
+        this.bucketStart = bucketStart;
+        for(int i = 0; i <= SIGNAL_BINS.length; i++)
+            signalHistogram.add(0);
+    }
+
+    /**
+     * copy constructor (the copy is unmanaged)
+     * @param other - rollup to copy
+     */
+    public SensorsRollup(SensorsRollup other) {
+        this.key = other.getKey();
+        this.resolution = other.getResolution();
+        this.bucketStart = other.getBucketStart();
+        this.entryCount = other.getEntryCount();
+        this.lastEntryId = other.getLastEntryId();
+        this.coveredMillis = other.getCoveredMillis();
+        this.inMotionMillis = other.getInMotionMillis();
+        this.movingMillis = other.getMovingMillis();
+        this.displayOnMillis = other.getDisplayOnMillis();
+        this.distance = other.getDistance();
+        this.maxSpeed = other.getMaxSpeed();
+        this.dischargingMillis = other.getDischargingMillis();
+        this.batteryDrained = other.getBatteryDrained();
+        this.lastBatteryLevel = other.getLastBatteryLevel();
+        this.lastFinalTimestamp = other.getLastFinalTimestamp();
+        this.wifiNetworks.addAll(other.getWifiNetworks());
+        this.wifiDevices.addAll(other.getWifiDevices());
+        this.bluetoothDevices.addAll(other.getBluetoothDevices());
+        this.signalHistogram.addAll(other.getSignalHistogram());
+    }
+
+    /**
+     * @param resolution - RESOLUTION_HOURLY or RESOLUTION_DAILY
+     * @param timestamp - instant (ms)
+     * @return beginning of the hour or day (UTC) containing timestamp (ms)
+     */
+    public static long bucketStart(int resolution, long timestamp)
+    {
+        long duration = resolution == RESOLUTION_DAILY ? DAY : HOUR;
+        long start = timestamp - timestamp % duration;
+        return timestamp < 0 && start != timestamp ? start - duration : start;
+    }
+
+    /**
+     * @return primary key of the rollup of a resolution and bucket
+     */
+    public static String key(int resolution, long bucketStart)
+    {
+        return resolution + ":" + bucketStart;
+    }
+
+    /**
+     * folds an entry into this rollup
+     * @param entry - entry that began within the bucket of this rollup
+     */
+    public void add(SensorsEntry entry)
+    {
+        long duration = Math.max(0, entry.getFinalTimestamp() - entry.getBeginningTimestamp());
+        coveredMillis += duration;
+        if(entry.isInMotion())
+            inMotionMillis += duration;
+        if(entry.isMoving())
+            movingMillis += duration;
+        if(entry.isDisplay())
+            displayOnMillis += duration;
+        distance += entry.getTotalDistance();
+        maxSpeed = Math.max(maxSpeed, entry.getMaxSpeed());
+
+        //battery is drained between two consecutive entries in which the device was not charging (negative level)
+        int batteryLevel = entry.getBatteryLevel();
+        if(entryCount > 0 && batteryLevel < 0 && lastBatteryLevel < 0 && entry.getFinalTimestamp() > lastFinalTimestamp)
+        {
+            dischargingMillis += entry.getFinalTimestamp() - lastFinalTimestamp;
+            batteryDrained += Math.max(0, batteryLevel - lastBatteryLevel); //e.g. from -80 to -79
+        }
+        lastBatteryLevel = batteryLevel;
+        lastFinalTimestamp = entry.getFinalTimestamp();
+
+        if(entry.getWifiNetworks() != null)
+            for(WifiNetworkCustom network:entry.getWifiNetworks())
+                wifiNetworksSeen = addDistinct(wifiNetworksSeen, wifiNetworks, network.getNaturalKey());
+        if(entry.getWifiDevices() != null)
+            for(WifiDeviceCustom device:entry.getWifiDevices())
+                wifiDevicesSeen = addDistinct(wifiDevicesSeen, wifiDevices, device.getNaturalKey());
+        if(entry.getBluetoothDevices() != null)
+            for(BluetoothDeviceCustom device:entry.getBluetoothDevices())
+                bluetoothDevicesSeen = addDistinct(bluetoothDevicesSeen, bluetoothDevices, device.getNaturalKey());
+
+        int bin = signalBin(entry.getSignalStrength());
+        signalHistogram.set(bin, signalHistogram.get(bin) + 1);
+
+        entryCount++;
+        lastEntryId = entry.getId();
+    }
+
+    /**
+     * sets the values of a rollup read from a file (see SensorsRollupCodec)
+     */
+    void restore(int entryCount, long lastEntryId, long coveredMillis, long inMotionMillis, long movingMillis, long displayOnMillis, double distance,
+                 float maxSpeed, long dischargingMillis, int batteryDrained, int lastBatteryLevel, long lastFinalTimestamp)
+    {
+        this.entryCount = entryCount;
+        this.lastEntryId = lastEntryId;
+        this.coveredMillis = coveredMillis;
+        this.inMotionMillis = inMotionMillis;
+        this.movingMillis = movingMillis;
+        this.displayOnMillis = displayOnMillis;
+        this.distance = distance;
+        this.maxSpeed = maxSpeed;
+        this.dischargingMillis = dischargingMillis;
+        this.batteryDrained = batteryDrained;
+        this.lastBatteryLevel = lastBatteryLevel;
+        this.lastFinalTimestamp = lastFinalTimestamp;
+    }
+
+    /**
+     * @param signalStrength - signal strength (dBm), 0 if unknown
+     * @return index of the bin of the signal strength histogram it belongs to
+     */
+    public static int signalBin(int signalStrength)
+    {
+        for(int i = 0; i < SIGNAL_BINS.length; i++)
+            if(signalStrength < SIGNAL_BINS[i])
+                return i;
+        return SIGNAL_BINS.length;
+    }
+
+    /**
+     * adds the hash of a natural key to a list if it is not in it yet
+     * @param seen - hashes in the list, or null to build them from it
+     * @param hashes - list of hashes
+     * @return hashes in the list, the one added included
+     */
+    private static Set<Long> addDistinct(Set<Long> seen, RealmList<Long> hashes, String naturalKey)
+    {
+        if(seen == null)
+            seen = new HashSet<>(hashes);
+        Long hash = hash(naturalKey);
+        if(seen.add(hash))
+            hashes.add(hash);
+        return seen;
+    }
+
+    /**
+     * @return 64-bit FNV-1a hash of a natural key
+     */
+    static long hash(String naturalKey)
+    {
+        long hash = 0xcbf29ce484222325L;
+        if(naturalKey != null)
+            for(int i = 0; i < naturalKey.length(); i++)
+            {
+                hash ^= naturalKey.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        return hash;
+    }
+
+    /**
+     * @return battery lost per hour while not charging (percentage/h), or 0 if unknown
+     */
+    public float getBatteryDrainRate() {
+        return dischargingMillis > 0 ? batteryDrained * (float) HOUR / dischargingMillis : 0;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    public long getBucketStart() {
+        return bucketStart;
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    public long getLastEntryId() {
+        return lastEntryId;
+    }
+
+    public long getCoveredMillis() {
+        return coveredMillis;
+    }
+
+    public long getInMotionMillis() {
+        return inMotionMillis;
+    }
+
+    public long getMovingMillis() {
+        return movingMillis;
+    }
+
+    public long getDisplayOnMillis() {
+        return displayOnMillis;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public float getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    public long getDischargingMillis() {
+        return dischargingMillis;
+    }
+
+    public int getBatteryDrained() {
+        return batteryDrained;
+    }
+
+    public int getLastBatteryLevel() {
+        return lastBatteryLevel;
+    }
+
+    public long getLastFinalTimestamp() {
+        return lastFinalTimestamp;
+    }
+
+    public RealmList<Long> getWifiNetworks() {
+        return wifiNetworks;
+    }
+
+    public RealmList<Long> getWifiDevices() {
+        return wifiDevices;
+    }
+
+    public RealmList<Long> getBluetoothDevices() {
+        return bluetoothDevices;
+    }
+
+    public RealmList<Integer> getSignalHistogram() {
+        return signalHistogram;
+    }
+
+    public int getNumberWifiNetworks() {
+        return wifiNetworks.size();
+    }
+
+    public int getNumberWifiDevices() {
+        return wifiDevices.size();
+    }
+
+    public int getNumberBluetoothDevices() {
+        return bluetoothDevices.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SensorsRollup{" +
+                "key='" + key + '\'' +
+                ", entryCount=" + entryCount +
+                ", coveredMillis=" + coveredMillis +
+                ", inMotionMillis=" + inMotionMillis +
+                ", movingMillis=" + movingMillis +
+                ", displayOnMillis=" + displayOnMillis +
+                ", distance=" + distance +
+                ", maxSpeed=" + maxSpeed +
+                ", batteryDrainRate=" + getBatteryDrainRate() +
+                ", wifiNetworks=" + wifiNetworks.size() +
+                ", wifiDevices=" + wifiDevices.size() +
+                ", bluetoothDevices=" + bluetoothDevices.size() +
+                ", signalHistogram=" + signalHistogram +
+                '}';
+    }
+}
@@ -0,0 +1,89 @@
+package com.thalesgroup.sensorlogging;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Binary encoding of a SensorsRollup, used to keep rollups in files outside the database.
+ * Every record starts with the version of the encoding, so that records written by older versions can still be read
+ */
+public abstract class SensorsRollupCodec {
+
+    private static final int VERSION = 1; //version of the encoding written by this class
+
+    /**
+     * writes a rollup
+     * @param out - output
+     * @param rollup - rollup to write
+     * @throws IOException if the output fails
+     */
+    public static void write(DataOutput out, SensorsRollup rollup) throws IOException
+    {
+        out.writeByte(VERSION);
+        out.writeInt(rollup.getResolution());
+        out.writeLong(rollup.getBucketStart());
+        out.writeInt(rollup.getEntryCount());
+        out.writeLong(rollup.getLastEntryId());
+        out.writeLong(rollup.getCoveredMillis());
+        out.writeLong(rollup.getInMotionMillis());
+        out.writeLong(rollup.getMovingMillis());
+        out.writeLong(rollup.getDisplayOnMillis());
+        out.writeDouble(rollup.getDistance());
+        out.writeFloat(rollup.getMaxSpeed());
+        out.writeLong(rollup.getDischargingMillis());
+        out.writeInt(rollup.getBatteryDrained());
+        out.writeInt(rollup.getLastBatteryLevel());
+        out.writeLong(rollup.getLastFinalTimestamp());
+        writeLongs(out, rollup.getWifiNetworks());
+        writeLongs(out, rollup.getWifiDevices());
+        writeLongs(out, rollup.getBluetoothDevices());
+        List<Integer> signalHistogram = rollup.getSignalHistogram();
+        out.writeInt(signalHistogram.size());
+        for(Integer count:signalHistogram)
+            out.writeInt(count);
+    }
+
+    /**
+     * reads a rollup written by write()
+     * @param in - input
+     * @return unmanaged rollup
+     * @throws IOException if the input fails or was not written by a known version of the encoding
+     */
+    public static SensorsRollup read(DataInput in) throws IOException
+    {
+        int version = in.readUnsignedByte();
+        if(version != VERSION)
+            throw new IOException("Unknown rollup encoding version " + version);
+
+        int resolution = in.readInt();
+        long bucketStart = in.readLong();
+        SensorsRollup rollup = new SensorsRollup(resolution, bucketStart);
+        rollup.restore(in.readInt(), in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readDouble(), in.readFloat(),
+                in.readLong(), in.readInt(), in.readInt(), in.readLong());
+        readLongs(in, rollup.getWifiNetworks());
+        readLongs(in, rollup.getWifiDevices());
+        readLongs(in, rollup.getBluetoothDevices());
+        int bins = in.readInt();
+        List<Integer> signalHistogram = rollup.getSignalHistogram();
+        signalHistogram.clear();
+        for(int i = 0; i < bins; i++)
+            signalHistogram.add(in.readInt());
+        return rollup;
+    }
+
+    private static void writeLongs(DataOutput out, List<Long> values) throws IOException
+    {
+        out.writeInt(values.size());
+        for(Long value:values)
+            out.writeLong(value);
+    }
+
+    private static void readLongs(DataInput in, List<Long> values) throws IOException
+    {
+        int size = in.readInt();
+        for(int i = 0; i < size; i++)
+            values.add(in.readLong());
+    }
+}
@@ -1,60 +1,87 @@
 package com.thalesgroup.sensorlogging;
 
-import android.app.ActivityManager;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
+import android.os.Process;
 import android.util.Log;
 
+import java.io.File;
+
 /*
  * Created by thales on 02/08/2018.
  */
 
 /**
  * The purpose of this broadcast is to try to (re)start the service DataAcquisitionService. It does so
- * either on Boot, or on connectivity changed, or when the app is first opened or every 2min
+ * either on Boot, or on connectivity changed, or when the app is first opened or every 2min.
+ * Its alarm is also the one that wakes the device up for the windows of the service (see WakeupCoordinator): while the
+ * service runs, the alarm is set to its next window if that comes before the next 2min, so that the device wakes up
+ * once for both.
+ * Whether the service runs is read from its heartbeat (see Heartbeat). It is only started again when its process died
+ * or it was destroyed: a stale heartbeat in this process is most often the device sleeping (doze delays the alarm and
+ * the entries alike), and stopping the service then would throw away its buffer and state
  */
 public class ServiceRestarterBroadcastReceiver extends BroadcastReceiver {
 
     private static final String LOG_TAG = "ServiceRestarter";
+    public static final String ACTION = "com.thalesgroup.sensorlogging.ServiceRestarterBroadcastReceiver"; //action of the intents of this receiver
+    private static final long RESTART_DELAY = 120*1000; //interval of time between restart attempts (2min) (ms)
+    private static final long ALARM_WINDOW = 10*1000; //how late the system may deliver the alarm, to wake the device up along with other apps (API 19+) (ms)
+    public static final long HEARTBEAT_FRESHNESS = 3*DataAcquisitionService.DELAY_DB; //age of the heartbeat of the service above which it is not alive (ms)
 
     @Override
     public void onReceive(Context context, Intent intent) {
 
+        //Send an intent to this receiver in 2min to restart the service if android killed it, or at its next window
+        long now = System.currentTimeMillis();
+        long window = DataAcquisitionService.getNextWakeup();
+        scheduleWakeup(context, window > now && window < now + RESTART_DELAY ? window : now + RESTART_DELAY);
 
-        Log.i(LOG_TAG, "Trying to (re)start service...");
-        //Send an intent to this receiver in 2min to restart the service if android killed it
-        Intent ownIntent = new Intent("com.thalesgroup.sensorlogging.ServiceRestarterBroadcastReceiver");
-        PendingIntent pintent = PendingIntent.getBroadcast(context, 0, ownIntent, 0);
-        AlarmManager alarm = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
-        if (alarm != null) {
-            alarm.set(AlarmManager.RTC_WAKEUP, System.currentTimeMillis() + 120*1000, pintent);
+        Heartbeat heartbeat = new Heartbeat(new File(context.getFilesDir(), Heartbeat.FILE_NAME), Clock.SYSTEM);
+        int status = heartbeat.check(Process.myPid(), HEARTBEAT_FRESHNESS);
+        if (status == Heartbeat.STATUS_ALIVE)
+            return;
+        if (status == Heartbeat.STATUS_STALE)
+        {
+            Log.i(LOG_TAG, "No heartbeat for " + heartbeat.getAge() / 1000 + "s, but the service runs in this process: left running");
+            return;
         }
 
         //if the service is not active, start it
-        DataAcquisitionService dataAcquisitionService = new DataAcquisitionService();
-        Intent mServiceIntent = new Intent(context, dataAcquisitionService.getClass());
-        if (!isMyServiceRunning(context, dataAcquisitionService.getClass())) {
-            Log.i(LOG_TAG, "...(re)starting service...");
-            context.startService(mServiceIntent);
+        Intent mServiceIntent = new Intent(context, DataAcquisitionService.class);
+        switch (status)
+        {
+            case Heartbeat.STATUS_DEAD:
+                Log.i(LOG_TAG, "Service dead: no heartbeat for " + heartbeat.getAge() / 1000 + "s, restarting it...");
+                break;
+            case Heartbeat.STATUS_STOPPED:
+                Log.i(LOG_TAG, "Service stopped, restarting it...");
+                break;
+            default:
+                Log.i(LOG_TAG, "Starting service...");
+                break;
         }
-        else
-            Log.i(LOG_TAG, "...service already active.");
+        context.startService(mServiceIntent);
     }
 
-    private boolean isMyServiceRunning(Context context, Class<?> serviceClass) {
-        ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-        if (manager != null) {
-            for (ActivityManager.RunningServiceInfo serviceInfo : manager.getRunningServices(Integer.MAX_VALUE)) {
-                if (serviceClass.getName().equals(serviceInfo.service.getClassName())) {
-
-                    return true;
-                }
-            }
-        }
-
-        return false;
+    /**
+     * sets the alarm of this receiver, replacing the one set before
+     * @param context - context
+     * @param time - instant the device is woken up at (ms, System.currentTimeMillis())
+     */
+    public static void scheduleWakeup(Context context, long time)
+    {
+        PendingIntent pintent = PendingIntent.getBroadcast(context, 0, new Intent(ACTION), 0);
+        AlarmManager alarm = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+        if (alarm == null)
+            return;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            alarm.setWindow(AlarmManager.RTC_WAKEUP, time, ALARM_WINDOW, pintent);
+        else
+            alarm.set(AlarmManager.RTC_WAKEUP, time, pintent);
     }
 }
@@ -0,0 +1,318 @@
+package com.thalesgroup.sensorlogging;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * State of the managers that outlives the service (times of the last scans, idle state, last location...), kept in a
+ * single binary file: each manager saves and restores its own section, identified by a number. The file is read in one
+ * read at startup, and replaced atomically (written to a temporary file, synced, then renamed) when the state changed
+ * since it was last written. It is versioned and checksummed: a file of another version or not completely written is
+ * ignored, and so are the sections no manager restores. A section whose format changes takes a new number.
+ * The sections are added, loaded and saved on the thread of the managers; the file may be written on another thread.
+ * Thread-safe
+ */
+public class StateCheckpoint {
+
+    private static final String LOG_TAG = "StateCheckpoint";
+
+    public static final int SECTION_LOCATION = 1;
+    public static final int SECTION_BLUETOOTH = 2;
+    public static final int SECTION_WIFI = 3;
+    public static final int SECTION_VARIOUS_SENSORS = 4;
+
+    private static final int MAGIC = 0x53430001; //"SC", version 1
+    private static final int MAX_SIZE = 64 * 1024; //larger files are not read (bytes)
+
+    /**
+     * state of a manager, saved in a section of the checkpoint
+     */
+    public interface Section {
+
+        /**
+         * @param out - stream to write the state to
+         * @throws IOException if it cannot be written
+         */
+        void saveState(DataOutputStream out) throws IOException;
+
+        /**
+         * @param in - stream to read the state from, as saved by saveState
+         * @throws IOException if it cannot be read
+         */
+        void restoreState(DataInputStream in) throws IOException;
+    }
+
+    private final File file;
+    private final List<Integer> ids = new ArrayList<>(); //ids of the sections added, in the order they were added
+    private final List<Section> sections = new ArrayList<>();
+    private final List<Integer> loadedIds = new ArrayList<>(); //ids of the sections loaded from the file
+    private final List<byte[]> loadedSections = new ArrayList<>();
+    private byte[] lastSnapshot = null; //content of the file, as last saved or loaded, or null if unknown
+    private long loadTime = 0; //(ns)
+    private int loadedBytes = 0;
+    private long writes = 0; //since the last reset
+    private long unchanged = 0; //snapshots not written as the state did not change, since the last reset
+    private long bytesWritten = 0; //since the last reset
+    private long writeTime = 0; //since the last reset (ns)
+
+    /**
+     * Constructor
+     * @param file - checkpoint file (created when the state is first written)
+     */
+    public StateCheckpoint(File file) {
+        this.file = file;
+    }
+
+    /**
+     * reads the checkpoint file, whose sections are restored as they are added
+     * @return true if it was read, false if there is none, or if it is of another version or not completely written
+     */
+    public synchronized boolean load()
+    {
+        long start = System.nanoTime();
+        loadedIds.clear();
+        loadedSections.clear();
+        long length = file.length();
+        if(length == 0 || length > MAX_SIZE)
+            return false;
+
+        byte[] content = new byte[(int) length];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int read = 0;
+            while(read < content.length) //a single read, unless the file is larger than the buffer of the system
+            {
+                int n = in.read(content, read, content.length - read);
+                if(n < 0)
+                    return false;
+                read += n;
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to read checkpoint", e);
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+
+        try {
+            if(!decode(content))
+                return false;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Ignoring corrupt checkpoint", e);
+            loadedIds.clear();
+            loadedSections.clear();
+            return false;
+        }
+        lastSnapshot = content;
+        loadedBytes = content.length;
+        loadTime = System.nanoTime() - start;
+        return true;
+    }
+
+    /**
+     * adds a section to the checkpoint, and restores it from the file loaded if it is in it
+     * @param id - number of the section, unique in the checkpoint (see SECTION_)
+     * @param section - state saved in the section
+     */
+    public synchronized void add(int id, Section section)
+    {
+        ids.add(id);
+        sections.add(section);
+        int index = loadedIds.indexOf(id);
+        if(index < 0)
+            return;
+        try {
+            section.restoreState(new DataInputStream(new ByteArrayInputStream(loadedSections.get(index))));
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to restore section " + id, e);
+        }
+        loadedIds.remove(index);
+        loadedSections.remove(index);
+    }
+
+    /**
+     * saves every section (on the thread of the managers)
+     * @return content of the checkpoint file to write, or null if it did not change since the last snapshot
+     */
+    @Nullable
+    public synchronized byte[] snapshot()
+    {
+        byte[] content;
+        try {
+            content = encode();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to save checkpoint", e);
+            return null;
+        }
+        if(Arrays.equals(content, lastSnapshot))
+        {
+            unchanged++;
+            return null;
+        }
+        lastSnapshot = content;
+        return content;
+    }
+
+    /**
+     * atomically replaces the checkpoint file. If that fails, the next snapshot is written even if unchanged
+     * @param content - content of the checkpoint file, as returned by snapshot
+     * @return true if it was written
+     */
+    public synchronized boolean write(byte[] content)
+    {
+        long start = System.nanoTime();
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(content);
+            out.getFD().sync(); //the rename never replaces the file by one not on disk yet
+            out.close();
+            out = null;
+            if(!temp.renameTo(file))
+                throw new IOException("Failed to rename " + temp);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to write checkpoint", e);
+            lastSnapshot = null;
+            return false;
+        } finally {
+            closeQuietly(out);
+        }
+        writes++;
+        bytesWritten += content.length;
+        writeTime += System.nanoTime() - start;
+        return true;
+    }
+
+    //content of the file: magic, number of sections, each section (id, length, state), checksum of what precedes it
+    private byte[] encode() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(sections.size());
+        ByteArrayOutputStream section = new ByteArrayOutputStream(128);
+        for (int i = 0; i < sections.size(); i++)
+        {
+            section.reset();
+            sections.get(i).saveState(new DataOutputStream(section));
+            out.writeInt(ids.get(i));
+            out.writeInt(section.size());
+            section.writeTo(out);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param content - content of the checkpoint file
+     * @return true if it is of this version and completely written, its sections then being in loadedSections
+     * @throws IOException if it is not as it was encoded
+     */
+    private boolean decode(byte[] content) throws IOException
+    {
+        if(content.length < 12)
+            return false;
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length - 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        if(in.readInt() != MAGIC)
+            return false;
+        in.skipBytes(content.length - 8);
+        if(in.readInt() != (int) crc.getValue())
+            return false; //not completely written
+
+        in = new DataInputStream(new ByteArrayInputStream(content, 4, content.length - 8));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++)
+        {
+            int id = in.readInt();
+            int length = in.readInt();
+            if(length < 0 || length > content.length)
+                throw new IOException("Invalid length of section " + id + ": " + length);
+            byte[] section = new byte[length];
+            in.readFully(section);
+            loadedIds.add(id);
+            loadedSections.add(section);
+        }
+        return true;
+    }
+
+    /**
+     * @return time the checkpoint took to load, parsing included (ms), or 0 if it was not
+     */
+    public synchronized double getLoadTime() {
+        return loadTime / 1e6;
+    }
+
+    /**
+     * @return size of the checkpoint loaded (bytes), or 0 if it was not
+     */
+    public synchronized int getLoadedBytes() {
+        return loadedBytes;
+    }
+
+    /**
+     * @return writes of the file since the last reset
+     */
+    public synchronized long getWrites() {
+        return writes;
+    }
+
+    /**
+     * @return snapshots not written as the state did not change, since the last reset
+     */
+    public synchronized long getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return bytes written since the last reset
+     */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return time spent writing the file since the last reset, syncing it included (ms)
+     */
+    public synchronized double getWriteTime() {
+        return writeTime / 1e6;
+    }
+
+    /**
+     * forgets the writes counted so far, to count the next ones
+     */
+    public synchronized void resetStats()
+    {
+        writes = 0;
+        unchanged = 0;
+        bytesWritten = 0;
+        writeTime = 0;
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if(closeable != null)
+            try {
+                closeable.close();
+            } catch (IOException ignored) { }
+    }
+}
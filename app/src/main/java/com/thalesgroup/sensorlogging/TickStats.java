@@ -0,0 +1,103 @@
+package com.thalesgroup.sensorlogging;
+
+import java.util.Locale;
+
+/**
+ * Statistics of the runs of a periodic task (a tick): how late each run started compared with the instant it was
+ * scheduled for (latency), how much that latency varies from run to run (jitter, its standard deviation), and how long
+ * runs took. A thread stalled by other work shows up as latency, a thread busy with some runs and not others as jitter.
+ * Not thread-safe: recorded on the thread that runs the task
+ */
+public class TickStats {
+
+    private final String name;
+    private long ticks = 0; //runs recorded
+    private double meanLatency = 0; //(ms)
+    private double latencyDeviations = 0; //sum of the squared deviations from the mean latency (Welford)
+    private long maxLatency = 0; //(ms)
+    private long totalDuration = 0; //(ms)
+    private long maxDuration = 0; //(ms)
+
+    /**
+     * Constructor
+     * @param name - name of the task, to report the statistics
+     */
+    public TickStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * records a run of the task
+     * @param scheduled - instant the run was scheduled for (ms)
+     * @param started - instant it started (ms)
+     * @param ended - instant it ended (ms)
+     */
+    public void record(long scheduled, long started, long ended)
+    {
+        long latency = Math.max(0, started - scheduled);
+        long duration = Math.max(0, ended - started);
+        ticks++;
+        double delta = latency - meanLatency;
+        meanLatency += delta / ticks;
+        latencyDeviations += delta * (latency - meanLatency);
+        maxLatency = Math.max(maxLatency, latency);
+        totalDuration += duration;
+        maxDuration = Math.max(maxDuration, duration);
+    }
+
+    /**
+     * forgets the runs recorded so far, to measure the next ones
+     */
+    public void reset()
+    {
+        ticks = 0;
+        meanLatency = 0;
+        latencyDeviations = 0;
+        maxLatency = 0;
+        totalDuration = 0;
+        maxDuration = 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getTicks() {
+        return ticks;
+    }
+
+    /**
+     * @return mean delay between the instant a run was scheduled for and its start (ms)
+     */
+    public double getMeanLatency() {
+        return meanLatency;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    /**
+     * @return standard deviation of the latency of the runs (ms)
+     */
+    public double getJitter() {
+        return ticks > 1 ? Math.sqrt(latencyDeviations / (ticks - 1)) : 0;
+    }
+
+    /**
+     * @return mean time a run took (ms)
+     */
+    public double getMeanDuration() {
+        return ticks > 0 ? (double) totalDuration / ticks : 0;
+    }
+
+    public long getMaxDuration() {
+        return maxDuration;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: %d ticks, latency %.1f ms (max %d ms, jitter %.1f ms), duration %.1f ms (max %d ms)",
+                name, ticks, meanLatency, maxLatency, getJitter(), getMeanDuration(), maxDuration);
+    }
+}
@@ -0,0 +1,122 @@
+package com.thalesgroup.sensorlogging;
+
+/**
+ * Decides when the entries waiting to be uploaded are sent, and how many bytes an upload may send.
+ * Uploads are preferred in good windows: on an unmetered network while charging, the backlog is sent every
+ * MIN_INTERVAL_CHARGING; on an unmetered network, as soon as it reaches BACKLOG_ENTRIES or BACKLOG_BYTES, or
+ * every MAX_INTERVAL whatever its size; and on a metered network only once it grew large (METERED_MIN_ENTRIES or
+ * METERED_MIN_BYTES), at most every MAX_INTERVAL and with a smaller cap of bytes. An upload stopped by its cap is
+ * continued at the next decision, except on a metered network.
+ * After a failure, no upload starts before a delay which doubles with each consecutive failure, up to MAX_BACKOFF.
+ * The size of the backlog in bytes is estimated from the bytes per entry of the previous uploads.
+ * Not thread-safe
+ */
+public class UploadScheduler {
+
+    public static final int NETWORK_NONE = 0;
+    public static final int NETWORK_METERED = 1; //mobile data
+    public static final int NETWORK_UNMETERED = 2; //wifi
+
+    private static final long MINUTE = 60*1000; //(ms)
+    public static final long MIN_INTERVAL_CHARGING = 5*MINUTE; //time between uploads while charging on an unmetered network (ms)
+    public static final long MAX_INTERVAL = 60*MINUTE; //time after which the backlog is sent on an unmetered network, whatever its size (ms)
+    public static final int BACKLOG_ENTRIES = BatchUploader.DEFAULT_MAX_ENTRIES; //backlog sent right away on an unmetered network (entries)
+    public static final long BACKLOG_BYTES = 64*1024; //estimated backlog sent right away on an unmetered network (bytes)
+    public static final int METERED_MIN_ENTRIES = 3*24*60; //backlog from which a metered network is used (3 days of entries)
+    public static final long METERED_MIN_BYTES = 1024*1024; //estimated backlog from which a metered network is used, for entries larger than usual (bytes)
+    public static final long CHARGING_MAX_BYTES = 16*1024*1024; //bytes sent per upload while charging on an unmetered network
+    public static final long UNMETERED_MAX_BYTES = 4*1024*1024; //bytes sent per upload on an unmetered network
+    public static final long METERED_MAX_BYTES = 256*1024; //bytes sent per upload on a metered network
+    public static final long INITIAL_BACKOFF = MINUTE; //delay after a first failure (ms)
+    public static final long MAX_BACKOFF = 6*60*MINUTE; //(ms)
+    private static final double DEFAULT_BYTES_PER_ENTRY = 128; //compressed bytes per entry assumed before the first upload
+
+    private final Clock clock;
+    private long lastUpload; //end of the last successful upload, or creation of the scheduler (ms)
+    private boolean capped = false; //true if the last upload stopped at its cap of bytes
+    private int failures = 0; //consecutive failed uploads
+    private long retryTime = 0; //instant before which no upload starts after a failure (ms)
+    private double bytesPerEntry = DEFAULT_BYTES_PER_ENTRY; //estimate of the compressed bytes per entry
+
+    /**
+     * Constructor
+     * @param clock - source of the current time
+     */
+    public UploadScheduler(Clock clock) {
+        this.clock = clock;
+        this.lastUpload = clock.now();
+    }
+
+    /**
+     * @param backlog - number of entries waiting to be uploaded
+     * @param network - NETWORK_NONE, NETWORK_METERED or NETWORK_UNMETERED
+     * @param charging - true if the device is charging
+     * @return maximum number of bytes to send if an upload should start now, 0 if none should
+     */
+    public long decide(long backlog, int network, boolean charging)
+    {
+        long now = clock.now();
+        if(backlog <= 0 || network == NETWORK_NONE || now < retryTime)
+            return 0;
+        long sinceLast = now - lastUpload;
+        long bytes = getEstimatedBytes(backlog);
+
+        if(network == NETWORK_UNMETERED)
+        {
+            if(charging && (capped || sinceLast >= MIN_INTERVAL_CHARGING))
+                return CHARGING_MAX_BYTES;
+            if(capped || sinceLast >= MAX_INTERVAL || backlog >= BACKLOG_ENTRIES || bytes >= BACKLOG_BYTES)
+                return UNMETERED_MAX_BYTES;
+            return 0;
+        }
+        //metered: the cap holds for the whole interval, so that a large backlog is not sent in a row
+        if((backlog >= METERED_MIN_ENTRIES || bytes >= METERED_MIN_BYTES) && sinceLast >= MAX_INTERVAL)
+            return METERED_MAX_BYTES;
+        return 0;
+    }
+
+    /**
+     * records an upload which sent every batch it read
+     * @param entries - entries uploaded
+     * @param bytes - compressed bytes sent
+     * @param capped - true if the upload stopped at its cap of bytes, possibly with entries left
+     */
+    public void uploadSucceeded(long entries, long bytes, boolean capped)
+    {
+        lastUpload = clock.now();
+        this.capped = capped;
+        failures = 0;
+        retryTime = 0;
+        if(entries > 0)
+            bytesPerEntry = (bytesPerEntry + (double) bytes / entries) / 2;
+    }
+
+    /**
+     * records an upload which stopped at a batch that failed, delaying the next one
+     */
+    public void uploadFailed()
+    {
+        failures++;
+        capped = false;
+        retryTime = clock.now() + getBackoff();
+    }
+
+    /**
+     * @return delay before an upload starts after the consecutive failures so far, 0 if there were none (ms)
+     */
+    public long getBackoff()
+    {
+        if(failures == 0)
+            return 0;
+        return Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(failures - 1, 20));
+    }
+
+    /**
+     * @param backlog - number of entries waiting to be uploaded
+     * @return estimate of the compressed bytes they take
+     */
+    public long getEstimatedBytes(long backlog)
+    {
+        return (long) (backlog * bytesPerEntry);
+    }
+}
@@ -0,0 +1,88 @@
+package com.thalesgroup.sensorlogging;
+
+import io.realm.RealmObject;
+import io.realm.annotations.PrimaryKey;
+
+/**
+ * How far the upload of the entries of a storage got: the last batch acknowledged by the server, every entry up to
+ * its last one being uploaded, and the batch sent after it whose acknowledgement was not received yet.
+ * Batches are numbered in order from 1, so that the server recognizes a batch sent again (same device and sequence
+ * number, same entries) when its acknowledgement was lost.
+ * Stored as a single object, so that marking a batch as uploaded is one write whatever its number of entries
+ */
+public class UploadWatermark extends RealmObject {
+
+    public static final int KEY = 0; //key of the only object stored
+
+    @PrimaryKey
+    private int key = KEY; //(primary key)
+    private long acknowledgedSequence; //sequence number of the last batch acknowledged by the server, 0 if none
+    private long acknowledgedId; //id of the last entry of that batch: every entry up to it was uploaded
+    private long pendingSequence; //sequence number of the batch sent but not acknowledged yet, 0 if none
+    private long pendingLastId; //id of the last entry of that batch
+
+    public UploadWatermark() {
+    }
+
+    public UploadWatermark(long acknowledgedSequence, long acknowledgedId) {
+        this.acknowledgedSequence = acknowledgedSequence;
+        this.acknowledgedId = acknowledgedId;
+    }
+
+    public UploadWatermark(long acknowledgedSequence, long acknowledgedId, long pendingSequence, long pendingLastId) {
+        this.acknowledgedSequence = acknowledgedSequence;
+        this.acknowledgedId = acknowledgedId;
+        this.pendingSequence = pendingSequence;
+        this.pendingLastId = pendingLastId;
+    }
+
+    public int getKey() {
+        return key;
+    }
+
+    public void setKey(int key) {
+        this.key = key;
+    }
+
+    public long getAcknowledgedSequence() {
+        return acknowledgedSequence;
+    }
+
+    public void setAcknowledgedSequence(long acknowledgedSequence) {
+        this.acknowledgedSequence = acknowledgedSequence;
+    }
+
+    public long getAcknowledgedId() {
+        return acknowledgedId;
+    }
+
+    public void setAcknowledgedId(long acknowledgedId) {
+        this.acknowledgedId = acknowledgedId;
+    }
+
+    public long getPendingSequence() {
+        return pendingSequence;
+    }
+
+    public void setPendingSequence(long pendingSequence) {
+        this.pendingSequence = pendingSequence;
+    }
+
+    public long getPendingLastId() {
+        return pendingLastId;
+    }
+
+    public void setPendingLastId(long pendingLastId) {
+        this.pendingLastId = pendingLastId;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadWatermark{" +
+                "acknowledgedSequence=" + acknowledgedSequence +
+                ", acknowledgedId=" + acknowledgedId +
+                ", pendingSequence=" + pendingSequence +
+                ", pendingLastId=" + pendingLastId +
+                '}';
+    }
+}
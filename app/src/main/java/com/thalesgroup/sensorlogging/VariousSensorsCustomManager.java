@@ -1,29 +1,18 @@
 package com.thalesgroup.sensorlogging;
 
-import android.Manifest;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.content.SharedPreferences;
-import android.content.pm.PackageManager;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.BatteryManager;
-import android.os.Build;
-import android.os.PowerManager;
+import android.os.Handler;
 import android.support.annotation.Nullable;
-import android.support.v4.content.ContextCompat;
-import android.telephony.CellInfo;
-import android.telephony.CellInfoCdma;
-import android.telephony.CellInfoGsm;
-import android.telephony.CellInfoLte;
-import android.telephony.CellInfoWcdma;
-import android.telephony.PhoneStateListener;
-import android.telephony.SignalStrength;
-import android.telephony.TelephonyManager;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -34,55 +23,54 @@ import java.util.List;
 /**
  * Manages the values of battery, display, signal strength, proximity sensor and magnetic field sensor.
  * These values can be extracted through the methods isDisplayOn(), getBatteryLevel(), getSignalStrength(),
- * getProximity() and extractMagneticField().
+ * getProximity() and extractMagneticField(). The battery, display and signal strength are read from a DeviceStateCache,
+ * kept up to date by the broadcasts and callbacks of the system. The signal strength and proximity are saved in a
+ * StateCheckpoint.
+ * Its state is confined to the thread of the handler given to the constructor, on which it must be created: the sensor
+ * events, broadcasts and signal strength changes are delivered there, and the methods must be called there too.
  */
-public class VariousSensorsCustomManager implements SensorEventListener {
+public class VariousSensorsCustomManager implements SensorEventListener, StateCheckpoint.Section {
 
 
     private static final int SENSORS_DELAY = 2000000; //2 sec (us)
 
-    private int mSignalStrength = 0;
-    private final TelephonyManager mTelephonyManager;
-    private final static String SHARED_PREF_SIGNAL_STRENGTH = "com.thalesgroup.sensorlogging.VariousSensorsCustomManager.mSignalStrength";
+    private final DeviceStateCache deviceStateCache; //battery, display and signal strength
     private float currentProximityFromObject = 0;
-    private final static String SHARED_PREF_PROXIMITY = "com.thalesgroup.sensorlogging.VariousSensorsCustomManager.currentProximityFromObject";
 
     private List<Float> magneticFieldList = new ArrayList<>();
     private final SensorManager mSensorManager;
+    private final Handler handler; //handler of the thread on which the sensor events are delivered
     private final Context mContext; //Application context
-    private final SharedPreferences sharedPref;
 
     /**
      * Constructor
      * @param mContext - Application Context
+     * @param handler - handler of the thread on which the manager is used
+     * @param controlLoop - loop notified when the battery changes (running on the same thread), or null
+     * @param checkpoint - checkpoint the state is restored from and saved in
      */
-    public VariousSensorsCustomManager(Context mContext) {
+    public VariousSensorsCustomManager(Context mContext, Handler handler, @Nullable ControlLoop controlLoop, StateCheckpoint checkpoint) {
         this.mContext = mContext;
         this.mSensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
+        this.handler = handler;
         enableSensors();
-        MyPhoneStateListener mPhoneStatelistener = new MyPhoneStateListener();
-        mTelephonyManager = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
-
-        if (mTelephonyManager != null && !(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 && ContextCompat.checkSelfPermission(mContext, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED))
-        {
-            mTelephonyManager.listen(mPhoneStatelistener, PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
-        }
-        sharedPref = mContext.getSharedPreferences(DataAcquisitionService.SHARED_PREF_TAG, Context.MODE_PRIVATE);
-        mSignalStrength = sharedPref.getInt(SHARED_PREF_SIGNAL_STRENGTH, 0);
-        currentProximityFromObject = sharedPref.getFloat(SHARED_PREF_PROXIMITY, 0);
+        deviceStateCache = new DeviceStateCache(controlLoop, 0);
+        checkpoint.add(StateCheckpoint.SECTION_VARIOUS_SENSORS, this); //before the cache starts, which may refresh the signal strength
+        deviceStateCache.start(mContext, handler);
+    }
 
+    @Override
+    public void saveState(DataOutputStream out) throws IOException {
 
+        out.writeInt(deviceStateCache.peekSignalStrength()); //not a read of an entry: neither counted nor asked for
+        out.writeFloat(currentProximityFromObject);
     }
 
-    /**
-     * updates in the shared preferences file the values of the variables stored
-     */
-    public void updateSharedPreferences() {
+    @Override
+    public void restoreState(DataInputStream in) throws IOException {
 
-        SharedPreferences.Editor editor = sharedPref.edit();
-        editor.putInt(SHARED_PREF_SIGNAL_STRENGTH, mSignalStrength);
-        editor.putFloat(SHARED_PREF_PROXIMITY, currentProximityFromObject);
-        editor.apply();
+        deviceStateCache.onSignalChanged(in.readInt());
+        currentProximityFromObject = in.readFloat();
     }
 
     /**
@@ -90,10 +78,11 @@ public class VariousSensorsCustomManager implements SensorEventListener {
      */
     private void enableSensors()
     {
+        ListenerCounts.registered(ListenerCounts.SENSOR);
         if(getSensor(Sensor.TYPE_MAGNETIC_FIELD) != null)
-            mSensorManager.registerListener(this, getSensor(Sensor.TYPE_MAGNETIC_FIELD), SENSORS_DELAY);
+            mSensorManager.registerListener(this, getSensor(Sensor.TYPE_MAGNETIC_FIELD), SENSORS_DELAY, handler);
         if(getSensor(Sensor.TYPE_PROXIMITY) != null)
-            mSensorManager.registerListener(this, getSensor(Sensor.TYPE_PROXIMITY), SENSORS_DELAY);
+            mSensorManager.registerListener(this, getSensor(Sensor.TYPE_PROXIMITY), SENSORS_DELAY, handler);
     }
 
     /**
@@ -119,12 +108,7 @@ public class VariousSensorsCustomManager implements SensorEventListener {
      */
     public boolean isDisplayOn()
     {
-        PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
-        if (pm != null) {
-            return pm.isScreenOn();
-        }
-        return false;
-
+        return deviceStateCache.isDisplayOn();
     }
 
     /**
@@ -133,8 +117,15 @@ public class VariousSensorsCustomManager implements SensorEventListener {
      */
     public int getBatteryLevel()
     {
-        IntentFilter ifilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
-        Intent batteryStatus = mContext.registerReceiver(null, ifilter);
+        return deviceStateCache.getBatteryLevel();
+    }
+
+    /**
+     * @param batteryStatus - ACTION_BATTERY_CHANGED intent, or null
+     * @return positive integer (0:100) if charging, negative integer (-100:-0) if not charging
+     */
+    public static int getBatteryLevel(@Nullable Intent batteryStatus)
+    {
         // Are we charging / charged?
         int status = 0;
         int level = 0;
@@ -174,41 +165,11 @@ public class VariousSensorsCustomManager implements SensorEventListener {
      */
     public int getSignalStrength()
     {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 && ContextCompat.checkSelfPermission(mContext, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
-            List<CellInfo> cellInfoList = mTelephonyManager.getAllCellInfo();
-            for(CellInfo c:cellInfoList)
-            {
-                if(c.isRegistered())
-                {
-                    if(c.getClass().equals(CellInfoLte.class))
-                    {
-                        CellInfoLte cellInfo = (CellInfoLte) c;
-                        mSignalStrength = cellInfo.getCellSignalStrength().getDbm();
-                    }
-                    else if(c.getClass().equals(CellInfoGsm.class))
-                    {
-                        CellInfoGsm cellInfo = (CellInfoGsm) c;
-                        mSignalStrength = cellInfo.getCellSignalStrength().getDbm();
-                    }
-                    else if(c.getClass().equals(CellInfoCdma.class))
-                    {
-                        CellInfoCdma cellInfo = (CellInfoCdma) c;
-                        mSignalStrength = cellInfo.getCellSignalStrength().getDbm();
-                    }
-                    else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 && c.getClass().equals(CellInfoWcdma.class)) {
-
-                        CellInfoWcdma cellInfo = (CellInfoWcdma) c;
-                        mSignalStrength = cellInfo.getCellSignalStrength().getDbm();
-
-                    }
-                    return mSignalStrength;
-
-
-                }
-            }
-        }
+        return deviceStateCache.getSignalStrength();
+    }
 
-        return mSignalStrength;
+    public DeviceStateCache getDeviceStateCache() {
+        return deviceStateCache;
     }
 
     /**
@@ -226,10 +187,12 @@ public class VariousSensorsCustomManager implements SensorEventListener {
     public void onDestroy()
     {
         disableSensors();
+        deviceStateCache.stop();
     }
 
     private void disableSensors() {
         mSensorManager.unregisterListener(this);
+        ListenerCounts.unregistered(ListenerCounts.SENSOR);
     }
 
     //---------------------SensorEventListener--------------------------
@@ -260,21 +223,4 @@ public class VariousSensorsCustomManager implements SensorEventListener {
     public void onAccuracyChanged(Sensor sensor, int i) {
 
     }
-
-    //Only used in versions of android earlier than JELLY_BEAN_MR1 (not sure if it works)
-    class MyPhoneStateListener extends PhoneStateListener {
-
-        @Override
-        public void onSignalStrengthsChanged(SignalStrength signalStrength) {
-            super.onSignalStrengthsChanged(signalStrength);
-            if (!(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 && ContextCompat.checkSelfPermission(mContext, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED))
-            {
-                mSignalStrength = signalStrength.getGsmSignalStrength();
-                mSignalStrength = (2 * mSignalStrength) - 113; // -> dBm
-            }
-
-
-
-        }
-    }
 }
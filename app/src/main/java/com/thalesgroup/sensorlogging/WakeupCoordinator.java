@@ -0,0 +1,247 @@
+package com.thalesgroup.sensorlogging;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lines the periodic work of the service up in shared wake windows, so that the device is woken up, and its radio
+ * powered up, as few times as possible.
+ * Each task is due at an instant (every period, or once) and has a slack: it may run up to its slack after that
+ * instant and, if it is periodic, up to its slack before (a task run once is a deadline, before which it has nothing to
+ * do). A window opens when the task with the nearest limit (instant due + slack) cannot wait any longer, and runs every
+ * task within its slack. Radio tasks, which power the radio up each time they run, only run early in a window in which
+ * the radio is powered up anyway, so that it is powered up once per window. Work that only powers it up at times (a
+ * control loop that may start a scan, an upload that may be sent) is not a radio task: it tells the coordinator when it
+ * does, so that only the windows that powered the radio up are counted as such.
+ * Not thread-safe
+ */
+public class WakeupCoordinator {
+
+    public static final long NEVER = Long.MAX_VALUE; //instant due of a task not scheduled
+    private static final long HOUR = 60*60*1000; //(ms)
+
+    /**
+     * work run in the windows of the coordinator
+     */
+    public static class Task {
+        private final Runnable runnable;
+        private final long period; //(ms), 0 if run once when scheduled
+        private final long slack; //(ms)
+        private final boolean radio;
+        private final TickStats stats;
+        private long due = NEVER; //(ms)
+
+        private Task(String name, long period, long slack, boolean radio, Runnable runnable) {
+            this.runnable = runnable;
+            this.period = period;
+            this.slack = slack;
+            this.radio = radio;
+            this.stats = new TickStats(name);
+        }
+
+        /**
+         * @return how late the task ran, compared with the instant it was due
+         */
+        public TickStats getStats() {
+            return stats;
+        }
+
+        public long getDue() {
+            return due;
+        }
+    }
+
+    private final Clock clock;
+    private final ControlLoop.Waker waker;
+    private final List<Task> tasks = new ArrayList<>();
+    private long scheduled = NEVER; //instant of the next window (ms)
+    private long windows = 0; //windows that ran tasks, since the last reset
+    private long radioWindows = 0; //windows in which the radio was powered up, since the last reset
+    private long window = 0; //number of the last window, since creation
+    private long lastRadioWindow = 0; //number of the last window in which the radio was powered up
+    private long since; //instant of the last reset (ms)
+
+    /**
+     * Constructor
+     * @param clock - source of the current time
+     * @param waker - wakes the coordinator up (run() is called at the instants it gives)
+     */
+    public WakeupCoordinator(Clock clock, ControlLoop.Waker waker) {
+        this.clock = clock;
+        this.waker = waker;
+        this.since = clock.now();
+    }
+
+    /**
+     * adds a task run every period, the first time a period from now
+     * @param name - name of the task, to report its statistics
+     * @param period - interval of time between runs (ms)
+     * @param slack - how long the task may run before or after it is due (ms)
+     * @param radio - true if the task powers the radio up each time it runs
+     * @param runnable - work of the task
+     * @return the task
+     */
+    public Task addPeriodic(String name, long period, long slack, boolean radio, Runnable runnable)
+    {
+        Task task = new Task(name, period, slack, radio, runnable);
+        tasks.add(task);
+        schedule(task, clock.now() + period);
+        return task;
+    }
+
+    /**
+     * adds a task run once each time it is scheduled
+     * @param name - name of the task, to report its statistics
+     * @param slack - how long the task may run after it is due (ms)
+     * @param radio - true if the task powers the radio up each time it runs
+     * @param runnable - work of the task
+     * @return the task, not scheduled yet
+     */
+    public Task addOneShot(String name, long slack, boolean radio, Runnable runnable)
+    {
+        Task task = new Task(name, 0, slack, radio, runnable);
+        tasks.add(task);
+        return task;
+    }
+
+    /**
+     * sets the instant a task is due, replacing the previous one
+     * @param task - task of this coordinator
+     * @param due - instant (ms), or NEVER to cancel it
+     */
+    public void schedule(Task task, long due)
+    {
+        task.due = due;
+        reschedule();
+    }
+
+    /**
+     * runs the tasks due within their slack, if any, and schedules the next window
+     */
+    public void run()
+    {
+        long now = clock.now();
+        boolean[] runs = new boolean[tasks.size()];
+        boolean radio = false;
+        boolean any = false;
+        for (int i = 0; i < tasks.size(); i++) {
+            Task task = tasks.get(i);
+            runs[i] = task.due <= now || (task.period > 0 && !task.radio && task.due - task.slack <= now);
+            radio |= runs[i] && task.radio;
+            any |= runs[i];
+        }
+        if(radio) //the radio is up anyway: periodic radio tasks due soon run now
+            for (int i = 0; i < tasks.size(); i++) {
+                Task task = tasks.get(i);
+                runs[i] |= task.period > 0 && task.radio && task.due - task.slack <= now;
+            }
+
+        if(any)
+        {
+            windows++;
+            window++;
+            if(radio)
+                radioPowered(window);
+        }
+        for (int i = 0; i < tasks.size(); i++)
+            if(runs[i])
+                runTask(tasks.get(i), now);
+        if(any && !radio && lastRadioWindow == window) //a task powered the radio up: periodic radio tasks due soon too
+            for (int i = 0; i < tasks.size(); i++) {
+                Task task = tasks.get(i);
+                if(!runs[i] && task.period > 0 && task.radio && task.due - task.slack <= now)
+                    runTask(task, now);
+            }
+        scheduled = NEVER;
+        reschedule();
+    }
+
+    private void runTask(Task task, long now)
+    {
+        long due = task.due;
+        //the next run is due a period after this one, or a period from now if this one was too late
+        if(task.period == 0)
+            task.due = NEVER;
+        else
+            task.due = due + task.period - task.slack > now ? due + task.period : now + task.period;
+        long started = clock.now();
+        task.runnable.run();
+        task.stats.record(due, started, clock.now());
+    }
+
+    /**
+     * counts a window as one in which the radio was powered up, once however many times it is. Called by its tasks as
+     * they power the radio up, or later by the work they started (an upload decided on another thread...); a window
+     * older than the last one counted is not counted
+     * @param window - number of the window (see getWindow)
+     */
+    public void radioPowered(long window)
+    {
+        if(window <= lastRadioWindow)
+            return;
+        lastRadioWindow = window;
+        radioWindows++;
+    }
+
+    /**
+     * @return number of the window running, or of the last one, since creation (0 before the first)
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    private void reschedule()
+    {
+        long next = NEVER;
+        for (Task task : tasks)
+            if(task.due != NEVER)
+                next = Math.min(next, task.due + task.slack);
+        if(next != scheduled)
+        {
+            scheduled = next;
+            if(next != NEVER)
+                waker.wakeAt(next);
+        }
+    }
+
+    /**
+     * @return instant of the next window, or NEVER (ms)
+     */
+    public long getScheduled() {
+        return scheduled;
+    }
+
+    public List<Task> getTasks() {
+        return tasks;
+    }
+
+    /**
+     * @return distinct windows per hour (in which tasks ran) since the last reset
+     */
+    public double getWindowsPerHour()
+    {
+        long elapsed = clock.now() - since;
+        return elapsed > 0 ? (double) windows * HOUR / elapsed : 0;
+    }
+
+    /**
+     * @return windows per hour in which the radio was powered up, since the last reset
+     */
+    public double getRadioWindowsPerHour()
+    {
+        long elapsed = clock.now() - since;
+        return elapsed > 0 ? (double) radioWindows * HOUR / elapsed : 0;
+    }
+
+    /**
+     * forgets the windows counted and the statistics of the tasks so far, to measure the next ones
+     */
+    public void resetStats()
+    {
+        windows = 0;
+        radioWindows = 0;
+        since = clock.now();
+        for (Task task : tasks)
+            task.stats.reset();
+    }
+}
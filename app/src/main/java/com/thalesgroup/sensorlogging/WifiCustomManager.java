@@ -4,17 +4,19 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Build;
+import android.os.Handler;
 import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
@@ -42,9 +44,15 @@ import io.realm.RealmList;
  * Manages and performs scans on wifi networks and devices on the networks the device is currently in.
  * Does this automatically when relevant. This data can be extracted through the methods
  * extractWifiNetworksList() and extractWifiDevicesList(). Requires the method setModeAndUpdate(int mode)
- * to be called every 10 secs or so to make the necessary updates.
+ * to be called after UPDATE_EVENTS and by getNextUpdateTime() to make the necessary updates.
+ * Its state is confined to the thread of the handler given to the constructor: the scan results are delivered there,
+ * and the methods must be called there too.
+ * Posts EVENT_SCAN_FINISHED to its ControlLoop when a scan for networks finishes.
+ * Its latest network and the times of its last scans are saved in a StateCheckpoint.
  */
-public class WifiCustomManager {
+public class WifiCustomManager implements StateCheckpoint.Section {
+
+    public static final int UPDATE_EVENTS = ControlLoop.EVENT_MODE | ControlLoop.EVENT_CONNECTIVITY | ControlLoop.EVENT_SCAN_FINISHED; //events after which setModeAndUpdate must be called
 
 
     private static final long TEN_MINUTES = 10*60*1000;
@@ -59,15 +67,14 @@ public class WifiCustomManager {
     private int mode = -1; //EnergyMode
     private final WifiManager mWifiManager;
     private final Context mContext; //ApplicationContext
+    private final Handler handler; //handler of the thread on which the scan results are delivered
+    private final ControlLoop controlLoop; //notified when a scan finishes, or null
     private static final String LOG_TAG = "WifiCustomManager";
-    private final SharedPreferences sharedPref;
 
     private String latestWifiNetworkSSID = null;
-    private final static String SHARED_PREF_LATEST_SSID = "com.thalesgroup.sensorlogging.WifiCustomManager.latestWifiNetworkSSID";
     private long timeOfLastWifiNetworksScan = 0;
-    private final static String SHARED_PREF_TIME_LAST_SCAN_NETWORKS = "com.thalesgroup.sensorlogging.WifiCustomManager.timeOfLastWifiNetworksScan";
     private long timeOfLastWifiDevicesScan = 0;
-    private final static String SHARED_PREF_TIME_LAST_SCAN_DEVICES = "com.thalesgroup.sensorlogging.WifiCustomManager.timeOfLastWifiDevicesScan";
+    private long radioStarts = 0; //scans started since creation
 
     //Broadcast receiver for wifi scan results available intents
     private final BroadcastReceiver mWifiScanReceiver = new BroadcastReceiver() {
@@ -83,6 +90,9 @@ public class WifiCustomManager {
 
                 Log.i(LOG_TAG, "...wifi networks scan finished. " + currentWifiNetworksVisible.size() + " networks found.");
                 timeOfLastWifiNetworksScan = System.currentTimeMillis();
+        radioStarts++;
+                if(controlLoop != null)
+                    controlLoop.post(ControlLoop.EVENT_SCAN_FINISHED);
 
             }
         }
@@ -92,32 +102,41 @@ public class WifiCustomManager {
     /**
      * Constructor
      * @param mContext - Application Context
+     * @param handler - handler of the thread on which the manager is used
+     * @param controlLoop - loop notified when a scan finishes (running on the same thread), or null
+     * @param checkpoint - checkpoint the state is restored from and saved in
      */
-    public WifiCustomManager(Context mContext) {
+    public WifiCustomManager(Context mContext, Handler handler, @Nullable ControlLoop controlLoop, StateCheckpoint checkpoint) {
 
         this.mContext = mContext;
+        this.handler = handler;
+        this.controlLoop = controlLoop;
 
         mWifiManager = (WifiManager) mContext.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
 
-        mContext.registerReceiver(mWifiScanReceiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+        mContext.registerReceiver(mWifiScanReceiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION), null, handler);
+        ListenerCounts.registered(ListenerCounts.RECEIVER);
 
-        sharedPref = mContext.getSharedPreferences(DataAcquisitionService.SHARED_PREF_TAG, Context.MODE_PRIVATE);
-        latestWifiNetworkSSID = sharedPref.getString(SHARED_PREF_LATEST_SSID, null);
-        timeOfLastWifiNetworksScan = sharedPref.getLong(SHARED_PREF_TIME_LAST_SCAN_NETWORKS, 0);
-        timeOfLastWifiDevicesScan = sharedPref.getLong(SHARED_PREF_TIME_LAST_SCAN_DEVICES, 0);
+        checkpoint.add(StateCheckpoint.SECTION_WIFI, this);
 
     }
 
-    /**
-     * updates in the shared preferences file the values of the variables stored
-     */
-    public void updateSharedPreferences() {
+    @Override
+    public void saveState(DataOutputStream out) throws IOException {
+
+        out.writeBoolean(latestWifiNetworkSSID != null);
+        if(latestWifiNetworkSSID != null)
+            out.writeUTF(latestWifiNetworkSSID);
+        out.writeLong(timeOfLastWifiNetworksScan);
+        out.writeLong(timeOfLastWifiDevicesScan);
+    }
 
-        SharedPreferences.Editor editor = sharedPref.edit();
-        editor.putString(SHARED_PREF_LATEST_SSID, latestWifiNetworkSSID);
-        editor.putLong(SHARED_PREF_TIME_LAST_SCAN_NETWORKS, timeOfLastWifiNetworksScan);
-        editor.putLong(SHARED_PREF_TIME_LAST_SCAN_DEVICES, timeOfLastWifiDevicesScan);
-        editor.apply();
+    @Override
+    public void restoreState(DataInputStream in) throws IOException {
+
+        latestWifiNetworkSSID = in.readBoolean() ? in.readUTF() : null;
+        timeOfLastWifiNetworksScan = in.readLong();
+        timeOfLastWifiDevicesScan = in.readLong();
     }
 
     /**
@@ -197,17 +216,29 @@ public class WifiCustomManager {
 
 
         //if enough time has passed that it becomes relevant to scan again, scan
-        if(mode == EnergyModes.MODE_HIGH_BATTERY_INMOTION && System.currentTimeMillis() - timeOfLastWifiNetworksScan > TWO_MINUTES)
-            return true;
-        if(mode == EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION && System.currentTimeMillis() - timeOfLastWifiNetworksScan > TWENTY_MINUTES)
-            return true;
-        if(mode == EnergyModes.MODE_LOW_BATTERY_INMOTION && System.currentTimeMillis() - timeOfLastWifiNetworksScan > FIVE_MINUTES)
-            return true;
-        if(mode == EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION && System.currentTimeMillis() - timeOfLastWifiNetworksScan > ONE_HOUR)
-            return true;
+        long interval = getNetworksScanInterval();
+        return interval >= 0 && System.currentTimeMillis() - timeOfLastWifiNetworksScan > interval;
 
-        return false;
+    }
 
+    /**
+     * @return interval of time between scans for wifi networks in the current energy mode, -1 if there is none (ms)
+     */
+    private long getNetworksScanInterval()
+    {
+        switch (mode)
+        {
+            case EnergyModes.MODE_HIGH_BATTERY_INMOTION:
+                return TWO_MINUTES;
+            case EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION:
+                return TWENTY_MINUTES;
+            case EnergyModes.MODE_LOW_BATTERY_INMOTION:
+                return FIVE_MINUTES;
+            case EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION:
+                return ONE_HOUR;
+            default:
+                return -1;
+        }
     }
 
     /**
@@ -235,17 +266,49 @@ public class WifiCustomManager {
             return false;
 
         //if enough time has passed that it becomes relevant to scan again, scan
-        if(mode == EnergyModes.MODE_HIGH_BATTERY_INMOTION && System.currentTimeMillis() - timeOfLastWifiDevicesScan > FIVE_MINUTES)
-            return true;
-        if(mode == EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION && System.currentTimeMillis() - timeOfLastWifiDevicesScan > THIRTY_MINUTES)
-            return true;
-        if(mode == EnergyModes.MODE_LOW_BATTERY_INMOTION && System.currentTimeMillis() - timeOfLastWifiDevicesScan > TEN_MINUTES)
-            return true;
-        if(mode == EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION && System.currentTimeMillis() - timeOfLastWifiDevicesScan > ONE_HOUR)
-            return true;
+        long interval = getDevicesScanInterval();
+        return interval >= 0 && System.currentTimeMillis() - timeOfLastWifiDevicesScan > interval;
+
+    }
+
+    /**
+     * @return interval of time between scans for devices on the network in the current energy mode, -1 if there is none (ms)
+     */
+    private long getDevicesScanInterval()
+    {
+        switch (mode)
+        {
+            case EnergyModes.MODE_HIGH_BATTERY_INMOTION:
+                return FIVE_MINUTES;
+            case EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION:
+                return THIRTY_MINUTES;
+            case EnergyModes.MODE_LOW_BATTERY_INMOTION:
+                return TEN_MINUTES;
+            case EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION:
+                return ONE_HOUR;
+            default:
+                return -1;
+        }
+    }
 
-        return false;
+    /**
+     * @return instant by which setModeAndUpdate must be called again if none of UPDATE_EVENTS occurs: when the next
+     * scan is due (ms), or ControlLoop.NO_DEADLINE
+     */
+    public long getNextUpdateTime()
+    {
+        long networksInterval = getNetworksScanInterval();
+        long devicesInterval = getDevicesScanInterval();
+        if(networksInterval < 0 || devicesInterval < 0)
+            return ControlLoop.NO_DEADLINE;
+        return Math.min(timeOfLastWifiNetworksScan + networksInterval, timeOfLastWifiDevicesScan + devicesInterval) + 1;
+    }
 
+    /**
+     * @return wifi networks and devices scans started since creation, each of which powers a radio up
+     */
+    public long getRadioStarts() {
+        return radioStarts;
     }
 
     /**
@@ -297,20 +360,28 @@ public class WifiCustomManager {
     }
 
     /**
-     * clears the list of current wifi devices on the network and performs a new scan
+     * clears the list of current wifi devices on the network and performs a new scan, on its own thread. The devices
+     * found are handed to the thread of the manager at the end of the scan
      */
     private void scanWifiDevices()
     {
+        Log.i(LOG_TAG, "Wifi devices scan started...");
+        radioStarts++;
+        currentWifiDevicesVisible = new ArrayList<>();
+        final String currentNetworkSSID = getCurrentWifiNetworkSSID();
         new Thread(new Runnable() {
             @Override
             public void run() {
-                Log.i(LOG_TAG, "Wifi devices scan started...");
-                currentWifiDevicesVisible = new ArrayList<>();
                 doScanWifiDevices();
-                readAddressesWifiDevices();
-                timeOfLastWifiDevicesScan = System.currentTimeMillis();
-                if(currentWifiDevicesVisible != null)
-                    Log.i(LOG_TAG, "...wifi devices scan finished. " + currentWifiDevicesVisible.size() + " devices found.");
+                final List<WifiDeviceCustom> devices = readAddressesWifiDevices(currentNetworkSSID);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        currentWifiDevicesVisible = devices;
+                        timeOfLastWifiDevicesScan = System.currentTimeMillis();
+                        Log.i(LOG_TAG, "...wifi devices scan finished. " + devices.size() + " devices found.");
+                    }
+                });
             }
         }).start();
 
@@ -350,10 +421,12 @@ public class WifiCustomManager {
     }
 
     /**
-     * reads the /proc/net/arp file to extract the ip and mac addresses of all the devices in the network and adds them to
-     * the currentWifiDevicesVisible list
+     * reads the /proc/net/arp file to extract the ip and mac addresses of all the devices in the network
+     * @param currentNetworkSSID - SSID of the network the device is connected to
+     * @return devices found
      */
-    private void readAddressesWifiDevices() {
+    private static List<WifiDeviceCustom> readAddressesWifiDevices(String currentNetworkSSID) {
+        List<WifiDeviceCustom> devices = new ArrayList<>();
         BufferedReader bufferedReader = null;
 
         try {
@@ -366,10 +439,9 @@ public class WifiCustomManager {
                     String ip = splitted[0];
                     String mac = splitted[3];
                     if (mac != null && mac.matches("..:..:..:..:..:..") && !mac.equals("00:00:00:00:00:00")) {
-                        String currentNetworkSSID = getCurrentWifiNetworkSSID();
                         WifiDeviceCustom thisDevice = new WifiDeviceCustom(ip, mac, currentNetworkSSID);
-                        if(currentWifiDevicesVisible != null && !currentWifiDevicesVisible.contains(thisDevice))
-                            currentWifiDevicesVisible.add(thisDevice);
+                        if(!devices.contains(thisDevice))
+                            devices.add(thisDevice);
                     }
                 }
             }
@@ -387,7 +459,7 @@ public class WifiCustomManager {
                 e.printStackTrace();
             }
         }
-
+        return devices;
     }
 
 
@@ -458,6 +530,7 @@ public class WifiCustomManager {
     public void onDestroy()
     {
         mContext.unregisterReceiver(mWifiScanReceiver);
+        ListenerCounts.unregistered(ListenerCounts.RECEIVER);
 
     }
 
@@ -5,17 +5,20 @@ package com.thalesgroup.sensorlogging;
  */
 
 import io.realm.RealmObject;
+import io.realm.annotations.Index;
 import io.realm.annotations.PrimaryKey;
 
 /**
  * WifiDevice containing IP address in the network, mac address of the device and network SSID
  */
-public class WifiDeviceCustom extends RealmObject {
+public class WifiDeviceCustom extends RealmObject implements NaturalKeyObject {
     @PrimaryKey
     private long id;
     private String ip;
     private String mac;
     private String networkSSID;
+    @Index
+    private String naturalKey; //built from ip, mac and networkSSID (see NaturalKeyCache)
 
     public WifiDeviceCustom() {
     }
@@ -26,6 +29,22 @@ public class WifiDeviceCustom extends RealmObject {
         setNetworkSSID(networkSSID);
     }
 
+    /**
+     * @param ip - ip address of the device
+     * @param mac - mac address of the device
+     * @param networkSSID - SSID of the network of the device
+     * @return natural key of a wifi device
+     */
+    public static String naturalKey(String ip, String mac, String networkSSID)
+    {
+        return NaturalKeyCache.buildKey(ip, mac, networkSSID);
+    }
+
+    private void updateNaturalKey()
+    {
+        this.naturalKey = naturalKey(ip, mac, networkSSID);
+    }
+
     @Override
     public String toString() {
         return "WifiDeviceCustom{" +
@@ -41,6 +60,7 @@ public class WifiDeviceCustom extends RealmObject {
 
     public void setNetworkSSID(String network) {
         this.networkSSID = network;
+        updateNaturalKey();
     }
 
     public String getIp() {
@@ -49,6 +69,7 @@ public class WifiDeviceCustom extends RealmObject {
 
     public void setIp(String ip) {
         this.ip = ip;
+        updateNaturalKey();
     }
 
     public String getMac() {
@@ -57,6 +78,7 @@ public class WifiDeviceCustom extends RealmObject {
 
     public void setMac(String mac) {
         this.mac = mac;
+        updateNaturalKey();
     }
 
     @Override
@@ -79,10 +101,17 @@ public class WifiDeviceCustom extends RealmObject {
         return result;
     }
 
+    @Override
+    public String getNaturalKey() {
+        return naturalKey;
+    }
+
+    @Override
     public long getId() {
         return id;
     }
 
+    @Override
     public void setId(long id) {
         this.id = id;
     }
@@ -3,6 +3,7 @@ package com.thalesgroup.sensorlogging;
 import android.net.wifi.ScanResult;
 
 import io.realm.RealmObject;
+import io.realm.annotations.Index;
 import io.realm.annotations.PrimaryKey;
 
 /*
@@ -12,27 +13,46 @@ import io.realm.annotations.PrimaryKey;
 /**
  * class represents a wifi network with SSID and BSSID
  */
-public class WifiNetworkCustom extends RealmObject {
+public class WifiNetworkCustom extends RealmObject implements NaturalKeyObject {
 
     private String SSID;
     private String BSSID;
     @PrimaryKey
     private long id;
+    @Index
+    private String naturalKey; //built from SSID and BSSID (see NaturalKeyCache)
 
     public WifiNetworkCustom(ScanResult scanResult) {
         this.SSID = scanResult.SSID;
         this.BSSID = scanResult.BSSID;
+        updateNaturalKey();
     }
 
     public WifiNetworkCustom() {
     }
 
+    /**
+     * @param SSID - SSID of the network
+     * @param BSSID - BSSID of the network
+     * @return natural key of a wifi network
+     */
+    public static String naturalKey(String SSID, String BSSID)
+    {
+        return NaturalKeyCache.buildKey(SSID, BSSID);
+    }
+
+    private void updateNaturalKey()
+    {
+        this.naturalKey = naturalKey(SSID, BSSID);
+    }
+
     public String getSSID() {
         return SSID;
     }
 
     public void setSSID(String SSID) {
         this.SSID = SSID;
+        updateNaturalKey();
     }
 
     public String getBSSID() {
@@ -41,6 +61,7 @@ public class WifiNetworkCustom extends RealmObject {
 
     public void setBSSID(String BSSID) {
         this.BSSID = BSSID;
+        updateNaturalKey();
     }
 
     @Override
@@ -69,10 +90,17 @@ public class WifiNetworkCustom extends RealmObject {
         return result;
     }
 
+    @Override
+    public String getNaturalKey() {
+        return naturalKey;
+    }
+
+    @Override
     public long getId() {
         return id;
     }
 
+    @Override
     public void setId(long id) {
         this.id = id;
     }
@@ -0,0 +1,147 @@
+package com.thalesgroup.sensorlogging;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file keeping the entries that are waiting to be committed to the database, so that they
+ * survive the service being killed before they are. Each record is framed by its length and a checksum,
+ * and reading stops at the first record that was not completely written.
+ * The file is not synced to disk on each append: a process being killed does not lose the data already
+ * written, only a power loss can.
+ */
+public class WindowJournal {
+
+    private static final String LOG_TAG = "WindowJournal";
+
+    private final File file;
+
+    /**
+     * Constructor
+     * @param file - journal file (created when the first entry is appended)
+     */
+    public WindowJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * appends an entry to the end of the journal
+     * @param entry - entry to append
+     */
+    public void append(SensorsEntry entry)
+    {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file, true);
+            out.write(encode(entry));
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to append entry to journal", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * replaces the content of the journal by the entries given
+     * @param entries - entries that are still waiting to be committed
+     */
+    public void rewrite(List<SensorsEntry> entries)
+    {
+        if(entries.isEmpty())
+        {
+            if(file.exists() && !file.delete())
+                Log.w(LOG_TAG, "Failed to delete journal");
+            return;
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            for(SensorsEntry entry:entries)
+                out.write(encode(entry));
+            out.close();
+            out = null;
+            if(!temp.renameTo(file))
+                Log.w(LOG_TAG, "Failed to replace journal");
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to rewrite journal", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * @return every entry completely written in the journal, in the order they were appended
+     */
+    public List<SensorsEntry> readAll()
+    {
+        List<SensorsEntry> entries = new ArrayList<>();
+        if(!file.exists())
+            return entries;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            while(true)
+            {
+                int length = in.readInt();
+                long checksum = in.readInt() & 0xFFFFFFFFL;
+                if(length < 0 || length > file.length())
+                    break;
+                byte[] record = new byte[length];
+                in.readFully(record);
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if(crc.getValue() != checksum)
+                    break; //record not completely written
+                entries.add(SensorsEntryCodec.read(new DataInputStream(new ByteArrayInputStream(record))));
+            }
+        } catch (EOFException e) {
+            //end of the journal (or last record not completely written)
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to read journal", e);
+        } finally {
+            closeQuietly(in);
+        }
+        return entries;
+    }
+
+    //encodes an entry as a record: length, checksum and the entry itself
+    private static byte[] encode(SensorsEntry entry) throws IOException
+    {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+        SensorsEntryCodec.write(new DataOutputStream(record), entry);
+        byte[] bytes = record.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(bytes.length + 8);
+        DataOutputStream out = new DataOutputStream(framed);
+        out.writeInt(bytes.length);
+        out.writeInt((int) crc.getValue());
+        out.write(bytes);
+        return framed.toByteArray();
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if(closeable != null)
+            try {
+                closeable.close();
+            } catch (IOException ignored) { }
+    }
+}
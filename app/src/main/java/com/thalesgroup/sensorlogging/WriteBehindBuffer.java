@@ -0,0 +1,146 @@
+package com.thalesgroup.sensorlogging;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the entries (one per window of DELAY_DB) that are waiting to be committed to the database,
+ * so that several of them can be committed in a single transaction.
+ * Entries are kept in memory and in a WindowJournal. An entry stays in the journal from the moment it is added
+ * until the transaction that committed it is confirmed, so entries drained for a transaction that then fails
+ * can be restored and committed later.
+ * The entries left in the journal by a previous instance of the service are only read by recover(), which does file I/O
+ * and is meant for the storage thread; entries added before it are journaled by it.
+ */
+public class WriteBehindBuffer {
+
+    private final List<SensorsEntry> pendingEntries = new ArrayList<>(); //entries not yet drained
+    private final List<SensorsEntry> inFlightEntries = new ArrayList<>(); //entries drained for a transaction not yet confirmed
+    private final WindowJournal journal;
+    private boolean recovered; //true once the journal of the previous instance was read, and entries are appended to it
+
+    /**
+     * Constructor. Entries left in the journal by a previous instance of the service are added to the buffer by recover()
+     * @param journal - journal where the entries are kept until committed (or null to keep them only in memory)
+     */
+    public WriteBehindBuffer(WindowJournal journal) {
+        this.journal = journal;
+        this.recovered = journal == null;
+    }
+
+    /**
+     * adds to the buffer the entries left in the journal by a previous instance of the service, before the ones added
+     * since, and rewrites the journal with them: a record not completely written at its end is dropped, so that the
+     * entries appended next do not end up behind it (where reading stops)
+     */
+    public synchronized void recover()
+    {
+        if(recovered)
+            return;
+        pendingEntries.addAll(0, journal.readAll());
+        recovered = true;
+        rewriteJournal();
+    }
+
+    /**
+     * adds an entry to the buffer
+     * @param entry - entry to be committed
+     */
+    public synchronized void add(SensorsEntry entry)
+    {
+        pendingEntries.add(entry);
+        if(recovered && journal != null)
+            journal.append(entry); //before recover(), journaled by it
+    }
+
+    /**
+     * @param windowsPerCommit - number of entries to accumulate before committing
+     * @param awake - true if the device is awake for another reason (so committing now costs no extra wakeup)
+     * @return true if the entries in the buffer should be committed now
+     */
+    public synchronized boolean shouldFlush(int windowsPerCommit, boolean awake)
+    {
+        return !pendingEntries.isEmpty() && (awake || pendingEntries.size() >= windowsPerCommit);
+    }
+
+    /**
+     * @return number of entries not yet drained
+     */
+    public synchronized int size()
+    {
+        return pendingEntries.size();
+    }
+
+    /**
+     * removes from the buffer the entries which ended before a certain instant (because they are already in the database)
+     * @param finalTimestamp - instant (in ms)
+     */
+    public synchronized void dropUntil(long finalTimestamp)
+    {
+        boolean changed = false;
+        for(int i = pendingEntries.size() - 1; i >= 0; i--)
+        {
+            if(pendingEntries.get(i).getFinalTimestamp() <= finalTimestamp)
+            {
+                pendingEntries.remove(i);
+                changed = true;
+            }
+        }
+        if(changed)
+            rewriteJournal();
+    }
+
+    /**
+     * takes every entry out of the buffer to be committed. The entries remain in the journal until
+     * confirm() or restore() is called with them
+     * @return entries to commit, in the order they were added
+     */
+    public synchronized List<SensorsEntry> drain()
+    {
+        List<SensorsEntry> entries = new ArrayList<>(pendingEntries);
+        pendingEntries.clear();
+        inFlightEntries.addAll(entries);
+        return entries;
+    }
+
+    /**
+     * removes from the journal entries that were committed
+     * @param entries - entries returned by drain()
+     */
+    public synchronized void confirm(List<SensorsEntry> entries)
+    {
+        removeInFlight(entries);
+        rewriteJournal();
+    }
+
+    /**
+     * puts back in the buffer entries whose transaction failed, before the ones added since
+     * @param entries - entries returned by drain()
+     */
+    public synchronized void restore(List<SensorsEntry> entries)
+    {
+        removeInFlight(entries);
+        pendingEntries.addAll(0, entries);
+    }
+
+    private void removeInFlight(List<SensorsEntry> entries)
+    {
+        //entries are compared by identity, as unmanaged entries do not implement equals()
+        for(SensorsEntry entry:entries)
+            for(int i = 0; i < inFlightEntries.size(); i++)
+                if(inFlightEntries.get(i) == entry)
+                {
+                    inFlightEntries.remove(i);
+                    break;
+                }
+    }
+
+    private void rewriteJournal()
+    {
+        if(journal == null)
+            return;
+        List<SensorsEntry> remaining = new ArrayList<>(inFlightEntries);
+        remaining.addAll(pendingEntries);
+        journal.rewrite(remaining);
+    }
+}
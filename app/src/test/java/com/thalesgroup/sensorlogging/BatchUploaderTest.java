@@ -0,0 +1,530 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Local unit tests and benchmark of BatchUploader, uploading from a SegmentedLogStorage to an IngestServerStandIn
+ */
+public class BatchUploaderTest {
+
+    private static final long START = 1538352000000L; //2018-10-01 00:00 UTC (ms)
+    private static final int BACKLOG = 10000; //entries waiting to be uploaded
+    private static final long LATENCY = 200; //time the slow server takes to answer (ms)
+    private static final String DEVICE_ID = "test-device";
+    private static final int MILLION = 1000000;
+    private static final Executor SAME_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final List<File> directories = new ArrayList<>();
+    private SegmentedLogStorage storage;
+    private IngestServerStandIn server;
+
+    @Before
+    public void setUp() throws IOException {
+        storage = createStorage(BACKLOG);
+        server = new IngestServerStandIn();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        storage.close();
+        for (File directory : directories) {
+            File[] files = directory.listFiles();
+            if (files != null)
+                for (File file : files)
+                    file.delete();
+            directory.delete();
+        }
+    }
+
+    private SegmentedLogStorage createStorage(int count) throws IOException {
+        File directory = File.createTempFile("sensors-log", "");
+        assertTrue(directory.delete());
+        directories.add(directory);
+        SegmentedLogStorage storage = new SegmentedLogStorage(directory);
+        storage.open();
+        SyntheticEntries entries = new SyntheticEntries(1, START);
+        List<SensorsEntry> group = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            group.add(entries.next());
+            if (group.size() == 100 || i == count - 1) {
+                storage.append(group);
+                group = new ArrayList<>();
+            }
+        }
+        return storage;
+    }
+
+    /**
+     * uploads the backlog in batches and, for comparison, part of it one entry per request (as it was uploaded before)
+     */
+    @Test
+    public void backlogIsUploadedInFewCompressedRequests() throws IOException {
+        long start = System.nanoTime();
+        BatchUploader uploader = new BatchUploader(server.getUrl(), DEVICE_ID, 500, 1024 * 1024);
+        assertEquals(BACKLOG, uploader.upload(storage));
+        double batchedMs = (System.nanoTime() - start) / 1e6;
+
+        assertEquals(BACKLOG / 500, server.getRequests());
+        assertEquals(BACKLOG, server.getEntries());
+        assertEquals(1, server.getConnections()); //kept open between requests
+        assertEquals(server.getBytes(), uploader.getBytesSent());
+        assertEquals(0, uploader.upload(storage)); //nothing left
+        assertEquals(BACKLOG / 500, server.getRequests());
+        Benchmarks.report("BatchUploader: " + BACKLOG + " entries in " + server.getRequests() + " requests on " + server.getConnections() + " connection, "
+                + server.getBytes() / 1024 + " KB (" + server.getBytes() / BACKLOG + " bytes/entry), " + batchedMs + " ms");
+
+        //some of the same entries sent one per request, the way they were sent before
+        SegmentedLogStorage small = createStorage(1000);
+        IngestServerStandIn single = new IngestServerStandIn();
+        try {
+            start = System.nanoTime();
+            assertEquals(1000, new BatchUploader(single.getUrl(), DEVICE_ID, 1, Integer.MAX_VALUE).upload(small));
+            double singleMs = (System.nanoTime() - start) / 1e6;
+            assertEquals(1000, single.getRequests());
+            Benchmarks.report("BatchUploader: 1000 entries one per request, " + single.getBytes() / 1000 + " bytes/entry, "
+                    + singleMs + " ms (" + (singleMs * BACKLOG / 1000) + " ms for " + BACKLOG + ")");
+        } finally {
+            single.stop();
+            small.close();
+        }
+    }
+
+    @Test
+    public void batchesAreLimitedByBytes() throws IOException {
+        BatchUploader uploader = new BatchUploader(server.getUrl(), DEVICE_ID, Integer.MAX_VALUE, 64 * 1024);
+        assertEquals(BACKLOG, uploader.upload(storage));
+        assertTrue(server.getRequests() > 1);
+        assertEquals(BACKLOG, server.getEntries());
+    }
+
+    @Test
+    public void backlogIsUploadedInBinary() throws IOException {
+        BatchUploader uploader = new BatchUploader(server.getUrl(), DEVICE_ID, BatchUploader.FORMAT_BINARY, 500, 1024 * 1024);
+        assertEquals(BACKLOG, uploader.upload(storage));
+        assertEquals(BACKLOG / 500, server.getRequests());
+        assertEquals(BACKLOG, server.getEntries()); //decoded by the stand-in
+        assertEquals(0, uploader.upload(storage));
+        Benchmarks.report("BatchUploader (binary): " + BACKLOG + " entries in " + server.getRequests() + " requests, "
+                + server.getBytes() / 1024 + " KB (" + server.getBytes() / BACKLOG + " bytes/entry)");
+    }
+
+    @Test
+    public void uploadStopsAfterItsMaximumOfBytes() throws IOException {
+        BatchUploader uploader = new BatchUploader(server.getUrl(), DEVICE_ID, 500, Integer.MAX_VALUE);
+        long uploaded = uploader.upload(storage, SAME_THREAD, 100 * 1024);
+        assertTrue(uploader.isCapped());
+        assertFalse(uploader.isFailed());
+        assertTrue(uploaded > 0 && uploaded < BACKLOG);
+        assertTrue(server.getBytes() >= 100 * 1024 && server.getBytes() < 200 * 1024); //batches of about 60 KB
+        assertEquals(BACKLOG - uploaded, storage.countNotUploaded());
+
+        assertEquals(BACKLOG - uploaded, uploader.upload(storage));
+        assertFalse(uploader.isCapped());
+        assertEquals(0, storage.countNotUploaded());
+    }
+
+    @Test
+    public void uploadStopsAtFirstFailedBatch() throws IOException {
+        BatchUploader uploader = new BatchUploader(server.getUrl(), DEVICE_ID, 1000, Integer.MAX_VALUE);
+        server.failRequests(4, 1);
+        assertEquals(3000, uploader.upload(storage));
+        assertTrue(uploader.isFailed());
+
+        List<SensorsEntry> notUploaded = new ArrayList<>();
+        storage.scanNotUploaded(collector(notUploaded));
+        assertEquals(BACKLOG - 3000, notUploaded.size());
+        assertEquals(3001, notUploaded.get(0).getId());
+
+        //the failed batch is sent again by the next upload
+        assertEquals(BACKLOG - 3000, uploader.upload(storage));
+        assertEquals(BACKLOG, server.getEntries());
+        assertEquals(0, server.getDuplicates());
+        assertEquals(BACKLOG / 1000, storage.getUploadWatermark().getAcknowledgedSequence());
+    }
+
+    /**
+     * the server accepts a batch but its answer is lost: the batch is sent again, with the same sequence number and
+     * entries (even though the limits of the batches changed meanwhile), and discarded by the server
+     */
+    @Test
+    public void batchWhoseAcknowledgementWasLostIsSentAgain() throws IOException {
+        server.dropResponses(3, 1);
+        assertEquals(2000, new BatchUploader(server.getUrl(), DEVICE_ID, 1000, Integer.MAX_VALUE).upload(storage));
+        assertEquals(3000, server.getEntries()); //including the batch whose answer was lost
+        UploadWatermark watermark = storage.getUploadWatermark();
+        assertEquals(2, watermark.getAcknowledgedSequence());
+        assertEquals(2000, watermark.getAcknowledgedId());
+        assertEquals(3, watermark.getPendingSequence());
+        assertEquals(3000, watermark.getPendingLastId());
+
+        //as after a restart of the service, with batches of another size
+        assertEquals(BACKLOG - 2000, new BatchUploader(server.getUrl(), DEVICE_ID, 700, Integer.MAX_VALUE).upload(storage));
+        assertEquals(1, server.getDuplicates());
+        assertEquals(BACKLOG, server.getEntries()); //each entry accepted once
+        watermark = storage.getUploadWatermark();
+        assertEquals(3 + (BACKLOG - 3000 + 699) / 700, watermark.getAcknowledgedSequence());
+        assertEquals(BACKLOG, watermark.getAcknowledgedId());
+        assertEquals(0, watermark.getPendingSequence());
+    }
+
+    /**
+     * uploads the backlog in small batches (as uploaded every hour) compressed with a dictionary, which is built from
+     * the first batch and posted once, comparing the bytes sent with gzip
+     */
+    @Test
+    public void backlogIsUploadedWithPresetDictionary() throws IOException {
+        BatchUploader uploader = new BatchUploader(server.getUrl(), DEVICE_ID, BatchUploader.FORMAT_JSON, BatchUploader.COMPRESSION_DICTIONARY, 60, Integer.MAX_VALUE);
+        assertEquals(BACKLOG, uploader.upload(storage));
+        assertFalse(uploader.isFailed());
+        assertEquals(BACKLOG, server.getEntries());
+        assertEquals(2, server.getDictionaries()); //rebuilt after 100 requests
+        assertEquals(server.getBytes(), uploader.getBytesSent());
+
+        SegmentedLogStorage other = createStorage(BACKLOG);
+        IngestServerStandIn gzipServer = new IngestServerStandIn();
+        try {
+            assertEquals(BACKLOG, new BatchUploader(gzipServer.getUrl(), DEVICE_ID, 60, Integer.MAX_VALUE).upload(other));
+            Benchmarks.report("BatchUploader: " + BACKLOG + " entries in batches of 60, " + server.getBytes() / 1024 + " KB with a dictionary (including "
+                    + server.getDictionaries() + " dictionaries), " + gzipServer.getBytes() / 1024 + " KB with gzip");
+            assertTrue(server.getBytes() < gzipServer.getBytes());
+        } finally {
+            gzipServer.stop();
+            other.close();
+        }
+    }
+
+    /**
+     * the server forgets the dictionaries (412): the dictionary is posted again and the batch sent again, then a stream
+     * is compressed with it, chunk by chunk
+     */
+    @Test
+    public void dictionaryLostByTheServerIsPostedAgain() throws IOException {
+        BatchUploader uploader = new BatchUploader(server.getUrl(), DEVICE_ID, BatchUploader.FORMAT_JSON, BatchUploader.COMPRESSION_DICTIONARY, 100, Integer.MAX_VALUE);
+        long uploaded = uploader.upload(storage, SAME_THREAD, 50 * 1024);
+        assertTrue(uploaded >= 200 && uploaded < BACKLOG); //the first batch builds the dictionary, the next ones use it
+        assertEquals(1, server.getDictionaries());
+
+        server.forgetDictionaries();
+        assertEquals(0, uploader.upload(storage, SAME_THREAD, 50 * 1024));
+        assertTrue(uploader.isFailed());
+        assertEquals(uploaded, server.getEntries());
+
+        assertEquals(BACKLOG - uploaded, uploader.stream(storage, SAME_THREAD, Long.MAX_VALUE));
+        assertEquals(1, server.getDictionaries());
+        assertEquals(BACKLOG, server.getEntries());
+        assertEquals(0, server.getDuplicateEntries());
+    }
+
+    @Test
+    public void backlogIsStreamedInOneRequest() throws IOException {
+        BatchUploader uploader = new BatchUploader(server.getUrl(), DEVICE_ID, 500, 1024 * 1024);
+        assertEquals(BACKLOG, uploader.stream(storage, SAME_THREAD, Long.MAX_VALUE));
+        assertFalse(uploader.isFailed());
+        assertEquals(1, server.getRequests());
+        assertEquals(1, server.getConnections());
+        assertEquals(BACKLOG, server.getEntries());
+        assertEquals(server.getBytes(), uploader.getBytesSent());
+        UploadWatermark watermark = storage.getUploadWatermark();
+        assertEquals(1, watermark.getAcknowledgedSequence());
+        assertEquals(BACKLOG, watermark.getAcknowledgedId());
+        assertEquals(0, watermark.getPendingSequence());
+
+        assertEquals(0, uploader.stream(storage, SAME_THREAD, Long.MAX_VALUE)); //nothing left
+        assertEquals(1, server.getRequests());
+    }
+
+    /**
+     * the connection is reset in the middle of a stream: the next stream asks the server for the last entry it received
+     * and sends the entries after it, none twice
+     */
+    @Test
+    public void interruptedStreamIsResumedAfterTheLastEntryReceived() throws IOException {
+        server.resetRequest(1, 300 * 1024);
+        BatchUploader uploader = new BatchUploader(server.getUrl(), DEVICE_ID, 500, 1024 * 1024);
+        assertEquals(0, uploader.stream(storage, SAME_THREAD, Long.MAX_VALUE));
+        assertTrue(uploader.isFailed());
+        long received = server.getEntries();
+        assertTrue(received > 0 && received < BACKLOG);
+        UploadWatermark watermark = storage.getUploadWatermark();
+        assertEquals(0, watermark.getAcknowledgedId());
+        assertEquals(1, watermark.getPendingSequence());
+        assertTrue(watermark.getPendingLastId() >= received); //checkpoint of the last chunk written
+
+        assertEquals(BACKLOG - received, uploader.stream(storage, SAME_THREAD, Long.MAX_VALUE));
+        assertEquals(3, server.getRequests()); //interrupted stream, last entry received, resumed stream
+        assertEquals(BACKLOG, server.getEntries());
+        assertEquals(0, server.getDuplicateEntries());
+        watermark = storage.getUploadWatermark();
+        assertEquals(2, watermark.getAcknowledgedSequence());
+        assertEquals(BACKLOG, watermark.getAcknowledgedId());
+        assertEquals(0, watermark.getPendingSequence());
+    }
+
+    /**
+     * a batch left pending on a server which lost what it received (or never received any of it): the entries
+     * acknowledged before stay acknowledged, and only the ones after them are sent again
+     */
+    @Test
+    public void resumedStreamNeverUnacknowledgesEntries() throws IOException {
+        GeneratedStorage generated = new GeneratedStorage(1000);
+        generated.setUploadWatermark(new UploadWatermark(1, 600, 2, 800));
+        BatchUploader uploader = new BatchUploader(server.getUrl(), DEVICE_ID, BatchUploader.FORMAT_BINARY, 500, 1024 * 1024);
+        assertEquals(400, uploader.stream(generated, SAME_THREAD, Long.MAX_VALUE));
+        assertFalse(uploader.isFailed());
+        assertEquals(400, server.getEntries());
+        assertEquals(1000, generated.getUploadWatermark().getAcknowledgedId());
+    }
+
+    /**
+     * streams a million entries (about two years of them) read from a cursor which builds them as it goes, measuring
+     * the heap in use (after a collection) every 100000 entries: it does not grow with the number of entries sent.
+     * A benchmark of several seconds, only run with ./gradlew test -Pbenchmarks
+     */
+    @Test
+    public void millionEntriesAreStreamedInConstantMemory() throws IOException {
+        assumeTrue(Benchmarks.ENABLED);
+        GeneratedStorage generated = new GeneratedStorage(MILLION);
+        BatchUploader uploader = new BatchUploader(server.getUrl(), DEVICE_ID, BatchUploader.FORMAT_BINARY, 500, 1024 * 1024);
+        long start = System.nanoTime();
+        assertEquals(MILLION, uploader.stream(generated, SAME_THREAD, Long.MAX_VALUE));
+        double ms = (System.nanoTime() - start) / 1e6;
+        assertEquals(1, server.getRequests());
+        assertEquals(MILLION, server.getEntries());
+        assertEquals(MILLION, generated.getUploadWatermark().getAcknowledgedId());
+
+        long growth = generated.peakHeap - generated.firstHeap;
+        Benchmarks.report("BatchUploader: " + MILLION + " entries streamed in 1 request, " + server.getBytes() / 1024 + " KB, " + ms + " ms; heap in use "
+                + generated.firstHeap / 1024 + " KB after 100000 entries, at most " + generated.peakHeap / 1024 + " KB afterwards");
+        assertTrue(growth < 8 * 1024 * 1024);
+    }
+
+    /**
+     * uploads to a slow server while an entry is appended every 20ms, as the service commits them, once with the
+     * storage only used on its own thread for reading and marking each batch, and once with the whole upload on the
+     * thread of the storage (as it was done before), reporting the longest time an append waited
+     */
+    @Test
+    public void appendsDoNotWaitForTheServer() throws Exception {
+        server.setLatency(LATENCY);
+        final ExecutorService storageThread = Executors.newSingleThreadExecutor();
+        final Executor storageExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                storageThread.execute(command);
+            }
+        };
+        ExecutorService uploadThread = Executors.newSingleThreadExecutor();
+        try {
+            final BatchUploader uploader = new BatchUploader(server.getUrl(), DEVICE_ID, BatchUploader.DEFAULT_MAX_ENTRIES, Integer.MAX_VALUE);
+            Future<Long> twoPhase = uploadThread.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    return uploader.upload(storage, storageExecutor);
+                }
+            });
+            long twoPhaseWait = appendDuring(storageThread, storage, 4 * LATENCY);
+            assertTrue(twoPhase.get() >= BACKLOG);
+
+            final SegmentedLogStorage other = createStorage(BACKLOG);
+            Future<Long> sameThread = storageThread.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    return uploader.upload(other);
+                }
+            });
+            long sameThreadWait = appendDuring(storageThread, other, 4 * LATENCY);
+            assertTrue(sameThread.get() >= BACKLOG);
+            other.close();
+
+            Benchmarks.report("BatchUploader: longest wait of an append during an upload to a server answering in " + LATENCY
+                    + " ms: " + twoPhaseWait + " ms (" + sameThreadWait + " ms with the upload on the thread of the storage)");
+            assertTrue(twoPhaseWait < LATENCY / 2);
+            assertTrue(sameThreadWait >= LATENCY / 2);
+        } finally {
+            uploadThread.shutdownNow();
+            storageThread.shutdownNow();
+        }
+    }
+
+    //appends an entry every 20ms on the thread of the storage for some time, returning the longest wait of an append (ms)
+    private static long appendDuring(ExecutorService storageThread, final SensorsEntryStorage storage, long duration) throws Exception {
+        SyntheticEntries entries = new SyntheticEntries(2, START + 365 * 24 * 3600 * 1000L);
+        long longestWait = 0;
+        long end = System.currentTimeMillis() + duration;
+        while (System.currentTimeMillis() < end) {
+            final SensorsEntry entry = entries.next();
+            long start = System.nanoTime();
+            storageThread.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    storage.append(Collections.singletonList(entry));
+                    return null;
+                }
+            }).get();
+            longestWait = Math.max(longestWait, (System.nanoTime() - start) / 1000000);
+            Thread.sleep(20);
+        }
+        return longestWait;
+    }
+
+    private static SensorsEntryStorage.Visitor collector(final List<SensorsEntry> read) {
+        return new SensorsEntryStorage.Visitor() {
+            @Override
+            public boolean visit(SensorsEntry entry) {
+                read.add(entry);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * storage of generated entries, building each one when a cursor gets to it, and measuring the heap in use as the
+     * checkpoints of a stream go by
+     */
+    private static class GeneratedStorage implements SensorsEntryStorage {
+        private static final long MEASURE_EVERY = 100000; //entries
+        private final long count;
+        private final SensorsEntry[] templates = new SensorsEntry[1440]; //a day of entries, reused with other ids
+        private UploadWatermark watermark = new UploadWatermark();
+        long firstHeap = 0; //heap in use at the first measure (bytes)
+        long peakHeap = 0; //highest heap in use at the following ones (bytes)
+
+        GeneratedStorage(long count) {
+            this.count = count;
+            SyntheticEntries entries = new SyntheticEntries(3, START);
+            for (int i = 0; i < templates.length; i++)
+                templates[i] = entries.next();
+        }
+
+        @Override
+        public SensorsEntryCursor query(long fromTimestamp, long toTimestamp, final long afterId, final int limit, int fields) {
+            return new SensorsEntryCursor() {
+                private long id = afterId;
+
+                @Override
+                public boolean moveToNext() {
+                    if (id >= count || id - afterId >= limit)
+                        return false;
+                    id++;
+                    return true;
+                }
+
+                @Override
+                public SensorsEntry getEntry() {
+                    SensorsEntry entry = templates[(int) ((id - 1) % templates.length)];
+                    entry.setId(id);
+                    return entry;
+                }
+
+                @Override
+                public long getLastId() {
+                    return id;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        public long countNotUploaded() {
+            return count - watermark.getAcknowledgedId();
+        }
+
+        @Override
+        public UploadWatermark getUploadWatermark() {
+            return new UploadWatermark(watermark.getAcknowledgedSequence(), watermark.getAcknowledgedId(), watermark.getPendingSequence(), watermark.getPendingLastId());
+        }
+
+        @Override
+        public void setUploadWatermark(UploadWatermark watermark) {
+            long previous = this.watermark.getPendingLastId();
+            this.watermark = watermark;
+            if (watermark.getPendingLastId() / MEASURE_EVERY > previous / MEASURE_EVERY) {
+                long heap = usedHeap();
+                if (firstHeap == 0)
+                    firstHeap = heap;
+                else
+                    peakHeap = Math.max(peakHeap, heap);
+            }
+        }
+
+        private static long usedHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            System.gc();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void append(List<SensorsEntry> entries) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getLastFinalTimestamp() {
+            return 0;
+        }
+
+        @Override
+        public void scan(long fromTimestamp, long toTimestamp, Visitor visitor) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void scanNotUploaded(Visitor visitor) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PurgeResult purgeUploaded(int maxEntries) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PurgeResult purgeOlderThan(long timestamp, int maxEntries) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void scanRollups(int resolution, long fromTimestamp, long toTimestamp, RollupVisitor visitor) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int purgeRollupsOlderThan(int resolution, long timestamp) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
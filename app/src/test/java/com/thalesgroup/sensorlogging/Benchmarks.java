@@ -0,0 +1,23 @@
+package com.thalesgroup.sensorlogging;
+
+/**
+ * Switch of the benchmarks of the local unit tests: the long ones only run, and the figures of all of them are only
+ * printed, with ./gradlew test -Pbenchmarks, so that the unit tests stay fast and quiet
+ */
+final class Benchmarks {
+
+    static final boolean ENABLED = Boolean.getBoolean("benchmarks");
+
+    private Benchmarks() {
+    }
+
+    /**
+     * prints the figures of a benchmark, if the benchmarks are enabled
+     * @param figures - line to print
+     */
+    static void report(String figures)
+    {
+        if(ENABLED)
+            System.out.println(figures);
+    }
+}
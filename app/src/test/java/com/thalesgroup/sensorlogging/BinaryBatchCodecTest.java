@@ -0,0 +1,174 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import io.realm.RealmList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests and benchmark of BinaryBatchCodec
+ */
+public class BinaryBatchCodecTest {
+
+    private static final long START = 1538352000000L; //2018-10-01 00:00 UTC (ms)
+
+    /**
+     * decoded entries are the encoded ones with their decimals rounded the way the JSON of the entries rounds them,
+     * so both formats carry the same values
+     */
+    @Test
+    public void entriesAreDecodedAsEncoded() throws IOException {
+        SyntheticEntries synthetic = new SyntheticEntries(3, START);
+        List<SensorsEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            SensorsEntry entry = synthetic.next();
+            entry.setId(i + 1);
+            entries.add(entry);
+        }
+        SensorsEntry unusual = synthetic.next(); //nulls, not finite decimals and text outside ASCII
+        unusual.setId(1000);
+        unusual.setMotionValues(null);
+        unusual.setCurrentNetworkSSID("caf\u00e9 \ud83d\ude00");
+        unusual.setWifiDevices(null);
+        unusual.setBluetoothDevices(new RealmList<BluetoothDeviceCustom>());
+        LocationCustom location = new LocationCustom();
+        location.setId(5);
+        location.setLatitude(Double.NaN);
+        location.setLongitude(-179.9999999);
+        location.setAccuracy(Float.POSITIVE_INFINITY);
+        location.setTimestamp(START - 5000);
+        RealmList<LocationCustom> locations = new RealmList<>();
+        locations.add(location);
+        unusual.setLocationList(locations);
+        entries.add(unusual);
+
+        List<SensorsEntry> decoded = decode(encode(entries));
+        assertEquals(entries.size(), decoded.size());
+        for (int i = 0; i < entries.size(); i++)
+            assertEquals(json(entries.get(i)), json(decoded.get(i)));
+    }
+
+    @Test
+    public void batchesAreIndependent() throws IOException {
+        SyntheticEntries synthetic = new SyntheticEntries(4, START);
+        List<SensorsEntry> first = new ArrayList<>(), second = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            first.add(synthetic.next());
+            second.add(synthetic.next());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryBatchCodec.Encoder encoder = new BinaryBatchCodec.Encoder(out);
+        write(encoder, first);
+        out.reset();
+        encoder.reset(out);
+        write(encoder, second); //the strings and previous values of the first batch are not referenced
+        assertEquals(out.size(), encoder.getCount());
+        List<SensorsEntry> decoded = decode(out.toByteArray());
+        for (int i = 0; i < second.size(); i++)
+            assertEquals(json(second.get(i)), json(decoded.get(i)));
+    }
+
+    @Test
+    public void unknownVersionIsRejected() throws IOException {
+        byte[] batch = encode(new ArrayList<SensorsEntry>());
+        batch[BinaryBatchCodec.MAGIC.length] = BinaryBatchCodec.VERSION + 1;
+        try {
+            decode(batch);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * encodes a week of entries in batches of 500, as BatchUploader sends them, comparing the size (raw and gzip-compressed)
+     * and the time with the ones of JSON
+     */
+    @Test
+    public void benchmarkAgainstJson() throws IOException {
+        SyntheticEntries synthetic = new SyntheticEntries(5, START);
+        List<SensorsEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 7 * 24 * 60; i++) {
+            SensorsEntry entry = synthetic.next();
+            entry.setId(i + 1);
+            entries.add(entry);
+        }
+
+        long[] binary = null, json = null;
+        for (int round = 0; round < 3; round++) { //the first rounds warm the JIT up
+            binary = encodeBatches(entries, true);
+            json = encodeBatches(entries, false);
+        }
+        Benchmarks.report("BinaryBatchCodec: " + entries.size() + " entries, " + binary[0] / 1024 + " KB (" + binary[1] / 1024
+                + " KB gzip), " + binary[2] / entries.size() + " ns/entry; JSON: " + json[0] / 1024 + " KB (" + json[1] / 1024
+                + " KB gzip), " + json[2] / entries.size() + " ns/entry");
+        assertTrue(binary[0] * 3 < json[0]);
+        assertTrue(binary[1] < json[1]);
+    }
+
+    //returns the bytes written, the bytes after compression and the time taken (ns)
+    private static long[] encodeBatches(List<SensorsEntry> entries, boolean binary) throws IOException {
+        BinaryBatchCodec.Encoder encoder = new BinaryBatchCodec.Encoder(null);
+        SensorsEntryJsonWriter writer = new SensorsEntryJsonWriter(null);
+        long raw = 0, compressed = 0;
+        long start = System.nanoTime();
+        for (int from = 0; from < entries.size(); from += 500) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(out, 8 * 1024);
+            List<SensorsEntry> batch = entries.subList(from, Math.min(from + 500, entries.size()));
+            if (binary) {
+                encoder.reset(gzip);
+                write(encoder, batch);
+                raw += encoder.getCount();
+            } else {
+                writer.reset(gzip);
+                writer.beginArray();
+                for (SensorsEntry entry : batch)
+                    writer.write(entry);
+                writer.endArray();
+                writer.flush();
+                raw += writer.getCount();
+            }
+            gzip.close();
+            compressed += out.size();
+        }
+        return new long[]{raw, compressed, System.nanoTime() - start};
+    }
+
+    private static void write(BinaryBatchCodec.Encoder encoder, List<SensorsEntry> entries) throws IOException {
+        encoder.begin();
+        for (SensorsEntry entry : entries)
+            encoder.write(entry);
+        encoder.end();
+        encoder.flush();
+    }
+
+    private static byte[] encode(List<SensorsEntry> entries) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(new BinaryBatchCodec.Encoder(out), entries);
+        return out.toByteArray();
+    }
+
+    private static List<SensorsEntry> decode(byte[] batch) throws IOException {
+        BinaryBatchCodec.Decoder decoder = new BinaryBatchCodec.Decoder(new ByteArrayInputStream(batch));
+        List<SensorsEntry> entries = new ArrayList<>();
+        for (SensorsEntry entry = decoder.read(); entry != null; entry = decoder.read())
+            entries.add(entry);
+        return entries;
+    }
+
+    private static String json(SensorsEntry entry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SensorsEntryJsonWriter writer = new SensorsEntryJsonWriter(out);
+        writer.write(entry);
+        writer.flush();
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,185 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of ControlLoop, under a virtual clock, and comparison of its wakeups per hour with the update of
+ * the managers every 10 s it replaced
+ */
+public class ControlLoopTest {
+
+    private static final long SECOND = 1000; //(ms)
+    private static final long MINUTE = 60 * SECOND; //(ms)
+    private static final long HOUR = 60 * MINUTE; //(ms)
+    private static final long MIN_INTERVAL = 10 * SECOND; //(ms)
+
+    private long now = 1538352000000L; //2018-10-01 00:00 UTC (ms)
+    private long wakeup = ControlLoop.NO_DEADLINE; //instant the loop asked to be run at (ms)
+    private final ControlLoop loop = new ControlLoop(new Clock() {
+        @Override
+        public long now() {
+            return now;
+        }
+    }, new ControlLoop.Waker() {
+        @Override
+        public void wakeAt(long time) {
+            wakeup = time;
+        }
+    }, MIN_INTERVAL);
+
+    /**
+     * participant recording its updates, which asks to be updated again after a fixed delay (or never)
+     */
+    private class Recorder implements ControlLoop.Participant {
+        final int events;
+        long delay;
+        final List<Integer> updates = new ArrayList<>();
+
+        Recorder(int events, long delay) {
+            this.events = events;
+            this.delay = delay;
+        }
+
+        @Override
+        public int getEvents() {
+            return events;
+        }
+
+        @Override
+        public long update(int events) {
+            updates.add(events);
+            return delay == ControlLoop.NO_DEADLINE ? ControlLoop.NO_DEADLINE : now + delay;
+        }
+    }
+
+    //runs the loop at the wakeups it asks for until the given instant
+    private void runUntil(long end) {
+        while (wakeup <= end) {
+            now = Math.max(now, wakeup);
+            wakeup = ControlLoop.NO_DEADLINE;
+            loop.run();
+        }
+        now = end;
+    }
+
+    @Test
+    public void loopWakesAtTheNearestDeadline() {
+        Recorder scan = new Recorder(ControlLoop.EVENT_MODE, 20 * MINUTE);
+        Recorder idle = new Recorder(ControlLoop.EVENT_MODE, ControlLoop.NO_DEADLINE);
+        loop.add(scan);
+        loop.add(idle);
+        assertEquals(now, wakeup); //both evaluated at once
+        runUntil(now);
+        assertEquals(1, scan.updates.size());
+        assertEquals(1, idle.updates.size());
+        assertEquals(now + 20 * MINUTE, wakeup);
+
+        runUntil(now + HOUR);
+        assertEquals(4, scan.updates.size());
+        assertEquals(1, idle.updates.size());
+        assertEquals(4, loop.getWakeups());
+
+        //a deadline in the past does not make the loop spin
+        scan.delay = -MINUTE;
+        runUntil(now + HOUR);
+        assertTrue(loop.getWakeups() <= 4 + HOUR / MIN_INTERVAL + 1);
+    }
+
+    @Test
+    public void eventsWakeOnlyTheParticipantsConcerned() {
+        Recorder location = new Recorder(ControlLoop.EVENT_MODE | ControlLoop.EVENT_LOCATION, ControlLoop.NO_DEADLINE);
+        Recorder bluetooth = new Recorder(ControlLoop.EVENT_MODE | ControlLoop.EVENT_SCAN_FINISHED, ControlLoop.NO_DEADLINE);
+        loop.add(location);
+        loop.add(bluetooth);
+        runUntil(now);
+        assertEquals(ControlLoop.NO_DEADLINE, wakeup);
+
+        //several events posted before the loop runs share its wakeup
+        now += MINUTE;
+        loop.post(ControlLoop.EVENT_LOCATION);
+        loop.post(ControlLoop.EVENT_CONNECTIVITY);
+        assertEquals(now, wakeup);
+        runUntil(now);
+        assertEquals(2, location.updates.size());
+        assertEquals(ControlLoop.EVENT_LOCATION, (int) location.updates.get(1));
+        assertEquals(1, bluetooth.updates.size());
+        assertEquals(2, loop.getWakeups());
+        assertEquals(1, loop.getEventWakeups());
+    }
+
+    /**
+     * a change of energy mode made by a participant reaches the others in the same wakeup
+     */
+    @Test
+    public void eventsPostedWhileRunningAreHandledInTheSameWakeup() {
+        loop.add(new ControlLoop.Participant() {
+            @Override
+            public int getEvents() {
+                return ControlLoop.EVENT_MOTION;
+            }
+
+            @Override
+            public long update(int events) {
+                if (events != 0)
+                    loop.post(ControlLoop.EVENT_MODE);
+                return ControlLoop.NO_DEADLINE;
+            }
+        });
+        Recorder motion = new Recorder(ControlLoop.EVENT_MODE, ControlLoop.NO_DEADLINE);
+        loop.add(motion);
+        runUntil(now);
+
+        now += MINUTE;
+        loop.post(ControlLoop.EVENT_MOTION);
+        runUntil(now);
+        assertEquals(ControlLoop.EVENT_MODE, (int) motion.updates.get(motion.updates.size() - 1));
+        assertEquals(2, loop.getWakeups());
+        assertEquals(ControlLoop.NO_DEADLINE, wakeup);
+    }
+
+    /**
+     * an idle device (not in motion, on battery, no location and scans every hour) against one in motion with the
+     * scans of the high battery mode: the loop wakes up as often as its participants need, instead of 360 times an hour
+     */
+    @Test
+    public void idleDeviceWakesUpFarLessOften() {
+        final boolean[] inMotion = {false};
+        loop.add(new ControlLoop.Participant() { //energy mode: re-evaluated while in motion to notice it stopping
+            @Override
+            public int getEvents() {
+                return ControlLoop.EVENT_BATTERY | ControlLoop.EVENT_MOTION;
+            }
+
+            @Override
+            public long update(int events) {
+                return inMotion[0] ? now + MIN_INTERVAL : ControlLoop.NO_DEADLINE;
+            }
+        });
+        Recorder wifi = new Recorder(ControlLoop.EVENT_MODE | ControlLoop.EVENT_CONNECTIVITY, HOUR);
+        Recorder bluetooth = new Recorder(ControlLoop.EVENT_MODE, HOUR);
+        loop.add(wifi);
+        loop.add(bluetooth);
+        runUntil(now);
+        loop.resetWakeups();
+
+        runUntil(now + HOUR);
+        double idle = loop.getWakeupsPerHour();
+
+        inMotion[0] = true;
+        wifi.delay = 2 * MINUTE;
+        bluetooth.delay = 2 * MINUTE;
+        loop.post(ControlLoop.EVENT_MOTION);
+        loop.resetWakeups();
+        runUntil(now + HOUR);
+        double moving = loop.getWakeupsPerHour();
+
+        Benchmarks.report(String.format("ControlLoop: %.0f wakeups/hour idle, %.0f in motion, instead of %d", idle, moving, HOUR / MIN_INTERVAL));
+        assertTrue(idle <= 2);
+        assertTrue(moving <= HOUR / MIN_INTERVAL + 1);
+    }
+}
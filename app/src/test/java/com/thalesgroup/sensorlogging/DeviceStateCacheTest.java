@@ -0,0 +1,62 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of DeviceStateCache, fed the broadcasts and callbacks of the system directly
+ */
+public class DeviceStateCacheTest {
+
+    private int wakeups = 0; //wakeups of the control loop asked for
+    private final ControlLoop loop = new ControlLoop(new Clock() {
+        @Override
+        public long now() {
+            return 0;
+        }
+    }, new ControlLoop.Waker() {
+        @Override
+        public void wakeAt(long time) {
+            wakeups++;
+        }
+    }, 10 * 1000);
+
+    @Test
+    public void batteryEventsOnlyWhenTheBatteryChanges() {
+        DeviceStateCache cache = new DeviceStateCache(loop, -90);
+        cache.onBatteryChanged(-80);
+        assertEquals(1, wakeups);
+        loop.run();
+        cache.onBatteryChanged(-80); //voltage or temperature changed, not the level
+        assertEquals(1, wakeups);
+        cache.onBatteryChanged(80); //plugged in
+        assertEquals(2, wakeups);
+        assertEquals(80, cache.getBatteryLevel());
+    }
+
+    /**
+     * a window read the battery (twice), the display and the signal strength, each a call to a system service before
+     */
+    @Test
+    public void readsAreAnsweredFromMemory() {
+        DeviceStateCache cache = new DeviceStateCache(null, -90);
+        assertEquals(-90, cache.getSignalStrength());
+        cache.onBatteryChanged(-64);
+        cache.onDisplayChanged(true);
+        cache.onSignalChanged(-101);
+        for (int window = 0; window < 60; window++) {
+            assertEquals(-64, cache.getBatteryLevel());
+            assertEquals(-64, cache.getBatteryLevel());
+            assertTrue(cache.isDisplayOn());
+            assertEquals(-101, cache.getSignalStrength());
+        }
+        cache.onDisplayChanged(false);
+        assertFalse(cache.isDisplayOn());
+        assertEquals(-101, cache.peekSignalStrength()); //checkpoint: not counted
+        assertEquals(0, cache.getIpcs());
+        assertEquals(3 * 60 + 1, cache.getAvoidedIpcs()); //not started: the cells are not readable, no call avoided for them
+        cache.resetIpcs();
+        assertEquals(0, cache.getAvoidedIpcs());
+    }
+}
@@ -0,0 +1,95 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of EnergyModePolicy, under a virtual clock
+ */
+public class EnergyModePolicyTest {
+
+    private static final long SECOND = 1000; //(ms)
+    private static final long MINUTE = 60 * SECOND; //(ms)
+    private static final long HOUR = 60 * MINUTE; //(ms)
+
+    private long now = 1538352000000L; //2018-10-01 00:00 UTC (ms)
+    private final Clock clock = new Clock() {
+        @Override
+        public long now() {
+            return now;
+        }
+    };
+
+    @Test
+    public void batteryIsHighWhileChargingOrAboveTheLevel() {
+        assertEquals(EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION, new EnergyModePolicy(clock).evaluate(20, false));
+        assertEquals(EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION, new EnergyModePolicy(clock).evaluate(-51, false));
+        assertEquals(EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION, new EnergyModePolicy(clock).evaluate(-50, false));
+        assertEquals(EnergyModes.MODE_LOW_BATTERY_INMOTION, new EnergyModePolicy(clock).evaluate(-10, true));
+    }
+
+    @Test
+    public void batteryLevelHasHysteresis() {
+        EnergyModePolicy policy = new EnergyModePolicy(clock);
+        assertEquals(EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION, policy.evaluate(-52, false));
+        now += HOUR;
+        assertEquals(EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION, policy.evaluate(-48, false));
+        assertEquals(EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION, policy.evaluate(-52, false));
+        assertEquals(EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION, policy.evaluate(-45, false));
+        now += HOUR;
+        assertEquals(EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION, policy.evaluate(-55, false));
+        assertEquals(EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION, policy.evaluate(-56, false));
+        assertEquals(2, policy.getTransitions());
+    }
+
+    @Test
+    public void minimumDwellTimeDelaysChanges() {
+        EnergyModePolicy policy = new EnergyModePolicy(clock);
+        long start = now;
+        assertEquals(EnergyModes.MODE_HIGH_BATTERY_INMOTION, policy.evaluate(80, true));
+        assertEquals(start + EnergyModePolicy.DEFAULT_MOTION_EXIT_DELAY, policy.getNextEvaluationTime());
+
+        //no motion for the exit delay, but the in motion mode is kept for its minimum dwell time
+        now = start + EnergyModePolicy.DEFAULT_MOTION_EXIT_DELAY;
+        assertEquals(EnergyModes.MODE_HIGH_BATTERY_INMOTION, policy.evaluate(80, false));
+        assertEquals(1, policy.getDelayedTransitions());
+        assertEquals(start + EnergyModePolicy.DEFAULT_MIN_DWELL_INMOTION, policy.getNextEvaluationTime());
+        now = policy.getNextEvaluationTime();
+        assertEquals(EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION, policy.evaluate(80, false));
+        assertEquals(ControlLoop.NO_DEADLINE, policy.getNextEvaluationTime());
+
+        //motion detected during the dwell time of the not in motion mode is not lost
+        policy.setMinDwell(EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION, 20 * SECOND);
+        now += 10 * SECOND;
+        assertEquals(EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION, policy.evaluate(80, true));
+        now = policy.getNextEvaluationTime();
+        assertEquals(EnergyModes.MODE_HIGH_BATTERY_INMOTION, policy.evaluate(80, false));
+    }
+
+    /**
+     * motion detected every other evaluation, every 10 s, flipped the mode (and re-registered the motion sensors) at
+     * every evaluation before
+     */
+    @Test
+    public void borderlineMotionDoesNotFlipTheMode() {
+        EnergyModePolicy policy = new EnergyModePolicy(clock);
+        long end = now + HOUR;
+        for (int i = 0; now < end; i++, now += 10 * SECOND)
+            policy.evaluate(-49, i % 2 == 0);
+        assertEquals(0, policy.getTransitions());
+
+        //motion every 90 s: the changes are bounded by the dwell times
+        int flips = 0; //changes of the mode decided from the last evaluation only
+        end = now + HOUR;
+        for (int i = 0; now < end; i++, now += 10 * SECOND) {
+            policy.evaluate(-49, i % 9 == 0);
+            if (i > 0 && (i % 9 == 0 || i % 9 == 1))
+                flips++;
+        }
+        long bound = HOUR / (EnergyModePolicy.DEFAULT_MIN_DWELL_INMOTION + EnergyModePolicy.DEFAULT_MIN_DWELL_NOT_INMOTION) * 2;
+        Benchmarks.report(String.format("EnergyModePolicy: %d changes of mode in 1 hour of sporadic motion, instead of %d", policy.getTransitions(), flips));
+        assertTrue(policy.getTransitions() > 0);
+        assertTrue(policy.getTransitions() <= bound);
+    }
+}
@@ -0,0 +1,90 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of Heartbeat, under a virtual clock: the service and the restarter each map the file on their own,
+ * as they do in the app
+ */
+public class HeartbeatTest {
+
+    private static final long SECOND = 1000; //(ms)
+    private static final long FRESHNESS = 180 * SECOND; //(ms)
+    private static final int SERVICE_PID = 4242;
+    private static final int OTHER_PID = 5151;
+
+    private File file;
+    private long now = 1538352000000L; //2018-10-01 00:00 UTC (ms)
+    private final Clock clock = new Clock() {
+        @Override
+        public long now() {
+            return now;
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("heartbeat", "");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void restarterTellsAliveStaleDeadAndStopped() {
+        assertEquals(Heartbeat.STATUS_NEVER_STARTED, new Heartbeat(file, clock).check(SERVICE_PID, FRESHNESS));
+        assertFalse(file.exists()); //checking does not create the file
+
+        Heartbeat service = new Heartbeat(file, clock);
+        assertEquals(0, service.start(SERVICE_PID));
+        Heartbeat restarter = new Heartbeat(file, clock);
+        assertEquals(Heartbeat.STATUS_ALIVE, restarter.check(SERVICE_PID, FRESHNESS));
+
+        for (int i = 0; i < 10; i++) {
+            now += 60 * SECOND;
+            service.beat();
+        }
+        assertEquals(Heartbeat.STATUS_ALIVE, restarter.check(SERVICE_PID, FRESHNESS));
+        assertEquals(600 * SECOND, restarter.getUptime());
+
+        //no heartbeat for longer than the threshold: stale if the process of the service checks it, dead otherwise
+        now += FRESHNESS + SECOND;
+        assertEquals(Heartbeat.STATUS_STALE, restarter.check(SERVICE_PID, FRESHNESS));
+        assertEquals(Heartbeat.STATUS_DEAD, new Heartbeat(file, clock).check(OTHER_PID, FRESHNESS));
+
+        service.stop();
+        assertEquals(Heartbeat.STATUS_STOPPED, restarter.check(SERVICE_PID, FRESHNESS));
+        assertEquals(FRESHNESS + SECOND, restarter.getAge()); //stopping keeps the last heartbeat
+    }
+
+    @Test
+    public void gapsBetweenServicesAreAddedUp() {
+        Heartbeat first = new Heartbeat(file, clock);
+        first.start(SERVICE_PID);
+        now += 30 * SECOND;
+        first.beat(); //the gap starts at the last heartbeat, not at the start
+
+        //killed, started again in another process 5 min later, then killed again right away
+        now += 300 * SECOND;
+        Heartbeat second = new Heartbeat(file, clock);
+        assertEquals(300 * SECOND, second.start(OTHER_PID));
+        assertEquals(now - 300 * SECOND, second.getPreviousBeat()); //where the entries of the first one stopped
+        now += 20 * SECOND;
+        assertEquals(20 * SECOND, new Heartbeat(file, clock).start(SERVICE_PID));
+
+        Heartbeat heartbeat = new Heartbeat(file, clock);
+        assertEquals(2, heartbeat.getGaps());
+        assertEquals(320 * SECOND, heartbeat.getTotalGap());
+        assertEquals(Heartbeat.STATUS_ALIVE, heartbeat.check(SERVICE_PID, FRESHNESS));
+    }
+}
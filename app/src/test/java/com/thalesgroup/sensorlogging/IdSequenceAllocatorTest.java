@@ -0,0 +1,117 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of IdSequenceAllocator, with a store standing for the database: the ends of the blocks reserved in
+ * a transaction are only persisted if it is committed
+ */
+public class IdSequenceAllocatorTest {
+
+    private static final long BLOCK = IdSequenceAllocator.BLOCK_SIZE;
+
+    /**
+     * high-water marks and largest ids of the classes, as the IdSequence objects and the tables hold them
+     */
+    private static class TestStore implements IdSequenceAllocator.Store {
+        final Map<String, Long> highWaterMarks = new HashMap<>(); //committed
+        final Map<String, Long> maxIds = new HashMap<>(); //largest id in the table of each class
+        final Map<String, Long> pending = new HashMap<>(); //reserved in the transaction in progress
+        int seeds = 0;
+        int reserves = 0;
+
+        @Override
+        public long seed(String className) {
+            seeds++;
+            long next = 1;
+            if (highWaterMarks.containsKey(className))
+                next = highWaterMarks.get(className) + 1;
+            if (maxIds.containsKey(className))
+                next = Math.max(next, maxIds.get(className) + 1);
+            return next;
+        }
+
+        @Override
+        public void reserve(String className, long highWaterMark) {
+            reserves++;
+            pending.put(className, highWaterMark);
+        }
+
+        void commit() {
+            highWaterMarks.putAll(pending);
+            pending.clear();
+        }
+
+        void rollBack() {
+            pending.clear();
+        }
+    }
+
+    @Test
+    public void idsAreHandedOutFromBlocksReservedOnce() {
+        TestStore store = new TestStore();
+        IdSequenceAllocator allocator = new IdSequenceAllocator();
+        for (long id = 1; id <= 2 * BLOCK + 500; id++) {
+            assertEquals(id, allocator.nextId("WifiNetworkCustom", store));
+            store.commit();
+        }
+        assertEquals(1, store.seeds); //the database is only asked once
+        assertEquals(3, store.reserves);
+        assertEquals(3 * BLOCK, (long) store.highWaterMarks.get("WifiNetworkCustom"));
+
+        //each class has its own sequence
+        assertEquals(1, allocator.nextId("BluetoothDeviceCustom", store));
+        assertEquals(2 * BLOCK + 501, allocator.nextId("WifiNetworkCustom", store));
+    }
+
+    /**
+     * the service restarts after using part of a block: the rest of it is skipped, so that no id is handed out twice
+     */
+    @Test
+    public void restartSkipsTheRestOfTheBlock() {
+        TestStore store = new TestStore();
+        IdSequenceAllocator allocator = new IdSequenceAllocator();
+        for (int i = 0; i < 10; i++)
+            allocator.nextId("SensorsEntry", store);
+        store.maxIds.put("SensorsEntry", 10L);
+        store.commit();
+
+        IdSequenceAllocator restarted = new IdSequenceAllocator();
+        assertEquals(BLOCK + 1, restarted.nextId("SensorsEntry", store));
+        store.commit();
+        assertEquals(2 * BLOCK, (long) store.highWaterMarks.get("SensorsEntry"));
+
+        //ids taken before the sequences were persisted: seeded after the largest one
+        store.maxIds.put("MotionValues", 5000L);
+        assertEquals(5001, restarted.nextId("MotionValues", store));
+    }
+
+    /**
+     * a transaction that reserved a block fails: once invalidated, the allocator seeds the class again from what was
+     * committed, and reserves the block again in the next transaction
+     */
+    @Test
+    public void blockOfAFailedTransactionIsReservedAgain() {
+        TestStore store = new TestStore();
+        IdSequenceAllocator allocator = new IdSequenceAllocator();
+        for (int i = 0; i < BLOCK; i++)
+            allocator.nextId("LocationCustom", store);
+        store.commit();
+        store.maxIds.put("LocationCustom", BLOCK);
+
+        assertEquals(BLOCK + 1, allocator.nextId("LocationCustom", store)); //reserves the second block
+        store.rollBack();
+        allocator.invalidate();
+
+        assertEquals(BLOCK + 1, allocator.nextId("LocationCustom", store));
+        assertEquals(2, store.seeds);
+        assertEquals(2 * BLOCK, (long) store.pending.get("LocationCustom"));
+        store.commit();
+        assertEquals(BLOCK + 2, allocator.nextId("LocationCustom", store));
+    }
+}
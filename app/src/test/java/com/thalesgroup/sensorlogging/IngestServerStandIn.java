@@ -0,0 +1,593 @@
+package com.thalesgroup.sensorlogging;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Local HTTP server standing in for the ingest server in tests: it accepts the batches of entries posted by
+ * BatchUploader, as JSON or in the encoding of BinaryBatchCodec (by Content-Type), counting requests, bytes and
+ * entries. Bodies are decoded as they arrive, without being held in memory, and the entries received are kept even if
+ * the body is interrupted; a GET answers with the id of the last entry received from the device (streams being resumed
+ * after it). Requests compressed with deflate and a preset dictionary are inflated with the dictionary posted
+ * before by the device, and answered 412 if it is unknown. Batches received again are counted by their device id and sequence number, and entries are only accepted
+ * once, by their id; ids skipped (an entry received after one whose id is not the previous one) are counted, so that
+ * lost entries are noticed. It can be told to fail requests (5xx), to lose their answers, to reset their connection or
+ * to answer slowly, for given requests or at random.
+ * Written on a plain ServerSocket (HTTP/1.1 with keep-alive and chunked bodies), so that it only needs the classes
+ * local unit tests are compiled against
+ */
+public class IngestServerStandIn {
+
+    private final ServerSocket serverSocket;
+    private int requests = 0; //requests received
+    private int connections = 0; //connections accepted
+    private long bytes = 0; //bytes of the bodies received, as sent
+    private long entries = 0; //entries accepted
+    private int firstFailed = 0; //number of the first request answered with an error (the first request being 1)
+    private int failed = 0; //number of requests answered with an error from firstFailed on
+    private int firstDropped = 0; //number of the first request accepted without being answered
+    private int dropped = 0; //number of requests accepted without being answered from firstDropped on
+    private long latency = 0; //time taken to answer each request (ms)
+    private int resetRequest = 0; //number of the request whose connection is closed while its body is received
+    private long resetBytes = 0; //bytes of its body received before its connection is closed
+    private Random faults; //draws the requests failed or reset at random, null if none is
+    private double errorRate = 0; //probability of a request being answered with an error
+    private double resetRate = 0; //probability of the connection of a request being reset
+    private int injected = 0; //requests failed or reset at random
+    private final Set<String> batches = new HashSet<>(); //device id and sequence number of the batches accepted
+    private int duplicates = 0; //batches received again after they were accepted
+    private final Map<String, Long> lastIds = new HashMap<>(); //id of the last entry accepted from each device
+    private long duplicateEntries = 0; //entries received again after they were accepted
+    private long skippedEntries = 0; //ids skipped between the entries accepted from a device
+    private final Map<String, byte[]> dictionaries = new HashMap<>(); //dictionaries posted, by device id and dictionary id
+    private static final byte[] ENTRY_ID = "{\"id\":".getBytes(); //beginning of each entry in JSON
+
+    public IngestServerStandIn() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "ingest-stand-in");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept()
+    {
+        while(!serverSocket.isClosed())
+        {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return; //stopped
+            }
+            synchronized (this) {
+                connections++;
+            }
+            Thread connection = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "ingest-stand-in-connection");
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    //answers the requests of a connection until the client closes it
+    private void serve(Socket socket)
+    {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while(true)
+            {
+                String requestLine = readLine(in);
+                if(requestLine == null)
+                    break;
+                Map<String, String> headers = new HashMap<>();
+                for(String line = readLine(in); line != null && !line.isEmpty(); line = readLine(in))
+                {
+                    int colon = line.indexOf(':');
+                    if(colon > 0)
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                }
+                int number;
+                long resetAfter;
+                boolean fail;
+                long delay;
+                boolean drop;
+                synchronized (this) {
+                    number = ++requests;
+                    resetAfter = number == resetRequest ? resetBytes : -1;
+                    fail = number >= firstFailed && number < firstFailed + failed;
+                    drop = number >= firstDropped && number < firstDropped + dropped;
+                    delay = latency;
+                    if(faults != null && !requestLine.startsWith("GET "))
+                    {
+                        double draw = faults.nextDouble();
+                        if(draw < errorRate)
+                            fail = true;
+                        else if(draw < errorRate + resetRate)
+                            resetAfter = faults.nextInt(64*1024); //or once the body is received if it is shorter
+                        if(draw < errorRate + resetRate)
+                            injected++;
+                    }
+                }
+                String device = headers.get(BatchUploader.HEADER_DEVICE.toLowerCase(Locale.US));
+                if(requestLine.startsWith("GET "))
+                {
+                    long lastId;
+                    synchronized (this) {
+                        Long id = lastIds.get(device);
+                        lastId = id != null ? id : 0;
+                    }
+                    out.write(("HTTP/1.1 200 OK\r\n" + BatchUploader.HEADER_LAST_ID + ": " + lastId + "\r\nContent-Length: 0\r\n\r\n").getBytes("ISO-8859-1"));
+                    out.flush();
+                    continue;
+                }
+                Body body = new Body(in, headers, socket, resetAfter);
+                int code;
+                if(fail)
+                    code = 503;
+                else if(PresetDictionary.CONTENT_TYPE.equals(headers.get("content-type")))
+                    code = receiveDictionary(headers, device, body);
+                else
+                    code = receive(headers, device, body);
+                body.drain();
+                if(delay > 0)
+                    Thread.sleep(delay);
+                if(drop || resetAfter >= 0)
+                    break; //accepted, but the connection is closed without an answer
+                out.write(("HTTP/1.1 " + code + (code == 200 ? " OK" : " Error") + "\r\nContent-Length: 0\r\n\r\n").getBytes("ISO-8859-1"));
+                out.flush();
+            }
+        } catch (IOException | InterruptedException ignored) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    //decodes the entries of a request as they arrive, keeping the ones received even if the body is interrupted
+    private int receive(Map<String, String> headers, String device, Body body) throws IOException
+    {
+        synchronized (this) {
+            if(!batches.add(device + "/" + headers.get(BatchUploader.HEADER_SEQUENCE.toLowerCase(Locale.US))))
+                duplicates++;
+        }
+        InputStream in = body;
+        if("gzip".equals(headers.get("content-encoding")))
+            in = new BufferedInputStream(new GZIPInputStream(body, 8192), 8192); //reads every member of a stream
+        else if("deflate".equals(headers.get("content-encoding")))
+            in = new BufferedInputStream(new Inflating(body, device), 8192);
+        String contentType = headers.get("content-type");
+        try {
+            if(contentType != null && contentType.startsWith(BinaryBatchCodec.CONTENT_TYPE) ? !receiveBinary(in, device) : !receiveJson(in, device))
+                return 400;
+        } catch (UnknownDictionaryException e) {
+            return 412;
+        }
+        return 200;
+    }
+
+    //keeps a dictionary posted by a device, checking its id
+    private int receiveDictionary(Map<String, String> headers, String device, Body body) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while((read = body.read(buffer, 0, buffer.length)) >= 0)
+            bytes.write(buffer, 0, read);
+        PresetDictionary dictionary = new PresetDictionary(bytes.toByteArray());
+        if(bytes.size() > PresetDictionary.MAX_SIZE || !Long.toString(dictionary.getId()).equals(headers.get(BatchUploader.HEADER_DICTIONARY.toLowerCase(Locale.US))))
+            return 400;
+        synchronized (this) {
+            dictionaries.put(device + "/" + dictionary.getId(), dictionary.getBytes());
+        }
+        return 200;
+    }
+
+    //decodes a binary batch, returning false if it is invalid or its ids do not ascend
+    private boolean receiveBinary(InputStream in, String device) throws IOException
+    {
+        BinaryBatchCodec.Decoder decoder = new BinaryBatchCodec.Decoder(in);
+        int count = 0;
+        long lastId = Long.MIN_VALUE;
+        for(SensorsEntry entry = decoder.read(); entry != null; entry = decoder.read())
+        {
+            if(entry.getId() <= lastId)
+                return false;
+            lastId = entry.getId();
+            store(device, lastId);
+            count++;
+        }
+        return count > 0 && in.read() < 0;
+    }
+
+    //scans a JSON array of entries without holding more than the beginning of an entry, returning false if it is invalid
+    private boolean receiveJson(InputStream in, String device) throws IOException
+    {
+        byte[] head = new byte[ENTRY_ID.length + 20]; //beginning of the current entry, up to its id
+        int headLength = 0;
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        int count = 0;
+        long lastId = Long.MIN_VALUE;
+        int c;
+        while((c = in.read()) >= 0)
+        {
+            if(depth >= 2 && headLength < head.length)
+                head[headLength++] = (byte) c;
+            if(inString)
+            {
+                if(escaped)
+                    escaped = false;
+                else if(c == '\\')
+                    escaped = true;
+                else if(c == '"')
+                    inString = false;
+                continue;
+            }
+            if(c == '"')
+                inString = true;
+            else if(c == '[' || c == '{')
+            {
+                if(depth == 0 && (c != '[' || count > 0))
+                    return false;
+                if(depth == 1)
+                {
+                    if(c != '{')
+                        return false;
+                    head[0] = (byte) c;
+                    headLength = 1;
+                }
+                depth++;
+            }
+            else if(c == ']' || c == '}')
+            {
+                depth--;
+                if(depth == 1)
+                {
+                    long id = parseId(head, headLength);
+                    if(id <= lastId)
+                        return false;
+                    lastId = id;
+                    store(device, id);
+                    count++;
+                }
+                else if(depth == 0)
+                    return count > 0 && in.read() < 0;
+            }
+        }
+        return false; //incomplete
+    }
+
+    //id of an entry written by SensorsEntryJsonWriter, from the beginning of its object, or Long.MIN_VALUE if it has none
+    private static long parseId(byte[] head, int length)
+    {
+        for(int i = 0; i < ENTRY_ID.length; i++)
+            if(i >= length || head[i] != ENTRY_ID[i])
+                return Long.MIN_VALUE;
+        long id = 0;
+        int i = ENTRY_ID.length;
+        for(; i < length && head[i] >= '0' && head[i] <= '9'; i++)
+            id = id * 10 + head[i] - '0';
+        return i > ENTRY_ID.length ? id : Long.MIN_VALUE;
+    }
+
+    //accepts an entry unless an entry with the same or a higher id was received from the device
+    private synchronized void store(String device, long id)
+    {
+        Long lastId = lastIds.get(device);
+        if(lastId != null && id <= lastId)
+        {
+            duplicateEntries++;
+            return;
+        }
+        skippedEntries += id - (lastId != null ? lastId : 0) - 1;
+        lastIds.put(device, id);
+        entries++;
+    }
+
+    private static class UnknownDictionaryException extends IOException {
+        UnknownDictionaryException(long id) {
+            super("Unknown dictionary " + id);
+        }
+    }
+
+    /**
+     * inflates a body made of zlib streams one after the other (the chunks of a stream), each compressed with a
+     * dictionary of the device, identified by the checksum in its header
+     */
+    private class Inflating extends InputStream {
+        private final InputStream in;
+        private final String device;
+        private final Inflater inflater = new Inflater();
+        private final byte[] input = new byte[8192];
+        private int inputLength = 0; //bytes given to the inflater
+
+        Inflating(InputStream in, String device) {
+            this.in = in;
+            this.device = device;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                while(true)
+                {
+                    if(inflater.finished())
+                    {
+                        //the bytes the inflater did not use begin the next stream
+                        int remaining = inflater.getRemaining();
+                        if(remaining == 0 && in.available() == 0)
+                            return -1;
+                        System.arraycopy(input, inputLength - remaining, input, 0, remaining);
+                        inflater.reset();
+                        inflater.setInput(input, 0, remaining);
+                        inputLength = remaining;
+                    }
+                    int inflated = inflater.inflate(b, off, len);
+                    if(inflated > 0)
+                        return inflated;
+                    if(inflater.needsDictionary())
+                    {
+                        long id = inflater.getAdler() & 0xffffffffL; //unsigned, as PresetDictionary.getId()
+                        byte[] dictionary;
+                        synchronized (IngestServerStandIn.this) {
+                            dictionary = dictionaries.get(device + "/" + id);
+                        }
+                        if(dictionary == null)
+                            throw new UnknownDictionaryException(id);
+                        inflater.setDictionary(dictionary);
+                    }
+                    else if(inflater.needsInput())
+                    {
+                        inputLength = in.read(input, 0, input.length);
+                        if(inputLength < 0)
+                            throw new IOException("Incomplete zlib stream");
+                        inflater.setInput(input, 0, inputLength);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid zlib stream", e);
+            }
+        }
+    }
+
+    /**
+     * body of a request, with a fixed length or chunked, read as it arrives
+     */
+    private class Body extends InputStream {
+        private final InputStream in;
+        private final boolean chunked;
+        private final Socket socket;
+        private final long resetAfter; //bytes after which the connection is closed, -1 if it is not
+        private long remaining; //bytes left in the body, or in the current chunk if chunked
+        private boolean started = false; //true once the first chunk began
+        private boolean ended = false;
+        private long received = 0;
+
+        Body(InputStream in, Map<String, String> headers, Socket socket, long resetAfter) {
+            this.in = in;
+            this.chunked = "chunked".equalsIgnoreCase(headers.get("transfer-encoding"));
+            this.socket = socket;
+            this.resetAfter = resetAfter;
+            this.remaining = !chunked && headers.containsKey("content-length") ? Long.parseLong(headers.get("content-length")) : 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(available() == 0)
+                return -1;
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if(read < 0)
+                throw new IOException("Incomplete body");
+            remaining -= read;
+            received += read;
+            synchronized (IngestServerStandIn.this) {
+                bytes += read;
+            }
+            if(resetAfter >= 0 && received >= resetAfter)
+            {
+                socket.close();
+                throw new IOException("Connection reset");
+            }
+            return read;
+        }
+
+        /**
+         * waits for the next chunk if the current one was read, so that GZIPInputStream knows whether another
+         * member follows
+         */
+        @Override
+        public int available() throws IOException {
+            if(remaining == 0 && !ended)
+            {
+                if(!chunked)
+                    ended = true;
+                else
+                {
+                    if(started)
+                        readLine(in); //end of the previous chunk
+                    started = true;
+                    String line = readLine(in);
+                    if(line == null)
+                        throw new IOException("Incomplete chunked body");
+                    remaining = Long.parseLong(line.split(";")[0].trim(), 16);
+                    if(remaining == 0)
+                    {
+                        for(line = readLine(in); line != null && !line.isEmpty(); line = readLine(in)); //trailers
+                        ended = true;
+                    }
+                }
+            }
+            return ended ? 0 : (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+
+        void drain() throws IOException
+        {
+            byte[] buffer = new byte[8192];
+            while(read(buffer, 0, buffer.length) >= 0);
+        }
+    }
+
+    //reads a line ended by CRLF, or null at the end of the stream
+    private static String readLine(InputStream in) throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while((c = in.read()) >= 0)
+        {
+            if(c == '\n')
+                return line.toString();
+            if(c != '\r')
+                line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    /**
+     * @return url to which the entries are posted
+     */
+    public URL getUrl() throws IOException {
+        return new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + "/entries");
+    }
+
+    /**
+     * answers some requests with an error (503)
+     * @param first - number of the first request answered with an error (the first request received being 1)
+     * @param count - number of requests answered with an error
+     */
+    public synchronized void failRequests(int first, int count) {
+        firstFailed = first;
+        failed = count;
+    }
+
+    /**
+     * accepts some requests but closes their connection without answering, as when an answer is lost
+     * @param first - number of the first request not answered (the first request received being 1)
+     * @param count - number of requests not answered
+     */
+    public synchronized void dropResponses(int first, int count) {
+        firstDropped = first;
+        dropped = count;
+    }
+
+    /**
+     * closes the connection of a request once part of its body was received, as when the connection is reset
+     * @param number - number of the request (the first request received being 1)
+     * @param bytes - bytes of its body received before the connection is closed
+     */
+    public synchronized void resetRequest(int number, long bytes) {
+        resetRequest = number;
+        resetBytes = bytes;
+    }
+
+    /**
+     * fails or resets requests at random (not the requests for the last entry received), a reset closing the
+     * connection after a random part of the body, or before answering if the body is shorter
+     * @param seed - seed of the random generator, so that the same requests fail on every run
+     * @param errorRate - probability of a request being answered with an error (503)
+     * @param resetRate - probability of the connection of a request being reset
+     */
+    public synchronized void injectFaults(long seed, double errorRate, double resetRate) {
+        faults = new Random(seed);
+        this.errorRate = errorRate;
+        this.resetRate = resetRate;
+    }
+
+    /**
+     * makes every request take some time to be answered, as over a slow network
+     * @param latency - time taken to answer each request (ms)
+     */
+    public synchronized void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    public synchronized int getRequests() {
+        return requests;
+    }
+
+    public synchronized int getConnections() {
+        return connections;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getEntries() {
+        return entries;
+    }
+
+    public synchronized int getDuplicates() {
+        return duplicates;
+    }
+
+    public synchronized long getDuplicateEntries() {
+        return duplicateEntries;
+    }
+
+    public synchronized long getSkippedEntries() {
+        return skippedEntries;
+    }
+
+    public synchronized int getInjectedFaults() {
+        return injected;
+    }
+
+    public synchronized int getDictionaries() {
+        return dictionaries.size();
+    }
+
+    /**
+     * forgets the dictionaries posted, as a server restarted without them
+     */
+    public synchronized void forgetDictionaries() {
+        dictionaries.clear();
+    }
+
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
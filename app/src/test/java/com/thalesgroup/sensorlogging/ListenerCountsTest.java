@@ -0,0 +1,35 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of ListenerCounts
+ */
+public class ListenerCountsTest {
+
+    /**
+     * managers built again without the previous ones being destroyed leave their listeners registered
+     */
+    @Test
+    public void leakedListenersShowUp() {
+        int receivers = ListenerCounts.get(ListenerCounts.RECEIVER);
+        int total = ListenerCounts.getTotal();
+        for (int start = 0; start < 3; start++) {
+            ListenerCounts.registered(ListenerCounts.RECEIVER);
+            ListenerCounts.registered(ListenerCounts.SENSOR);
+        }
+        ListenerCounts.unregistered(ListenerCounts.RECEIVER);
+        ListenerCounts.unregistered(ListenerCounts.SENSOR);
+        assertEquals(receivers + 2, ListenerCounts.get(ListenerCounts.RECEIVER));
+        assertEquals(total + 4, ListenerCounts.getTotal());
+        assertTrue(ListenerCounts.describe().contains((receivers + 2) + " receivers"));
+
+        for (int start = 0; start < 2; start++) {
+            ListenerCounts.unregistered(ListenerCounts.RECEIVER);
+            ListenerCounts.unregistered(ListenerCounts.SENSOR);
+        }
+        assertEquals(total, ListenerCounts.getTotal());
+    }
+}
@@ -0,0 +1,172 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of PresetDictionary, and benchmark of the compression of batches with a preset dictionary compared
+ * with gzip, in JSON and in the binary encoding of BinaryBatchCodec
+ */
+public class PresetDictionaryTest {
+
+    private static final long START = 1538352000000L; //2018-10-01 00:00 UTC (ms)
+    private static final int DAY = 24 * 60; //entries
+
+    @Test
+    public void samplerKeepsTheLastBytesInOrder() throws IOException {
+        byte[] payload = new byte[100000];
+        new Random(1).nextBytes(payload);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PresetDictionary.Sampler sampler = new PresetDictionary.Sampler(out);
+        assertNull(sampler.build());
+        int offset = 0;
+        for (int size = 1; offset < payload.length; size = size * 3 % 40000 + 1) {
+            int length = Math.min(size, payload.length - offset);
+            if (length == 1)
+                sampler.write(payload[offset]);
+            else
+                sampler.write(payload, offset, length);
+            offset += length;
+        }
+        assertArrayEquals(payload, out.toByteArray());
+        assertArrayEquals(Arrays.copyOfRange(payload, payload.length - PresetDictionary.MAX_SIZE, payload.length), sampler.build().getBytes());
+    }
+
+    /**
+     * the data compressed with a dictionary tells its id to the receiver, which inflates it with that dictionary
+     */
+    @Test
+    public void dataIsInflatedWithTheDictionaryItNames() throws IOException, DataFormatException {
+        List<SensorsEntry> entries = entries(2 * 60);
+        PresetDictionary dictionary = new PresetDictionary(json(entries.subList(0, 60)));
+        byte[] payload = json(entries.subList(60, 120));
+        byte[] compressed = compress(payload, dictionary, new Deflater());
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        byte[] inflated = new byte[payload.length];
+        assertEquals(0, inflater.inflate(inflated));
+        assertTrue(inflater.needsDictionary());
+        assertEquals(dictionary.getId(), inflater.getAdler() & 0xffffffffL);
+        inflater.setDictionary(dictionary.getBytes());
+        assertEquals(payload.length, inflater.inflate(inflated));
+        assertTrue(inflater.finished());
+        assertArrayEquals(payload, inflated);
+    }
+
+    /**
+     * compresses six days of entries in batches of several sizes (an upload every 5 minutes, every hour, or of a large
+     * backlog), with gzip and with a dictionary built from the end of the payload of the day before, in JSON and in
+     * binary, reporting bytes per entry and time per entry of the compression
+     */
+    @Test
+    public void dictionaryCompressesBetterThanGzip() throws IOException {
+        List<SensorsEntry> entries = entries(7 * DAY);
+        List<SensorsEntry> firstDay = entries.subList(0, DAY);
+        List<SensorsEntry> measured = entries.subList(DAY, entries.size());
+        PresetDictionary jsonDictionary = sample(firstDay, false);
+        PresetDictionary binaryDictionary = sample(firstDay, true);
+
+        for (int batchSize : new int[]{5, 60, 500}) {
+            long[] jsonGzip = null, jsonDeflate = null, binaryGzip = null, binaryDeflate = null;
+            for (int round = 0; round < 3; round++) { //the first rounds warm the JIT up
+                jsonGzip = compressBatches(measured, batchSize, false, null);
+                jsonDeflate = compressBatches(measured, batchSize, false, jsonDictionary);
+                binaryGzip = compressBatches(measured, batchSize, true, null);
+                binaryDeflate = compressBatches(measured, batchSize, true, binaryDictionary);
+            }
+            Benchmarks.report("PresetDictionary: batches of " + batchSize + " entries, bytes/entry (ns/entry): JSON gzip " + report(jsonGzip, measured.size())
+                    + ", JSON dictionary " + report(jsonDeflate, measured.size()) + ", binary gzip " + report(binaryGzip, measured.size())
+                    + ", binary dictionary " + report(binaryDeflate, measured.size()));
+            assertTrue(jsonDeflate[0] < jsonGzip[0]);
+            assertTrue(binaryDeflate[0] < binaryGzip[0]);
+        }
+    }
+
+    private static String report(long[] result, int entries) {
+        return String.format("%.1f (%d)", (double) result[0] / entries, result[1] / entries);
+    }
+
+    //returns the compressed bytes and the time taken to serialize and compress (ns)
+    private static long[] compressBatches(List<SensorsEntry> entries, int batchSize, boolean binary, PresetDictionary dictionary) throws IOException {
+        BinaryBatchCodec.Encoder encoder = new BinaryBatchCodec.Encoder(null);
+        SensorsEntryJsonWriter writer = new SensorsEntryJsonWriter(null);
+        Deflater deflater = new Deflater();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long compressed = 0;
+        long start = System.nanoTime();
+        for (int from = 0; from < entries.size(); from += batchSize) {
+            out.reset();
+            OutputStream compressing = dictionary != null ? dictionary.compress(out, deflater) : new GZIPOutputStream(out, 8 * 1024);
+            write(entries.subList(from, Math.min(from + batchSize, entries.size())), binary, compressing, encoder, writer);
+            compressing.close();
+            compressed += out.size();
+        }
+        long time = System.nanoTime() - start;
+        deflater.end();
+        return new long[]{compressed, time};
+    }
+
+    private static void write(List<SensorsEntry> batch, boolean binary, OutputStream out, BinaryBatchCodec.Encoder encoder, SensorsEntryJsonWriter writer) throws IOException {
+        if (binary) {
+            encoder.reset(out);
+            encoder.begin();
+            for (SensorsEntry entry : batch)
+                encoder.write(entry);
+            encoder.end();
+            encoder.flush();
+        } else {
+            writer.reset(out);
+            writer.beginArray();
+            for (SensorsEntry entry : batch)
+                writer.write(entry);
+            writer.endArray();
+            writer.flush();
+        }
+    }
+
+    //dictionary of the end of the payload of some entries, as BatchUploader builds it
+    private static PresetDictionary sample(List<SensorsEntry> entries, boolean binary) throws IOException {
+        PresetDictionary.Sampler sampler = new PresetDictionary.Sampler(new ByteArrayOutputStream());
+        write(entries, binary, sampler, new BinaryBatchCodec.Encoder(null), new SensorsEntryJsonWriter(null));
+        return sampler.build();
+    }
+
+    private static byte[] compress(byte[] payload, PresetDictionary dictionary, Deflater deflater) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream compressing = dictionary.compress(out, deflater);
+        compressing.write(payload);
+        compressing.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] json(List<SensorsEntry> entries) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(entries, false, out, null, new SensorsEntryJsonWriter(null));
+        return out.toByteArray();
+    }
+
+    private static List<SensorsEntry> entries(int count) {
+        SyntheticEntries synthetic = new SyntheticEntries(5, START);
+        List<SensorsEntry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            SensorsEntry entry = synthetic.next();
+            entry.setId(i + 1);
+            entries.add(entry);
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,143 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of PurgeEngine, on a SegmentedLogStorage
+ */
+public class PurgeEngineTest {
+
+    private static final long START = 1538352000000L; //2018-10-01 00:00 UTC (ms)
+    private static final int SEGMENT_SIZE = 16*1024; //small segments, so that entries are deleted in many chunks (bytes)
+    private static final int CHUNK_SIZE = 50; //entries per chunk
+
+    /**
+     * tasks posted to the thread of the storage, run one at a time by the test
+     */
+    private static class TaskQueue implements Executor {
+        final LinkedList<Runnable> tasks = new LinkedList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runNext() {
+            tasks.removeFirst().run();
+        }
+    }
+
+    private File directory;
+    private SegmentedLogStorage storage;
+    private SyntheticEntries entries;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("sensors-log", "");
+        assertTrue(directory.delete());
+        storage = new SegmentedLogStorage(directory, SEGMENT_SIZE);
+        storage.open();
+        entries = new SyntheticEntries(1, START);
+        for (int i = 0; i < 3 * 24 * 60 / 10; i++) //3 days of entries, committed 10 at a time
+            storage.append(next(10));
+    }
+
+    @After
+    public void tearDown() {
+        storage.close();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void backlogIsDeletedInBoundedChunksInterleavedWithAppends() throws IOException {
+        TaskQueue queue = new TaskQueue();
+        PurgeEngine purgeEngine = new PurgeEngine(queue, CHUNK_SIZE);
+        storage.setUploadWatermark(new UploadWatermark(1, 2 * 24 * 60));
+        purgeEngine.purgeUploaded(storage);
+
+        int chunks = 0;
+        int appended = 0;
+        while (!queue.tasks.isEmpty()) {
+            int entriesBefore = countAll();
+            int segmentsBefore = storage.getSegmentCount();
+            queue.runNext();
+            chunks++;
+            //whole segments are deleted: a single one if it holds more entries than a chunk
+            int deleted = entriesBefore - countAll();
+            assertTrue(deleted <= CHUNK_SIZE || segmentsBefore - storage.getSegmentCount() == 1);
+            //the writer gets its turn between chunks
+            storage.append(next(1));
+            appended++;
+        }
+
+        assertTrue("purge done in " + chunks + " chunks", chunks > 2);
+        assertFalse(purgeEngine.isRunning());
+        assertEquals(0, storage.purgeUploaded(Integer.MAX_VALUE).getEntries());
+        PurgeResult total = purgeEngine.getTotal();
+        assertEquals(3 * 24 * 60 + appended - total.getEntries(), countAll());
+        assertTrue(total.getBytes() > 0);
+        assertEquals(0, total.getBytes() % SEGMENT_SIZE); //whole segment files
+        //entries not uploaded are all kept
+        List<SensorsEntry> notUploaded = new ArrayList<>();
+        storage.scanNotUploaded(collector(notUploaded));
+        assertEquals(24 * 60 + appended, notUploaded.size());
+    }
+
+    @Test
+    public void cancelledPurgeStops() throws IOException {
+        TaskQueue queue = new TaskQueue();
+        PurgeEngine purgeEngine = new PurgeEngine(queue, CHUNK_SIZE);
+        purgeEngine.purgeOlderThan(storage, START + 24 * 60 * 60 * 1000);
+        queue.runNext();
+        int afterFirstChunk = countAll();
+        purgeEngine.cancel();
+        while (!queue.tasks.isEmpty())
+            queue.runNext();
+        assertEquals(afterFirstChunk, countAll());
+        assertTrue(afterFirstChunk < 3 * 24 * 60);
+    }
+
+    private List<SensorsEntry> next(int count) {
+        List<SensorsEntry> next = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            next.add(entries.next());
+        return next;
+    }
+
+    private int countAll() throws IOException {
+        final int[] count = new int[1];
+        storage.scan(Long.MIN_VALUE, Long.MAX_VALUE, new SensorsEntryStorage.Visitor() {
+            @Override
+            public boolean visit(SensorsEntry entry) {
+                count[0]++;
+                return true;
+            }
+        });
+        return count[0];
+    }
+
+    private static SensorsEntryStorage.Visitor collector(final List<SensorsEntry> read) {
+        return new SensorsEntryStorage.Visitor() {
+            @Override
+            public boolean visit(SensorsEntry entry) {
+                read.add(entry);
+                return true;
+            }
+        };
+    }
+}
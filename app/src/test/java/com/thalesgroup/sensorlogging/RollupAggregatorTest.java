@@ -0,0 +1,140 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of RollupAggregator and SensorsRollup
+ */
+public class RollupAggregatorTest {
+
+    private static final long START = 1538352000000L; //2018-10-01 00:00 UTC (ms)
+    private static final long HOUR = 60*60*1000; //(ms)
+
+    /**
+     * rollups written, as a storage keeps them
+     */
+    private static class Store implements RollupAggregator.Loader {
+        final Map<String, SensorsRollup> rollups = new HashMap<>();
+
+        @Override
+        public SensorsRollup load(String key) {
+            SensorsRollup rollup = rollups.get(key);
+            return rollup != null ? new SensorsRollup(rollup) : null;
+        }
+
+        void write(List<SensorsRollup> changed) {
+            for (SensorsRollup rollup : changed)
+                rollups.put(rollup.getKey(), new SensorsRollup(rollup));
+        }
+    }
+
+    @Test
+    public void hourlyRollupsAddUpToDailyRollup() {
+        List<SensorsEntry> day = day(1);
+        Store store = new Store();
+        RollupAggregator aggregator = new RollupAggregator();
+        for (int i = 0; i < day.size(); i += 5)
+            store.write(aggregator.fold(day.subList(i, i + 5), store));
+
+        assertEquals(25, store.rollups.size());
+        SensorsRollup daily = store.rollups.get(SensorsRollup.key(SensorsRollup.RESOLUTION_DAILY, START));
+        assertNotNull(daily);
+
+        int entries = 0;
+        long covered = 0, inMotion = 0, moving = 0;
+        int[] histogram = new int[SensorsRollup.SIGNAL_BINS.length + 1];
+        for (int hour = 0; hour < 24; hour++) {
+            SensorsRollup hourly = store.rollups.get(SensorsRollup.key(SensorsRollup.RESOLUTION_HOURLY, START + hour * HOUR));
+            assertEquals(60, hourly.getEntryCount());
+            entries += hourly.getEntryCount();
+            covered += hourly.getCoveredMillis();
+            inMotion += hourly.getInMotionMillis();
+            moving += hourly.getMovingMillis();
+            for (int bin = 0; bin < histogram.length; bin++)
+                histogram[bin] += hourly.getSignalHistogram().get(bin);
+            assertTrue(hourly.getNumberWifiNetworks() <= daily.getNumberWifiNetworks());
+        }
+        assertEquals(daily.getEntryCount(), entries);
+        assertEquals(daily.getCoveredMillis(), covered);
+        assertEquals(daily.getInMotionMillis(), inMotion);
+        assertEquals(daily.getMovingMillis(), moving);
+        for (int bin = 0; bin < histogram.length; bin++)
+            assertEquals(daily.getSignalHistogram().get(bin).intValue(), histogram[bin]);
+        assertEquals(day.size(), histogram[0] + histogram[1] + histogram[2] + histogram[3] + histogram[4] + histogram[5] + histogram[6]);
+
+        //distinct networks, counted once however many times they were seen
+        Set<String> networks = new HashSet<>();
+        double distance = 0;
+        for (SensorsEntry entry : day) {
+            distance += entry.getTotalDistance();
+            if (entry.getWifiNetworks() != null)
+                for (WifiNetworkCustom network : entry.getWifiNetworks())
+                    networks.add(network.getNaturalKey());
+        }
+        assertEquals(networks.size(), daily.getNumberWifiNetworks());
+        assertEquals(distance, daily.getDistance(), 0.01);
+
+        //the synthetic battery loses 1% every 10 minutes
+        assertEquals(6, daily.getBatteryDrainRate(), 0.5);
+    }
+
+    @Test
+    public void entriesAlreadyFoldedAreIgnored() {
+        List<SensorsEntry> day = day(2);
+        Store store = new Store();
+        RollupAggregator aggregator = new RollupAggregator();
+        store.write(aggregator.fold(day.subList(0, 100), store));
+        store.write(aggregator.fold(day.subList(50, 150), store));
+
+        assertEquals(150, store.rollups.get(SensorsRollup.key(SensorsRollup.RESOLUTION_DAILY, START)).getEntryCount());
+    }
+
+    @Test
+    public void foldingAgainAfterFailedWriteGivesSameRollups() {
+        List<SensorsEntry> day = day(3);
+        Store expected = new Store();
+        RollupAggregator aggregator = new RollupAggregator();
+        expected.write(aggregator.fold(day.subList(0, 90), expected));
+        expected.write(aggregator.fold(day.subList(90, 120), expected));
+
+        Store store = new Store();
+        aggregator = new RollupAggregator();
+        store.write(aggregator.fold(day.subList(0, 90), store));
+        aggregator.fold(day.subList(90, 120), store); //not written
+        aggregator.invalidate();
+        store.write(aggregator.fold(day.subList(90, 120), store));
+
+        assertEquals(expected.rollups.keySet(), store.rollups.keySet());
+        for (String key : expected.rollups.keySet())
+            assertEquals(expected.rollups.get(key).toString(), store.rollups.get(key).toString());
+    }
+
+    @Test
+    public void signalStrengthBins() {
+        assertEquals(0, SensorsRollup.signalBin(-120));
+        assertEquals(1, SensorsRollup.signalBin(-110));
+        assertEquals(4, SensorsRollup.signalBin(-71));
+        assertEquals(5, SensorsRollup.signalBin(-70));
+        assertEquals(5, SensorsRollup.signalBin(-1));
+        assertEquals(6, SensorsRollup.signalBin(0));
+        assertEquals(START - 24 * HOUR, SensorsRollup.bucketStart(SensorsRollup.RESOLUTION_DAILY, START - 1));
+        assertEquals(START + 23 * HOUR, SensorsRollup.bucketStart(SensorsRollup.RESOLUTION_HOURLY, START + 24 * HOUR - 1));
+    }
+
+    private static List<SensorsEntry> day(long seed) {
+        SyntheticEntries entries = new SyntheticEntries(seed, START);
+        List<SensorsEntry> day = new ArrayList<>();
+        for (int i = 0; i < 24 * 60; i++)
+            day.add(entries.next());
+        return day;
+    }
+}
@@ -0,0 +1,110 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of SamplingRateController, under a virtual clock: the samples arrive at the delay it decides
+ */
+public class SamplingRateControllerTest {
+
+    private static final long SECOND = 1000; //(ms)
+    private static final long MINUTE = 60 * SECOND; //(ms)
+
+    private long now = 0;
+    private final Clock clock = new Clock() {
+        @Override
+        public long now() {
+            return now;
+        }
+    };
+    private final Random random = new Random(42);
+    private final List<Long> changeTimes = new ArrayList<>(); //instants the sensors were registered again (ms)
+
+    /**
+     * delivers accelerometer events at the delay of the controller
+     * @param duration - (ms)
+     * @param accelerationNoise - standard deviation of the acceleration (m/s^2)
+     * @param inclinationNoise - standard deviation of the inclination (degrees)
+     */
+    private void feed(SamplingRateController controller, long duration, double accelerationNoise, double inclinationNoise)
+    {
+        long end = now + duration;
+        while(now < end)
+        {
+            now += controller.getDelay() / 1000;
+            boolean changed = controller.addAcceleration((float) Math.abs(random.nextGaussian() * accelerationNoise));
+            float[] inclination = {(float) (10 + random.nextGaussian() * inclinationNoise), (float) (-5 + random.nextGaussian() * inclinationNoise)};
+            changed |= controller.addInclination(inclination);
+            if(changed)
+                changeTimes.add(now);
+        }
+    }
+
+    /**
+     * an hour on a desk, then someone picks the device up: quiet samples are spaced out to the maximum of the mode, and
+     * the minimum comes back at the first movement
+     */
+    @Test
+    public void quietPeriodsAreSampledSlowly() {
+        SamplingRateController controller = new SamplingRateController(clock, 4);
+        assertTrue(controller.setMode(EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION));
+        assertEquals(1000000, controller.getDelay()); //the delay the mode always had
+
+        feed(controller, 60 * MINUTE, 0.02, 0.1);
+        assertEquals(5000000, controller.getDelay());
+        assertTrue(controller.getChanges() <= 4);
+        //over 4 times fewer events than at the minimum delay
+        assertTrue(controller.getSamples() + " events", controller.getSamples() < controller.getMinDelaySamples() / 4);
+
+        long start = now;
+        feed(controller, 20 * SECOND, 2, 15);
+        assertEquals(1000000, controller.getDelay());
+        assertTrue(changeTimes.get(changeTimes.size() - 1) - start <= 2 * 5 * SECOND); //within two events at the slowest delay
+    }
+
+    @Test
+    public void delayStaysWithinTheBoundsOfTheMode() {
+        SamplingRateController controller = new SamplingRateController(clock, 4);
+        controller.setMode(EnergyModes.MODE_LOW_BATTERY_NOT_INMOTION);
+        feed(controller, 30 * MINUTE, 0.02, 0.1);
+        assertEquals(10000000, controller.getDelay());
+
+        //motion: brought within 0.5s to 2s, then down to the minimum as it moves
+        assertTrue(controller.setMode(EnergyModes.MODE_LOW_BATTERY_INMOTION));
+        assertEquals(2000000, controller.getDelay());
+        feed(controller, MINUTE, 2, 15);
+        assertEquals(500000, controller.getDelay());
+
+        //within the bounds of the next mode: the sensors are not registered again until its minimum is needed
+        assertFalse(controller.setMode(EnergyModes.MODE_HIGH_BATTERY_INMOTION));
+        assertEquals(500000, controller.getDelay());
+        feed(controller, 10 * MINUTE, 2, 15);
+        assertEquals(200000, controller.getDelay());
+        assertTrue(controller.setMode(EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION));
+        assertEquals(1000000, controller.getDelay());
+    }
+
+    /**
+     * a device handled on and off every few seconds: at most the limit of changes in any minute
+     */
+    @Test
+    public void changesPerMinuteAreLimited() {
+        SamplingRateController controller = new SamplingRateController(clock, 3);
+        controller.setMode(EnergyModes.MODE_HIGH_BATTERY_NOT_INMOTION);
+        changeTimes.clear();
+        for (int i = 0; i < 120; i++) {
+            feed(controller, 6 * SECOND, 0.02, 0.1);
+            feed(controller, 2 * SECOND, 2, 15);
+        }
+        assertTrue(changeTimes.size() > 3);
+        for (int i = 3; i < changeTimes.size(); i++)
+            assertTrue(changeTimes.get(i) - changeTimes.get(i - 3) >= MINUTE);
+        assertTrue(controller.getHeldChanges() > 0);
+    }
+}
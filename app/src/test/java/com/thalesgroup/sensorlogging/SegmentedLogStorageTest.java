@@ -0,0 +1,430 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests and benchmark of SegmentedLogStorage
+ */
+public class SegmentedLogStorageTest {
+
+    private static final long START = 1538352000000L; //2018-10-01 00:00 UTC (ms)
+    private static final long HOUR = 60*60*1000; //(ms)
+    private static final int SEGMENT_SIZE = 64*1024; //small segments, so that every test spans several of them (bytes)
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("sensors-log", "");
+        assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void rangeScanReturnsEntriesBeganInInterval() throws IOException {
+        SegmentedLogStorage storage = open();
+        append(storage, new SyntheticEntries(1, START), 24 * 60, 60);
+        assertTrue(storage.getSegmentCount() > 1);
+
+        List<SensorsEntry> read = scan(storage, START + 5 * HOUR + 30 * 60 * 1000, START + 7 * HOUR);
+        assertEquals(90, read.size());
+        assertEquals(5 * 60 + 30 + 1, read.get(0).getId());
+        for (int i = 1; i < read.size(); i++)
+            assertEquals(read.get(i - 1).getId() + 1, read.get(i).getId());
+        assertEquals(START + 7 * HOUR - DataAcquisitionService.DELAY_DB, read.get(read.size() - 1).getBeginningTimestamp());
+
+        assertEquals(0, scan(storage, START - HOUR, START).size());
+        assertEquals(24 * 60, scan(storage, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        storage.close();
+    }
+
+    @Test
+    public void entriesAreReadBackAsWritten() throws IOException {
+        SegmentedLogStorage storage = open();
+        SyntheticEntries entries = new SyntheticEntries(2, START);
+        List<SensorsEntry> written = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            written.add(entries.next());
+        storage.append(written);
+
+        List<SensorsEntry> read = scan(storage, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(written.size(), read.size());
+        for (int i = 0; i < written.size(); i++)
+            assertEquals(written.get(i).toString(), read.get(i).toString());
+        assertEquals(written.get(written.size() - 1).getFinalTimestamp(), storage.getLastFinalTimestamp());
+        storage.close();
+    }
+
+    @Test
+    public void reopenedStorageContinuesWhereItStopped() throws IOException {
+        SyntheticEntries entries = new SyntheticEntries(3, START);
+        SegmentedLogStorage storage = open();
+        append(storage, entries, 500, 10);
+        storage.setUploadWatermark(new UploadWatermark(1, 200, 2, 350));
+        storage.close();
+
+        storage = open();
+        UploadWatermark watermark = storage.getUploadWatermark();
+        assertEquals(1, watermark.getAcknowledgedSequence());
+        assertEquals(200, watermark.getAcknowledgedId());
+        assertEquals(2, watermark.getPendingSequence());
+        assertEquals(350, watermark.getPendingLastId());
+        List<SensorsEntry> notUploaded = new ArrayList<>();
+        storage.scanNotUploaded(collector(notUploaded));
+        assertEquals(300, notUploaded.size());
+        assertEquals(201, notUploaded.get(0).getId());
+
+        List<SensorsEntry> more = new ArrayList<>();
+        more.add(entries.next());
+        storage.append(more);
+        assertEquals(501, more.get(0).getId());
+        assertEquals(501, scan(storage, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        storage.close();
+    }
+
+    @Test
+    public void purgeDeletesOnlyUploadedSegments() throws IOException {
+        SegmentedLogStorage storage = open();
+        append(storage, new SyntheticEntries(4, START), 1000, 20);
+        int segments = storage.getSegmentCount();
+
+        storage.setUploadWatermark(new UploadWatermark(1, 500));
+        int deleted = storage.purgeUploaded(Integer.MAX_VALUE).getEntries();
+        assertTrue(deleted > 0 && deleted <= 500);
+        assertTrue(storage.getSegmentCount() < segments);
+        assertEquals(storage.getSegmentCount(), directory.list().length - 2); //and the state and rollup files
+        List<SensorsEntry> notUploaded = new ArrayList<>();
+        storage.scanNotUploaded(collector(notUploaded));
+        assertEquals(500, notUploaded.size());
+
+        long lastFinalTimestamp = storage.getLastFinalTimestamp();
+        storage.setUploadWatermark(new UploadWatermark(2, 1000));
+        assertEquals(1000 - deleted, storage.purgeUploaded(Integer.MAX_VALUE).getEntries());
+        assertEquals(0, storage.getSegmentCount());
+        assertEquals(lastFinalTimestamp, storage.getLastFinalTimestamp());
+        storage.close();
+
+        storage = open();
+        assertEquals(lastFinalTimestamp, storage.getLastFinalTimestamp());
+        List<SensorsEntry> more = new ArrayList<>();
+        more.add(new SyntheticEntries(5, START).next());
+        storage.append(more);
+        assertEquals(1001, more.get(0).getId());
+        storage.close();
+    }
+
+    @Test
+    public void incompleteRecordIsDiscarded() throws IOException {
+        SegmentedLogStorage storage = open();
+        append(storage, new SyntheticEntries(6, START), 10, 10);
+        storage.close();
+
+        //corrupt the last record, as if the device lost power while it was written
+        File segment = directory.listFiles(new java.io.FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".log");
+            }
+        })[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        int position = 0;
+        for (int i = 0; i < 9; i++) {
+            file.seek(position);
+            position += 32 + file.readInt();
+        }
+        file.seek(position + 40);
+        file.write(file.read() ^ 0xff);
+        file.close();
+
+        storage = open();
+        assertEquals(9, scan(storage, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        List<SensorsEntry> more = new ArrayList<>();
+        more.add(new SyntheticEntries(7, START + HOUR).next());
+        storage.append(more);
+        assertEquals(10, more.get(0).getId());
+        storage.close();
+
+        storage = open();
+        assertEquals(10, scan(storage, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        storage.close();
+    }
+
+    /**
+     * an append that cannot start the next segment (the disk is full...) leaves nothing behind, and takes no ids
+     */
+    @Test
+    public void failedAppendIsRolledBack() throws IOException {
+        SyntheticEntries entries = new SyntheticEntries(12, START);
+        SegmentedLogStorage storage = open();
+        append(storage, entries, 1, 1);
+        List<SensorsEntry> batch = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            SensorsEntry entry = entries.next();
+            entry.setId(0); //not appended yet
+            batch.add(entry);
+        }
+        //a directory where the next segment file goes: it cannot be created, whichever entry it starts with
+        for (int id = 2; id <= 501; id++)
+            assertTrue(new File(directory, "segment-" + id + ".log").mkdir());
+        try {
+            storage.append(batch);
+            fail("the batch spans two segments");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, batch.get(0).getId());
+        assertEquals(0, batch.get(batch.size() - 1).getId());
+        assertEquals(1, storage.getSegmentCount());
+        assertEquals(1, storage.countNotUploaded());
+        assertEquals(1, scan(storage, Long.MIN_VALUE, Long.MAX_VALUE).size());
+
+        for (int id = 2; id <= 501; id++)
+            assertTrue(new File(directory, "segment-" + id + ".log").delete());
+        storage.append(batch);
+        assertEquals(2, batch.get(0).getId());
+        storage.close();
+
+        storage = open();
+        List<SensorsEntry> read = scan(storage, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(501, read.size());
+        for (int i = 0; i < read.size(); i++)
+            assertEquals(i + 1, read.get(i).getId());
+        storage.close();
+    }
+
+    @Test
+    public void queryReadsPagesOfSelectedObjects() throws IOException {
+        SegmentedLogStorage storage = open();
+        append(storage, new SyntheticEntries(10, START), 24 * 60, 30);
+        List<SensorsEntry> all = scan(storage, Long.MIN_VALUE, Long.MAX_VALUE);
+
+        //three hours read in pages of 50, with only the wifi networks
+        List<SensorsEntry> read = new ArrayList<>();
+        long afterId = 0;
+        int pages = 0;
+        while (true) {
+            SensorsEntryCursor cursor = storage.query(START + 2 * HOUR, START + 5 * HOUR, afterId, 50, EntryFields.WIFI_NETWORKS);
+            int size = 0;
+            while (cursor.moveToNext()) {
+                read.add(cursor.getEntry());
+                size++;
+            }
+            afterId = cursor.getLastId();
+            cursor.close();
+            if (size == 0)
+                break;
+            assertTrue(size <= 50);
+            pages++;
+        }
+        assertEquals(4, pages);
+        assertEquals(3 * 60, read.size());
+        for (int i = 0; i < read.size(); i++) {
+            SensorsEntry entry = read.get(i);
+            SensorsEntry written = all.get(2 * 60 + i);
+            assertEquals(written.getId(), entry.getId());
+            assertEquals(written.getBatteryLevel(), entry.getBatteryLevel());
+            assertEquals(written.getNumberWifiDevices(), entry.getNumberWifiDevices());
+            assertEquals(written.getNumberBluetoothDevices(), entry.getNumberBluetoothDevices());
+            assertEquals(String.valueOf(written.getWifiNetworks()), String.valueOf(entry.getWifiNetworks()));
+            assertNull(entry.getMotionValues());
+            assertNull(entry.getLocationList());
+            assertNull(entry.getWifiDevices());
+            assertNull(entry.getBluetoothDevices());
+        }
+
+        SensorsEntryCursor cursor = storage.query(START + 2 * HOUR, START + 5 * HOUR, 0, 1, EntryFields.ALL);
+        assertTrue(cursor.moveToNext());
+        assertEquals(all.get(2 * 60).toString(), cursor.getEntry().toString());
+        assertFalse(cursor.moveToNext());
+        cursor.close();
+        storage.close();
+    }
+
+    @Test
+    public void rollupsOutliveEntriesAndAreRebuiltIfLost() throws IOException {
+        SegmentedLogStorage storage = open();
+        append(storage, new SyntheticEntries(9, START), 2 * 24 * 60, 15);
+        assertEquals(2 * 24 * 60, countEntries(storage, SensorsRollup.RESOLUTION_HOURLY));
+        assertEquals(2 * 24 * 60, countEntries(storage, SensorsRollup.RESOLUTION_DAILY));
+
+        //entries of the first day are dropped by the retention policy, their rollups are kept
+        new RetentionPolicy(HOUR * 24, HOUR * 48).apply(storage, new PurgeEngine(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, 100), START + 2 * 24 * HOUR);
+        assertTrue(scan(storage, Long.MIN_VALUE, Long.MAX_VALUE).size() < 2 * 24 * 60);
+        assertEquals(2 * 24 * 60, countEntries(storage, SensorsRollup.RESOLUTION_HOURLY));
+        storage.close();
+
+        storage = open();
+        assertEquals(2 * 24 * 60, countEntries(storage, SensorsRollup.RESOLUTION_DAILY));
+        assertEquals(1, storage.purgeRollupsOlderThan(SensorsRollup.RESOLUTION_DAILY, START + 24 * HOUR));
+        storage.close();
+
+        //rollups are rebuilt from the entries still in the log
+        assertTrue(new File(directory, "rollups.journal").delete());
+        storage = open();
+        int entries = scan(storage, Long.MIN_VALUE, Long.MAX_VALUE).size();
+        assertEquals(entries, countEntries(storage, SensorsRollup.RESOLUTION_HOURLY));
+        storage.close();
+    }
+
+    /**
+     * one entry per append writes two rollups (its hour and its day), so the 128th append brings the journal to the
+     * 256 records that compact it. Starting 53 min into an hour, that append is also the first entry of an hour: the
+     * rollup it creates must be compacted with the others, as the next append, two hours later, does not write it
+     * again but does write the day with a later last entry, after which reopening would not fold that entry again
+     */
+    @Test
+    public void rollupCreatedByACompactingAppendIsKept() throws IOException {
+        SegmentedLogStorage storage = open();
+        append(storage, new SyntheticEntries(13, START + 53 * DataAcquisitionService.DELAY_DB), 128, 1);
+        append(storage, new SyntheticEntries(17, START + 5 * HOUR), 1, 1);
+        storage.close();
+
+        storage = open();
+        List<SensorsEntry> all = scan(storage, Long.MIN_VALUE, Long.MAX_VALUE);
+        List<SensorsRollup> fresh = new RollupAggregator().fold(all, new RollupAggregator.Loader() {
+            @Override
+            public SensorsRollup load(String key) {
+                return null;
+            }
+        });
+        Map<String, SensorsRollup> stored = rollups(storage, SensorsRollup.RESOLUTION_HOURLY);
+        stored.putAll(rollups(storage, SensorsRollup.RESOLUTION_DAILY));
+        assertEquals(fresh.size(), stored.size());
+        for (SensorsRollup expected : fresh) {
+            SensorsRollup rollup = stored.get(expected.getKey());
+            assertNotNull(expected.getKey(), rollup);
+            assertTrue(expected.getKey(), Arrays.equals(encode(expected), encode(rollup)));
+        }
+        assertEquals(60, stored.get(SensorsRollup.key(SensorsRollup.RESOLUTION_HOURLY, START + 2 * HOUR)).getEntryCount());
+        assertEquals(1, stored.get(SensorsRollup.key(SensorsRollup.RESOLUTION_HOURLY, START + 3 * HOUR)).getEntryCount());
+        assertEquals(1, stored.get(SensorsRollup.key(SensorsRollup.RESOLUTION_HOURLY, START + 5 * HOUR)).getEntryCount());
+        storage.close();
+    }
+
+    private static Map<String, SensorsRollup> rollups(SensorsEntryStorage storage, int resolution) throws IOException {
+        final Map<String, SensorsRollup> rollups = new HashMap<>();
+        storage.scanRollups(resolution, Long.MIN_VALUE, Long.MAX_VALUE, new SensorsEntryStorage.RollupVisitor() {
+            @Override
+            public boolean visit(SensorsRollup rollup) {
+                rollups.put(rollup.getKey(), rollup);
+                return true;
+            }
+        });
+        return rollups;
+    }
+
+    private static byte[] encode(SensorsRollup rollup) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SensorsRollupCodec.write(new DataOutputStream(bytes), rollup);
+        return bytes.toByteArray();
+    }
+
+    private static int countEntries(SensorsEntryStorage storage, int resolution) throws IOException {
+        final int[] entries = new int[1];
+        storage.scanRollups(resolution, Long.MIN_VALUE, Long.MAX_VALUE, new SensorsEntryStorage.RollupVisitor() {
+            @Override
+            public boolean visit(SensorsRollup rollup) {
+                entries[0] += rollup.getEntryCount();
+                return true;
+            }
+        });
+        return entries[0];
+    }
+
+    /**
+     * appends a week of entries (one per minute) committed in groups of 5 and compares a full scan with the
+     * scan of a single hour, which the sparse index should make much cheaper
+     */
+    @Test
+    public void benchmarkWeekOfEntries() throws IOException {
+        int week = 7 * 24 * 60;
+        SegmentedLogStorage storage = new SegmentedLogStorage(directory);
+        storage.open();
+
+        long start = System.nanoTime();
+        append(storage, new SyntheticEntries(8, START), week, 5);
+        double appendMs = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        int all = scan(storage, Long.MIN_VALUE, Long.MAX_VALUE).size();
+        double fullScanMs = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        int hour = scan(storage, START + 100 * HOUR, START + 101 * HOUR).size();
+        double hourScanMs = (System.nanoTime() - start) / 1e6;
+
+        long bytes = 0;
+        for (File file : directory.listFiles())
+            bytes += file.length();
+        Benchmarks.report("SegmentedLogStorage: " + week + " entries appended in " + appendMs + " ms ("
+                + (appendMs * 1000 / week) + " us/entry), " + storage.getSegmentCount() + " segments (" + bytes / 1024 + " KB); "
+                + "full scan " + fullScanMs + " ms, one hour scan " + hourScanMs + " ms");
+        assertEquals(week, all);
+        assertEquals(60, hour);
+        storage.close();
+    }
+
+    private SegmentedLogStorage open() throws IOException {
+        SegmentedLogStorage storage = new SegmentedLogStorage(directory, SEGMENT_SIZE);
+        storage.open();
+        return storage;
+    }
+
+    /**
+     * appends entries in groups, as the write-behind buffer commits them
+     */
+    private static void append(SensorsEntryStorage storage, SyntheticEntries entries, int count, int perCommit) throws IOException {
+        List<SensorsEntry> group = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            group.add(entries.next());
+            if (group.size() == perCommit || i == count - 1) {
+                storage.append(group);
+                group = new ArrayList<>();
+            }
+        }
+    }
+
+    private static List<SensorsEntry> scan(SensorsEntryStorage storage, long from, long to) throws IOException {
+        List<SensorsEntry> read = new ArrayList<>();
+        storage.scan(from, to, collector(read));
+        return read;
+    }
+
+    private static SensorsEntryStorage.Visitor collector(final List<SensorsEntry> read) {
+        return new SensorsEntryStorage.Visitor() {
+            @Override
+            public boolean visit(SensorsEntry entry) {
+                read.add(entry);
+                return true;
+            }
+        };
+    }
+}
@@ -0,0 +1,176 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.realm.RealmList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests and benchmark of SensorsEntryJsonWriter
+ */
+public class SensorsEntryJsonWriterTest {
+
+    private static final long START = 1538352000000L; //2018-10-01 00:00 UTC (ms)
+
+    @Test
+    public void entryIsWrittenAsJson() throws IOException {
+        MotionValues motionValues = new MotionValues(0.5f, 0.25f, 1.125f, 0, -9.8f, 0.1f, 45, 2, true);
+        motionValues.setId(7);
+        RealmList<LocationCustom> locations = new RealmList<>();
+        LocationCustom location = new LocationCustom();
+        location.setId(3);
+        location.setLatitude(38.7369123456);
+        location.setLongitude(-9.1427);
+        location.setAltitude(112.5);
+        location.setAccuracy(Float.NaN);
+        location.setNumberOfSatellites(9);
+        location.setProvider("gps");
+        location.setTimestamp(START + 1000);
+        locations.add(location);
+        RealmList<WifiNetworkCustom> networks = new RealmList<>();
+        WifiNetworkCustom network = new WifiNetworkCustom();
+        network.setId(2);
+        network.setSSID("caf\u00e9 \"\u20ac\" \ud83d\ude00\\\n");
+        network.setBSSID("00:1a:2b:3c:4d:5e");
+        networks.add(network);
+        SensorsEntry entry = new SensorsEntry(START, START + 60000, -80, -95, motionValues, true, false, true,
+                1.5f, 120.25f, null, 40, 8, locations, null, networks, new RealmList<BluetoothDeviceCustom>());
+        entry.setId(11);
+
+        assertEquals("{\"id\":11,\"beginningTimestamp\":1538352000000,\"finalTimestamp\":1538352060000,\"batteryLevel\":-80,"
+                        + "\"signalStrength\":-95,\"inMotion\":true,\"moving\":false,\"display\":true,\"magneticField\":40,\"proximity\":8,"
+                        + "\"maxSpeed\":1.5,\"totalDistance\":120.25,\"currentNetworkSSID\":null,\"numberWifiDevices\":-1,"
+                        + "\"numberWifiNetworks\":1,\"numberBluetoothDevices\":0,"
+                        + "\"motionValues\":{\"id\":7,\"averageAcceleration\":0.5,\"standardDeviationAcceleration\":0.25,"
+                        + "\"averageVelocity\":1.125,\"standardDeviationVelocity\":0,\"averageInclinationX\":-9.8,"
+                        + "\"standardDeviationInclinationX\":0.1,\"averageInclinationY\":45,\"standardDeviationInclinationY\":2,\"inMotion\":true},"
+                        + "\"locationList\":[{\"id\":3,\"latitude\":38.7369123,\"longitude\":-9.1427,\"altitude\":112.5,\"bearing\":0,"
+                        + "\"speed\":0,\"accuracy\":null,\"numberOfSatellites\":9,\"provider\":\"gps\",\"timestamp\":1538352001000}],"
+                        + "\"wifiDevices\":null,"
+                        + "\"wifiNetworks\":[{\"id\":2,\"SSID\":\"caf\u00e9 \\\"\u20ac\\\" \ud83d\ude00\\\\\\u000a\",\"BSSID\":\"00:1a:2b:3c:4d:5e\"}],"
+                        + "\"bluetoothDevices\":[]}",
+                write(entry));
+    }
+
+    @Test
+    public void decimalsAreRoundedWithoutTrailingZeros() throws IOException {
+        assertEquals("0", writeDecimal(0.00004, 4));
+        assertEquals("0", writeDecimal(-0.00004, 4));
+        assertEquals("-0.0001", writeDecimal(-0.00005, 4));
+        assertEquals("3", writeDecimal(2.99999, 4));
+        assertEquals("0.1", writeDecimal(0.1f, 4));
+        assertEquals("-1234567.25", writeDecimal(-1234567.25, 4));
+        assertEquals("null", writeDecimal(Double.POSITIVE_INFINITY, 4));
+        assertEquals("1.0E12", writeDecimal(1e12, 4));
+    }
+
+    @Test
+    public void entriesAreWrittenAsArrayAcrossBufferFlushes() throws IOException {
+        SyntheticEntries entries = new SyntheticEntries(1, START);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SensorsEntryJsonWriter writer = new SensorsEntryJsonWriter(out);
+        writer.beginArray();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            SensorsEntry entry = entries.next();
+            entry.setId(i + 1);
+            writer.write(entry);
+            expected.add(write(entry));
+        }
+        writer.endArray();
+        writer.flush();
+        assertEquals(out.size(), writer.getCount());
+        assertEquals("[" + join(expected) + "]", out.toString("UTF-8"));
+    }
+
+    /**
+     * writes a day of entries through SensorsEntryJsonWriter and through toString() (the way entries were logged and
+     * uploaded before), reporting the time and the memory allocated per entry
+     */
+    @Test
+    public void benchmarkAgainstToString() throws IOException {
+        SyntheticEntries synthetic = new SyntheticEntries(2, START);
+        List<SensorsEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 24 * 60; i++)
+            entries.add(synthetic.next());
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        SensorsEntryJsonWriter writer = new SensorsEntryJsonWriter(discard);
+
+        long[] writerResult = null, toStringResult = null;
+        for (int round = 0; round < 5; round++) { //the first rounds warm the JIT up
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (SensorsEntry entry : entries)
+                writer.write(entry);
+            writer.flush();
+            writerResult = new long[]{System.nanoTime() - start, allocatedBytes() - allocated};
+
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            for (SensorsEntry entry : entries)
+                discard.write(entry.toString().getBytes("UTF-8"));
+            toStringResult = new long[]{System.nanoTime() - start, allocatedBytes() - allocated};
+        }
+        Benchmarks.report("SensorsEntryJsonWriter: " + writerResult[0] / entries.size() + " ns/entry, "
+                + (writerResult[1] < 0 ? "?" : writerResult[1] / entries.size()) + " bytes allocated/entry; toString(): "
+                + toStringResult[0] / entries.size() + " ns/entry, "
+                + (toStringResult[1] < 0 ? "?" : toStringResult[1] / entries.size()) + " bytes allocated/entry");
+        if (writerResult[1] >= 0)
+            assertTrue(writerResult[1] < toStringResult[1]);
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far, or -1 if the virtual machine does not tell
+     */
+    private static long allocatedBytes() {
+        try {
+            Object threadBean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threadBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static String write(SensorsEntry entry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SensorsEntryJsonWriter writer = new SensorsEntryJsonWriter(out);
+        writer.write(entry);
+        writer.flush();
+        return out.toString("UTF-8");
+    }
+
+    private static String writeDecimal(double value, int decimals) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SensorsEntryJsonWriter writer = new SensorsEntryJsonWriter(out);
+        writer.writeDecimal(value, decimals);
+        writer.flush();
+        return out.toString("UTF-8");
+    }
+
+    private static String join(List<String> parts) {
+        StringBuilder joined = new StringBuilder();
+        for (String part : parts) {
+            if (joined.length() > 0)
+                joined.append(',');
+            joined.append(part);
+        }
+        return joined.toString();
+    }
+}
@@ -0,0 +1,146 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of StateCheckpoint, with sections standing for the managers
+ */
+public class StateCheckpointTest {
+
+    private File file;
+
+    /**
+     * state of a manager: a time, an optional name and a position, as the location and wifi managers keep
+     */
+    private static class TestSection implements StateCheckpoint.Section {
+
+        long time = 0;
+        String name = null;
+        double latitude = 0;
+        double longitude = 0;
+
+        @Override
+        public void saveState(DataOutputStream out) throws IOException {
+            out.writeLong(time);
+            out.writeBoolean(name != null);
+            if(name != null)
+                out.writeUTF(name);
+            out.writeDouble(latitude);
+            out.writeDouble(longitude);
+        }
+
+        @Override
+        public void restoreState(DataInputStream in) throws IOException {
+            time = in.readLong();
+            name = in.readBoolean() ? in.readUTF() : null;
+            latitude = in.readDouble();
+            longitude = in.readDouble();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("checkpoint", "");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void stateIsRestoredExactly() {
+        StateCheckpoint checkpoint = new StateCheckpoint(file);
+        assertFalse(checkpoint.load());
+        TestSection location = new TestSection();
+        TestSection wifi = new TestSection();
+        checkpoint.add(StateCheckpoint.SECTION_LOCATION, location);
+        checkpoint.add(StateCheckpoint.SECTION_WIFI, wifi);
+        location.time = 1538352000000L;
+        location.latitude = 48.71234567; //a float keeps it to about 1 m
+        location.longitude = 2.21098765;
+        wifi.name = "office";
+        byte[] content = checkpoint.snapshot();
+        assertNotNull(content);
+        assertTrue(checkpoint.write(content));
+        assertEquals(content.length, file.length());
+
+        StateCheckpoint restarted = new StateCheckpoint(file);
+        assertTrue(restarted.load());
+        assertEquals(content.length, restarted.getLoadedBytes());
+        TestSection restoredWifi = new TestSection();
+        TestSection restoredLocation = new TestSection();
+        TestSection bluetooth = new TestSection();
+        bluetooth.time = 7;
+        restarted.add(StateCheckpoint.SECTION_WIFI, restoredWifi); //in another order
+        restarted.add(StateCheckpoint.SECTION_LOCATION, restoredLocation);
+        restarted.add(StateCheckpoint.SECTION_BLUETOOTH, bluetooth); //not in the file: keeps its state
+        assertEquals(1538352000000L, restoredLocation.time);
+        assertEquals(48.71234567, restoredLocation.latitude, 0);
+        assertEquals(2.21098765, restoredLocation.longitude, 0);
+        assertEquals("office", restoredWifi.name);
+        assertEquals(7, bluetooth.time);
+    }
+
+    /**
+     * a day of entries at a desk: the state changes a few times, the file is only written then
+     */
+    @Test
+    public void onlyChangedStatesAreWritten() {
+        StateCheckpoint checkpoint = new StateCheckpoint(file);
+        checkpoint.load();
+        TestSection section = new TestSection();
+        checkpoint.add(StateCheckpoint.SECTION_BLUETOOTH, section);
+        int entries = 8 * 60;
+        for (int i = 0; i < entries; i++) {
+            if(i % 60 == 0)
+                section.time = i; //a scan every hour
+            byte[] content = checkpoint.snapshot();
+            if(content != null)
+                assertTrue(checkpoint.write(content));
+        }
+        assertEquals(8, checkpoint.getWrites());
+        assertEquals(entries - 8, checkpoint.getUnchanged());
+        assertEquals(8 * file.length(), checkpoint.getBytesWritten());
+
+        //the state restored is the one in the file: not written again until it changes
+        StateCheckpoint restarted = new StateCheckpoint(file);
+        assertTrue(restarted.load());
+        TestSection restored = new TestSection();
+        restarted.add(StateCheckpoint.SECTION_BLUETOOTH, restored);
+        assertEquals(7 * 60, restored.time);
+        assertNull(restarted.snapshot());
+        restored.time++;
+        assertNotNull(restarted.snapshot());
+    }
+
+    @Test
+    public void incompleteFileIsIgnored() throws IOException {
+        StateCheckpoint checkpoint = new StateCheckpoint(file);
+        TestSection section = new TestSection();
+        checkpoint.add(StateCheckpoint.SECTION_LOCATION, section);
+        section.time = 42;
+        assertTrue(checkpoint.write(checkpoint.snapshot()));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+        StateCheckpoint restarted = new StateCheckpoint(file);
+        assertFalse(restarted.load());
+        TestSection restored = new TestSection();
+        restarted.add(StateCheckpoint.SECTION_LOCATION, restored);
+        assertEquals(0, restored.time);
+    }
+}
@@ -0,0 +1,114 @@
+package com.thalesgroup.sensorlogging;
+
+import java.util.Random;
+
+import io.realm.RealmList;
+
+/**
+ * Builds realistic unmanaged SensorsEntry objects (one per minute) for local unit tests and benchmarks
+ */
+public class SyntheticEntries {
+
+    private static final String[] SSIDS = {"thales-corp", "thales-guest", "eduroam", "MEO-4F21A0", "NOS-9C3E", "iPhone de Ana", "HP-Print-3A-LaserJet"};
+    private static final String[] BLUETOOTH_NAMES = {"JBL Flip 4", "Mi Band 3", "Galaxy Buds", null, "[TV] Samsung 6 Series", "Fitbit Charge 2"};
+
+    private final Random random;
+    private long time;
+    private long nextId = 1;
+
+    /**
+     * Constructor
+     * @param seed - seed of the random generator, so that the same entries are built on every run
+     * @param startTime - beginning timestamp of the first entry (ms)
+     */
+    public SyntheticEntries(long seed, long startTime) {
+        this.random = new Random(seed);
+        this.time = startTime;
+    }
+
+    /**
+     * @return next entry, beginning when the previous one ended
+     */
+    public SensorsEntry next()
+    {
+        long beginning = time;
+        time += DataAcquisitionService.DELAY_DB;
+        boolean inMotion = random.nextInt(4) == 0;
+        boolean moving = inMotion && random.nextBoolean();
+
+        MotionValues motionValues = new MotionValues(random.nextFloat(), random.nextFloat(), inMotion ? random.nextFloat() : 0, random.nextFloat(),
+                random.nextFloat() * 90, random.nextFloat() * 5, random.nextFloat() * 90, random.nextFloat() * 5, inMotion);
+        motionValues.setId(nextId);
+
+        RealmList<LocationCustom> locations = new RealmList<>();
+        int numberLocations = moving ? 6 : random.nextInt(2);
+        for(int i = 0; i < numberLocations; i++)
+        {
+            LocationCustom location = new LocationCustom();
+            location.setId(nextId * 10 + i);
+            location.setLatitude(38.7369 + random.nextDouble() / 100);
+            location.setLongitude(-9.1427 + random.nextDouble() / 100);
+            location.setAltitude(90 + random.nextDouble() * 10);
+            location.setBearing(random.nextFloat() * 360);
+            location.setSpeed(moving ? random.nextFloat() * 3 : 0);
+            location.setAccuracy(5 + random.nextFloat() * 30);
+            location.setNumberOfSatellites(random.nextBoolean() ? 0 : 4 + random.nextInt(8));
+            location.setProvider(random.nextBoolean() ? "gps" : "network");
+            location.setTimestamp(beginning + (i + 1) * 9000L);
+            locations.add(location);
+        }
+
+        RealmList<WifiNetworkCustom> wifiNetworks = null;
+        if(random.nextInt(3) == 0)
+        {
+            wifiNetworks = new RealmList<>();
+            int numberNetworks = 3 + random.nextInt(SSIDS.length - 2);
+            for(int i = 0; i < numberNetworks; i++)
+            {
+                WifiNetworkCustom network = new WifiNetworkCustom();
+                network.setId(i + 1);
+                network.setSSID(SSIDS[i]);
+                network.setBSSID(String.format("00:1a:2b:3c:%02x:%02x", i, i * 7 % 256));
+                wifiNetworks.add(network);
+            }
+        }
+
+        RealmList<WifiDeviceCustom> wifiDevices = null;
+        if(random.nextInt(10) == 0)
+        {
+            wifiDevices = new RealmList<>();
+            for(int i = 0; i < 4; i++)
+            {
+                WifiDeviceCustom device = new WifiDeviceCustom("192.168.1." + (i + 1), String.format("a4:5e:60:%02x:%02x:%02x", i, i, i), SSIDS[0]);
+                device.setId(i + 1);
+                wifiDevices.add(device);
+            }
+        }
+
+        RealmList<BluetoothDeviceCustom> bluetoothDevices = null;
+        if(random.nextInt(5) == 0)
+        {
+            bluetoothDevices = new RealmList<>();
+            int numberDevices = random.nextInt(BLUETOOTH_NAMES.length);
+            for(int i = 0; i < numberDevices; i++)
+            {
+                BluetoothDeviceCustom device = new BluetoothDeviceCustom();
+                device.setId(i + 1);
+                device.setAddress(String.format("f0:99:b6:%02x:%02x:%02x", i, 2 * i, 3 * i));
+                device.setName(BLUETOOTH_NAMES[i]);
+                device.setType(1 + i % 3);
+                bluetoothDevices.add(device);
+            }
+        }
+
+        float maxSpeed = 0;
+        for(LocationCustom location:locations)
+            maxSpeed = Math.max(maxSpeed, location.getSpeed());
+
+        SensorsEntry entry = new SensorsEntry(beginning, time, -(100 - (int) ((time / 600000) % 100)), -70 - random.nextInt(40), motionValues, inMotion, moving,
+                random.nextInt(5) == 0, maxSpeed, moving ? random.nextFloat() * 150 : 0, random.nextBoolean() ? SSIDS[0] : null,
+                30 + random.nextFloat() * 20, random.nextBoolean() ? 0 : 8, locations, wifiDevices, wifiNetworks, bluetoothDevices);
+        entry.setId(nextId++);
+        return entry;
+    }
+}
@@ -0,0 +1,50 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of TickStats
+ */
+public class TickStatsTest {
+
+    private static final long PERIOD = 10 * 1000; //(ms)
+
+    @Test
+    public void punctualTicksHaveNoLatencyNorJitter() {
+        TickStats stats = new TickStats("update");
+        for (long scheduled = 0; scheduled < 100 * PERIOD; scheduled += PERIOD)
+            stats.record(scheduled, scheduled, scheduled + 3);
+        assertEquals(100, stats.getTicks());
+        assertEquals(0, stats.getMeanLatency(), 0);
+        assertEquals(0, stats.getJitter(), 0);
+        assertEquals(3, stats.getMeanDuration(), 0);
+        assertEquals(3, stats.getMaxDuration());
+    }
+
+    /**
+     * a thread stalled every other tick (as the main thread was by sensor callbacks and receivers) starts ticks late
+     * and unevenly
+     */
+    @Test
+    public void stallsShowAsLatencyAndJitter() {
+        TickStats stats = new TickStats("update");
+        for (int i = 0; i < 100; i++) {
+            long scheduled = i * PERIOD;
+            long started = scheduled + (i % 2 == 0 ? 0 : 200);
+            stats.record(scheduled, started, started + 5);
+        }
+        assertEquals(100, stats.getMeanLatency(), 1e-9);
+        assertEquals(200, stats.getMaxLatency());
+        assertEquals(100.5, stats.getJitter(), 0.1); //sample standard deviation of 0 and 200 in equal parts
+
+        //a constant delay is latency, not jitter
+        stats.reset();
+        for (int i = 0; i < 100; i++)
+            stats.record(i * PERIOD, i * PERIOD + 50, i * PERIOD + 60);
+        assertEquals(50, stats.getMeanLatency(), 1e-9);
+        assertEquals(0, stats.getJitter(), 1e-9);
+        assertEquals(10, stats.getMeanDuration(), 0);
+    }
+}
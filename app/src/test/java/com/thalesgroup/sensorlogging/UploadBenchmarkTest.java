@@ -0,0 +1,174 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * End-to-end benchmark of the upload of a backlog, the way the service runs it: the storage on its own thread, the
+ * uploads decided every minute by an UploadScheduler (under a virtual clock, so that its delays cost no time) and sent
+ * by BatchUploader to an IngestServerStandIn, reliable or failing and resetting requests at random.
+ * Reports, for each way of uploading, entries per second (time spent uploading), bytes per entry (everything the
+ * server received, including what was sent again), requests, retries (failed uploads) and the virtual time taken
+ */
+public class UploadBenchmarkTest {
+
+    private static final long START = 1538352000000L; //2018-10-01 00:00 UTC (ms)
+    private static final long MINUTE = 60 * 1000; //(ms)
+    private static final int BACKLOG = 10000; //entries waiting to be uploaded (about a week)
+    private static final String DEVICE_ID = "benchmark-device";
+    //ways of uploading: name, format, compression, streamed
+    private static final String[] NAMES = {"JSON batches", "JSON stream", "binary stream", "JSON batches with dictionary"};
+    private static final int[][] WAYS = {
+            {BatchUploader.FORMAT_JSON, BatchUploader.COMPRESSION_GZIP, 0},
+            {BatchUploader.FORMAT_JSON, BatchUploader.COMPRESSION_GZIP, 1},
+            {BatchUploader.FORMAT_BINARY, BatchUploader.COMPRESSION_GZIP, 1},
+            {BatchUploader.FORMAT_JSON, BatchUploader.COMPRESSION_DICTIONARY, 0}};
+
+    private long now = START + BACKLOG * MINUTE; //virtual time (ms)
+    private final List<File> directories = new ArrayList<>();
+    private ExecutorService storageThread;
+    private Executor storageExecutor;
+
+    @Before
+    public void setUp() {
+        storageThread = Executors.newSingleThreadExecutor();
+        storageExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                storageThread.execute(command);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        storageThread.shutdownNow();
+        for (File directory : directories) {
+            File[] files = directory.listFiles();
+            if (files != null)
+                for (File file : files)
+                    file.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void uploadToReliableServer() throws Exception {
+        for (int i = 0; i < WAYS.length; i++) {
+            IngestServerStandIn server = new IngestServerStandIn();
+            server.setLatency(5);
+            try {
+                assertEquals(0, upload(NAMES[i] + ", reliable server", WAYS[i], server));
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    /**
+     * every request (but the ones for the last entry received) has a chance of 5% to be answered with an error, and of
+     * 5% to have its connection reset, while or after its body is sent: every entry still arrives, none is skipped
+     */
+    @Test
+    public void uploadToFaultyServer() throws Exception {
+        for (int i = 0; i < WAYS.length; i++) {
+            IngestServerStandIn server = new IngestServerStandIn();
+            server.setLatency(20);
+            server.injectFaults(i + 1, 0.05, 0.05);
+            try {
+                upload(NAMES[i] + ", faulty server", WAYS[i], server);
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    //uploads a backlog until the server has every entry, returning the number of retries
+    private int upload(String name, int[] way, IngestServerStandIn server) throws Exception {
+        final SegmentedLogStorage storage = storageThread.submit(new Callable<SegmentedLogStorage>() {
+            @Override
+            public SegmentedLogStorage call() throws IOException {
+                return createStorage(BACKLOG);
+            }
+        }).get();
+        BatchUploader uploader = new BatchUploader(server.getUrl(), DEVICE_ID, way[0], way[1], BatchUploader.DEFAULT_MAX_ENTRIES, BatchUploader.DEFAULT_MAX_BYTES);
+        UploadScheduler scheduler = new UploadScheduler(new Clock() {
+            @Override
+            public long now() {
+                return now;
+            }
+        });
+        long begin = now;
+        int uploads = 0, retries = 0;
+        long uploadNanos = 0;
+        for (long backlog = countNotUploaded(storage); backlog > 0; backlog = countNotUploaded(storage)) {
+            assertTrue(now - begin < 24 * 60 * MINUTE);
+            long maxBytes = scheduler.decide(backlog, UploadScheduler.NETWORK_UNMETERED, true);
+            if (maxBytes > 0) {
+                long bytesBefore = uploader.getBytesSent();
+                long start = System.nanoTime();
+                long sent = way[2] == 1 ? uploader.stream(storage, storageExecutor, maxBytes) : uploader.upload(storage, storageExecutor, maxBytes);
+                uploadNanos += System.nanoTime() - start;
+                uploads++;
+                if (uploader.isFailed()) {
+                    retries++;
+                    scheduler.uploadFailed();
+                } else
+                    scheduler.uploadSucceeded(sent, uploader.getBytesSent() - bytesBefore, uploader.isCapped());
+            }
+            now += MINUTE;
+        }
+        storageThread.submit(new Runnable() {
+            @Override
+            public void run() {
+                storage.close();
+            }
+        }).get();
+
+        assertEquals(BACKLOG, server.getEntries());
+        assertEquals(0, server.getSkippedEntries());
+        Benchmarks.report(String.format("UploadBenchmark: %s: %.0f entries/s, %.1f bytes/entry, %d requests, %d uploads, %d retries (%d faults, %d entries received again), %d virtual minutes",
+                name, BACKLOG / (uploadNanos / 1e9), (double) server.getBytes() / BACKLOG, server.getRequests(), uploads, retries,
+                server.getInjectedFaults(), server.getDuplicateEntries(), (now - begin) / MINUTE));
+        return retries;
+    }
+
+    private long countNotUploaded(final SensorsEntryStorage storage) throws Exception {
+        return storageThread.submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return storage.countNotUploaded();
+            }
+        }).get();
+    }
+
+    private SegmentedLogStorage createStorage(int count) throws IOException {
+        File directory = File.createTempFile("sensors-log", "");
+        assertTrue(directory.delete());
+        directories.add(directory);
+        SegmentedLogStorage storage = new SegmentedLogStorage(directory);
+        storage.open();
+        SyntheticEntries entries = new SyntheticEntries(1, START);
+        List<SensorsEntry> group = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            group.add(entries.next());
+            if (group.size() == 100 || i == count - 1) {
+                storage.append(group);
+                group = new ArrayList<>();
+            }
+        }
+        return storage;
+    }
+}
@@ -0,0 +1,128 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of UploadScheduler, under a virtual clock
+ */
+public class UploadSchedulerTest {
+
+    private static final long MINUTE = 60 * 1000; //(ms)
+
+    private long now = 1538352000000L; //2018-10-01 00:00 UTC (ms)
+    private final UploadScheduler scheduler = new UploadScheduler(new Clock() {
+        @Override
+        public long now() {
+            return now;
+        }
+    });
+
+    @Test
+    public void smallBacklogOnUnmeteredNetworkWaitsForTheInterval() {
+        now += UploadScheduler.MAX_INTERVAL - MINUTE;
+        assertEquals(0, scheduler.decide(59, UploadScheduler.NETWORK_UNMETERED, false));
+        now += MINUTE;
+        assertEquals(UploadScheduler.UNMETERED_MAX_BYTES, scheduler.decide(60, UploadScheduler.NETWORK_UNMETERED, false));
+        scheduler.uploadSucceeded(60, 60 * 100, false);
+        assertEquals(0, scheduler.decide(1, UploadScheduler.NETWORK_UNMETERED, false));
+    }
+
+    @Test
+    public void largeBacklogIsSentRightAway() {
+        //back on wifi after being offline
+        assertEquals(UploadScheduler.UNMETERED_MAX_BYTES, scheduler.decide(UploadScheduler.BACKLOG_ENTRIES, UploadScheduler.NETWORK_UNMETERED, false));
+        assertEquals(0, scheduler.decide(UploadScheduler.BACKLOG_ENTRIES, UploadScheduler.NETWORK_NONE, false));
+
+        //entries turn out larger than assumed: the threshold in bytes is reached first
+        scheduler.uploadSucceeded(100, 100 * 2000, false);
+        assertTrue(scheduler.getEstimatedBytes(100) >= UploadScheduler.BACKLOG_BYTES);
+        assertEquals(UploadScheduler.UNMETERED_MAX_BYTES, scheduler.decide(100, UploadScheduler.NETWORK_UNMETERED, false));
+    }
+
+    @Test
+    public void chargingOnUnmeteredNetworkSendsOften() {
+        now += UploadScheduler.MIN_INTERVAL_CHARGING;
+        assertEquals(0, scheduler.decide(5, UploadScheduler.NETWORK_UNMETERED, false));
+        assertEquals(UploadScheduler.CHARGING_MAX_BYTES, scheduler.decide(5, UploadScheduler.NETWORK_UNMETERED, true));
+        scheduler.uploadSucceeded(5, 500, false);
+        now += MINUTE;
+        assertEquals(0, scheduler.decide(1, UploadScheduler.NETWORK_UNMETERED, true));
+
+        //an upload stopped by its cap is continued at once
+        scheduler.uploadSucceeded(100000, UploadScheduler.CHARGING_MAX_BYTES, true);
+        assertEquals(UploadScheduler.CHARGING_MAX_BYTES, scheduler.decide(50000, UploadScheduler.NETWORK_UNMETERED, true));
+    }
+
+    @Test
+    public void meteredNetworkIsOnlyUsedForLargeBacklogs() {
+        now += UploadScheduler.MAX_INTERVAL;
+        assertEquals(0, scheduler.decide(UploadScheduler.METERED_MIN_ENTRIES - 1, UploadScheduler.NETWORK_METERED, true));
+        assertEquals(UploadScheduler.METERED_MAX_BYTES, scheduler.decide(UploadScheduler.METERED_MIN_ENTRIES, UploadScheduler.NETWORK_METERED, false));
+
+        //the cap holds for the whole interval
+        scheduler.uploadSucceeded(2000, UploadScheduler.METERED_MAX_BYTES, true);
+        now += UploadScheduler.MAX_INTERVAL - MINUTE;
+        assertEquals(0, scheduler.decide(UploadScheduler.METERED_MIN_ENTRIES, UploadScheduler.NETWORK_METERED, false));
+        now += MINUTE;
+        assertEquals(UploadScheduler.METERED_MAX_BYTES, scheduler.decide(UploadScheduler.METERED_MIN_ENTRIES, UploadScheduler.NETWORK_METERED, false));
+    }
+
+    @Test
+    public void failuresBackOffExponentially() {
+        long backlog = UploadScheduler.BACKLOG_ENTRIES;
+        long expected = UploadScheduler.INITIAL_BACKOFF;
+        for (int failure = 1; failure <= 12; failure++) {
+            assertTrue(scheduler.decide(backlog, UploadScheduler.NETWORK_UNMETERED, false) > 0);
+            scheduler.uploadFailed();
+            assertEquals(expected, scheduler.getBackoff());
+            now += expected - 1;
+            assertEquals(0, scheduler.decide(backlog, UploadScheduler.NETWORK_UNMETERED, true));
+            now += 1;
+            expected = Math.min(expected * 2, UploadScheduler.MAX_BACKOFF);
+        }
+        assertEquals(UploadScheduler.MAX_BACKOFF, scheduler.getBackoff());
+
+        scheduler.uploadSucceeded(backlog, backlog * 100, false);
+        assertEquals(0, scheduler.getBackoff());
+        assertTrue(scheduler.decide(backlog, UploadScheduler.NETWORK_UNMETERED, false) > 0);
+    }
+
+    /**
+     * a week of a device offline for two days and then charging on wifi at night and on mobile data during the day,
+     * checked every minute as the service does: uploads never exceed their cap, and the backlog of the offline days
+     * is sent as soon as the device charges on wifi
+     */
+    @Test
+    public void weekOfDecisions() {
+        long backlog = 0;
+        long uploads = 0;
+        long meteredBytes = 0;
+        long firstChargingUpload = -1;
+        for (int minute = 0; minute < 7 * 24 * 60; minute++) {
+            now += MINUTE;
+            backlog++;
+            int hour = minute / 60 % 24;
+            boolean offline = minute < 2 * 24 * 60;
+            boolean night = hour < 7;
+            int network = offline ? UploadScheduler.NETWORK_NONE : (night ? UploadScheduler.NETWORK_UNMETERED : UploadScheduler.NETWORK_METERED);
+            long maxBytes = scheduler.decide(backlog, network, night);
+            if (maxBytes == 0)
+                continue;
+            uploads++;
+            long sent = Math.min(backlog, maxBytes / 128); //128 bytes per entry
+            backlog -= sent;
+            scheduler.uploadSucceeded(sent, sent * 128, backlog > 0);
+            assertTrue(sent * 128 <= maxBytes);
+            if (network == UploadScheduler.NETWORK_METERED)
+                meteredBytes += sent * 128;
+            else if (firstChargingUpload < 0)
+                firstChargingUpload = minute;
+        }
+        assertEquals(2 * 24 * 60, firstChargingUpload); //as soon as it is back online
+        assertEquals(0, meteredBytes); //each night empties the backlog before it grows large enough for mobile data
+        assertTrue(backlog < UploadScheduler.METERED_MIN_ENTRIES);
+        Benchmarks.report("UploadScheduler: " + uploads + " uploads in a week, backlog left " + backlog + " entries");
+    }
+}
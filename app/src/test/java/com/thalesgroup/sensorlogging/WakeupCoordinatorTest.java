@@ -0,0 +1,204 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of WakeupCoordinator, under a virtual clock, and comparison of its wakeups per hour with the timers
+ * of the service each waking the device up on their own
+ */
+public class WakeupCoordinatorTest {
+
+    private static final long SECOND = 1000; //(ms)
+    private static final long MINUTE = 60 * SECOND; //(ms)
+    private static final long HOUR = 60 * MINUTE; //(ms)
+
+    private long now = 1538352000000L; //2018-10-01 00:00 UTC (ms)
+    private long wakeup = WakeupCoordinator.NEVER; //instant the coordinator asked to be run at (ms)
+    private final WakeupCoordinator coordinator = new WakeupCoordinator(new Clock() {
+        @Override
+        public long now() {
+            return now;
+        }
+    }, new ControlLoop.Waker() {
+        @Override
+        public void wakeAt(long time) {
+            wakeup = time;
+        }
+    });
+
+    /**
+     * work recording the instants it ran at
+     */
+    private class Recorder implements Runnable {
+        final List<Long> runs = new ArrayList<>();
+
+        @Override
+        public void run() {
+            runs.add(now);
+        }
+    }
+
+    //runs the coordinator at the wakeups it asks for until the given instant
+    private void runUntil(long end) {
+        while (wakeup <= end) {
+            now = Math.max(now, wakeup);
+            wakeup = WakeupCoordinator.NEVER;
+            coordinator.run();
+        }
+        now = end;
+    }
+
+    @Test
+    public void deadlinesNeverRunEarly() {
+        Recorder database = new Recorder();
+        Recorder deadline = new Recorder();
+        coordinator.addPeriodic("database", MINUTE, 5 * SECOND, false, database);
+        WakeupCoordinator.Task task = coordinator.addOneShot("deadline", 10 * SECOND, false, deadline);
+        long start = now;
+        coordinator.schedule(task, start + MINUTE + 3 * SECOND);
+        assertEquals(start + MINUTE + 5 * SECOND, wakeup); //the database cannot wait longer than the deadline
+
+        runUntil(start + MINUTE + 5 * SECOND);
+        assertEquals(1, database.runs.size());
+        assertEquals(1, deadline.runs.size());
+        assertEquals(start + MINUTE + 5 * SECOND, (long) deadline.runs.get(0));
+
+        //a deadline 4 s after the database: the database runs early, the deadline not
+        coordinator.schedule(task, start + 2 * MINUTE + 4 * SECOND);
+        runUntil(start + 2 * MINUTE + 20 * SECOND);
+        assertEquals(2, database.runs.size());
+        assertEquals(2, deadline.runs.size());
+        assertTrue(deadline.runs.get(1) >= start + 2 * MINUTE + 4 * SECOND);
+        assertEquals(database.runs.get(1), deadline.runs.get(1)); //in the same window
+
+        //the period holds over time
+        runUntil(start + HOUR);
+        assertTrue(Math.abs(database.runs.size() - 60) <= 1);
+    }
+
+    @Test
+    public void radioTasksOnlyRunEarlyWithTheRadioUp() {
+        Recorder upload = new Recorder();
+        Recorder database = new Recorder();
+        Recorder scan = new Recorder();
+        long start = now;
+        coordinator.addPeriodic("database", MINUTE, 5 * SECOND, false, database);
+        coordinator.addPeriodic("upload", MINUTE + 20 * SECOND, 30 * SECOND, true, upload);
+        WakeupCoordinator.Task scanTask = coordinator.addOneShot("scan", 10 * SECOND, true, scan);
+
+        //the database window does not bring the upload forward
+        runUntil(start + MINUTE + 5 * SECOND);
+        assertEquals(1, database.runs.size());
+        assertEquals(0, upload.runs.size());
+
+        //a scan does
+        coordinator.schedule(scanTask, start + MINUTE + 6 * SECOND);
+        runUntil(start + MINUTE + 16 * SECOND);
+        assertEquals(1, scan.runs.size());
+        assertEquals(1, upload.runs.size());
+        assertEquals(scan.runs.get(0), upload.runs.get(0));
+        assertEquals(1, coordinator.getRadioWindowsPerHour() * (now - start) / HOUR, 1e-9);
+    }
+
+    /**
+     * work that only powers the radio up at times: its windows count as radio windows only when it does, once
+     */
+    @Test
+    public void windowsCountAsRadioOnlyWhenTheRadioIsPowered() {
+        Recorder upload = new Recorder();
+        final boolean[] scan = {false};
+        long start = now;
+        coordinator.addPeriodic("upload", 3 * MINUTE, MINUTE, true, upload);
+        coordinator.addPeriodic("control loop", MINUTE, 5 * SECOND, false, new Runnable() {
+            @Override
+            public void run() {
+                if (scan[0]) {
+                    coordinator.radioPowered(coordinator.getWindow());
+                    coordinator.radioPowered(coordinator.getWindow());
+                }
+            }
+        });
+
+        runUntil(start + MINUTE + 5 * SECOND);
+        assertEquals(0, upload.runs.size());
+        assertEquals(0, coordinator.getRadioWindowsPerHour(), 0);
+
+        //a scan in the window 2min in: the upload due a minute later runs in it
+        scan[0] = true;
+        runUntil(start + 2 * MINUTE + 5 * SECOND);
+        assertEquals(1, upload.runs.size());
+        assertEquals(1, coordinator.getRadioWindowsPerHour() * (now - start) / HOUR, 1e-9);
+
+        //an upload started in a window already counted is not counted again when it is sent, after the next window
+        scan[0] = false;
+        long window = coordinator.getWindow();
+        runUntil(start + 3 * MINUTE + 5 * SECOND);
+        coordinator.radioPowered(window);
+        coordinator.radioPowered(coordinator.getWindow());
+        assertEquals(2, coordinator.getRadioWindowsPerHour() * (now - start) / HOUR, 1e-9);
+    }
+
+    /**
+     * the work of the service in motion: an entry every minute, the upload scheduler every minute (sending every 15min),
+     * scans every 2min and the energy mode every 10 s, and the 2min alarm of the restarter. Each timer woke the device
+     * up on its own before. Only the windows that scan or send power the radio up
+     */
+    @Test
+    public void sharedWindowsWakeTheDeviceUpLessOften() {
+        Recorder restarter = new Recorder();
+        final Recorder loop = new Recorder();
+        coordinator.addPeriodic("database", MINUTE, 5 * SECOND, false, new Recorder());
+        now += 17 * SECOND; //the timers were started at different instants
+        final long[] lastUpload = {now};
+        coordinator.addPeriodic("server", MINUTE, 30 * SECOND, false, new Runnable() {
+            @Override
+            public void run() {
+                if (now - lastUpload[0] >= 15 * MINUTE) {
+                    lastUpload[0] = now;
+                    coordinator.radioPowered(coordinator.getWindow());
+                }
+            }
+        });
+        now += 29 * SECOND;
+        coordinator.addPeriodic("restarter", 2 * MINUTE, MINUTE, false, restarter);
+        final long[] lastScan = {now};
+        final WakeupCoordinator.Task[] loopTask = new WakeupCoordinator.Task[1];
+        loopTask[0] = coordinator.addOneShot("control loop", 10 * SECOND, false, new Runnable() {
+            @Override
+            public void run() {
+                loop.run();
+                if (now - lastScan[0] >= 2 * MINUTE) {
+                    lastScan[0] = now;
+                    coordinator.radioPowered(coordinator.getWindow());
+                }
+                coordinator.schedule(loopTask[0], Math.min(now + 10 * SECOND, lastScan[0] + 2 * MINUTE));
+            }
+        });
+        coordinator.schedule(loopTask[0], now + 10 * SECOND);
+        runUntil(now + 10 * MINUTE);
+        coordinator.resetStats();
+
+        long start = now;
+        runUntil(now + HOUR);
+        double windows = coordinator.getWindowsPerHour();
+        double separate = 60 + 60 + 30 + 360; //wakeups of the timers on their own
+        Benchmarks.report(String.format("WakeupCoordinator: %.0f windows/hour (%.0f with the radio up), instead of %.0f",
+                windows, coordinator.getRadioWindowsPerHour(), separate));
+        assertTrue(windows < separate * 0.75);
+        double radioWindows = coordinator.getRadioWindowsPerHour();
+        assertTrue(radioWindows + " radio windows", radioWindows >= 30 && radioWindows <= 30 + 4); //the scans, and the uploads sent in windows without a scan
+        assertTrue(Math.abs(restarter.runs.size() - 35) <= 2); //every 2min over 70min
+        //the energy mode is still evaluated at least every 20 s
+        long previous = start;
+        for (long run : loop.runs)
+            if (run >= start) {
+                assertTrue(run - previous <= 20 * SECOND);
+                previous = run;
+            }
+    }
+}
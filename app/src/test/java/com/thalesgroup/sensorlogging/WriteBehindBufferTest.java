@@ -0,0 +1,143 @@
+package com.thalesgroup.sensorlogging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of WriteBehindBuffer and of the WindowJournal behind it
+ */
+public class WriteBehindBufferTest {
+
+    private File journalFile;
+
+    @Before
+    public void setUp() throws IOException {
+        journalFile = File.createTempFile("pending-windows", ".journal");
+        assertTrue(journalFile.delete());
+    }
+
+    @After
+    public void tearDown() {
+        journalFile.delete();
+    }
+
+    @Test
+    public void flushesEveryNWindowsOrWhenAwake() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(null);
+        SyntheticEntries entries = new SyntheticEntries(1, 0);
+        assertFalse(buffer.shouldFlush(1, true));
+
+        buffer.add(entries.next());
+        assertFalse(buffer.shouldFlush(5, false));
+        assertTrue(buffer.shouldFlush(5, true));
+        for (int i = 0; i < 4; i++)
+            buffer.add(entries.next());
+        assertTrue(buffer.shouldFlush(5, false));
+        assertEquals(5, buffer.drain().size());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void uncommittedEntriesSurviveRestart() {
+        SyntheticEntries entries = new SyntheticEntries(2, 0);
+        WriteBehindBuffer buffer = new WriteBehindBuffer(new WindowJournal(journalFile));
+        buffer.recover();
+        for (int i = 0; i < 3; i++)
+            buffer.add(entries.next());
+
+        List<SensorsEntry> committed = buffer.drain();
+        buffer.add(entries.next());
+        buffer.confirm(committed);
+        List<SensorsEntry> inFlight = buffer.drain(); //service killed before this transaction is confirmed
+
+        WriteBehindBuffer restarted = new WriteBehindBuffer(new WindowJournal(journalFile));
+        restarted.recover();
+        List<SensorsEntry> recovered = restarted.drain();
+        assertEquals(1, recovered.size());
+        assertEquals(inFlight.get(0).getFinalTimestamp(), recovered.get(0).getFinalTimestamp());
+        assertEquals(inFlight.get(0).toString(), recovered.get(0).toString());
+    }
+
+    @Test
+    public void failedTransactionRestoresEntriesInOrder() {
+        SyntheticEntries entries = new SyntheticEntries(3, 0);
+        WriteBehindBuffer buffer = new WriteBehindBuffer(new WindowJournal(journalFile));
+        buffer.recover();
+        buffer.add(entries.next());
+        buffer.add(entries.next());
+        List<SensorsEntry> failed = buffer.drain();
+        buffer.add(entries.next());
+        buffer.restore(failed);
+
+        List<SensorsEntry> retried = buffer.drain();
+        assertEquals(3, retried.size());
+        assertTrue(retried.get(0).getFinalTimestamp() < retried.get(1).getFinalTimestamp());
+        assertTrue(retried.get(1).getFinalTimestamp() < retried.get(2).getFinalTimestamp());
+    }
+
+    @Test
+    public void tornRecordAtTheEndIsIgnored() throws IOException {
+        SyntheticEntries entries = new SyntheticEntries(4, 0);
+        WindowJournal journal = new WindowJournal(journalFile);
+        journal.append(entries.next());
+        journal.append(entries.next());
+
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        file.setLength(file.length() - 10); //killed in the middle of the second append
+        file.close();
+
+        assertEquals(1, journal.readAll().size());
+    }
+
+    @Test
+    public void entriesAlreadyInTheDatabaseAreDropped() {
+        SyntheticEntries entries = new SyntheticEntries(5, 0);
+        WriteBehindBuffer buffer = new WriteBehindBuffer(new WindowJournal(journalFile));
+        buffer.recover();
+        SensorsEntry first = entries.next();
+        buffer.add(first);
+        buffer.add(entries.next());
+        buffer.dropUntil(first.getFinalTimestamp());
+
+        assertEquals(1, buffer.size());
+        WriteBehindBuffer restarted = new WriteBehindBuffer(new WindowJournal(journalFile));
+        restarted.recover();
+        assertEquals(1, restarted.size());
+    }
+
+    /**
+     * killed in the middle of an append, then again before the entries added since are committed
+     */
+    @Test
+    public void entriesAddedAfterATornRecordSurvive() throws IOException {
+        SyntheticEntries entries = new SyntheticEntries(6, 0);
+        WriteBehindBuffer buffer = new WriteBehindBuffer(new WindowJournal(journalFile));
+        buffer.recover();
+        buffer.add(entries.next());
+        buffer.add(entries.next());
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        file.setLength(file.length() - 10);
+        file.close();
+
+        WriteBehindBuffer restarted = new WriteBehindBuffer(new WindowJournal(journalFile));
+        restarted.add(entries.next()); //before the storage thread recovers the journal
+        restarted.recover();
+        restarted.add(entries.next());
+        assertEquals(3, restarted.size());
+
+        WriteBehindBuffer again = new WriteBehindBuffer(new WindowJournal(journalFile));
+        again.recover();
+        List<SensorsEntry> recovered = again.drain();
+        assertEquals(3, recovered.size());
+        assertTrue(recovered.get(0).getFinalTimestamp() < recovered.get(1).getFinalTimestamp());
+        assertTrue(recovered.get(1).getFinalTimestamp() < recovered.get(2).getFinalTimestamp());
+    }
+}